@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.common;
+
+import net.lshift.diffa.adapter.scanning.ScanResultEntry;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Helper for serializing scanning results in a compact binary encoding, as an alternative to JSON.
+ *
+ * A result starts with a four byte header, and is followed by each entry in turn, introduced by a byte flagging which
+ * of its fields are present. A zero byte marks the end of the result. Lengths and numbers are written as variable
+ * length integers. Attribute names and values are written once, and then referred to by their position in a table of
+ * the strings seen so far in the result, since the same names (and frequently the same values) are repeated in every
+ * entry. The table is bounded, and any strings that don't fit in it are written out in full. A null attribute value
+ * is written as a reserved reference of its own. Versions that are lower case hex digests are packed into half the
+ * space.
+ */
+public class BinaryScanResultHelper {
+  private static final byte[] HEADER = { 'D', 'S', 'R', 2 };
+
+  private static final int ENTRY = 0x80;
+  private static final int HAS_ID = 0x01;
+  private static final int HAS_VERSION = 0x02;
+  private static final int HAS_LAST_UPDATED = 0x04;
+  private static final int HAS_ATTRIBUTES = 0x08;
+  private static final int HEX_VERSION = 0x10;
+
+  private static final int NULL_STRING = 0;
+  private static final int INLINE_STRING = 1;
+  private static final int FIRST_TABLE_REFERENCE = 2;
+
+  /**
+   * The maximum number of strings that are remembered for reuse whilst a result is written or read.
+   */
+  public static final int MAX_STRING_TABLE_SIZE = 4096;
+
+  public static void writeQueryResult(OutputStream responseStream, Iterable<ScanResultEntry> entries)
+      throws IOException {
+    ScanResultWriter writer = openQueryResult(responseStream);
+    for (ScanResultEntry entry : entries) {
+      writer.write(entry);
+    }
+    writer.close();
+  }
+
+  /**
+   * Writes the header of a binary encoded result to the given stream, to which entries can then be written one at a
+   * time.
+   */
+  public static ScanResultWriter openQueryResult(OutputStream responseStream) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(responseStream, 8192));
+    out.write(HEADER);
+
+    return new BinaryResultWriter(out);
+  }
+
+  private static class BinaryResultWriter implements ScanResultWriter {
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+    private BinaryResultWriter(DataOutputStream out) {
+      this.out = out;
+    }
+
+    public void write(ScanResultEntry entry) throws IOException {
+      int flags = ENTRY;
+      if (entry.getId() != null) flags |= HAS_ID;
+      if (entry.getVersion() != null) flags |= isHex(entry.getVersion()) ? HAS_VERSION | HEX_VERSION : HAS_VERSION;
+      if (entry.getLastUpdated() != null) flags |= HAS_LAST_UPDATED;
+      if (entry.getAttributes() != null) flags |= HAS_ATTRIBUTES;
+      out.writeByte(flags);
+
+      if (entry.getId() != null) writeString(out, entry.getId());
+      if ((flags & HEX_VERSION) != 0) writeHex(out, entry.getVersion());
+      else if (entry.getVersion() != null) writeString(out, entry.getVersion());
+      if (entry.getLastUpdated() != null) writeVarLong(out, zigZag(entry.getLastUpdated().getMillis()));
+      if (entry.getAttributes() != null) {
+        writeVarLong(out, entry.getAttributes().size());
+        for (Map.Entry<String, String> attribute : entry.getAttributes().entrySet()) {
+          writeTableString(out, strings, attribute.getKey());
+          writeTableString(out, strings, attribute.getValue());
+        }
+      }
+    }
+
+    public void close() throws IOException {
+      out.writeByte(0);
+      out.flush();
+    }
+  }
+
+  public static List<ScanResultEntry> readQueryResult(InputStream stream, ScanEntityValidator validator)
+      throws IOException {
+    List<ScanResultEntry> scanResultEntries = new ArrayList<ScanResultEntry>();
+    ScanResultReader reader = streamQueryResult(stream, validator);
+
+    ScanResultEntry entry;
+    while ((entry = reader.next()) != null) {
+      scanResultEntries.add(entry);
+    }
+
+    return scanResultEntries;
+  }
+
+  /**
+   * Determines whether the stream holds a binary encoded result (rather than JSON), without consuming any of it.
+   * @param stream a stream that supports mark and reset.
+   */
+  public static boolean isBinaryResult(InputStream stream) throws IOException {
+    byte[] header = new byte[HEADER.length];
+    stream.mark(header.length);
+    try {
+      int read = 0;
+      while (read < header.length) {
+        int count = stream.read(header, read, header.length - read);
+        if (count < 0) {
+          return false;
+        }
+        read += count;
+      }
+      return Arrays.equals(header, HEADER);
+    } finally {
+      stream.reset();
+    }
+  }
+
+  /**
+   * Prepares to read a binary encoded result one entry at a time.
+   */
+  public static ScanResultReader streamQueryResult(InputStream stream, ScanEntityValidator validator)
+      throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 8192));
+
+    byte[] header = new byte[HEADER.length];
+    in.readFully(header);
+    if (!Arrays.equals(header, HEADER)) {
+      throw new IOException("Failed to deserialize result: not a binary scan result (version " + HEADER[3] + ")");
+    }
+
+    return new BinaryResultReader(in, validator);
+  }
+
+  private static class BinaryResultReader implements ScanResultReader {
+    private final DataInputStream in;
+    private final ScanEntityValidator validator;
+    private final List<String> strings = new ArrayList<String>();
+    private boolean finished = false;
+
+    private BinaryResultReader(DataInputStream in, ScanEntityValidator validator) {
+      this.in = in;
+      this.validator = validator;
+    }
+
+    public ScanResultEntry next() throws IOException {
+      if (finished) {
+        return null;
+      }
+
+      int flags = in.readUnsignedByte();
+      if (flags == 0) {
+        finished = true;
+        return null;
+      }
+      if ((flags & ENTRY) == 0) {
+        throw new IOException("Failed to deserialize result: unexpected entry flags " + flags);
+      }
+
+      ScanResultEntry entry = new ScanResultEntry();
+      if ((flags & HAS_ID) != 0) entry.setId(readString(in));
+      if ((flags & HEX_VERSION) != 0) entry.setVersion(readHex(in));
+      else if ((flags & HAS_VERSION) != 0) entry.setVersion(readString(in));
+      if ((flags & HAS_LAST_UPDATED) != 0) entry.setLastUpdated(new DateTime(unZigZag(readVarLong(in)), DateTimeZone.UTC));
+      if ((flags & HAS_ATTRIBUTES) != 0) {
+        int count = (int) readVarLong(in);
+        Map<String, String> attributes = new HashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++) {
+          String name = readTableString(in, strings);
+          attributes.put(name, readTableString(in, strings));
+        }
+        entry.setAttributes(attributes);
+      }
+
+      try {
+        validator.process(entry);
+      } catch (InvalidEntityException ex) {
+        throw new IOException("Failed to deserialize result: " + ex.getMessage(), ex);
+      }
+      return entry;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes("UTF-8");
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[(int) readVarLong(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static boolean isHex(String value) {
+    if (value.length() == 0 || value.length() % 2 != 0) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeHex(DataOutputStream out, String value) throws IOException {
+    writeVarLong(out, value.length() / 2);
+    for (int i = 0; i < value.length(); i += 2) {
+      out.writeByte(Character.digit(value.charAt(i), 16) << 4 | Character.digit(value.charAt(i + 1), 16));
+    }
+  }
+
+  private static String readHex(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[(int) readVarLong(in)];
+    in.readFully(bytes);
+
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+      hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Writes a reference to a string that has already been written, or else writes it out in full (preceded by an
+   * inline reference) and remembers it if there is room. Nulls are written as a null reference.
+   */
+  private static void writeTableString(DataOutputStream out, Map<String, Integer> strings, String value)
+      throws IOException {
+    Integer index = (value == null) ? null : strings.get(value);
+    if (value == null) {
+      writeVarLong(out, NULL_STRING);
+    } else if (index != null) {
+      writeVarLong(out, index + FIRST_TABLE_REFERENCE);
+    } else {
+      writeVarLong(out, INLINE_STRING);
+      writeString(out, value);
+      if (strings.size() < MAX_STRING_TABLE_SIZE) {
+        strings.put(value, strings.size());
+      }
+    }
+  }
+
+  private static String readTableString(DataInputStream in, List<String> strings) throws IOException {
+    int reference = (int) readVarLong(in);
+    if (reference == NULL_STRING) {
+      return null;
+    }
+    if (reference >= FIRST_TABLE_REFERENCE) {
+      if (reference - FIRST_TABLE_REFERENCE >= strings.size()) {
+        throw new IOException("Failed to deserialize result: unknown string reference " + reference);
+      }
+      return strings.get(reference - FIRST_TABLE_REFERENCE);
+    }
+
+    String value = readString(in);
+    if (strings.size() < MAX_STRING_TABLE_SIZE) {
+      strings.add(value);
+    }
+    return value;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Failed to deserialize result: malformed variable length integer");
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
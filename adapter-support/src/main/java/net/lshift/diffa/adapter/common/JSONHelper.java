@@ -18,7 +18,9 @@ package net.lshift.diffa.adapter.common;
 import net.lshift.diffa.adapter.changes.ChangeEvent;
 import net.lshift.diffa.adapter.correlation.ProcessingResponse;
 import net.lshift.diffa.adapter.scanning.ScanResultEntry;
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
@@ -41,12 +43,15 @@ import java.util.List;
 public class JSONHelper {
   private static ObjectMapper mapper = new ObjectMapper();
   private static ObjectMapper prettyMapper = new ObjectMapper();
+  private static ObjectMapper streamingMapper = new ObjectMapper();
   private static JsonFactory jsonFactory = new JsonFactory();
   private static Logger log = LoggerFactory.getLogger(JSONHelper.class);
   static {
     mapper.getSerializationConfig().set(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
     prettyMapper.getSerializationConfig().set(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
     prettyMapper.getSerializationConfig().set(SerializationConfig.Feature.INDENT_OUTPUT, true);
+    streamingMapper.getSerializationConfig().set(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
+    streamingMapper.getSerializationConfig().set(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
   }
 
   public static void writeQueryResult(OutputStream responseStream, Iterable<ScanResultEntry> entries)
@@ -60,6 +65,40 @@ public class JSONHelper {
     }
   }
 
+  /**
+   * Starts a JSON array of scan results on the given stream, to which entries can then be written one at a time.
+   */
+  public static ScanResultWriter openQueryResult(OutputStream responseStream) throws IOException {
+    JsonGenerator generator = jsonFactory.createJsonGenerator(responseStream, JsonEncoding.UTF8);
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    generator.writeStartArray();
+
+    return new QueryResultWriter(generator);
+  }
+
+  private static class QueryResultWriter implements ScanResultWriter {
+    private final JsonGenerator generator;
+
+    private QueryResultWriter(JsonGenerator generator) {
+      this.generator = generator;
+    }
+
+    public void write(ScanResultEntry entry) throws IOException {
+      try {
+        streamingMapper.writeValue(generator, entry);
+      } catch (IOException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IOException("Failed to serialize result to JSON", ex);
+      }
+    }
+
+    public void close() throws IOException {
+      generator.writeEndArray();
+      generator.close();
+    }
+  }
+
   public static void formatQueryResult(OutputStream responseStream, Iterable<ScanResultEntry> entries)
       throws IOException {
     try {
@@ -73,29 +112,77 @@ public class JSONHelper {
 
   public static List<ScanResultEntry> readQueryResult(InputStream stream, ScanEntityValidator validator)
       throws IOException {
+    List<ScanResultEntry> scanResultEntries = new ArrayList<ScanResultEntry>();
+    QueryResultReader reader = streamQueryResult(stream, validator);
+
+    ScanResultEntry entry;
+    while ((entry = reader.next()) != null) {
+      scanResultEntries.add(entry);
+    }
+
+    if (log.isTraceEnabled()) {
+      log.trace("ScanResultEntry readQueryResult [count = " + scanResultEntries.size() + "]");
+    }
+
+    return scanResultEntries;
+  }
+
+  /**
+   * Prepares to read a JSON array of scan results one entry at a time, so that the caller can process each entry
+   * before the remainder of the stream has been received.
+   */
+  public static QueryResultReader streamQueryResult(InputStream stream, ScanEntityValidator validator)
+      throws IOException {
     try {
-      List<ScanResultEntry> scanResultEntries = new ArrayList<ScanResultEntry>();
       JsonParser parser = jsonFactory.createJsonParser(stream);
       if (parser.nextToken() != JsonToken.START_ARRAY) {
         throw new Exception("Expected '[' (JSON array start)");
       }
 
-      while (parser.nextToken() != JsonToken.END_ARRAY) {
-          ScanResultEntry entry = mapper.readValue(parser, ScanResultEntry.class);
-          validator.process(entry);
-          scanResultEntries.add(entry);
+      return new QueryResultReader(parser, validator);
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException(String.format("Failed to deserialize result from JSON: %s", ex.getMessage()), ex);
+    }
+  }
+
+  /**
+   * Incrementally reads the entries of a JSON array of scan results, validating each entry as it is read.
+   */
+  public static class QueryResultReader implements ScanResultReader {
+    private final JsonParser parser;
+    private final ScanEntityValidator validator;
+    private boolean finished = false;
 
-      }
+    private QueryResultReader(JsonParser parser, ScanEntityValidator validator) {
+      this.parser = parser;
+      this.validator = validator;
+    }
 
-      if (log.isTraceEnabled()) {
-        log.trace("ScanResultEntry readQueryResult [count = " + scanResultEntries.size() + "]");
+    /**
+     * Reads the next entry from the stream.
+     * @return the next entry, or null once the end of the array has been reached.
+     */
+    public ScanResultEntry next() throws IOException {
+      if (finished) {
+        return null;
       }
 
-      return scanResultEntries;
-    } catch (IOException ex) {
-      throw ex;
-    } catch (Exception ex) {
-      throw new IOException("Failed to deserialize result from JSON: %s".format(ex.getMessage()), ex);
+      try {
+        if (parser.nextToken() == JsonToken.END_ARRAY) {
+          finished = true;
+          return null;
+        }
+
+        ScanResultEntry entry = mapper.readValue(parser, ScanResultEntry.class);
+        validator.process(entry);
+        return entry;
+      } catch (IOException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IOException(String.format("Failed to deserialize result from JSON: %s", ex.getMessage()), ex);
+      }
     }
   }
 
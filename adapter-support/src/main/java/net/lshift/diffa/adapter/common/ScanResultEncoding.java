@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Describes the encodings that scan results can be exchanged in, and negotiates between them. Results are always
+ * available as JSON; agents that understand it may also ask for the compact binary encoding written by
+ * BinaryScanResultHelper, and for either to be gzip compressed.
+ */
+public class ScanResultEncoding {
+  public static final String JSON_CONTENT_TYPE = "application/json";
+  public static final String BINARY_CONTENT_TYPE = "application/x-diffa-scan-results";
+  public static final String GZIP = "gzip";
+
+  /**
+   * The Accept header sent by clients that can read either encoding, preferring the binary one.
+   */
+  public static final String ACCEPT_ALL = BINARY_CONTENT_TYPE + ", " + JSON_CONTENT_TYPE + ";q=0.9";
+
+  /**
+   * Determines whether the given Accept header allows for the binary encoding.
+   */
+  public static boolean acceptsBinary(String accept) {
+    return accepts(accept, BINARY_CONTENT_TYPE);
+  }
+
+  /**
+   * Determines whether the given Accept-Encoding header allows for gzip compression.
+   */
+  public static boolean acceptsGzip(String acceptEncoding) {
+    return accepts(acceptEncoding, GZIP);
+  }
+
+  /**
+   * Determines whether a response with the given Content-Encoding has been gzip compressed.
+   */
+  public static boolean isGzip(String contentEncoding) {
+    return contentEncoding != null && contentEncoding.trim().equalsIgnoreCase(GZIP);
+  }
+
+  public static OutputStream compress(OutputStream out) throws IOException {
+    return new GZIPOutputStream(out, 8192);
+  }
+
+  public static InputStream decompress(InputStream in) throws IOException {
+    return new GZIPInputStream(in, 8192);
+  }
+
+  private static boolean accepts(String header, String value) {
+    if (header == null) {
+      return false;
+    }
+
+    for (String part : header.split(",")) {
+      String[] params = part.split(";");
+      if (params[0].trim().equalsIgnoreCase(value)) {
+        for (int i = 1; i < params.length; i++) {
+          String param = params[i].trim().replace(" ", "");
+          if (param.startsWith("q=") && isZero(param.substring(2))) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean isZero(String quality) {
+    try {
+      return Double.parseDouble(quality) == 0.0;
+    } catch (NumberFormatException ex) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.common;
+
+import net.lshift.diffa.adapter.scanning.ScanResultSink;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Incrementally writes the entries of a scan result to a stream.
+ */
+public interface ScanResultWriter extends ScanResultSink, Closeable {
+  /**
+   * Completes the result and flushes it to the underlying stream, which is left open. A result that is never closed
+   * is seen as truncated by the reader.
+   */
+  void close() throws IOException;
+}
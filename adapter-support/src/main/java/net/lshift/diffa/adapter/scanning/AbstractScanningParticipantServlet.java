@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.scanning;
+
+import net.lshift.diffa.adapter.common.BinaryScanResultHelper;
+import net.lshift.diffa.adapter.common.JSONHelper;
+import net.lshift.diffa.adapter.common.ScanResultEncoding;
+import net.lshift.diffa.adapter.common.ScanResultWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Common support for servlets implementing a Diffa scanning adapter, whether they produce their results as a list
+ * (ScanningParticipantServlet) or write them out as they go (StreamingScanningParticipantServlet).
+ *
+ * The response isn't started until the first entry is written, so a query that fails before producing anything is
+ * reported with an error status as usual. A query that fails part way through leaves the result unterminated, which
+ * the agent detects as a truncated response rather than mistaking it for a complete result.
+ *
+ * Aggregates are produced in the digest mode named by the request, and that mode is reported in the response's
+ * X-Diffa-Digest-Mode header so that the agent can tell it was honoured. A request for aggregates in a mode that the
+ * sub-class doesn't support is answered with a 400 (Bad Request) before the query is run.
+ */
+public abstract class AbstractScanningParticipantServlet extends HttpServlet {
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+
+    List<ScanConstraint> constraints = determineConstraints(req);
+    List<ScanAggregation> aggregations = determineAggregations(req);
+    DigestMode digestMode = determineDigestMode(req);
+
+    if (!aggregations.isEmpty() && !supportsDigestMode(digestMode)) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, new UnsupportedDigestModeException(digestMode).getMessage());
+      return;
+    }
+
+    ResponseSink sink = new ResponseSink(req, resp, aggregations.isEmpty() ? null : digestMode);
+    try {
+      streamQuery(constraints, aggregations, digestMode, sink);
+    } catch (UnsupportedDigestModeException ex) {
+      // Once part of the result has been written, the failure can only be signalled by leaving it unterminated
+      if (sink.isOpen()) {
+        throw ex;
+      }
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+      return;
+    }
+    sink.close();
+  }
+
+  /**
+   * Callback to be implemented by sub-classes to determine the constraints relevant to a request.
+   * @param req the request to check for constraints.
+   * @return the constraints. Default implementation is to return no constraints.
+   */
+  protected List<ScanConstraint> determineConstraints(HttpServletRequest req) {
+    return new ArrayList<ScanConstraint>();
+  }
+
+  /**
+   * Callback to be implemented by sub-classes to determine the aggregations relevant to a request.
+   * @param req the request to check for aggregations.
+   * @return the aggregations. Default implementation is to return no aggregations.
+   */
+  protected List<ScanAggregation> determineAggregations(HttpServletRequest req) {
+    return new ArrayList<ScanAggregation>();
+  }
+
+  /**
+   * Callback to determine the digest mode requested for any aggregates.
+   * @param req the request to check for a digest mode.
+   * @return the digest mode. Default implementation is to return the mode named by the request, or ORDERED if
+   *  none is named.
+   */
+  protected DigestMode determineDigestMode(HttpServletRequest req) {
+    return new AggregationBuilder(req).getDigestMode();
+  }
+
+  /**
+   * Callback to determine whether aggregates can be produced in the given digest mode. This is checked before the
+   * query is run, since a request that is refused once part of the result has been written can't be answered with
+   * an error status.
+   * @param digestMode the requested digest mode.
+   * @return whether the mode is supported. Default implementation is to only support ORDERED digests.
+   */
+  protected boolean supportsDigestMode(DigestMode digestMode) {
+    return digestMode == DigestMode.ORDERED;
+  }
+
+  /**
+   * Runs the query, writing each of the resulting entries to the given sink.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param digestMode the digest mode to use for any aggregates.
+   * @param sink the sink to write the result entries to.
+   */
+  protected abstract void streamQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                                      DigestMode digestMode, ScanResultSink sink) throws IOException;
+
+  /**
+   * Sink writing each result entry to the response as it is produced, in the encoding negotiated with the agent.
+   */
+  private static class ResponseSink implements ScanResultSink {
+    private final HttpServletRequest req;
+    private final HttpServletResponse resp;
+    private final DigestMode digestMode;
+    private OutputStream out = null;
+    private ScanResultWriter writer = null;
+
+    private ResponseSink(HttpServletRequest req, HttpServletResponse resp, DigestMode digestMode) {
+      this.req = req;
+      this.resp = resp;
+      this.digestMode = digestMode;
+    }
+
+    public void write(ScanResultEntry entry) throws IOException {
+      open().write(entry);
+    }
+
+    public boolean isOpen() {
+      return writer != null;
+    }
+
+    public void close() throws IOException {
+      open().close();
+
+      // Completes the gzip trailer, if there is one
+      out.close();
+    }
+
+    private ScanResultWriter open() throws IOException {
+      if (writer == null) {
+        boolean binary = ScanResultEncoding.acceptsBinary(req.getHeader("Accept"));
+        boolean gzip = ScanResultEncoding.acceptsGzip(req.getHeader("Accept-Encoding"));
+
+        resp.setContentType(binary ? ScanResultEncoding.BINARY_CONTENT_TYPE : ScanResultEncoding.JSON_CONTENT_TYPE);
+        resp.addHeader("Vary", "Accept, Accept-Encoding");
+        if (digestMode != null) {
+          resp.setHeader(DigestMode.HEADER, digestMode.getName());
+        }
+
+        out = resp.getOutputStream();
+        if (gzip) {
+          resp.setHeader("Content-Encoding", ScanResultEncoding.GZIP);
+          out = ScanResultEncoding.compress(out);
+        }
+
+        writer = binary ? BinaryScanResultHelper.openQueryResult(out) : JSONHelper.openQueryResult(out);
+      }
+
+      return writer;
+    }
+  }
+}
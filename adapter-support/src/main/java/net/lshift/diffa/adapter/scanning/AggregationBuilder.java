@@ -86,6 +86,15 @@ public class AggregationBuilder {
     }
   }
 
+  /**
+   * Determines the digest mode requested for the aggregates. If the request doesn't specify one, then ORDERED
+   * digests are expected.
+   * @return the requested digest mode.
+   */
+  public DigestMode getDigestMode() {
+    return DigestMode.fromName(req.getParameter(DigestMode.PARAMETER));
+  }
+
   private String getGranularityAttr(String attrName) {
     return req.getParameter(attrName + "-granularity");
   }
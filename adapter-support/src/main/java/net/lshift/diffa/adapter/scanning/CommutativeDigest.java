@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An order-independent digest over a set of entities. Each entity contributes the 128-bit MD5 of its id and version,
+ * and the contributions are summed modulo 2^128. Since addition commutes, entities may be added in any order, digests
+ * of sub-buckets can be merged, and a single entity can be replaced by removing its old version and adding the new one.
+ *
+ * Unlike an XOR, the sum doesn't cancel out when the same contribution appears twice.
+ */
+@NotThreadSafe
+public class CommutativeDigest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long SIGN = Long.MIN_VALUE;
+
+  private long high = 0;
+  private long low = 0;
+
+  /**
+   * Parses a digest previously rendered with toHex.
+   */
+  public static CommutativeDigest fromHex(String hex) {
+    if (hex == null || hex.length() != 32) {
+      throw new IllegalArgumentException("Not a commutative digest: " + hex);
+    }
+
+    CommutativeDigest digest = new CommutativeDigest();
+    digest.high = new BigInteger(hex.substring(0, 16), 16).longValue();
+    digest.low = new BigInteger(hex.substring(16), 16).longValue();
+    return digest;
+  }
+
+  /**
+   * Adds an entity to the digest.
+   */
+  public CommutativeDigest add(String id, String vsn) {
+    long[] hash = hash(id, vsn);
+    add(hash[0], hash[1]);
+    return this;
+  }
+
+  /**
+   * Removes an entity that was previously added to the digest.
+   */
+  public CommutativeDigest remove(String id, String vsn) {
+    long[] hash = hash(id, vsn);
+    subtract(hash[0], hash[1]);
+    return this;
+  }
+
+  /**
+   * Adds all of the entities of another digest to this one.
+   */
+  public CommutativeDigest merge(CommutativeDigest other) {
+    add(other.high, other.low);
+    return this;
+  }
+
+  /**
+   * @return the digest as 32 hex characters.
+   */
+  public String toHex() {
+    return String.format("%016x%016x", high, low);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    CommutativeDigest that = (CommutativeDigest) o;
+
+    return high == that.high && low == that.low;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (int) (high ^ (high >>> 32)) + (int) (low ^ (low >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return toHex();
+  }
+
+  private void add(long otherHigh, long otherLow) {
+    long sum = low + otherLow;
+    long carry = (sum ^ SIGN) < (low ^ SIGN) ? 1 : 0;
+    low = sum;
+    high = high + otherHigh + carry;
+  }
+
+  private void subtract(long otherHigh, long otherLow) {
+    long borrow = (low ^ SIGN) < (otherLow ^ SIGN) ? 1 : 0;
+    low = low - otherLow;
+    high = high - otherHigh - borrow;
+  }
+
+  private static long[] hash(String id, String vsn) {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException("MD5 digest algorithm no available");
+    }
+
+    md5.update(id.getBytes(UTF8));
+    md5.update((byte) 0);
+    byte[] bytes = md5.digest(vsn.getBytes(UTF8));
+
+    long[] result = new long[2];
+    for (int i = 0; i < 16; i++) {
+      result[i / 8] = (result[i / 8] << 8) | (bytes[i] & 0xff);
+    }
+    return result;
+  }
+}
@@ -20,6 +20,7 @@ import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -38,6 +39,9 @@ import java.util.*;
  * [a b A B].sortBy(unicodeOrdering) -> [A a B b]
  * [a b A B].sortBy(asciiOrdering) -> [A B a b]
  *
+ * The 3-argument constructor allows a different DigestMode to be selected. In the COMMUTATIVE mode, entities
+ * may be added in any order, and no ordering check is applied.
+ *
  */
 @NotThreadSafe
 public class DigestBuilder {
@@ -48,6 +52,7 @@ public class DigestBuilder {
   // implement Comparator<Object>. Even  though they both compare strings.
   // So much for Type safety.
   private final Collation collation;
+  private final DigestMode mode;
   private String previousId = null;
 
 
@@ -57,6 +62,10 @@ public class DigestBuilder {
   }
 
   public DigestBuilder(List<ScanAggregation> aggregations, Collation collation) {
+    this(aggregations, collation, DigestMode.ORDERED);
+  }
+
+  public DigestBuilder(List<ScanAggregation> aggregations, Collation collation, DigestMode mode) {
     this.aggregations = aggregations;
     this.digestBuckets = new HashMap<BucketKey, Bucket>();
 
@@ -64,6 +73,11 @@ public class DigestBuilder {
       throw new NullPointerException("Collator is null");
     }
     this.collation = collation;
+
+    if (mode == null) {
+      throw new NullPointerException("Digest mode is null");
+    }
+    this.mode = mode;
   }
 
   /**
@@ -85,10 +99,12 @@ public class DigestBuilder {
   public void add(String id, Map<String, String> attributes, String vsn) {
     log.trace("Adding to bucket: " + id + ", " + attributes + ", " + vsn);
 
-    if (!isCorrectlyOrdered(id)) {
-     throw new OutOfOrderException(previousId,id);
+    if (mode == DigestMode.ORDERED) {
+      if (!isCorrectlyOrdered(id)) {
+       throw new OutOfOrderException(previousId,id);
+      }
+      previousId = id;
     }
-    previousId = id;
 
     Map<String, String> partitions = new HashMap<String, String>();
     partitions.putAll(attributes);    // Default partitions to the initial attribute set
@@ -105,11 +121,11 @@ public class DigestBuilder {
     BucketKey key = new BucketKey(partitions);
     Bucket bucket = digestBuckets.get(key);
     if (bucket == null) {
-      bucket = new Bucket(key, partitions);
+      bucket = new Bucket(key, partitions, mode);
       digestBuckets.put(key, bucket);
     }
 
-    bucket.add(vsn);
+    bucket.add(id, vsn);
   }
 
     private boolean isCorrectlyOrdered(String id) {
@@ -129,6 +145,18 @@ public class DigestBuilder {
     return result;
   }
 
+  /**
+   * Writes the digest of each bucket to the given sink. Since only a digest is kept for each bucket, an adapter can
+   * add entities to the builder straight from a database cursor, and write out the aggregates with memory bounded
+   * by the number of buckets rather than the number of entities.
+   * @param sink the sink to write the digests to.
+   */
+  public void writeDigests(ScanResultSink sink) throws IOException {
+    for (Bucket bucket : digestBuckets.values()) {
+      sink.write(bucket.toDigest());
+    }
+  }
+
   private static class BucketKey {
     private final Map<String, String> attributes;
 
@@ -159,35 +187,51 @@ public class DigestBuilder {
     private final Map<String, String> attributes;
     private final String digestAlgorithm = "MD5";
     private final MessageDigest messageDigest;
+    private final CommutativeDigest commutativeDigest;
     private String digest = null;
 
-    public Bucket(BucketKey key, Map<String, String> attributes) {
+    public Bucket(BucketKey key, Map<String, String> attributes, DigestMode mode) {
       this.key = key;
       this.attributes = attributes;
 
-      try {
-        this.messageDigest = MessageDigest.getInstance(digestAlgorithm);
-      } catch (NoSuchAlgorithmException ex) {
-        throw new RuntimeException("MD5 digest algorithm no available");
+      if (mode == DigestMode.COMMUTATIVE) {
+        this.messageDigest = null;
+        this.commutativeDigest = new CommutativeDigest();
+      } else {
+        this.commutativeDigest = null;
+        try {
+          this.messageDigest = MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException ex) {
+          throw new RuntimeException("MD5 digest algorithm no available");
+        }
       }
     }
 
     /**
      * Adds a version to be included the digest computation
+     * @param id The id of the entity the version belongs to.
      * @param vsn  The version string to add.
      * @throws SealedBucketException When the digest for the current builder instance has already been computed.
      */
-    public void add(String vsn) {
+    public void add(String id, String vsn) {
       if (digest != null) {
         throw new SealedBucketException(vsn, getLabel());
       }
-      byte[] vsnBytes = vsn.getBytes(Charset.forName("UTF-8"));
-      messageDigest.update(vsnBytes, 0, vsnBytes.length);
+      if (commutativeDigest != null) {
+        commutativeDigest.add(id, vsn);
+      } else {
+        byte[] vsnBytes = vsn.getBytes(Charset.forName("UTF-8"));
+        messageDigest.update(vsnBytes, 0, vsnBytes.length);
+      }
     }
 
     public ScanResultEntry toDigest() {
       if (digest == null) {
-        digest = new String(Hex.encodeHex(messageDigest.digest()));
+        if (commutativeDigest != null) {
+          digest = commutativeDigest.toHex();
+        } else {
+          digest = new String(Hex.encodeHex(messageDigest.digest()));
+        }
       }
 
       return ScanResultEntry.forAggregate(digest, attributes);
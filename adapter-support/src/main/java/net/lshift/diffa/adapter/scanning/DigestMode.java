@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+/**
+ * The way in which the versions within an aggregate bucket are combined into the bucket's digest. The mode is
+ * requested by the agent via the <code>digest</code> query parameter; requests without it expect ORDERED digests.
+ */
+public enum DigestMode {
+  /**
+   * An MD5 over the versions of the bucket, fed in collation order of their ids.
+   */
+  ORDERED("ordered"),
+
+  /**
+   * A sum of per-entity hashes (see {@link CommutativeDigest}), which is independent of the order in which entities
+   * are added.
+   */
+  COMMUTATIVE("commutative");
+
+  /**
+   * The name of the query parameter used to request a digest mode.
+   */
+  public static final String PARAMETER = "digest";
+
+  /**
+   * The name of the response header with which an adapter reports the digest mode of the aggregates it returned.
+   */
+  public static final String HEADER = "X-Diffa-Digest-Mode";
+
+  private final String name;
+
+  DigestMode(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Resolves a digest mode from its name, as supplied in a request.
+   * @param name the name of the mode. A null name selects the ORDERED mode.
+   * @return the digest mode.
+   * @throws InvalidAttributeValueException if the name isn't that of a known mode.
+   */
+  public static DigestMode fromName(String name) {
+    if (name == null) {
+      return ORDERED;
+    }
+
+    for (DigestMode mode : values()) {
+      if (mode.name.equals(name)) {
+        return mode;
+      }
+    }
+
+    throw new InvalidAttributeValueException("Unknown digest mode: " + name);
+  }
+}
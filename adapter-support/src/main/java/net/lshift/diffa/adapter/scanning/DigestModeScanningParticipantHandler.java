@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.scanning;
+
+import java.util.List;
+
+/**
+ * Handler interface for delegated scanning adapters that can produce aggregates in digest modes other than ORDERED.
+ * A ScanningParticipantDelegator only ever asks a plain ScanningParticipantHandler for ORDERED aggregates.
+ */
+public interface DigestModeScanningParticipantHandler extends ScanningParticipantHandler {
+  /**
+   * Callback to determine whether aggregates can be produced in the given digest mode, before the query is run.
+   * @param digestMode the requested digest mode.
+   * @return whether the mode is supported.
+   */
+  boolean supportsDigestMode(DigestMode digestMode);
+
+  /**
+   * Callback to query for data relevant to this query, producing any aggregates in the given digest mode.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param digestMode the digest mode to use for any aggregates; always one that supportsDigestMode accepted.
+   * @return the result entries.
+   */
+  List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                                DigestMode digestMode);
+}
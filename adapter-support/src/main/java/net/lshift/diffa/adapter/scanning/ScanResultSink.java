@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.scanning;
+
+import java.io.IOException;
+
+/**
+ * Destination for the entries of a scan result, allowing them to be written out one at a time as they are produced
+ * rather than being collected into a list first.
+ */
+public interface ScanResultSink {
+  /**
+   * Writes an entry to the result.
+   * @param entry the entity or aggregate to write.
+   */
+  void write(ScanResultEntry entry) throws IOException;
+}
@@ -21,6 +21,9 @@ import java.util.List;
 /**
  * Adapter allowing a ScanningParticipant to be implemented without requiring it to sub-class the
  * ScanningParticipantRequestHandler or the ScanningParticipantServlet, and instead be delegated to.
+ *
+ * Aggregates are only requested in other digest modes than ORDERED from a handler that implements
+ * DigestModeScanningParticipantHandler. Requests for any other mode are refused on behalf of a plain handler.
  */
 public class ScanningParticipantDelegator extends ScanningParticipantRequestHandler {
   private final ScanningParticipantHandler handler;
@@ -39,6 +42,23 @@ public class ScanningParticipantDelegator extends ScanningParticipantRequestHand
     return handler.determineAggregations(req);
   }
 
+  @Override
+  protected boolean supportsDigestMode(DigestMode digestMode) {
+    if (handler instanceof DigestModeScanningParticipantHandler) {
+      return ((DigestModeScanningParticipantHandler) handler).supportsDigestMode(digestMode);
+    }
+    return super.supportsDigestMode(digestMode);
+  }
+
+  @Override
+  protected List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                                          DigestMode digestMode) {
+    if (handler instanceof DigestModeScanningParticipantHandler) {
+      return ((DigestModeScanningParticipantHandler) handler).doQuery(constraints, aggregations, digestMode);
+    }
+    return super.doQuery(constraints, aggregations, digestMode);
+  }
+
   @Override
   protected List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations) {
     return handler.doQuery(constraints, aggregations);
@@ -15,48 +15,38 @@
  */
 package net.lshift.diffa.adapter.scanning;
 
-import net.lshift.diffa.adapter.common.JSONHelper;
-
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Base support servlet for implementing a Diffa scanning adapter.
+ * Base support servlet for implementing a Diffa scanning adapter. The result of each query is returned as a list;
+ * adapters over data sets too large to hold in memory should use the StreamingScanningParticipantServlet instead.
  */
-public abstract class ScanningParticipantServlet extends HttpServlet {
+public abstract class ScanningParticipantServlet extends AbstractScanningParticipantServlet {
   @Override
-  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
-      throws ServletException, IOException {
-
-    List<ScanConstraint> constraints = determineConstraints(req);
-    List<ScanAggregation> aggregations = determineAggregations(req);
-
-    List<ScanResultEntry> entries = doQuery(constraints, aggregations);
-    resp.setContentType("application/json");
-    JSONHelper.writeQueryResult(resp.getOutputStream(), entries);
-  }
-
-  /**
-   * Callback to be implemented by sub-classes to determine the constraints relevant to a request.
-   * @param req the request to check for constraints.
-   * @return the constraints. Default implementation is to return no constraints.
-   */
-  protected List<ScanConstraint> determineConstraints(HttpServletRequest req) {
-    return new ArrayList<ScanConstraint>();
+  protected void streamQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                             DigestMode digestMode, ScanResultSink sink) throws IOException {
+    for (ScanResultEntry entry : doQuery(constraints, aggregations, digestMode)) {
+      sink.write(entry);
+    }
   }
 
   /**
-   * Callback to be implemented by sub-classes to determine the aggregations relevant to a request.
-   * @param req the request to check for aggregations.
-   * @return the aggregations. Default implementation is to return no aggregations.
+   * Callback to query for data relevant to this query, with the digest mode that any aggregates in the returned list
+   * should be in. A sub-class that accepts other modes than ORDERED in supportsDigestMode should override this too.
+   * Default implementation is to return the ORDERED aggregates of doQuery without a digest mode.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param digestMode the digest mode to use for any aggregates.
+   * @return the result entries.
+   * @throws UnsupportedDigestModeException if the default implementation is asked for aggregates that aren't ORDERED.
    */
-  protected List<ScanAggregation> determineAggregations(HttpServletRequest req) {
-    return new ArrayList<ScanAggregation>();
+  protected List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                                          DigestMode digestMode) {
+    if (!aggregations.isEmpty() && digestMode != DigestMode.ORDERED) {
+      throw new UnsupportedDigestModeException(digestMode);
+    }
+    return doQuery(constraints, aggregations);
   }
 
   /**
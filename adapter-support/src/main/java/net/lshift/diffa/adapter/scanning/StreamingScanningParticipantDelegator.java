@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.scanning;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Adapter allowing a streaming ScanningParticipant to be implemented without requiring it to sub-class the
+ * StreamingScanningParticipantRequestHandler or the StreamingScanningParticipantServlet, and instead be delegated to.
+ */
+public class StreamingScanningParticipantDelegator extends StreamingScanningParticipantRequestHandler {
+  private final StreamingScanningParticipantHandler handler;
+
+  public StreamingScanningParticipantDelegator(StreamingScanningParticipantHandler handler) {
+    this.handler = handler;
+  }
+
+  @Override
+  protected List<ScanConstraint> determineConstraints(HttpServletRequest req) {
+    return handler.determineConstraints(req);
+  }
+
+  @Override
+  protected List<ScanAggregation> determineAggregations(HttpServletRequest req) {
+    return handler.determineAggregations(req);
+  }
+
+  @Override
+  protected boolean supportsDigestMode(DigestMode digestMode) {
+    return handler.supportsDigestMode(digestMode);
+  }
+
+  @Override
+  protected void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                         DigestMode digestMode, ScanResultSink sink) throws IOException {
+    handler.doQuery(constraints, aggregations, digestMode, sink);
+  }
+
+  @Override
+  protected void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                         ScanResultSink sink) throws IOException {
+    handler.doQuery(constraints, aggregations, DigestMode.ORDERED, sink);
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.scanning;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Handler interface that can be implemented in client libraries to allow for scanning, writing each entry of the
+ * result out as it is produced.
+ */
+public interface StreamingScanningParticipantHandler {
+  /**
+   * Callback to be implemented by sub-classes to determine the constraints relevant to a request.
+   * @param req the request to check for constraints.
+   * @return the constraints.
+   */
+  List<ScanConstraint> determineConstraints(HttpServletRequest req);
+
+  /**
+   * Callback to be implemented by sub-classes to determine the aggregations relevant to a request.
+   * @param req the request to check for aggregations.
+   * @return the aggregations.
+   */
+  List<ScanAggregation> determineAggregations(HttpServletRequest req);
+
+  /**
+   * Callback to determine whether aggregates can be produced in the given digest mode, before the query is run.
+   * @param digestMode the requested digest mode.
+   * @return whether the mode is supported.
+   */
+  boolean supportsDigestMode(DigestMode digestMode);
+
+  /**
+   * Callback to be implemented by sub-classes to query for data relevant to this query.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param digestMode the digest mode to use for any aggregates.
+   * @param sink the sink to write the result entries to.
+   */
+  void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations, DigestMode digestMode,
+               ScanResultSink sink) throws IOException;
+}
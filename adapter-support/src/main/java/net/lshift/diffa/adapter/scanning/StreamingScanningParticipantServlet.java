@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.scanning;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Base support servlet for implementing a Diffa scanning adapter that writes each entry of the result to the response
+ * as it is produced, instead of returning them all in a list. This allows an adapter to answer a query straight from
+ * a database cursor. Where aggregates are requested, the entities can be added to a DigestBuilder as they are read,
+ * and its digests written to the sink once the cursor is exhausted; only one digest per bucket is held in memory.
+ */
+public abstract class StreamingScanningParticipantServlet extends AbstractScanningParticipantServlet {
+  @Override
+  protected void streamQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                             DigestMode digestMode, ScanResultSink sink) throws IOException {
+    doQuery(constraints, aggregations, digestMode, sink);
+  }
+
+  /**
+   * Callback to write the result of this query to the sink, with any aggregates in the given digest mode. A
+   * DigestBuilder fed from the cursor produces its digests in whichever mode it is given, so a sub-class that
+   * overrides this can accept COMMUTATIVE in supportsDigestMode as well. Default implementation is to write the
+   * ORDERED aggregates of doQuery without a digest mode.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param digestMode the digest mode to use for any aggregates.
+   * @param sink the sink to write the result entries to.
+   * @throws UnsupportedDigestModeException if the default implementation is asked for aggregates that aren't ORDERED.
+   */
+  protected void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                         DigestMode digestMode, ScanResultSink sink) throws IOException {
+    if (!aggregations.isEmpty() && digestMode != DigestMode.ORDERED) {
+      throw new UnsupportedDigestModeException(digestMode);
+    }
+    doQuery(constraints, aggregations, sink);
+  }
+
+  /**
+   * Callback to be implemented by sub-classes to query for data relevant to this query.
+   * @param constraints the constraints to apply.
+   * @param aggregations the aggregations to apply.
+   * @param sink the sink to write the result entries to.
+   */
+  protected abstract void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                                  ScanResultSink sink) throws IOException;
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.lshift.diffa.adapter.scanning;
+
+/**
+ * Denotes that aggregates were requested in a digest mode that the adapter doesn't produce.
+ */
+public class UnsupportedDigestModeException extends RuntimeException {
+  public UnsupportedDigestModeException(DigestMode mode) {
+    super("Digest mode " + mode.getName() + " is not supported by this adapter");
+  }
+}
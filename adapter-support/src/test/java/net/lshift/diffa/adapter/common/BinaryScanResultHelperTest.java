@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.common;
+
+import net.lshift.diffa.adapter.changes.ChangeEvent;
+import net.lshift.diffa.adapter.scanning.ScanResultEntry;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary serialisation support.
+ */
+public class BinaryScanResultHelperTest {
+  private final static ScanEntityValidator nullValidator = new ScanEntityValidator () {
+    public void process(ScanResultEntry e) {}
+    public void process(ChangeEvent e)  {}
+  };
+
+  @Test
+  public void shouldRoundTripEntitiesAndAggregates() throws Exception {
+    List<ScanResultEntry> entries = Arrays.asList(
+        ScanResultEntry.forEntity("id1", "v1", new DateTime(2011, 6, 5, 15, 3, 0, 0, DateTimeZone.UTC), attributes("a1", "a1v1", "a2", "a2v1")),
+        ScanResultEntry.forEntity("id2", "v2", new DateTime(1969, 12, 31, 23, 59, 0, 0, DateTimeZone.UTC), attributes("a1", "a1v1", "a2", "a2v2")),
+        ScanResultEntry.forEntity("id3", "v3", null),
+        ScanResultEntry.forAggregate("digest", attributes("bizDate", "2011-06")),
+        ScanResultEntry.forAggregate("0f9e8d7c6b5a", attributes("bizDate", "2011-07")),
+        ScanResultEntry.forAggregate("0F9E8D7C6B5A", attributes("bizDate", "2011-08")),
+        ScanResultEntry.forAggregate("abc", attributes("bizDate", "2011-09")),
+        ScanResultEntry.forEntity("\u00e9\u4e2d", "", null, attributes("", "")));
+
+    assertEquals(entries, BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream(write(entries)), nullValidator));
+  }
+
+  @Test
+  public void shouldRoundTripEmptyResult() throws Exception {
+    byte[] encoded = write(new ArrayList<ScanResultEntry>());
+
+    assertEquals(5, encoded.length);
+    assertEquals(0, BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream(encoded), nullValidator).size());
+  }
+
+  @Test
+  public void shouldOnlyWriteRepeatedAttributesOnce() throws Exception {
+    List<ScanResultEntry> one = Arrays.asList(
+        ScanResultEntry.forEntity("id1", "v1", null, attributes("someLongAttributeName", "someLongAttributeValue")));
+    List<ScanResultEntry> two = Arrays.asList(one.get(0),
+        ScanResultEntry.forEntity("id2", "v2", null, attributes("someLongAttributeName", "someLongAttributeValue")));
+
+    // The second entry costs a flag byte, the id, the version, an attribute count and two string references
+    assertEquals(write(one).length + 1 + 4 + 3 + 1 + 2, write(two).length);
+  }
+
+  @Test
+  public void shouldRoundTripNullAttributeValues() throws Exception {
+    List<ScanResultEntry> entries = Arrays.asList(
+        ScanResultEntry.forEntity("id1", "v1", null, attributes("a1", null, "a2", "a2v1")),
+        ScanResultEntry.forEntity("id2", "v2", null, attributes("a1", null, "a2", null)));
+
+    assertEquals(entries, BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream(write(entries)), nullValidator));
+  }
+
+  @Test
+  public void shouldPackHexVersions() throws Exception {
+    List<ScanResultEntry> hex = Arrays.asList(ScanResultEntry.forEntity("id1", "0123456789abcdef", null));
+    List<ScanResultEntry> text = Arrays.asList(ScanResultEntry.forEntity("id1", "0123456789abcdeg", null));
+
+    assertEquals(write(text).length - 8, write(hex).length);
+    assertEquals(hex, BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream(write(hex)), nullValidator));
+  }
+
+  @Test
+  public void shouldStopRememberingStringsOnceTheTableIsFull() throws Exception {
+    List<ScanResultEntry> entries = new ArrayList<ScanResultEntry>();
+    for (int i = 0; i < BinaryScanResultHelper.MAX_STRING_TABLE_SIZE + 10; i++) {
+      entries.add(ScanResultEntry.forEntity("id" + i, "v" + i, null, attributes("name", "value" + i)));
+    }
+    entries.add(ScanResultEntry.forEntity("last", "v", null, attributes("name", "value1")));
+
+    assertEquals(entries, BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream(write(entries)), nullValidator));
+  }
+
+  @Test
+  public void shouldStreamEntriesAndValidateEachOne() throws Exception {
+    final List<ScanResultEntry> validated = new ArrayList<ScanResultEntry>();
+    ScanEntityValidator recordingValidator = new ScanEntityValidator() {
+      public void process(ScanResultEntry e) { validated.add(e); }
+      public void process(ChangeEvent e) {}
+    };
+
+    ScanResultEntry first = ScanResultEntry.forEntity("id1", "v1", null);
+    ScanResultEntry second = ScanResultEntry.forEntity("id2", "v2", null);
+    ScanResultReader reader = BinaryScanResultHelper.streamQueryResult(
+        new ByteArrayInputStream(write(Arrays.asList(first, second))), recordingValidator);
+
+    assertEquals(first, reader.next());
+    assertEquals(Arrays.asList(first), validated);
+    assertEquals(second, reader.next());
+    assertNull(reader.next());
+    assertNull(reader.next());
+    assertEquals(Arrays.asList(first, second), validated);
+  }
+
+  @Test
+  public void shouldRecogniseBinaryResultsWithoutConsumingThem() throws Exception {
+    BufferedInputStream binary = new BufferedInputStream(new ByteArrayInputStream(write(new ArrayList<ScanResultEntry>())));
+    BufferedInputStream json = new BufferedInputStream(new ByteArrayInputStream("[]".getBytes("UTF-8")));
+
+    assertTrue(BinaryScanResultHelper.isBinaryResult(binary));
+    assertEquals('D', binary.read());
+    assertFalse(BinaryScanResultHelper.isBinaryResult(json));
+    assertEquals('[', json.read());
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldRejectJson() throws Exception {
+    BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream("[{\"id\":\"id1\"}]".getBytes("UTF-8")), nullValidator);
+  }
+
+  @Test(expected = EOFException.class)
+  public void shouldRejectTruncatedResult() throws Exception {
+    byte[] encoded = write(Arrays.asList(ScanResultEntry.forEntity("id1", "v1", null)));
+    BinaryScanResultHelper.readQueryResult(new ByteArrayInputStream(encoded, 0, encoded.length - 3), nullValidator);
+  }
+
+  private static byte[] write(List<ScanResultEntry> entries) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryScanResultHelper.writeQueryResult(out, entries);
+    return out.toByteArray();
+  }
+
+  private static Map<String, String> attributes(String... namesAndValues) {
+    Map<String, String> attributes = new HashMap<String, String>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      attributes.put(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return attributes;
+  }
+}
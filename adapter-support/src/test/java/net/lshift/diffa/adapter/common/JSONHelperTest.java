@@ -38,6 +38,7 @@ import java.io.InputStream;
 import java.util.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.easymock.EasyMock.*;
 
 /**
@@ -146,6 +147,48 @@ public class JSONHelperTest {
     assertEquals(entry, deserialised.get(0));
   }
 
+  @Test
+  public void shouldWriteStreamedEntitiesAsTheSameArrayAsAList() throws Exception {
+    List<ScanResultEntry> entries = Arrays.asList(
+      ScanResultEntry.forEntity("id1", "v1", new DateTime(2011, 6, 5, 15, 3, 0, 0, DateTimeZone.UTC), generateAttributes("a1v1", "a2v2")),
+      ScanResultEntry.forEntity("id2", "v2", null));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ScanResultWriter writer = JSONHelper.openQueryResult(baos);
+    for (ScanResultEntry entry : entries) {
+      writer.write(entry);
+    }
+    writer.close();
+
+    assertEquals(serialiseResult(entries), new String(baos.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void shouldReportWhyAStreamedResultCouldNotBeOpened() throws Exception {
+    try {
+      JSONHelper.streamQueryResult(new ByteArrayInputStream("{}".getBytes("UTF-8")), nullValidator);
+      fail("Expected an IOException");
+    } catch (IOException ex) {
+      assertEquals("Failed to deserialize result from JSON: Expected '[' (JSON array start)", ex.getMessage());
+    }
+  }
+
+  @Test
+  public void shouldReportWhyAStreamedEntryCouldNotBeRead() throws Exception {
+    ScanEntityValidator rejectingValidator = new ScanEntityValidator () {
+      public void process(ScanResultEntry e) { throw new IllegalStateException("entry rejected"); }
+      public void process(ChangeEvent e)  {}
+    };
+    String json = serialiseResult(Arrays.asList(ScanResultEntry.forEntity("id1", "v1", null)));
+    ScanResultReader reader = JSONHelper.streamQueryResult(new ByteArrayInputStream(json.getBytes("UTF-8")), rejectingValidator);
+
+    try {
+      reader.next();
+      fail("Expected an IOException");
+    } catch (IOException ex) {
+      assertEquals("Failed to deserialize result from JSON: entry rejected", ex.getMessage());
+    }
+  }
+
   @Test
   public void shouldRoundtripProcessingResponseWithoutAttributes() throws Exception {
     ProcessingResponse resp = new ProcessingResponse("id1", "uv1", "dv1");
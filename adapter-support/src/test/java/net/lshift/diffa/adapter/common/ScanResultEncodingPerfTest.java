@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.common;
+
+import net.lshift.diffa.adapter.changes.ChangeEvent;
+import net.lshift.diffa.adapter.scanning.ScanResultEntry;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeThat;
+
+/**
+ * Measures the size of an entity level scan result, and the time taken to write and then read it back, in each of the
+ * encodings that an adapter can respond with.
+ */
+public class ScanResultEncodingPerfTest {
+  private static final Logger log = LoggerFactory.getLogger(ScanResultEncodingPerfTest.class);
+
+  private static final int ENTITY_COUNT = 20000;
+  private static final int ROUNDS = 20;
+
+  private final static ScanEntityValidator nullValidator = new ScanEntityValidator () {
+    public void process(ScanResultEntry e) {}
+    public void process(ChangeEvent e)  {}
+  };
+
+  private interface Encoding {
+    void write(OutputStream out, List<ScanResultEntry> entries) throws IOException;
+    List<ScanResultEntry> read(InputStream in) throws IOException;
+  }
+
+  private static final Encoding JSON = new Encoding() {
+    public void write(OutputStream out, List<ScanResultEntry> entries) throws IOException {
+      JSONHelper.writeQueryResult(out, entries);
+    }
+    public List<ScanResultEntry> read(InputStream in) throws IOException {
+      return JSONHelper.readQueryResult(in, nullValidator);
+    }
+  };
+
+  private static final Encoding BINARY = new Encoding() {
+    public void write(OutputStream out, List<ScanResultEntry> entries) throws IOException {
+      BinaryScanResultHelper.writeQueryResult(out, entries);
+    }
+    public List<ScanResultEntry> read(InputStream in) throws IOException {
+      return BinaryScanResultHelper.readQueryResult(in, nullValidator);
+    }
+  };
+
+  @Before
+  public void checkPerformanceTestingEnabled() {
+    assumeThat(System.getProperty("diffa.perftest"), is(equalTo("1")));
+  }
+
+  @Test
+  public void binaryEncodingShouldBeSmallerAndFasterToParseThanJson() throws Exception {
+    List<ScanResultEntry> entries = entities();
+
+    // Warm up each path before measuring any of them
+    for (int i = 0; i < 3; i++) {
+      measure(JSON, false, entries);
+      measure(BINARY, false, entries);
+    }
+
+    long[] json = measure(JSON, false, entries);
+    long[] jsonGzip = measure(JSON, true, entries);
+    long[] binary = measure(BINARY, false, entries);
+    long[] binaryGzip = measure(BINARY, true, entries);
+
+    log.info("Encoding,Entities,Bytes,Write ms,Read ms");
+    report("json", json);
+    report("json+gzip", jsonGzip);
+    report("binary", binary);
+    report("binary+gzip", binaryGzip);
+
+    assertTrue("Binary encoding was only " + json[0] / binary[0] + " times smaller than JSON", binary[0] * 3 <= json[0]);
+    assertTrue("Compressed binary encoding was larger than compressed JSON", binaryGzip[0] <= jsonGzip[0]);
+    assertTrue("Binary encoding took " + binary[2] + "ms to read, compared to " + json[2] + "ms for JSON",
+               binary[2] * 2 <= json[2]);
+  }
+
+  private static void report(String name, long[] result) {
+    log.info("{},{},{},{},{}", new Object[] { name, ENTITY_COUNT, result[0], result[1], result[2] });
+  }
+
+  /**
+   * @return the encoded size, and the total time taken to write and to read the result over all of the rounds.
+   */
+  private static long[] measure(Encoding encoding, boolean gzip, List<ScanResultEntry> entries) throws IOException {
+    byte[] encoded = null;
+    long writeNanos = 0;
+    long readNanos = 0;
+
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      OutputStream out = gzip ? ScanResultEncoding.compress(buffer) : buffer;
+      encoding.write(out, entries);
+      out.close();
+      encoded = buffer.toByteArray();
+      writeNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      InputStream in = new ByteArrayInputStream(encoded);
+      List<ScanResultEntry> decoded = encoding.read(gzip ? ScanResultEncoding.decompress(in) : in);
+      readNanos += System.nanoTime() - start;
+
+      assertEquals(entries.size(), decoded.size());
+    }
+
+    return new long[] { encoded.length, writeNanos / 1000000, readNanos / 1000000 };
+  }
+
+  private static List<ScanResultEntry> entities() {
+    DateTime base = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+    List<ScanResultEntry> entries = new ArrayList<ScanResultEntry>(ENTITY_COUNT);
+
+    for (int i = 0; i < ENTITY_COUNT; i++) {
+      DateTime updated = base.plusSeconds(i * 37);
+      Map<String, String> attributes = new HashMap<String, String>();
+      attributes.put("bizDate", updated.toLocalDate().toString());
+      attributes.put("someString", "prefix" + (i % 16));
+      attributes.put("someInt", Integer.toString(i % 100));
+
+      entries.add(ScanResultEntry.forEntity("entity-" + i, String.format("%08x", i * 7919) + "0f1e2d3c4b5a69788796a5b4c3d2e1f0", updated, attributes));
+    }
+
+    return entries;
+  }
+}
@@ -57,6 +57,31 @@ public class AggregationBuilderTest {
     assertEquals(0, builder.toList().size());
   }
 
+  @Test
+  public void shouldDefaultToOrderedDigests() {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    AggregationBuilder builder = new AggregationBuilder(req);
+
+    assertEquals(DigestMode.ORDERED, builder.getDigestMode());
+  }
+
+  @Test
+  public void shouldUseRequestedDigestMode() {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter("digest", "commutative");
+    AggregationBuilder builder = new AggregationBuilder(req);
+
+    assertEquals(DigestMode.COMMUTATIVE, builder.getDigestMode());
+  }
+
+  @Test(expected = InvalidAttributeValueException.class)
+  public void shouldRejectUnknownDigestMode() {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter("digest", "sha1");
+
+    new AggregationBuilder(req).getDigestMode();
+  }
+
   @Test
   public void shouldNotAddNyNameAggregationForEmptyRequest() {
     MockHttpServletRequest req = new MockHttpServletRequest();
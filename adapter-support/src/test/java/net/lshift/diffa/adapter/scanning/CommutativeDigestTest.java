@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.adapter.scanning;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test cases for the commutative digest.
+ */
+public class CommutativeDigestTest {
+
+  @Test
+  public void emptyDigestShouldBeZero() {
+    assertEquals("00000000000000000000000000000000", new CommutativeDigest().toHex());
+  }
+
+  @Test
+  public void singleEntityShouldDigestToHashOfIdAndVersion() {
+    assertEquals(DigestUtils.md5Hex("id1\u0000vsn1"), new CommutativeDigest().add("id1", "vsn1").toHex());
+  }
+
+  @Test
+  public void shouldBeIndependentOfInsertionOrder() {
+    CommutativeDigest forwards = new CommutativeDigest().add("id1", "vsn1").add("id2", "vsn2").add("id3", "vsn3");
+    CommutativeDigest backwards = new CommutativeDigest().add("id3", "vsn3").add("id2", "vsn2").add("id1", "vsn1");
+
+    assertEquals(forwards, backwards);
+    assertEquals(forwards.toHex(), backwards.toHex());
+  }
+
+  @Test
+  public void shouldNotCancelOutRepeatedContributions() {
+    CommutativeDigest twice = new CommutativeDigest().add("id1", "vsn1").add("id1", "vsn1");
+
+    assertFalse(new CommutativeDigest().equals(twice));
+  }
+
+  @Test
+  public void mergedSubDigestsShouldEqualWholeDigest() {
+    CommutativeDigest whole = new CommutativeDigest().add("id1", "vsn1").add("id2", "vsn2").add("id3", "vsn3");
+    CommutativeDigest left = new CommutativeDigest().add("id1", "vsn1");
+    CommutativeDigest right = new CommutativeDigest().add("id3", "vsn3").add("id2", "vsn2");
+
+    assertEquals(whole, left.merge(right));
+  }
+
+  @Test
+  public void shouldSupportReplacingASingleEntity() {
+    CommutativeDigest updated = new CommutativeDigest().add("id1", "vsn1").add("id2", "vsn2");
+    updated.remove("id2", "vsn2").add("id2", "vsn2-new");
+
+    assertEquals(new CommutativeDigest().add("id2", "vsn2-new").add("id1", "vsn1"), updated);
+  }
+
+  @Test
+  public void removingAllEntitiesShouldRestoreTheEmptyDigest() {
+    CommutativeDigest digest = new CommutativeDigest().add("id1", "vsn1").add("id2", "vsn2");
+    digest.remove("id1", "vsn1").remove("id2", "vsn2");
+
+    assertEquals(new CommutativeDigest(), digest);
+  }
+
+  @Test
+  public void shouldParseItsOwnHexRepresentation() {
+    CommutativeDigest digest = new CommutativeDigest().add("id1", "vsn1").add("id2", "vsn2").add("id3", "vsn3");
+
+    assertEquals(digest, CommutativeDigest.fromHex(digest.toHex()));
+    assertEquals(new CommutativeDigest(), CommutativeDigest.fromHex(new CommutativeDigest().toHex()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectHexOfTheWrongLength() {
+    CommutativeDigest.fromHex("abcd");
+  }
+}
@@ -71,6 +71,24 @@ public class DigestBuilderTest {
       new HashSet<ScanResultEntry>(builder.toDigests()));
   }
 
+  @Test
+  public void shouldWriteDigestsToSink() throws Exception {
+    DigestBuilder builder = new DigestBuilder(aggregations);
+
+    builder.add("id1", createAttrMap(JUN_6_2009_1, "a"), "vsn1");
+    builder.add("id2", createAttrMap(JUN_7_2009_1, "b"), "vsn2");
+
+    final List<ScanResultEntry> written = new ArrayList<ScanResultEntry>();
+    builder.writeDigests(new ScanResultSink() {
+      public void write(ScanResultEntry entry) {
+        written.add(entry);
+      }
+    });
+
+    assertEquals(new HashSet<ScanResultEntry>(builder.toDigests()), new HashSet<ScanResultEntry>(written));
+    assertEquals(2, written.size());
+  }
+
   @Test
   public void shouldObserveAttributesThatArentAggregationFactors() {
     DigestBuilder builder = new DigestBuilder(Arrays.asList(bizDateAggregation));
@@ -135,6 +153,35 @@ public class DigestBuilderTest {
 
   }
 
+  @Test
+  public void shouldAcceptOutOfOrderIdsForCommutativeDigests() {
+    DigestBuilder inOrder = new DigestBuilder(aggregations, new AsciiCollation(), DigestMode.COMMUTATIVE);
+    inOrder.add(ScanResultEntry.forEntity("id1", "vsn1", null, createAttrMap(JUN_6_2009_1, "a")));
+    inOrder.add(ScanResultEntry.forEntity("id2", "vsn2", null, createAttrMap(JUN_6_2009_2, "a")));
+
+    DigestBuilder outOfOrder = new DigestBuilder(aggregations, new AsciiCollation(), DigestMode.COMMUTATIVE);
+    outOfOrder.add(ScanResultEntry.forEntity("id2", "vsn2", null, createAttrMap(JUN_6_2009_2, "a")));
+    outOfOrder.add(ScanResultEntry.forEntity("id1", "vsn1", null, createAttrMap(JUN_6_2009_1, "a")));
+
+    assertEquals(inOrder.toDigests(), outOfOrder.toDigests());
+  }
+
+  @Test
+  public void shouldProduceCommutativeDigestsPerBucket() {
+    DigestBuilder builder = new DigestBuilder(aggregations, new AsciiCollation(), DigestMode.COMMUTATIVE);
+
+    builder.add("id1", createAttrMap(JUN_6_2009_1, "a"), "vsn1");
+    builder.add("id2", createAttrMap(JUN_7_2009_1, "b"), "vsn2");
+    builder.add("id4", createAttrMap(JUN_6_2009_2, "a"), "vsn4");
+
+    assertEquals(
+      new HashSet<ScanResultEntry>(Arrays.asList(
+        ScanResultEntry.forAggregate(new CommutativeDigest().add("id1", "vsn1").add("id4", "vsn4").toHex(), createAttrMap("2009-06-06", "a")),
+        ScanResultEntry.forAggregate(new CommutativeDigest().add("id2", "vsn2").toHex(), createAttrMap("2009-06-07", "b"))
+      )),
+      new HashSet<ScanResultEntry>(builder.toDigests()));
+  }
+
 
   static class Scenario {
       final Collation collation;
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.lshift.diffa.adapter.scanning;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the negotiation of digest modes with handlers behind a ScanningParticipantDelegator.
+ */
+public class ScanningParticipantDelegatorTest {
+  private final static List<ScanAggregation> byName = Arrays.<ScanAggregation>asList(new ByNameAggregation("name"));
+
+  private final static List<ScanResultEntry> digests = Arrays.asList(
+      ScanResultEntry.forAggregate("digest", Collections.singletonMap("name", "a")));
+
+  /**
+   * Handler that only knows how to produce ORDERED aggregates, recording the queries made of it.
+   */
+  private static class PlainHandler implements ScanningParticipantHandler {
+    protected final List<DigestMode> queriedModes = new ArrayList<DigestMode>();
+
+    public List<ScanConstraint> determineConstraints(HttpServletRequest req) {
+      return new ArrayList<ScanConstraint>();
+    }
+
+    public List<ScanAggregation> determineAggregations(HttpServletRequest req) {
+      return byName;
+    }
+
+    public List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations) {
+      queriedModes.add(DigestMode.ORDERED);
+      return digests;
+    }
+  }
+
+  private static class CommutativeHandler extends PlainHandler implements DigestModeScanningParticipantHandler {
+    public boolean supportsDigestMode(DigestMode digestMode) {
+      return true;
+    }
+
+    public List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                                         DigestMode digestMode) {
+      queriedModes.add(digestMode);
+      return digests;
+    }
+  }
+
+  @Test
+  public void shouldQueryPlainHandlerForOrderedAggregates() throws Exception {
+    PlainHandler handler = new PlainHandler();
+    MockHttpServletResponse resp = query(handler, DigestMode.ORDERED);
+
+    assertEquals(HttpServletResponse.SC_OK, resp.getStatus());
+    assertEquals("ordered", resp.getHeader(DigestMode.HEADER));
+    assertEquals(Arrays.asList(DigestMode.ORDERED), handler.queriedModes);
+  }
+
+  @Test
+  public void shouldRefuseCommutativeAggregatesOnBehalfOfPlainHandler() throws Exception {
+    PlainHandler handler = new PlainHandler();
+    MockHttpServletResponse resp = query(handler, DigestMode.COMMUTATIVE);
+
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, resp.getStatus());
+    assertNull(resp.getHeader(DigestMode.HEADER));
+    assertEquals(0, handler.queriedModes.size());
+  }
+
+  @Test
+  public void shouldQueryDigestModeHandlerInTheRequestedMode() throws Exception {
+    CommutativeHandler handler = new CommutativeHandler();
+    MockHttpServletResponse resp = query(handler, DigestMode.COMMUTATIVE);
+
+    assertEquals(HttpServletResponse.SC_OK, resp.getStatus());
+    assertEquals("commutative", resp.getHeader(DigestMode.HEADER));
+    assertEquals(Arrays.asList(DigestMode.COMMUTATIVE), handler.queriedModes);
+  }
+
+  private static MockHttpServletResponse query(ScanningParticipantHandler handler, DigestMode mode) throws Exception {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter(DigestMode.PARAMETER, mode.getName());
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    new ScanningParticipantDelegator(handler).doGet(req, resp);
+    return resp;
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.adapter.scanning;
+
+import net.lshift.diffa.adapter.changes.ChangeEvent;
+import net.lshift.diffa.adapter.common.BinaryScanResultHelper;
+import net.lshift.diffa.adapter.common.JSONHelper;
+import net.lshift.diffa.adapter.common.ScanEntityValidator;
+import net.lshift.diffa.adapter.common.ScanResultEncoding;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the negotiation of the encoding of scan results by the ScanningParticipantServlet.
+ */
+public class ScanningParticipantServletTest {
+  private final static ScanEntityValidator nullValidator = new ScanEntityValidator () {
+    public void process(ScanResultEntry e) {}
+    public void process(ChangeEvent e)  {}
+  };
+
+  private final static List<ScanResultEntry> entries = Arrays.asList(
+      ScanResultEntry.forEntity("id1", "v1", null),
+      ScanResultEntry.forEntity("id2", "v2", null));
+
+  private final ScanningParticipantServlet servlet = new ScanningParticipantServlet() {
+    @Override
+    protected List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations) {
+      return entries;
+    }
+  };
+
+  private final static List<ScanResultEntry> digests = Arrays.asList(
+      ScanResultEntry.forAggregate("digest", Collections.singletonMap("name", "a")));
+
+  private final ScanningParticipantServlet aggregatingServlet = new ScanningParticipantServlet() {
+    @Override
+    protected List<ScanAggregation> determineAggregations(HttpServletRequest req) {
+      return Arrays.<ScanAggregation>asList(new ByNameAggregation("name"));
+    }
+
+    @Override
+    protected List<ScanResultEntry> doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations) {
+      return digests;
+    }
+  };
+
+  @Test
+  public void shouldWritePlainJsonByDefault() throws Exception {
+    MockHttpServletResponse resp = query(new MockHttpServletRequest());
+
+    assertEquals("application/json", resp.getContentType());
+    assertNull(resp.getHeader("Content-Encoding"));
+    assertNull(resp.getHeader(DigestMode.HEADER));
+    assertEquals(entries, JSONHelper.readQueryResult(content(resp), nullValidator));
+  }
+
+  @Test
+  public void shouldWriteBinaryResultWhenAccepted() throws Exception {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addHeader("Accept", ScanResultEncoding.ACCEPT_ALL);
+    MockHttpServletResponse resp = query(req);
+
+    assertEquals(ScanResultEncoding.BINARY_CONTENT_TYPE, resp.getContentType());
+    assertEquals(entries, BinaryScanResultHelper.readQueryResult(content(resp), nullValidator));
+  }
+
+  @Test
+  public void shouldCompressResultWhenAccepted() throws Exception {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addHeader("Accept-Encoding", "deflate, gzip");
+    MockHttpServletResponse resp = query(req);
+
+    assertEquals("gzip", resp.getHeader("Content-Encoding"));
+    assertEquals(entries, JSONHelper.readQueryResult(new GZIPInputStream(content(resp)), nullValidator));
+  }
+
+  @Test
+  public void shouldNotUseEncodingsThatAreExplicitlyRefused() throws Exception {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addHeader("Accept", ScanResultEncoding.BINARY_CONTENT_TYPE + ";q=0, application/json");
+    req.addHeader("Accept-Encoding", "gzip;q=0");
+    MockHttpServletResponse resp = query(req);
+
+    assertEquals("application/json", resp.getContentType());
+    assertNull(resp.getHeader("Content-Encoding"));
+  }
+
+  @Test
+  public void shouldReportTheDigestModeOfAggregates() throws Exception {
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    aggregatingServlet.doGet(new MockHttpServletRequest(), resp);
+
+    assertEquals("ordered", resp.getHeader(DigestMode.HEADER));
+    assertEquals(digests, JSONHelper.readQueryResult(content(resp), nullValidator));
+  }
+
+  @Test
+  public void shouldRejectCommutativeDigestsUnlessTheServletSupportsThem() throws Exception {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter(DigestMode.PARAMETER, DigestMode.COMMUTATIVE.getName());
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    aggregatingServlet.doGet(req, resp);
+
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, resp.getStatus());
+    assertEquals("Digest mode commutative is not supported by this adapter", resp.getErrorMessage());
+  }
+
+  private MockHttpServletResponse query(MockHttpServletRequest req) throws Exception {
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    servlet.doGet(req, resp);
+    return resp;
+  }
+
+  private static InputStream content(MockHttpServletResponse resp) {
+    return new ByteArrayInputStream(resp.getContentAsByteArray());
+  }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.lshift.diffa.adapter.scanning;
+
+import net.lshift.diffa.adapter.changes.ChangeEvent;
+import net.lshift.diffa.adapter.common.BinaryScanResultHelper;
+import net.lshift.diffa.adapter.common.JSONHelper;
+import net.lshift.diffa.adapter.common.ScanEntityValidator;
+import net.lshift.diffa.adapter.common.ScanResultEncoding;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for writing scan results through a StreamingScanningParticipantDelegator.
+ */
+public class StreamingScanningParticipantServletTest {
+  private final static ScanEntityValidator nullValidator = new ScanEntityValidator () {
+    public void process(ScanResultEntry e) {}
+    public void process(ChangeEvent e)  {}
+  };
+
+  private final static List<ScanResultEntry> entries = Arrays.asList(
+      ScanResultEntry.forEntity("id1", "v1", null, attributes("a")),
+      ScanResultEntry.forEntity("id2", "v2", null, attributes("b")),
+      ScanResultEntry.forEntity("id3", "v3", null, attributes("a")));
+
+  private final static List<ScanAggregation> byName = Arrays.<ScanAggregation>asList(new ByNameAggregation("name"));
+
+  /**
+   * Participant that answers queries as if from a cursor over the entries, failing after the given number of rows.
+   */
+  private static class CursorParticipant implements StreamingScanningParticipantHandler {
+    private final List<ScanAggregation> aggregations;
+    private final int failAfter;
+    private final boolean commutative;
+    private DigestMode lastDigestMode = null;
+
+    private CursorParticipant(List<ScanAggregation> aggregations, int failAfter) {
+      this(aggregations, failAfter, true);
+    }
+
+    private CursorParticipant(List<ScanAggregation> aggregations, int failAfter, boolean commutative) {
+      this.aggregations = aggregations;
+      this.failAfter = failAfter;
+      this.commutative = commutative;
+    }
+
+    public boolean supportsDigestMode(DigestMode digestMode) {
+      return commutative || digestMode == DigestMode.ORDERED;
+    }
+
+    public List<ScanConstraint> determineConstraints(HttpServletRequest req) {
+      return new ArrayList<ScanConstraint>();
+    }
+
+    public List<ScanAggregation> determineAggregations(HttpServletRequest req) {
+      return aggregations;
+    }
+
+    public void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations, DigestMode digestMode,
+                        ScanResultSink sink) throws IOException {
+      lastDigestMode = digestMode;
+
+      DigestBuilder builder = new DigestBuilder(aggregations, new AsciiCollation(), digestMode);
+      int rows = 0;
+      for (ScanResultEntry row : entries) {
+        if (rows++ == failAfter) {
+          throw new IllegalStateException("Cursor failed");
+        }
+
+        if (aggregations.isEmpty()) {
+          sink.write(row);
+        } else {
+          builder.add(row);
+        }
+      }
+
+      if (!aggregations.isEmpty()) {
+        builder.writeDigests(sink);
+      }
+    }
+  }
+
+  @Test
+  public void shouldWriteEntitiesAsTheyAreProduced() throws Exception {
+    MockHttpServletResponse resp = query(new CursorParticipant(new ArrayList<ScanAggregation>(), -1),
+        new MockHttpServletRequest());
+
+    assertEquals("application/json", resp.getContentType());
+    assertEquals(entries, JSONHelper.readQueryResult(content(resp), nullValidator));
+  }
+
+  @Test
+  public void shouldWriteCompressedBinaryResultWhenAccepted() throws Exception {
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addHeader("Accept", ScanResultEncoding.ACCEPT_ALL);
+    req.addHeader("Accept-Encoding", "gzip");
+    MockHttpServletResponse resp = query(new CursorParticipant(new ArrayList<ScanAggregation>(), -1), req);
+
+    assertEquals(ScanResultEncoding.BINARY_CONTENT_TYPE, resp.getContentType());
+    assertEquals("gzip", resp.getHeader("Content-Encoding"));
+    assertEquals(entries,
+        BinaryScanResultHelper.readQueryResult(new GZIPInputStream(content(resp)), nullValidator));
+  }
+
+  @Test
+  public void shouldWriteDigestsBuiltFromCursorInRequestedMode() throws Exception {
+    CursorParticipant participant = new CursorParticipant(byName, -1);
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter(DigestMode.PARAMETER, DigestMode.COMMUTATIVE.toString().toLowerCase());
+    MockHttpServletResponse resp = query(participant, req);
+
+    DigestBuilder expected = new DigestBuilder(byName, new AsciiCollation(), DigestMode.COMMUTATIVE);
+    for (ScanResultEntry entry : entries) {
+      expected.add(entry);
+    }
+
+    assertEquals(DigestMode.COMMUTATIVE, participant.lastDigestMode);
+    assertEquals("commutative", resp.getHeader(DigestMode.HEADER));
+    assertEquals(new HashSet<ScanResultEntry>(expected.toDigests()),
+        new HashSet<ScanResultEntry>(JSONHelper.readQueryResult(content(resp), nullValidator)));
+  }
+
+  @Test
+  public void shouldRejectCommutativeDigestsUnlessTheServletSupportsThem() throws Exception {
+    StreamingScanningParticipantServlet servlet = new StreamingScanningParticipantServlet() {
+      @Override
+      protected List<ScanAggregation> determineAggregations(HttpServletRequest req) {
+        return byName;
+      }
+
+      @Override
+      protected void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                             ScanResultSink sink) throws IOException {
+        fail("Should not have been queried");
+      }
+    };
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter(DigestMode.PARAMETER, DigestMode.COMMUTATIVE.getName());
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    servlet.doGet(req, resp);
+
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, resp.getStatus());
+    assertNull(resp.getHeader(DigestMode.HEADER));
+  }
+
+  @Test
+  public void shouldRejectUnsupportedDigestModeBeforeAnyEntryIsWritten() throws Exception {
+    CursorParticipant participant = new CursorParticipant(byName, -1, false) {
+      @Override
+      public void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                          DigestMode digestMode, ScanResultSink sink) throws IOException {
+        sink.write(entries.get(0));
+        throw new UnsupportedDigestModeException(digestMode);
+      }
+    };
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter(DigestMode.PARAMETER, DigestMode.COMMUTATIVE.getName());
+    MockHttpServletResponse resp = query(participant, req);
+
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, resp.getStatus());
+    assertEquals("Digest mode commutative is not supported by this adapter", resp.getErrorMessage());
+    assertNull(resp.getHeader(DigestMode.HEADER));
+    assertEquals(0, resp.getContentAsByteArray().length);
+  }
+
+  @Test
+  public void shouldLeaveResultUnterminatedWhenDigestModeIsRejectedAfterAnEntryIsWritten() throws Exception {
+    CursorParticipant participant = new CursorParticipant(byName, -1, true) {
+      @Override
+      public void doQuery(List<ScanConstraint> constraints, List<ScanAggregation> aggregations,
+                          DigestMode digestMode, ScanResultSink sink) throws IOException {
+        sink.write(entries.get(0));
+        throw new UnsupportedDigestModeException(digestMode);
+      }
+    };
+    MockHttpServletRequest req = new MockHttpServletRequest();
+    req.addParameter(DigestMode.PARAMETER, DigestMode.COMMUTATIVE.getName());
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    try {
+      new StreamingScanningParticipantDelegator(participant).doGet(req, resp);
+      fail("Expected the rejection to be propagated");
+    } catch (UnsupportedDigestModeException ex) {
+      // Expected
+    }
+
+    assertEquals(HttpServletResponse.SC_OK, resp.getStatus());
+    try {
+      JSONHelper.readQueryResult(content(resp), nullValidator);
+      fail("Expected the truncated result to be rejected");
+    } catch (IOException ex) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void shouldNotStartResponseWhenQueryFailsBeforeProducingAnEntry() throws Exception {
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    try {
+      new StreamingScanningParticipantDelegator(new CursorParticipant(new ArrayList<ScanAggregation>(), 0))
+          .doGet(new MockHttpServletRequest(), resp);
+      fail("Expected the query failure to be propagated");
+    } catch (IllegalStateException ex) {
+      // Expected
+    }
+
+    assertNull(resp.getContentType());
+    assertFalse(resp.isCommitted());
+    assertEquals(0, resp.getContentAsByteArray().length);
+  }
+
+  @Test
+  public void shouldLeaveResultUnterminatedWhenQueryFailsPartWay() throws Exception {
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    try {
+      new StreamingScanningParticipantDelegator(new CursorParticipant(new ArrayList<ScanAggregation>(), 2))
+          .doGet(new MockHttpServletRequest(), resp);
+      fail("Expected the query failure to be propagated");
+    } catch (IllegalStateException ex) {
+      // Expected
+    }
+
+    try {
+      JSONHelper.readQueryResult(content(resp), nullValidator);
+      fail("Expected the truncated result to be rejected");
+    } catch (IOException ex) {
+      // Expected
+    }
+  }
+
+  private static MockHttpServletResponse query(StreamingScanningParticipantHandler participant,
+                                               MockHttpServletRequest req) throws Exception {
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    new StreamingScanningParticipantDelegator(participant).doGet(req, resp);
+    return resp;
+  }
+
+  private static InputStream content(MockHttpServletResponse resp) {
+    return new ByteArrayInputStream(resp.getContentAsByteArray());
+  }
+
+  private static Map<String, String> attributes(String name) {
+    Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put("name", name);
+    return attributes;
+  }
+}
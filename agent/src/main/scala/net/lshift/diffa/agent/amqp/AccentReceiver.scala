@@ -27,16 +27,25 @@ import java.lang.String
 import net.lshift.diffa.kernel.frontend.Changes
 import net.lshift.diffa.adapter.common.JSONHelper
 import net.lshift.diffa.kernel.differencing.EntityValidator
+import net.lshift.diffa.kernel.limiting.ChangeEventLimiter
 
 
 /**
- * AMQP message consumer for change events.
+ * AMQP message consumer for change events. Each message is held to the same change event limits as a batch submitted
+ * over REST: a message holding more events than the domain's batch size limit is rejected, and the events of a
+ * message are charged against the domain's change event rate before they are processed. Since the broker will
+ * redeliver a rejected message straight away, a message that the rate limit refuses is instead held (along with the
+ * consumer's prefetch window) until the domain may accept its events.
+ *
+ * @param rateLimitBackoffMillis how long to wait before retrying a message that the change event rate has refused
  */
 class AccentReceiver(con: AccentConnection,
                      params:ReceiverParameters,
                      space:Long,
                      endpoint:String,
-                     changes: Changes)
+                     changes: Changes,
+                     changeEventLimiter: ChangeEventLimiter,
+                     rateLimitBackoffMillis: Long = 100)
   extends AccentAwareComponent(con) with Consumer {
 
   protected val log = LoggerFactory.getLogger(getClass)
@@ -68,11 +77,17 @@ class AccentReceiver(con: AccentConnection,
         def run() {
           try {
 
-            JSONHelper.readChangeEvents(new ByteArrayInputStream(body), EntityValidator).foreach(
-              changes.onChange(space, endpoint, _)
-            )
+            val events = JSONHelper.readChangeEvents(new ByteArrayInputStream(body), EntityValidator)
+
+            if (changeEventLimiter.exceedsMaxBatchSize(space, events.length)) {
+              consumer.reliableReject(header.getDeliveryTag, false)
+              log.error("Rejected message (%s) since its %s change events exceed the limit of %s".format(
+                new String(body), events.length, changeEventLimiter.maxBatchSize(space)))
+            } else if (awaitRateLimit(events.length)) {
+              changes.onChanges(space, endpoint, events.toSeq)
 
-            consumer.reliableAck(header.getDeliveryTag, false)
+              consumer.reliableAck(header.getDeliveryTag, false)
+            }
           }
           catch {
             case e => {
@@ -89,6 +104,17 @@ class AccentReceiver(con: AccentConnection,
     }
   }
 
+  /**
+   * Waits until the given number of change events can be charged against the domain's change event rate, returning
+   * false if the receiver is closed first. An unacknowledged message is returned to the queue when the channel closes.
+   */
+  private def awaitRateLimit(count: Int) = {
+    while (!isClosing.get() && !changeEventLimiter.tryAcquire(space, count)) {
+      Thread.sleep(rateLimitBackoffMillis)
+    }
+    !isClosing.get()
+  }
+
   override def close() {
     if (!isClosing.getAndSet(true)) {
       pool.shutdown()
@@ -22,8 +22,9 @@ import net.lshift.diffa.kernel.participants.InboundEndpointFactory
 import org.slf4j.LoggerFactory
 import net.lshift.accent.AccentConnection
 import com.rabbitmq.client.ConnectionFactory
+import net.lshift.diffa.kernel.limiting.ChangeEventLimiter
 
-class AmqpInboundEndpointFactory(changes: Changes)
+class AmqpInboundEndpointFactory(changes: Changes, changeEventLimiter: ChangeEventLimiter)
   extends InboundEndpointFactory {
 
   case class ConnectionKey(host: String, port: Int, username: String, password: String, vHost: String)
@@ -112,7 +113,8 @@ class AmqpInboundEndpointFactory(changes: Changes)
                        params,
                        key.space,
                        key.endpoint,
-                       changes)
+                       changes,
+                       changeEventLimiter)
   }
 
   private def getReceiversByUrl(url: AmqpQueueUrl): Receivers = {
@@ -22,6 +22,7 @@ import net.lshift.diffa.adapter.changes.ChangeEvent
 import java.io.ByteArrayOutputStream
 import net.lshift.diffa.adapter.common.JSONHelper
 import net.lshift.accent.AccentConnection
+import scala.collection.JavaConversions._
 
 /**
  * RPC client wrapper for clients to report change events to the diffa agent using JSON over AMQP.
@@ -37,5 +38,11 @@ class ChangesAmqpClient(con: AccentConnection,
 
   def onChangeEvent(evt: ChangeEvent) = send(JSONHelper.writeChangeEvent(evt))
 
+  def onChangeEvents(evts: Seq[ChangeEvent]) = {
+    val baos = new ByteArrayOutputStream
+    JSONHelper.writeChangeEvents(baos, evts)
+    send(baos.toByteArray)
+  }
+
   def inboundURL = AmqpQueueUrl(queueName).toString
 }
@@ -19,34 +19,34 @@ import net.lshift.diffa.kernel.frontend.Changes
 import javax.ws.rs.core.Response
 import javax.ws.rs._
 import net.lshift.diffa.adapter.changes.ChangeEvent
-import net.lshift.diffa.schema.servicelimits.ChangeEventRate
-import net.lshift.diffa.kernel.limiting.{DomainRateLimiterFactory, ServiceLimiterKey, ServiceLimiterRegistry}
+import net.lshift.diffa.kernel.limiting.{ChangeEventLimiter, DomainRateLimiterFactory}
 import net.lshift.diffa.adapter.common.{InvalidEntityException, ScanEntityValidator}
 import net.lshift.diffa.kernel.differencing.EntityValidator
 import org.springframework.security.access.PermissionEvaluator
 import net.lshift.diffa.agent.rest.PermissionUtils._
 import net.lshift.diffa.agent.auth.{EndpointTarget, Privileges}
+import net.lshift.diffa.kernel.config.DomainServiceLimitsView
 
 /**
  * Resource allowing participants to provide details of changes that have occurred.
  */
 class ChangesResource(changes:Changes, space:Long, rateLimiterFactory: DomainRateLimiterFactory,
-                      validator: ScanEntityValidator, permissionEvaluator:PermissionEvaluator)
+                      limits:DomainServiceLimitsView, validator: ScanEntityValidator, permissionEvaluator:PermissionEvaluator)
     extends IndividuallySecuredResource {
 
-  def this(changes:Changes, space:Long, rateLimiterFactory: DomainRateLimiterFactory, permissionEvaluator:PermissionEvaluator) =
-    this(changes, space, rateLimiterFactory, EntityValidator, permissionEvaluator)
+  def this(changes:Changes, space:Long, rateLimiterFactory: DomainRateLimiterFactory, limits:DomainServiceLimitsView,
+           permissionEvaluator:PermissionEvaluator) =
+    this(changes, space, rateLimiterFactory, limits, EntityValidator, permissionEvaluator)
+
+  private val changeEventLimiter = new ChangeEventLimiter(rateLimiterFactory, limits)
+
   @POST
   @Path("/{endpoint}")
   @Consumes(Array("application/json"))
   def submitChange(@PathParam("endpoint") endpoint: String, e:ChangeEvent) = {
     ensurePrivilege(permissionEvaluator, Privileges.POST_CHANGE_EVENT, new EndpointTarget(space, endpoint))
 
-    val limiter = ServiceLimiterRegistry.get(
-      ServiceLimiterKey(ChangeEventRate, Some(space), None),
-      () => rateLimiterFactory.createRateLimiter(space))
-
-    val responseBuilder = if (limiter.accept()) {
+    val responseBuilder = if (changeEventLimiter.tryAcquire(space, 1)) {
       try {
         validator.process(e)
         changes.onChange(space, endpoint, e)
@@ -59,6 +59,34 @@ class ChangesResource(changes:Changes, space:Long, rateLimiterFactory: DomainRat
     }
     responseBuilder.`type`("text/plain").build()
   }
+
+  /**
+   * Accepts a JSON array of change events for the given endpoint. Every event in the batch is charged against the
+   * change event rate limit, and the batch is rejected as a whole if any event within it is invalid. Batches larger
+   * than the domain's batch size limit are rejected with a 413.
+   */
+  @POST
+  @Path("/{endpoint}/batch")
+  @Consumes(Array("application/json"))
+  def submitChanges(@PathParam("endpoint") endpoint: String, es:Array[ChangeEvent]) = {
+    ensurePrivilege(permissionEvaluator, Privileges.POST_CHANGE_EVENT, new EndpointTarget(space, endpoint))
+
+    val responseBuilder = if (changeEventLimiter.exceedsMaxBatchSize(space, es.length)) {
+      Response.status(413).entity("Batch of %s change events exceeds the limit of %s\n".format(
+        es.length, changeEventLimiter.maxBatchSize(space)))
+    } else if (changeEventLimiter.tryAcquire(space, es.length)) {
+      try {
+        es.foreach(validator.process(_))
+        changes.onChanges(space, endpoint, es.toSeq)
+        Response.status(Response.Status.ACCEPTED)
+      } catch {
+        case e: InvalidEntityException => Response.status(400).entity(e.getMessage + "\n")
+      }
+    } else {
+      Response.status(420)
+    }
+    responseBuilder.`type`("text/plain").build()
+  }
 }
 
 
@@ -23,12 +23,16 @@ import net.lshift.diffa.kernel.participants.ParticipantType
 import scala.collection.JavaConversions._
 import org.joda.time.format.{ISODateTimeFormat, DateTimeFormat}
 import org.joda.time.{DateTime, Interval}
-import net.lshift.diffa.kernel.differencing.{EventOptions, DifferencesManager}
+import net.lshift.diffa.kernel.differencing.{DifferenceCursor, EventOptions, DifferencesManager}
 import javax.servlet.http.HttpServletRequest
 import net.lshift.diffa.kernel.config.{DomainConfigStore, PairRef}
 import org.springframework.security.access.PermissionEvaluator
 import net.lshift.diffa.agent.rest.PermissionUtils._
 import net.lshift.diffa.agent.auth.{DiffTarget, PairTarget, Privileges}
+import net.lshift.diffa.kernel.reporting.DifferenceExportFormat
+import java.io.{BufferedWriter, OutputStreamWriter, OutputStream}
+import java.util.zip.GZIPOutputStream
+import net.lshift.diffa.adapter.common.ScanResultEncoding
 
 class DifferencesResource(val differencesManager: DifferencesManager,
                           val domainConfigStore:DomainConfigStore,
@@ -50,6 +54,7 @@ class DifferencesResource(val differencesManager: DifferencesManager,
                           @QueryParam("offset") offset_param:String,
                           @QueryParam("length") length_param:String,
                           @QueryParam("include-ignored") includeIgnored:java.lang.Boolean,
+                          @QueryParam("after") after_param:String,
                           @Context request: Request) = {
 
     ensurePrivilege(permissionEvaluator, Privileges.READ_DIFFS, new PairTarget(space, pairKey))
@@ -65,14 +70,24 @@ class DifferencesResource(val differencesManager: DifferencesManager,
       val reallyIncludeIgnored = if (includeIgnored != null) { includeIgnored.booleanValue() } else { false }
 
       val interval = new Interval(from,until)
-      val diffs = differencesManager.retrievePagedEvents(space, pairKey, interval, offset, length,
-        EventOptions(includeIgnored = reallyIncludeIgnored)).map(_.toExternalFormat)
+      val options = EventOptions(includeIgnored = reallyIncludeIgnored)
+
+      // When a cursor is supplied (an empty one denoting the first page), page by seeking past the last difference
+      // on the previous page instead of counting past every difference before the offset.
+      val (diffs, nextPage) = after_param match {
+        case null =>
+          (differencesManager.retrievePagedEvents(space, pairKey, interval, offset, length, options), None)
+        case cursor =>
+          val page = differencesManager.retrieveEventsAfter(space, pairKey, interval, parseCursor(cursor), length, options)
+          val next = if (page.length == length && length > 0) Some(DifferenceCursor.after(page.last).encode) else None
+          (page, next)
+      }
 
       val responseObj = Map(
         "seqId" -> domainVsn.getValue,
-        "diffs" -> diffs.toArray,
+        "diffs" -> diffs.map(_.toExternalFormat).toArray,
         "total" -> differencesManager.countEvents(space, pairKey, interval)
-      )
+      ) ++ nextPage.map("nextPage" -> _)
       Response.ok(mapAsJavaMap(responseObj)).tag(domainVsn).build
     }
     catch {
@@ -82,6 +97,51 @@ class DifferencesResource(val differencesManager: DifferencesManager,
     }
   }
   
+  /**
+   * Exports every outstanding difference for a pair, writing each one as it is read from the database rather than
+   * assembling the export first. The response is gzipped when the client accepts it.
+   */
+  @GET
+  @Path("/export/{pair}")
+  @Produces(Array("text/csv", "application/x-ndjson"))
+  def exportDifferences(@PathParam("pair") pair:String,
+                        @QueryParam("format") format_param:String,
+                        @HeaderParam("Accept-Encoding") acceptEncoding:String): Response = {
+    ensurePrivilege(permissionEvaluator, Privileges.READ_DIFFS, new PairTarget(space, pair))
+
+    val format = format_param match {
+      case "" | null => DifferenceExportFormat.CSV
+      case x         => DifferenceExportFormat.lookup(x).getOrElse(
+        throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).
+          entity("Unknown export format: " + x).`type`("text/plain").build()))
+    }
+    val compress = ScanResultEncoding.acceptsGzip(acceptEncoding)
+
+    val export = new StreamingOutput {
+      def write(out:OutputStream) {
+        val stream = if (compress) new GZIPOutputStream(out) else out
+        val writer = format.createWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")))
+
+        writer.writeHeader()
+        differencesManager.streamUnmatchedEvents(space, pair, writer.write(_))
+        writer.finish()
+
+        stream match {
+          case gzip:GZIPOutputStream => gzip.finish()
+          case _                     =>
+        }
+      }
+    }
+
+    val response = Response.ok(export, format.contentType + "; charset=utf-8").
+      header("Content-Disposition", "attachment; filename=\"%s-differences.%s\"".format(pair, format.extension)).
+      header("Vary", "Accept-Encoding")
+
+    if (compress) response.header("Content-Encoding", "gzip")
+
+    response.build()
+  }
+
   @GET
   @Path("/aggregates")
   @Produces(Array("application/json"))
@@ -164,6 +224,17 @@ class DifferencesResource(val differencesManager: DifferencesManager,
     case x         => isoDateTime.parseDateTime(x)
   }
 
+  def parseCursor(input:String) = input match {
+    case "" => None
+    case x  =>
+      try {
+        Some(DifferenceCursor.decode(x))
+      } catch {
+        case e:IllegalArgumentException =>
+          throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage).`type`("text/plain").build())
+      }
+  }
+
   def defaultInt(input:String, default:Int) = input match {
     case "" | null => default
     case x         => x.toInt
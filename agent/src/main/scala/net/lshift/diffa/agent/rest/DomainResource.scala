@@ -23,6 +23,7 @@ import core.{UriInfo, Context}
 import net.lshift.diffa.kernel.client.ActionsClient
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import net.lshift.diffa.kernel.actors.PairPolicyClient
+import net.lshift.diffa.kernel.scanning.{ScanActivityStore, ScanExecutionService}
 import net.lshift.diffa.kernel.frontend.{Changes, Configuration}
 import net.lshift.diffa.kernel.reporting.ReportManager
 import org.springframework.security.core.context.SecurityContextHolder
@@ -34,7 +35,7 @@ import net.lshift.diffa.kernel.limiting.DomainRateLimiterFactory
 import net.lshift.diffa.agent.rest.ResponseUtils._
 import net.lshift.diffa.kernel.frontend.EscalationDef
 import net.lshift.diffa.kernel.differencing.{DomainDifferenceStore, DifferencesManager}
-import net.lshift.diffa.kernel.config.{BreakerHelper, DomainConfigStore, DomainCredentialsManager, User}
+import net.lshift.diffa.kernel.config.{CachedServiceLimitsStore, BreakerHelper, DomainConfigStore, DomainCredentialsManager, User}
 import org.springframework.security.access.PermissionEvaluator
 import net.lshift.diffa.agent.rest.PermissionUtils._
 import net.lshift.diffa.agent.auth.{SpaceTarget, Privileges, SpacePrivilege}
@@ -75,10 +76,13 @@ class DomainResource {
   @Autowired var differencesManager:DifferencesManager = null
   @Autowired var diagnosticsManager:DiagnosticsManager = null
   @Autowired var pairPolicyClient:PairPolicyClient = null
+  @Autowired var scanExecutor:ScanExecutionService = null
+  @Autowired var scanActivityStore:ScanActivityStore = null
   @Autowired var domainConfigStore:DomainConfigStore = null
   @Autowired var systemConfigStore:CachedSystemConfigStore = null
   @Autowired var changes:Changes = null
   @Autowired var changeEventRateLimiterFactory: DomainRateLimiterFactory = null
+  @Autowired var serviceLimitsStore:CachedServiceLimitsStore = null
   @Autowired var reports:ReportManager = null
   @Autowired var diffStore:DomainDifferenceStore = null
   @Autowired var breakers:BreakerHelper = null
@@ -181,11 +185,11 @@ class DomainResource {
 
   @Path("/{space:.+}/scanning")
   def getScanningResource(@PathParam("space") space:String) =
-    withSpace(space, (id:Long) => new ScanningResource(pairPolicyClient, config, domainConfigStore, diagnosticsManager, id, getCurrentUser(space), permissionEvaluator))
+    withSpace(space, (id:Long) => new ScanningResource(pairPolicyClient, scanExecutor, scanActivityStore, config, domainConfigStore, diagnosticsManager, id, getCurrentUser(space), permissionEvaluator))
 
   @Path("/{space:.+}/changes")
   def getChangesResource(@PathParam("space") space:String) = {
-    withSpace(space, (id:Long) => new ChangesResource(changes, id, changeEventRateLimiterFactory, permissionEvaluator))
+    withSpace(space, (id:Long) => new ChangesResource(changes, id, changeEventRateLimiterFactory, serviceLimitsStore, permissionEvaluator))
   }
 
   @Path("/{space:.+}/inventory")
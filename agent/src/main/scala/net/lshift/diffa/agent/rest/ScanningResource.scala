@@ -27,8 +27,13 @@ import net.lshift.diffa.kernel.util.AlertCodes._
 import org.springframework.security.access.PermissionEvaluator
 import net.lshift.diffa.agent.rest.PermissionUtils._
 import net.lshift.diffa.agent.auth.{SpaceTarget, PairTarget, Privileges}
+import net.lshift.diffa.kernel.scanning.{ScanMetricsSnapshot, ScanActivityStore, ScanExecutionService}
+import net.lshift.diffa.kernel.util.MissingObjectException
+import scala.collection.JavaConversions._
 
 class ScanningResource(val pairPolicyClient:PairPolicyClient,
+                       val scanExecutor:ScanExecutionService,
+                       val scanActivityStore:ScanActivityStore,
                        val config:Configuration,
                        val domainConfigStore:DomainConfigStore,
                        val diagnostics:DiagnosticsManager,
@@ -54,6 +59,24 @@ class ScanningResource(val pairPolicyClient:PairPolicyClient,
     Response.ok(scala.collection.JavaConversions.mapAsJavaMap(filteredStates)).build
   }
 
+  @GET
+  @Path("/queue")
+  @Produces(Array("application/json"))
+  def getQueueStatistics = {
+    ensurePrivilege(permissionEvaluator, Privileges.SCAN_STATUS, new SpaceTarget(space))
+
+    val stats = scanExecutor.statistics(space)
+    val result = Map[String, Any](
+      "queued" -> stats.queued,
+      "running" -> stats.running,
+      "completed" -> stats.completed,
+      "meanQueueMillis" -> stats.meanQueueMillis,
+      "maxQueueMillis" -> stats.maxQueueMillis
+    )
+
+    Response.ok(scala.collection.JavaConversions.mapAsJavaMap(result)).build
+  }
+
   @POST
   @Path("/pairs/{pairKey}/scan")
   def startScan(@PathParam("pairKey") pairKey:String, @FormParam("view") view:String) = {
@@ -88,6 +111,50 @@ class ScanningResource(val pairPolicyClient:PairPolicyClient,
     }
   }
 
+  @GET
+  @Path("/pairs/{pairKey}/scan/metrics")
+  @Produces(Array("application/json"))
+  def getCurrentScanMetrics(@PathParam("pairKey") pairKey:String) = {
+    ensurePrivilege(permissionEvaluator, Privileges.SCAN_STATUS, new PairTarget(space, pairKey))
+
+    pairPolicyClient.scanMetrics(PairRef(pairKey, space)) match {
+      case Some(metrics) => Response.ok(metricsAsJava(metrics)).build
+      case None          => throw new MissingObjectException("running scan for " + pairKey)
+    }
+  }
+
+  @GET
+  @Path("/pairs/{pairKey}/scans/{scanId}/metrics")
+  @Produces(Array("application/json"))
+  def getScanMetrics(@PathParam("pairKey") pairKey:String, @PathParam("scanId") scanId:Long) = {
+    ensurePrivilege(permissionEvaluator, Privileges.SCAN_STATUS, new PairTarget(space, pairKey))
+
+    scanActivityStore.getMetrics(PairRef(pairKey, space), scanId) match {
+      case Some(metrics) => Response.ok(metricsAsJava(metrics)).build
+      case None          => throw new MissingObjectException("metrics for scan " + scanId)
+    }
+  }
+
+  @GET
+  @Path("/pairs/{pairKey}/commits")
+  @Produces(Array("application/json"))
+  def getCommitStatistics(@PathParam("pairKey") pairKey:String) = {
+    ensurePrivilege(permissionEvaluator, Privileges.SCAN_STATUS, new PairTarget(space, pairKey))
+
+    pairPolicyClient.commitStats(PairRef(pairKey, space)) match {
+      case Some(stats) =>
+        Response.ok(mapAsJavaMap(Map[String, Any](
+          "commits" -> stats.commits,
+          "committedUpdates" -> stats.committedUpdates,
+          "totalCommitMillis" -> stats.totalCommitMillis,
+          "maxCommitMillis" -> stats.maxCommitMillis,
+          "averageBatchSize" -> stats.averageBatchSize,
+          "averageCommitMillis" -> stats.averageCommitMillis
+        ))).build
+      case None        => throw new MissingObjectException("correlation store for " + pairKey)
+    }
+  }
+
   @DELETE
   @Path("/pairs/{pairKey}/scan")
   def cancelScanning(@PathParam("pairKey") pairKey:String) = {
@@ -97,4 +164,24 @@ class ScanningResource(val pairPolicyClient:PairPolicyClient,
     Response.status(Response.Status.OK).build
   }
 
-}
\ No newline at end of file
+  private def metricsAsJava(metrics:ScanMetricsSnapshot) = {
+    val sides = metrics.sides.map { case (side, m) =>
+      side -> mapAsJavaMap(Map[String, Any](
+        "bucketsVisited" -> mapAsJavaMap(m.bucketsVisited),
+        "entitiesCompared" -> m.entitiesCompared,
+        "requests" -> m.requests,
+        "requestMillis" -> m.requestMillis,
+        "latencyHistogram" -> mapAsJavaMap(m.latencyHistogram),
+        "bytesReceived" -> m.bytesReceived
+      ))
+    }
+
+    mapAsJavaMap(Map[String, Any](
+      "sides" -> mapAsJavaMap(sides),
+      "writerFlushes" -> metrics.writerFlushes,
+      "writerFlushMillis" -> metrics.writerFlushMillis,
+      "diffsProduced" -> metrics.diffsProduced
+    ))
+  }
+
+}
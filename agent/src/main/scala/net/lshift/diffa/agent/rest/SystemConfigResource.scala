@@ -29,6 +29,9 @@ import javax.servlet.http.HttpServletRequest
 import net.lshift.diffa.kernel.frontend.{SystemConfiguration, DomainDef}
 import net.lshift.diffa.adapter.scanning._
 import net.lshift.diffa.kernel.config.{ValidationUtil, Domain, ConfigValidationException}
+import net.lshift.diffa.client.HttpConnectionPools
+import net.lshift.diffa.kernel.util.cache.CacheProvider
+import net.lshift.diffa.schema.jooq.DatabaseFacade
 
 @Path("/root")
 @Component
@@ -36,6 +39,9 @@ import net.lshift.diffa.kernel.config.{ValidationUtil, Domain, ConfigValidationE
 class SystemConfigResource {
 
   @Autowired var systemConfig:SystemConfiguration = null
+  @Autowired var httpConnectionPools:HttpConnectionPools = null
+  @Autowired var cacheProvider:CacheProvider = null
+  @Autowired var databaseFacade:DatabaseFacade = null
   @Context var uriInfo:UriInfo = null
 
   @POST
@@ -109,6 +115,61 @@ class SystemConfigResource {
     }
   }
 
+  @GET
+  @Path("/system/http/pools")
+  @Produces(Array("application/json"))
+  def getHttpConnectionPools = {
+    val pools = httpConnectionPools.statistics.map { case (endpoint, stats) =>
+      endpoint -> mapAsJavaMap(Map[String, Any](
+        "leased" -> stats.leased,
+        "available" -> stats.available,
+        "maxConnections" -> stats.maxConnections,
+        "leases" -> stats.leases,
+        "evicted" -> stats.evicted
+      ))
+    }
+
+    Response.ok(mapAsJavaMap(pools)).build()
+  }
+
+  @GET
+  @Path("/system/caches")
+  @Produces(Array("application/json"))
+  def getCacheStatistics = {
+    val caches = cacheProvider.statistics.map { case (name, stats) =>
+      name -> mapAsJavaMap(Map[String, Any](
+        "entries" -> stats.entries,
+        "bytes" -> stats.bytes,
+        "maxBytes" -> stats.maxBytes,
+        "hits" -> stats.hits,
+        "misses" -> stats.misses,
+        "evictions" -> stats.evictions
+      ))
+    }
+
+    Response.ok(mapAsJavaMap(caches)).build()
+  }
+
+  @GET
+  @Path("/system/queries")
+  @Produces(Array("application/json"))
+  def getQueryStatistics = {
+    val queries = databaseFacade.statistics.snapshot.map(timing =>
+      mapAsJavaMap(Map[String, Any](
+        "sql" -> timing.sql,
+        "executions" -> timing.executions,
+        "totalMillis" -> timing.totalMillis,
+        "maxMillis" -> timing.maxMillis
+      ))
+    )
+
+    Response.ok(seqAsJavaList(queries)).build()
+  }
+
+  @DELETE
+  @Path("/system/queries")
+  def resetQueryStatistics = databaseFacade.statistics.reset()
+
   @GET
   @Path("/spaces/scan")
   @Produces(Array("application/json"))
@@ -339,6 +339,7 @@ Diffa.Collections.Diffs = Diffa.Collections.CollectionBase.extend({
   totalEvents: 0,
   totalPages: 0,
   lastSeqId: null,
+  pageCursors: [""],        // The cursor that each page visited so far starts after; the first page starts at ""
 
   initialize: function(models, opts) {
     _.bindAll(this, "sync", "select", "selectEvent", "selectNextEvent");
@@ -352,8 +353,14 @@ Diffa.Collections.Diffs = Diffa.Collections.CollectionBase.extend({
     if (this.range == null) {
       this.reset([]);
     } else {
-      var url = "/domains/" + self.domain.id + "/diffs?pairKey=" + this.range.pairKey +
-                  "&offset=" + (this.page * this.listSize) + "&length=" + this.listSize;
+      var page = this.page;
+      var cursor = this.pageCursors[page];
+
+      // Pages that we've reached by paging forward are fetched by seeking past the end of the previous page. Any
+      // other page (eg, when scrolling back to the last page) falls back to being fetched by offset.
+      var url = "/domains/" + self.domain.id + "/diffs?pairKey=" + this.range.pairKey + "&length=" + this.listSize;
+      if (cursor != null) url += "&after=" + encodeURIComponent(cursor);
+      else url += "&offset=" + (page * this.listSize);
       if (this.range.start && this.range.start.length > 0) url += "&range-start=" + this.range.start;
       if (this.range.end && this.range.end.length > 0) url += "&range-end=" + this.range.end;
 
@@ -362,6 +369,11 @@ Diffa.Collections.Diffs = Diffa.Collections.CollectionBase.extend({
 
         var diffs = _.map(data.diffs, function(diffEl) { diffEl.id = diffEl.seqId; return diffEl; });
 
+        if (cursor != null && page == self.page) {
+          self.pageCursors = self.pageCursors.slice(0, page + 1);
+          if (data.nextPage) self.pageCursors.push(data.nextPage);
+        }
+
         if (self.totalEvents != data.total) {
           self.totalEvents = data.total;
           self.totalPages = Math.ceil(self.totalEvents / self.listSize);
@@ -405,6 +417,7 @@ Diffa.Collections.Diffs = Diffa.Collections.CollectionBase.extend({
       start: start,
       end: end
     };
+    this.pageCursors = [""];
     this.setPage(0, true);
   },
 
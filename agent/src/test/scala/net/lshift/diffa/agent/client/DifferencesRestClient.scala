@@ -98,6 +98,42 @@ class DifferencesRestClient(serverRootUrl:String, domain:String, params: RestCli
     }
   }
 
+  /**
+   * Retrieves the page of events that follows the given cursor (or the first page when there is none), along with the
+   * cursor for the next page if there might be one.
+   */
+  def getEventsAfter(pairKey:String, from:DateTime, until:DateTime, after:Option[String], length:Int) = {
+    val path = resource.queryParam("pairKey", pairKey)
+                       .queryParam("range-start", noMillisFormatter.print(from))
+                       .queryParam("range-end", noMillisFormatter.print(until))
+                       .queryParam("after", after.getOrElse(""))
+                       .queryParam("length", length.toString)
+    val media = path.accept(MediaType.APPLICATION_JSON_TYPE)
+    val response = media.get(classOf[ClientResponse])
+    val status = response.getClientResponseStatus
+    status.getStatusCode match {
+      case 200 => {
+        val responseMap = response.getEntity(classOf[ObjectNode])
+        val diffs = responseMap.get("diffs")
+        val objMapper = new ObjectMapper()
+
+        val events = objMapper.readValue(diffs, classOf[Array[ExternalDifferenceEvent]])
+        (events, Option(responseMap.get("nextPage")).map(_.getTextValue))
+      }
+      case x:Int   => throw new RuntimeException("HTTP " + x + " : " + status.getReasonPhrase)
+    }
+  }
+
+  def exportDifferences(pairKey:String, format:String) : String = {
+    val path = resource.path("export/" + pairKey).queryParam("format", format)
+    val response = path.get(classOf[ClientResponse])
+    val status = response.getClientResponseStatus
+    status.getStatusCode match {
+      case 200     => response.getEntity(classOf[String])
+      case x:Int   => throw new RuntimeException("HTTP " + x + " : " + status.getReasonPhrase)
+    }
+  }
+
   def eventDetail(evtSeqId:String, t:ParticipantType.ParticipantType) : String = {
     val path = resource.path("events/" + evtSeqId + "/" + t.toString )
     val media = path.accept(MediaType.TEXT_PLAIN_TYPE)
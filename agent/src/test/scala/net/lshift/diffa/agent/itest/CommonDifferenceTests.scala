@@ -36,6 +36,7 @@ import net.lshift.diffa.kernel.differencing.ZoomLevels._
 import net.lshift.diffa.agent.rest.AggregateRequest
 import net.lshift.diffa.kernel.differencing._
 import scala.Some
+import org.codehaus.jackson.map.ObjectMapper
 
 /**
  * Tests that can be applied to an environment to validate that differencing functionality works appropriately.
@@ -304,6 +305,54 @@ trait CommonDifferenceTests {
     //assertEquals("Unexpected sequence %s; expected to see sequence 8".format(bySeqId(1)), "8", bySeqId(1).seqId)
   }
 
+  @Test
+  def shouldPageDifferencesByCursor = {
+    val start = new DateTime
+    val end = start.plusMinutes(2)
+
+    val size = 10
+    for (i <- 1 to size) {
+      env.addAndNotifyUpstream("" + i, "" + i, someDate = yesterday, someString = "ss")
+    }
+    runScanAndWaitForCompletion(yearAgo, today)
+    env.differencesHelper.pollForAllDifferences(start, end, minLength = size)
+
+    val (firstPage, firstCursor) = env.diffClient.getEventsAfter(env.pairKey, start, end, None, 4)
+    val (secondPage, secondCursor) = env.diffClient.getEventsAfter(env.pairKey, start, end, firstCursor, 4)
+    val (lastPage, lastCursor) = env.diffClient.getEventsAfter(env.pairKey, start, end, secondCursor, 4)
+
+    assertEquals(4, firstPage.length)
+    assertEquals(4, secondPage.length)
+    assertEquals(2, lastPage.length)
+    assertEquals(None, lastCursor)
+
+    val all = (firstPage ++ secondPage ++ lastPage).map(_.entityId)
+    assertEquals((1 to size).map("" + _).toSet, all.toSet)
+    assertEquals(size, all.length)
+  }
+
+  @Test
+  def shouldExportDifferencesAsCsvAndNdjson = {
+    val start = new DateTime
+    val end = start.plusMinutes(2)
+
+    val size = 3
+    for (i <- 1 to size) {
+      env.addAndNotifyUpstream("" + i, "" + i, someDate = yesterday, someString = "ss")
+    }
+    runScanAndWaitForCompletion(yearAgo, today)
+    env.differencesHelper.pollForAllDifferences(start, end, minLength = size)
+
+    val csv = env.diffClient.exportDifferences(env.pairKey, "csv").lines.toSeq
+    assertEquals("detection date,entity id,upstream version,downstream version,state", csv.head)
+    assertEquals((1 to size).map("" + _).toSet, csv.tail.map(_.split(",")(1)).toSet)
+    assertTrue(csv.tail.forall(_.endsWith(",missing-from-downstream")))
+
+    val objMapper = new ObjectMapper()
+    val json = env.diffClient.exportDifferences(env.pairKey, "ndjson").lines.map(l => objMapper.readTree(l)).toSeq
+    assertEquals((1 to size).map("" + _).toSet, json.map(_.get("entityId").getTextValue).toSet)
+  }
+
   @Test
   def walkThroughEventDetails = {
     def guid() = UUID.randomUUID.toString
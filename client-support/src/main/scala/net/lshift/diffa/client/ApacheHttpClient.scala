@@ -16,7 +16,7 @@
 
 package net.lshift.diffa.client
 
-import org.apache.http.impl.client.{DefaultHttpRequestRetryHandler, BasicAuthCache, DefaultHttpClient}
+import org.apache.http.impl.client.{DefaultHttpRequestRetryHandler, BasicAuthCache}
 import org.apache.http.client.methods.HttpGet
 import org.apache.http.auth.{UsernamePasswordCredentials, AuthScope}
 import org.apache.http.params.{HttpConnectionParams, BasicHttpParams}
@@ -29,17 +29,28 @@ import net.lshift.diffa.kernel.util.AlertCodes._
 import net.lshift.diffa.kernel.util.AlertCodes
 import net.lshift.diffa.kernel.differencing.ScanFailedException
 import org.apache.commons.io.IOUtils
+import org.apache.commons.io.input.CountingInputStream
+import java.io.InputStream
+import java.net.URI
+import net.lshift.diffa.adapter.scanning.{DigestMode, ScanResultEntry}
+import net.lshift.diffa.adapter.common.ScanResultEncoding
+import net.lshift.diffa.kernel.scanning.ScanMetrics
 
+/**
+ * Issues scan queries over the pooled connections of the endpoint being queried, so that a scan reuses a small number
+ * of keep-alive connections rather than opening one per request.
+ */
 class ApacheHttpClient(connectionTimeout: Int,
-                        socketTimeout: Int) extends DiffaHttpClient {
+                       socketTimeout: Int,
+                       pools: HttpConnectionPools) extends DiffaHttpClient {
 
   private val logger = LoggerFactory.getLogger(getClass)
 
-  def newClient = {
+  def newClient(uri: URI) = {
     val httpParams = new BasicHttpParams
     HttpConnectionParams.setConnectionTimeout(httpParams,connectionTimeout)
     HttpConnectionParams.setSoTimeout(httpParams, socketTimeout)
-    val client = new DefaultHttpClient(httpParams)
+    val client = pools.client(uri, httpParams)
     client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false))
     client
   }
@@ -54,9 +65,43 @@ class ApacheHttpClient(connectionTimeout: Int,
     context
   }
 
-  override def get(r : DiffaHttpQuery, parser: JsonScanResultParser) = {
-    val client = newClient
+  override def get(r : DiffaHttpQuery, parser: JsonScanResultParser) =
+    execute(r, content => parser.parse(content))
+
+  override def stream[T](r : DiffaHttpQuery, parser: JsonScanResultParser)(f: Iterator[ScanResultEntry] => T) =
+    execute(r, content => f(parser.parseIncrementally(content)))
+
+  /**
+   * Undoes any compression that the adapter applied to the response. The content type needn't be considered, since the
+   * parser recognises binary results by their header.
+   */
+  private def decode(resp: HttpResponse, content: InputStream) = {
+    val encoding = Option(resp.getFirstHeader("Content-Encoding")).map(_.getValue).orNull
+    if (ScanResultEncoding.isGzip(encoding)) ScanResultEncoding.decompress(content)
+    else content
+  }
+
+  /**
+   * Ensures that an adapter asked for aggregates in a particular digest mode reports having produced them in that mode.
+   * An adapter that doesn't understand the request would otherwise answer with ordered digests, none of which would
+   * match those of the agent.
+   */
+  private def checkDigestMode(r: DiffaHttpQuery, resp: HttpResponse) {
+    r.query.get(DigestMode.PARAMETER).flatMap(_.headOption).foreach(requested => {
+      val reported = Option(resp.getFirstHeader(DigestMode.HEADER)).map(_.getValue)
+      if (reported != Some(requested)) {
+        logger.warn("%s - Query for URI: %s requested %s digests, but the adapter reported %s".format(
+          formatAlertCode(AlertCodes.EXTERNAL_SCAN_ERROR), r.fullUri, requested, reported.getOrElse("none")))
+        throw new ScanFailedException("Adapter at %s does not support %s digests".format(r.uri, requested))
+      }
+    })
+  }
+
+  private def execute[T](r : DiffaHttpQuery, handleContent: InputStream => T) = {
+    val client = newClient(r.fullUri)
     val req = new HttpGet(r.fullUri)
+    req.setHeader("Accept", ScanResultEncoding.ACCEPT_ALL)
+    req.setHeader("Accept-Encoding", ScanResultEncoding.GZIP)
     r.basicAuth.foreach { case (user, pass) =>
       client.getCredentialsProvider.setCredentials(
         new AuthScope(r.fullUri.getHost, r.fullUri.getPort),
@@ -66,12 +111,22 @@ class ApacheHttpClient(connectionTimeout: Int,
     val uri = req.getURI
     val targetHost = new HttpHost(uri.getHost, uri.getPort, uri.getScheme)
     var resp: HttpResponse = null
+    var counted: CountingInputStream = null
     try {
       resp = client.execute(req, basicAuthContext(targetHost))
 
       resp.getStatusLine.getStatusCode match {
         case code: Int if (200 to 299) contains code =>
-          parser.parse(resp.getEntity.getContent)
+          try {
+            checkDigestMode(r, resp)
+            counted = new CountingInputStream(resp.getEntity.getContent)
+            handleContent(decode(resp, counted))
+          } catch {
+            case ex =>
+              // Don't attempt to drain the remainder of a response that we've given up on
+              req.abort()
+              throw ex
+          }
         case code =>
           logger.warn("%s - Query for URI: %s returned %s".format(
             formatAlertCode(AlertCodes.EXTERNAL_SCAN_ERROR), r.fullUri, resp.getStatusLine))
@@ -89,14 +144,16 @@ class ApacheHttpClient(connectionTimeout: Int,
         logger.error("%s Non HTTP response from %s; %s".format(NON_HTTP_RESPONSE, uri, content))
         throw new ScanFailedException("Non HTTP response from " + uri)
     }
-    // This finally block is very important, so don't nuke it, otherwise the client will leak
+    // This finally block is very important, so don't nuke it, otherwise the connection will never be returned to the pool
     finally {
+      if (counted != null) {
+        ScanMetrics.recordBytesReceived(counted.getByteCount)
+      }
       try {
         resp.getEntity.getContent.close()
       } catch {
         case _ =>
       }
-      client.getConnectionManager.shutdown()
     }
   }
 }
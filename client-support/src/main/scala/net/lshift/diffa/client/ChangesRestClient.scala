@@ -21,6 +21,7 @@ import net.lshift.diffa.adapter.changes.ChangeEvent
 import java.io.ByteArrayOutputStream
 import net.lshift.diffa.adapter.common.JSONHelper
 import java.lang.Long
+import scala.collection.JavaConversions._
 
 /**
  * JSON-over-REST client for the changes endpoint.
@@ -40,9 +41,27 @@ class ChangesRestClient(serverRootUrl:String, domain:String, endpoint:String, pa
       case x   => throw new Exception("Got %s response for event %s".format(x, evt))
     }
   }
+
+  def onChangeEvents(evts:Seq[ChangeEvent]) {
+    val baos = new ByteArrayOutputStream
+    JSONHelper.writeChangeEvents(baos, evts)
+    val response = submit(endpoint + "/batch", new String(baos.toByteArray, "UTF-8"))
+    response.getStatus match {
+      case 202 => // This is fine, just continue
+      case 400 => throw new InvalidChangeEventException(evts)
+      case 420 => throw new RateLimitExceededException(evts)
+      case x   => throw new Exception("Got %s response for events %s".format(x, evts))
+    }
+  }
 }
 // Denotes an invalid change event
-class InvalidChangeEventException(e:ChangeEvent) extends Exception(e.toString)
+class InvalidChangeEventException(msg:String) extends Exception(msg) {
+  def this(e:ChangeEvent) = this(e.toString)
+  def this(es:Seq[ChangeEvent]) = this(es.mkString(", "))
+}
 
 // The agent refused to process a change event because the submission rate exceeded the allowed limit.
-class RateLimitExceededException(e: ChangeEvent) extends Exception(e.toString)
+class RateLimitExceededException(msg:String) extends Exception(msg) {
+  def this(e:ChangeEvent) = this(e.toString)
+  def this(es:Seq[ChangeEvent]) = this(es.mkString(", "))
+}
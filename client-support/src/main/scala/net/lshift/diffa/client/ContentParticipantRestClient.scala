@@ -23,6 +23,7 @@ import org.apache.commons.io.IOUtils
 import net.lshift.diffa.kernel.util.MissingObjectException
 import net.lshift.diffa.kernel.util.AlertCodes._
 import org.apache.http.util.EntityUtils
+import org.apache.http.HttpResponse
 import org.slf4j.LoggerFactory
 import net.lshift.diffa.kernel.config._
 
@@ -32,8 +33,9 @@ import net.lshift.diffa.kernel.config._
 class ContentParticipantRestClient(pair: PairRef,
                                    scanUrl: String,
                                    serviceLimitsView: PairServiceLimitsView,
-                                   credentialsLookup:DomainCredentialsLookup)
-  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup)
+                                   credentialsLookup:DomainCredentialsLookup,
+                                   pools:HttpConnectionPools)
+  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup, pools)
   with ContentParticipantRef {
 
   val log = LoggerFactory.getLogger(getClass)
@@ -46,8 +48,10 @@ class ContentParticipantRestClient(pair: PairRef,
     def prepareRequest(query:Option[QueryParameterCredentials]) = buildGetRequest(params, query)
     val (httpClient, httpGet) = maybeAuthenticate(prepareRequest)
 
+    var response:HttpResponse = null
+
     try {
-      val response = httpClient.execute(httpGet)
+      response = httpClient.execute(httpGet)
       response.getStatusLine.getStatusCode match {
         case 200 => EntityUtils.toString(response.getEntity)
         case 404 => throw new MissingObjectException(identifier)
@@ -57,7 +61,7 @@ class ContentParticipantRestClient(pair: PairRef,
       }
     }
     finally {
-      shutdownImmediate(httpClient)
+      release(httpGet, response)
     }
   }
 }
\ No newline at end of file
@@ -34,4 +34,11 @@ trait DiffaHttpClient {
   @throws(classOf[IOException])
   def get(query:DiffaHttpQuery, parser: JsonScanResultParser): Seq[ScanResultEntry]
 
+  /**
+   * Issues the query and passes the entries to the given function as they are parsed from the response. The response
+   * is released once the function returns, so the iterator must not be retained beyond the call.
+   */
+  @throws(classOf[IOException])
+  def stream[T](query:DiffaHttpQuery, parser: JsonScanResultParser)(f: Iterator[ScanResultEntry] => T): T
+
 }
\ No newline at end of file
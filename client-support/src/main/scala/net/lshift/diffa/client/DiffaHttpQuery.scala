@@ -16,7 +16,7 @@
 
 package net.lshift.diffa.client
 
-import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanConstraint}
+import net.lshift.diffa.adapter.scanning.{DigestMode, ScanAggregation, ScanConstraint}
 import javax.ws.rs.core.MultivaluedMap
 import com.sun.jersey.core.util.MultivaluedMapImpl
 import java.net.URI
@@ -48,6 +48,11 @@ case class DiffaHttpQuery(uri: String,
   def withAggregations(aggregations: Seq[ScanAggregation]) =
     withMultiValuedMapQuery(RequestBuildingHelper.aggregationsToQueryArguments(_, aggregations))
 
+  def withDigestMode(mode: DigestMode) = mode match {
+    case DigestMode.ORDERED => this   // Adapters produce ordered digests unless asked otherwise
+    case _                  => copy(query = query + (DigestMode.PARAMETER -> Seq(mode.getName)))
+  }
+
   private def withMultiValuedMapQuery(updator: MultivaluedMap[String, String] => Unit) = {
     val mvm = new MultivaluedMapImpl()
     updator(mvm)
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.client
+
+import java.io.Closeable
+import java.net.URI
+import java.util.concurrent.{ThreadFactory, Executors, TimeUnit, ConcurrentHashMap}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import scala.collection.JavaConversions._
+import org.apache.http.conn.{ManagedClientConnection, ClientConnectionRequest}
+import org.apache.http.conn.routing.HttpRoute
+import org.apache.http.impl.client.DefaultHttpClient
+import org.apache.http.impl.conn.SchemeRegistryFactory
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager
+import org.apache.http.params.HttpParams
+import org.slf4j.LoggerFactory
+
+/**
+ * Keeps a pool of keep-alive connections for each participant endpoint (identified by scheme, host and port), so that
+ * successive requests made to an endpoint, such as the many queries issued whilst scanning, reuse established
+ * connections rather than opening a new one for each request.
+ *
+ * Clients handed out by this class share the pool of their endpoint, so their connection managers must not be shut
+ * down by the caller. Connections that have sat idle for longer than idleTimeoutMillis are closed in the background.
+ */
+class HttpConnectionPools(maxConnectionsPerEndpoint:Int = HttpConnectionPools.defaultMaxConnectionsPerEndpoint,
+                          idleTimeoutMillis:Long = HttpConnectionPools.defaultIdleTimeoutMillis) extends Closeable {
+
+  private val logger = LoggerFactory.getLogger(getClass)
+
+  private val pools = new ConcurrentHashMap[String, CountingConnectionManager]
+
+  private val evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    def newThread(r: Runnable) = {
+      val t = new Thread(r, "http-pool-evictor")
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  private val evictionInterval = math.max(idleTimeoutMillis / 2, 1000L)
+
+  evictor.scheduleWithFixedDelay(new Runnable {
+    def run() {
+      try {
+        evictIdleConnections()
+      } catch {
+        case e:Exception => logger.warn("Failed to evict idle HTTP connections", e)
+      }
+    }
+  }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS)
+
+  /**
+   * Creates a client that issues its requests over the pooled connections of the endpoint that the given URI refers to.
+   */
+  def client(uri:URI, params:HttpParams) = new DefaultHttpClient(poolFor(uri), params)
+
+  /**
+   * Closes connections that have expired or that have been idle for longer than the idle timeout.
+   */
+  def evictIdleConnections() {
+    pools.values.foreach(pool => {
+      val before = pool.getConnectionsInPool
+      pool.closeExpiredConnections()
+      pool.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+      pool.evicted.addAndGet(math.max(0, before - pool.getConnectionsInPool))
+    })
+  }
+
+  /**
+   * The utilisation of the pool of each endpoint that has been contacted, keyed by scheme, host and port.
+   */
+  def statistics = pools.map { case (endpoint, pool) =>
+    val leased = pool.leased.get
+    endpoint -> ConnectionPoolStatistics(
+      leased = leased,
+      available = math.max(0, pool.getConnectionsInPool - leased),
+      maxConnections = pool.getMaxTotal,
+      leases = pool.leases.get,
+      evicted = pool.evicted.get)
+  }.toMap
+
+  def close() {
+    evictor.shutdownNow()
+    pools.values.foreach(_.shutdown())
+    pools.clear()
+  }
+
+  private def poolFor(uri:URI) = {
+    val key = HttpConnectionPools.endpointKey(uri)
+    val existing = pools.get(key)
+    if (existing != null) existing
+    else {
+      val fresh = new CountingConnectionManager
+      val previous = pools.putIfAbsent(key, fresh)
+      if (previous == null) {
+        fresh
+      } else {
+        fresh.shutdown()
+        previous
+      }
+    }
+  }
+
+  /**
+   * Tracks how many connections are leased out of the pool, since the connection manager doesn't report this itself.
+   */
+  private class CountingConnectionManager extends ThreadSafeClientConnManager(SchemeRegistryFactory.createDefault()) {
+
+    val leased = new AtomicInteger
+    val leases = new AtomicLong
+    val evicted = new AtomicLong
+
+    setMaxTotal(maxConnectionsPerEndpoint)
+    setDefaultMaxPerRoute(maxConnectionsPerEndpoint)
+
+    override def requestConnection(route:HttpRoute, state:AnyRef) = {
+      val request = super.requestConnection(route, state)
+
+      new ClientConnectionRequest {
+        def getConnection(timeout:Long, unit:TimeUnit) = {
+          val connection = request.getConnection(timeout, unit)
+          leased.incrementAndGet()
+          leases.incrementAndGet()
+          connection
+        }
+
+        def abortRequest() {
+          request.abortRequest()
+        }
+      }
+    }
+
+    override def releaseConnection(connection:ManagedClientConnection, validDuration:Long, unit:TimeUnit) {
+      try {
+        super.releaseConnection(connection, validDuration, unit)
+      } finally {
+        leased.decrementAndGet()
+      }
+    }
+  }
+}
+
+object HttpConnectionPools {
+
+  val defaultMaxConnectionsPerEndpoint = 20
+  val defaultIdleTimeoutMillis = 30000L
+
+  /**
+   * A set of pools for use by clients that are created outside of the agent's application context.
+   */
+  lazy val default = new HttpConnectionPools
+
+  def endpointKey(uri:URI) = {
+    val port = if (uri.getPort > 0) uri.getPort else if ("https".equalsIgnoreCase(uri.getScheme)) 443 else 80
+    "%s://%s:%d".format(uri.getScheme, uri.getHost, port)
+  }
+}
+
+/**
+ * The utilisation of the connection pool of a single endpoint.
+ *
+ * @param leased the number of connections currently in use by a request
+ * @param available the number of open connections waiting in the pool to be reused
+ * @param leases the total number of times that a connection has been handed out from the pool
+ * @param evicted the total number of connections closed for having been idle for too long
+ */
+case class ConnectionPoolStatistics(leased:Int, available:Int, maxConnections:Int, leases:Long, evicted:Long)
@@ -24,7 +24,8 @@ import org.apache.http.message.BasicNameValuePair
 import org.apache.http.client.utils.URLEncodedUtils
 import org.apache.http.impl.client.DefaultHttpClient
 import org.apache.http.params.{HttpConnectionParams, BasicHttpParams}
-import org.apache.http.client.HttpClient
+import org.apache.http.HttpResponse
+import org.apache.http.util.EntityUtils
 import net.lshift.diffa.kernel.util.AlertCodes._
 import org.slf4j.LoggerFactory
 import org.apache.http.auth.{UsernamePasswordCredentials, AuthScope}
@@ -41,7 +42,8 @@ import org.apache.http.client.entity.UrlEncodedFormEntity
 abstract class InternalRestClient(pair: PairRef,
                                   url: String,
                                   serviceLimitsView: PairServiceLimitsView,
-                                  credentialsLookup:DomainCredentialsLookup) {
+                                  credentialsLookup:DomainCredentialsLookup,
+                                  pools:HttpConnectionPools) {
 
   private val logger = LoggerFactory.getLogger(getClass)
 
@@ -125,16 +127,25 @@ abstract class InternalRestClient(pair: PairRef,
     HttpConnectionParams.setSoTimeout(httpParams,
       zeroIfUnlimited(ScanReadTimeout))
 
-    new DefaultHttpClient(httpParams)
+    pools.client(uri, httpParams)
   }
 
-  protected def shutdownImmediate(client: HttpClient) {
+  /**
+   * Returns the connection used by the request to the pool, by consuming whatever remains of the response. If that
+   * isn't possible, the request is aborted so that the connection is discarded instead.
+   */
+  protected def release(request: HttpUriRequest, response: HttpResponse) {
     try {
-      client.getConnectionManager.shutdown
+      if (response != null) {
+        EntityUtils.consume(response.getEntity)
+      } else {
+        request.abort()
+      }
     } catch {
       case e =>
-        logger.warn("Could not shut down HTTP client: {} {}",
+        logger.warn("Could not release HTTP connection: {} {}",
           Array[Object](formatAlertCode(ACTION_HTTP_CLEANUP_FAILURE), e.getClass, e.getMessage))
+        request.abort()
     }
   }
 
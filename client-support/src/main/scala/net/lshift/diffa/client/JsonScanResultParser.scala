@@ -20,7 +20,8 @@ import net.lshift.diffa.adapter.scanning.ScanResultEntry
 import java.io.InputStream
 
 /**
- * a JsonScanResultParser parses a scan result as JSON--chiefly, this allows
+ * a JsonScanResultParser parses a scan result as JSON (or, where the adapter
+ * supports it, the compact binary encoding)--chiefly, this allows
  * us to layer in functionality such as response-length checking and other
  * validation / accounting functionality via the stackable-trait pattern. Eg:
  * LengthCheckingParser.
@@ -28,4 +29,10 @@ import java.io.InputStream
 
 trait JsonScanResultParser {
   def parse(stream: InputStream): Seq[ScanResultEntry]
+
+  /**
+   * Parses entries from the stream as the returned iterator is advanced, rather than reading the entire result up
+   * front.
+   */
+  def parseIncrementally(stream: InputStream): Iterator[ScanResultEntry]
 }
@@ -29,7 +29,8 @@ trait ParticipantRestClientFactory {
   def supportsAddress(address: String) = address.startsWith("http://") || address.startsWith("https://")
 }
 
-class ScanningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView)
+class ScanningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView,
+                                           pools: HttpConnectionPools)
   extends ScanningParticipantFactory with ParticipantRestClientFactory {
   def supports(endpoint: Endpoint) = supportsAddress(endpoint.scanUrl)
 
@@ -37,23 +38,26 @@ class ScanningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLo
     val connectTimeout = limits.getEffectiveLimitByNameForPair(pairRef.space, pairRef.name, ScanConnectTimeout)
     val readTimeout =limits.getEffectiveLimitByNameForPair(pairRef.space, pairRef.name, ScanReadTimeout)
 
-    val client = new ApacheHttpClient(connectTimeout, readTimeout)
+    val client = new ApacheHttpClient(connectTimeout, readTimeout, pools)
     val validatorFactory = new CollationOrderEntityValidatorFactory(endpoint.lookupCollation)
 
     val parser = new ValidatingScanResultParser(validatorFactory) with LengthCheckingParser  {
       val serviceLimitsView = limits
       val pair = pairRef
     }
-    new ScanParticipantRestClient(pairRef, endpoint.scanUrl, credentialsLookup, client, parser)
+    new ScanParticipantRestClient(pairRef, endpoint.scanUrl, credentialsLookup, client, parser,
+      () => DigestModes.forPair(limits, pairRef))
   }
 }
 
 object ScanningParticipantRestClientFactory {
-  def create(pair: PairRef, endpoint: Endpoint, serviceLimitsView: PairServiceLimitsView, credentialsLookup: DomainCredentialsLookup) =
-      new ScanningParticipantRestClientFactory(credentialsLookup, serviceLimitsView).createParticipantRef(endpoint, pair)
+  def create(pair: PairRef, endpoint: Endpoint, serviceLimitsView: PairServiceLimitsView, credentialsLookup: DomainCredentialsLookup,
+             pools: HttpConnectionPools = HttpConnectionPools.default) =
+      new ScanningParticipantRestClientFactory(credentialsLookup, serviceLimitsView, pools).createParticipantRef(endpoint, pair)
 }
 
-class ContentParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView)
+class ContentParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView,
+                                          pools: HttpConnectionPools)
   extends ContentParticipantFactory with ParticipantRestClientFactory {
   def supports(endpoint: Endpoint) = supportsAddress(endpoint.contentRetrievalUrl)
 
@@ -61,10 +65,12 @@ class ContentParticipantRestClientFactory(credentialsLookup:DomainCredentialsLoo
     = new ContentParticipantRestClient(serviceLimitsView = limits,
                                        scanUrl = endpoint.contentRetrievalUrl,
                                        credentialsLookup = credentialsLookup,
-                                       pair = pair)
+                                       pair = pair,
+                                       pools = pools)
 }
 
-class VersioningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView)
+class VersioningParticipantRestClientFactory(credentialsLookup:DomainCredentialsLookup, limits: PairServiceLimitsView,
+                                             pools: HttpConnectionPools)
   extends VersioningParticipantFactory with ParticipantRestClientFactory {
   def supports(endpoint: Endpoint) = supportsAddress(endpoint.versionGenerationUrl)
 
@@ -72,5 +78,6 @@ class VersioningParticipantRestClientFactory(credentialsLookup:DomainCredentials
     = new VersioningParticipantRestClient(serviceLimitsView = limits,
                                           scanUrl = endpoint.versionGenerationUrl,
                                           credentialsLookup = credentialsLookup,
-                                          pair = pair)
+                                          pair = pair,
+                                          pools = pools)
 }
\ No newline at end of file
@@ -16,9 +16,9 @@
 
 package net.lshift.diffa.client
 
-import net.lshift.diffa.adapter.scanning.{ScanResultEntry, ScanConstraint}
+import net.lshift.diffa.adapter.scanning.{DigestMode, ScanResultEntry, ScanConstraint}
 import net.lshift.diffa.kernel.config._
-import net.lshift.diffa.kernel.participants.{CategoryFunction, ScanningParticipantRef}
+import net.lshift.diffa.kernel.participants.{IncrementalScanning, CategoryFunction, ScanningParticipantRef}
 import org.slf4j.LoggerFactory
 import java.net.{SocketTimeoutException, SocketException, ConnectException, URI}
 import net.lshift.diffa.kernel.differencing.ScanFailedException
@@ -33,29 +33,46 @@ class ScanParticipantRestClient(pair: PairRef,
                                 scanUrl: String,
                                 credentialsLookup: DomainCredentialsLookup,
                                 httpClient: DiffaHttpClient,
-                                parser: JsonScanResultParser)
-  extends ScanningParticipantRef {
+                                parser: JsonScanResultParser,
+                                digestMode: () => DigestMode = () => DigestMode.ORDERED)
+  extends ScanningParticipantRef
+  with IncrementalScanning {
 
   private val log = LoggerFactory.getLogger(getClass)
 
   def scan(constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction]) : Seq[ScanResultEntry] = {
-    val query = DiffaHttpQuery(scanUrl).accepting("application/json").
+    val query = buildQuery(constraints, aggregations)
+
+    try {
+      this.httpClient.get(query, parser)
+    } catch {
+      case ex => handleHttpError(ex, query)
+    }
+  }
+
+  def scanIncrementally[T](constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction])(f: Iterator[ScanResultEntry] => T) = {
+    val query = buildQuery(constraints, aggregations)
+
+    try {
+      this.httpClient.stream(query, parser)(f)
+    } catch {
+      case ex => handleHttpError(ex, query)
+    }
+  }
+
+  private def buildQuery(constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction]) = {
+    val baseQuery = DiffaHttpQuery(scanUrl).accepting("application/json").
       withConstraints(constraints).
       withAggregations(aggregations)
+    val query = if (aggregations.isEmpty) baseQuery else baseQuery.withDigestMode(digestMode())
 
     val credentials = credentialsLookup.credentialsForUri(pair.space, new URI(scanUrl))
 
-    val queryWithCredentials = credentials match {
+    credentials match {
       case None => query
       case Some(BasicAuthCredentials(user, password)) => query.withBasicAuth(user, password)
       case Some(QueryParameterCredentials(name, value)) => query.withQuery(Map(name -> Seq(value)))
     }
-
-    try {
-      this.httpClient.get(queryWithCredentials, parser)
-    } catch {
-      case ex => handleHttpError(ex, queryWithCredentials)
-    }
   }
 
   def handleHttpError(ex: Throwable, query: DiffaHttpQuery) = ex match {
@@ -15,15 +15,37 @@
  */
 package net.lshift.diffa.client
 
-import java.io.{IOException, InputStream}
-import net.lshift.diffa.adapter.common.JSONHelper
+import java.io.{BufferedInputStream, IOException, InputStream}
+import net.lshift.diffa.adapter.common.{ScanResultReader, BinaryScanResultHelper, JSONHelper}
 import net.lshift.diffa.schema.servicelimits.ScanResponseSizeLimit
 import net.lshift.diffa.kernel.differencing.ScanLimitBreachedException
 import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
 import scala.collection.JavaConversions._
+import net.lshift.diffa.adapter.scanning.ScanResultEntry
 
+/**
+ * Parses and validates scan results, which may be either JSON or in the binary encoding of BinaryScanResultHelper. The
+ * encoding is recognised from the start of the result.
+ */
 class ValidatingScanResultParser(validatorFactory: ScanEntityValidatorFactory) extends JsonScanResultParser {
-  def parse(s: InputStream) = JSONHelper.readQueryResult(s, validatorFactory.createValidator).toSeq
+  def parse(s: InputStream) = {
+    val buffered = new BufferedInputStream(s)
+    if (BinaryScanResultHelper.isBinaryResult(buffered))
+      BinaryScanResultHelper.readQueryResult(buffered, validatorFactory.createValidator).toSeq
+    else
+      JSONHelper.readQueryResult(buffered, validatorFactory.createValidator).toSeq
+  }
+
+  override def parseIncrementally(s: InputStream) = {
+    val buffered = new BufferedInputStream(s)
+    val reader:ScanResultReader =
+      if (BinaryScanResultHelper.isBinaryResult(buffered))
+        BinaryScanResultHelper.streamQueryResult(buffered, validatorFactory.createValidator)
+      else
+        JSONHelper.streamQueryResult(buffered, validatorFactory.createValidator)
+
+    Iterator.continually(reader.next()).takeWhile(_ != null)
+  }
 }
 
 
@@ -34,8 +56,28 @@ trait LengthCheckingParser extends JsonScanResultParser {
   abstract override def parse(s: InputStream) = {
     val responseSizeLimit = serviceLimitsView.getEffectiveLimitByNameForPair(
       pair.space, pair.name, ScanResponseSizeLimit)
-    try {
+    rethrowingLimitBreaches {
       super.parse(new LengthCheckingInputStream(s, responseSizeLimit))
+    }
+  }
+
+  abstract override def parseIncrementally(s: InputStream) = {
+    val responseSizeLimit = serviceLimitsView.getEffectiveLimitByNameForPair(
+      pair.space, pair.name, ScanResponseSizeLimit)
+    val entries = rethrowingLimitBreaches {
+      super.parseIncrementally(new LengthCheckingInputStream(s, responseSizeLimit))
+    }
+
+    // The limit may be breached at any point whilst the result is being consumed
+    new Iterator[ScanResultEntry] {
+      def hasNext = rethrowingLimitBreaches(entries.hasNext)
+      def next() = rethrowingLimitBreaches(entries.next())
+    }
+  }
+
+  private def rethrowingLimitBreaches[T](f: => T) = {
+    try {
+      f
     } catch {
       case e:IOException if e.getCause.isInstanceOf[ScanLimitBreachedException] => throw e.getCause
     }
@@ -24,6 +24,7 @@ import javax.ws.rs.core.MediaType
 import net.lshift.diffa.adapter.common.JSONHelper
 import net.lshift.diffa.adapter.correlation.ProcessingResponse
 import org.apache.http.util.EntityUtils
+import org.apache.http.HttpResponse
 import net.lshift.diffa.kernel.util.MissingObjectException
 import net.lshift.diffa.kernel.util.AlertCodes._
 import org.slf4j.LoggerFactory
@@ -35,8 +36,9 @@ import net.lshift.diffa.kernel.config._
 class VersioningParticipantRestClient(pair: PairRef,
                                       scanUrl: String,
                                       serviceLimitsView: PairServiceLimitsView,
-                                      credentialsLookup:DomainCredentialsLookup)
-  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup)
+                                      credentialsLookup:DomainCredentialsLookup,
+                                      pools:HttpConnectionPools)
+  extends InternalRestClient(pair, scanUrl, serviceLimitsView, credentialsLookup, pools)
   with VersioningParticipantRef {
 
   val log = LoggerFactory.getLogger(getClass)
@@ -49,8 +51,10 @@ class VersioningParticipantRestClient(pair: PairRef,
     def prepareRequest(query:Option[QueryParameterCredentials]) = buildPostRequest(queryParams, formParams, query)
     val (httpClient, httpPost) = maybeAuthenticate(prepareRequest)
 
+    var response:HttpResponse = null
+
     try {
-      val response = httpClient.execute(httpPost)
+      response = httpClient.execute(httpPost)
       response.getStatusLine.getStatusCode match {
         case 200 => JSONHelper.readProcessingResponse(response.getEntity.getContent)
         case _   =>
@@ -59,7 +63,7 @@ class VersioningParticipantRestClient(pair: PairRef,
       }
     }
     finally {
-      shutdownImmediate(httpClient)
+      release(httpPost, response)
     }
 
   }
@@ -19,27 +19,37 @@ package net.lshift.diffa.client
 import org.eclipse.jetty.server.{Request, Server}
 import org.eclipse.jetty.server.handler.AbstractHandler
 import javax.servlet.http.{HttpServletResponse, HttpServletRequest}
-import org.junit.{Test, Before}
+import org.junit.{After, Test, Before}
 import org.junit.Assert._
 import org.hamcrest.Matchers._
 import scala.collection.JavaConversions._
 import java.net.{ConnectException, URI}
 import org.apache.commons.codec.binary.Base64
 import java.io.InputStream
-import net.lshift.diffa.adapter.scanning.ScanResultEntry
+import net.lshift.diffa.adapter.scanning.{DigestMode, ScanResultEntry}
 import net.lshift.diffa.kernel.differencing.ScanFailedException
+import net.lshift.diffa.adapter.common.ScanResultEncoding
+import org.apache.commons.io.IOUtils
 
 class ApacheHttpClientTest {
   import ApacheHttpClientTest._
 
-  val client: DiffaHttpClient = new ApacheHttpClient(0, 0)
+  val pools = new HttpConnectionPools(2, 60000)
+  val client: DiffaHttpClient = new ApacheHttpClient(0, 0, pools)
   val parserResult = Seq[ScanResultEntry]()
+  var lastContent: String = null
   val parser = new JsonScanResultParser {
     def parse(stream: InputStream) = parserResult
+    def parseIncrementally(stream: InputStream) = {
+      lastContent = IOUtils.toString(stream, "UTF-8")
+      parserResult.iterator
+    }
   }
 
   @Before def reset { ApacheHttpClientTest.reset }
 
+  @After def closePools { pools.close() }
+
   @Test
   def makesCorrectRequestToServer {
     val req = DiffaHttpQuery(baseUrl + "foo").withQuery(Map("name" -> List("param")))
@@ -78,6 +88,17 @@ class ApacheHttpClientTest {
     assertThat(response, equalTo(expected))
   }
 
+  @Test
+  def shouldPassParsedBodyToStreamingConsumerOnSuccess {
+    val response = client.stream(DiffaHttpQuery(baseUrl), parser)(entries => entries.toList)
+    assertThat(response, equalTo(parserResult.toList))
+  }
+
+  @Test(expected = classOf[ScanFailedException])
+  def shouldNotInvokeStreamingConsumerOn4xxStatus {
+    client.stream(DiffaHttpQuery(baseUrl + "400"), parser)(_ => fail("Consumer should not have been invoked"))
+  }
+
   @Test(expected = classOf[ConnectException])
   def shouldReturnErrorOnConnectionError {
     val queryForNonListeningServer = DiffaHttpQuery("http://127.0.0.1:%d/".format(0xffff))
@@ -88,6 +109,65 @@ class ApacheHttpClientTest {
   def shouldThrowScanFailedOn4xxStatus {
     client.get(DiffaHttpQuery(baseUrl + "400"), parser)
   }
+
+  @Test
+  def shouldAcceptBinaryResults {
+    client.get(DiffaHttpQuery(baseUrl), parser)
+    assertThat(lastAccept, is(Some(ScanResultEncoding.ACCEPT_ALL).asInstanceOf[Option[String]]))
+  }
+
+  @Test
+  def shouldDecompressGzipEncodedResponses {
+    val response = client.stream(DiffaHttpQuery(baseUrl + "gzip"), parser)(_ => lastContent)
+    assertThat(response, is(responseString))
+  }
+
+  @Test
+  def shouldAcceptAggregatesInTheRequestedDigestMode {
+    val response = client.get(DiffaHttpQuery(baseUrl).withDigestMode(DigestMode.COMMUTATIVE), parser)
+    assertThat(response, equalTo(parserResult))
+  }
+
+  @Test(expected = classOf[ScanFailedException])
+  def shouldFailWhenAdapterDoesNotReportTheRequestedDigestMode {
+    client.get(DiffaHttpQuery(baseUrl + "ignoresDigestMode").withDigestMode(DigestMode.COMMUTATIVE), parser)
+  }
+
+  @Test
+  def shouldReuseKeepAliveConnectionForSuccessiveRequests {
+    (1 to 5).foreach(_ => client.get(DiffaHttpQuery(baseUrl), parser))
+
+    assertEquals(ConnectionPoolStatistics(leased = 0, available = 1, maxConnections = 2, leases = 5, evicted = 0),
+                 pools.statistics(endpoint))
+  }
+
+  @Test
+  def shouldReturnConnectionToPoolAfterErrorStatus {
+    try {
+      client.get(DiffaHttpQuery(baseUrl + "400"), parser)
+    } catch { case _:ScanFailedException => }
+    try {
+      client.stream(DiffaHttpQuery(baseUrl), parser)(_ => throw new IllegalStateException("Consumer failed"))
+    } catch { case _:IllegalStateException => }
+
+    assertEquals(0, pools.statistics(endpoint).leased)
+  }
+
+  @Test
+  def shouldEvictIdleConnections {
+    val shortLivedPools = new HttpConnectionPools(2, 1)
+    try {
+      new ApacheHttpClient(0, 0, shortLivedPools).get(DiffaHttpQuery(baseUrl), parser)
+      Thread.sleep(10)
+      shortLivedPools.evictIdleConnections()
+
+      val stats = shortLivedPools.statistics(endpoint)
+      assertEquals(0, stats.available)
+      assertEquals(1L, stats.evicted)
+    } finally {
+      shortLivedPools.close()
+    }
+  }
 }
 
 object ApacheHttpClientTest {
@@ -102,11 +182,22 @@ object ApacheHttpClientTest {
           response.setHeader("WWW-Authenticate", "basic realm=\"Fnord\"" )
         case "/400" =>
           response.setStatus(HttpServletResponse.SC_BAD_REQUEST)
+        case "/gzip" if ScanResultEncoding.acceptsGzip(request.getHeader("Accept-Encoding")) =>
+          response.setStatus(HttpServletResponse.SC_OK)
+          response.setHeader("Content-Encoding", "gzip")
+          val out = ScanResultEncoding.compress(response.getOutputStream)
+          out.write(responseString.getBytes("UTF-8"))
+          out.close()
+        case "/ignoresDigestMode" =>
+          response.setStatus(HttpServletResponse.SC_OK)
+          response.getWriter.print(responseString)
         case _ =>
           response.setStatus(HttpServletResponse.SC_OK)
+          Option(request.getParameter(DigestMode.PARAMETER)).foreach(response.setHeader(DigestMode.HEADER, _))
           response.getWriter.print(responseString)
       }
 
+      lastAccept = Option(request.getHeader("Accept"))
       recordRequest(jettyReq)
       jettyReq.setHandled(true)
     }
@@ -148,11 +239,13 @@ object ApacheHttpClientTest {
   }
 
   val baseUrl = "http://127.0.0.1:%d/".format(port)
+  val endpoint = "http://127.0.0.1:%d".format(port)
 
   def ensureStarted() = if(!server.isRunning()) server.start()
 
   var lastRequest: Option[DiffaHttpQuery] = None
+  var lastAccept: Option[String] = None
 
-  def reset { lastRequest = None; ensureStarted() }
+  def reset { lastRequest = None; lastAccept = None; ensureStarted() }
 
 }
@@ -91,7 +91,7 @@ object InternalRestClientTest {
     cases.toArray
   }
 
-  def clientFor(baseUrl: String, reqUrl:String) = new InternalRestClient(pair, baseUrl + reqUrl, limits, domainCredentialsLookup) {
+  def clientFor(baseUrl: String, reqUrl:String) = new InternalRestClient(pair, baseUrl + reqUrl, limits, domainCredentialsLookup, HttpConnectionPools.default) {
     def queryRequestUrlFor(queryParams: MultivaluedMapImpl,
                            credentials: Option[QueryParameterCredentials]) = {
       buildGetRequest(queryParams, credentials).getURI().toString
@@ -17,12 +17,13 @@
 package net.lshift.diffa.client
 
 import org.easymock.EasyMock._
+import org.easymock.EasyMock
 import net.lshift.diffa.kernel.config._
 import org.junit.Test
 import java.io.ByteArrayInputStream
 import org.junit.Assert._
 import org.hamcrest.CoreMatchers._
-import net.lshift.diffa.adapter.scanning.{ScanConstraint, StringPrefixConstraint, ScanResultEntry}
+import net.lshift.diffa.adapter.scanning.{DigestMode, ScanConstraint, StringPrefixConstraint, ScanResultEntry}
 import org.joda.time.DateTime
 import net.lshift.diffa.kernel.participants.CategoryFunction
 import java.net.{SocketTimeoutException, SocketException, ConnectException, URI}
@@ -78,6 +79,33 @@ class ScanParticipantRestClientTest {
     verify(httpClient)
   }
 
+  @Test
+  def participantShouldRequestCommutativeDigestsWhenConfigured {
+    val participant = new ScanParticipantRestClient(pair, scanUrl, credentialsLookup, httpClient, parser,
+      () => DigestMode.COMMUTATIVE)
+    val query = scanQuery.withAggregations(sampleAggregations).withConstraints(sampleConstraints)
+
+    expect(httpClient.get(query.withQuery(query.query + ("digest" -> Seq("commutative"))), parser)).andReturn(parserResult)
+    replay(httpClient)
+    expectingNullCredentials()
+
+    participant.scan(sampleConstraints, sampleAggregations)
+    verify(httpClient)
+  }
+
+  @Test
+  def participantShouldNotRequestDigestModeForEntityScans {
+    val participant = new ScanParticipantRestClient(pair, scanUrl, credentialsLookup, httpClient, parser,
+      () => DigestMode.COMMUTATIVE)
+
+    expect(httpClient.get(scanQuery, parser)).andReturn(parserResult)
+    replay(httpClient)
+    expectingNullCredentials()
+
+    participant.scan(nullConstraints, nullAggregations)
+    verify(httpClient)
+  }
+
   @Test
   def participantReturnsParsedResponse {
     val entities = Seq(ScanResultEntry.forEntity("id", "version", DateTime.now()))
@@ -114,6 +142,25 @@ class ScanParticipantRestClientTest {
     scanningParticipant.scan(nullConstraints, nullAggregations)
   }
 
+  @Test
+  def participantShouldPassResponseToConsumerOnIncrementalScan {
+    expect(httpClient.stream[Int](EasyMock.eq(scanQuery), EasyMock.eq(parser))(anyObject())).andReturn(42)
+    replay(httpClient)
+    expectingNullCredentials()
+
+    assertThat(scanningParticipant.scanIncrementally(nullConstraints, nullAggregations)(_.size), equalTo(42))
+    verify(httpClient)
+  }
+
+  @Test(expected=classOf[ScanFailedException])
+  def shouldHandleConnectExceptionsDuringIncrementalScanAndRethrow {
+    expect(httpClient.stream[Int](EasyMock.eq(scanQuery), EasyMock.eq(parser))(anyObject())).andStubThrow(new ConnectException())
+    replay(httpClient)
+    expectingNullCredentials()
+
+    scanningParticipant.scanIncrementally(nullConstraints, nullAggregations)(_.size)
+  }
+
   @Test
   def shouldQueryForAuthMechanism {
     expect(credentialsLookup.credentialsForUri(pair.space, new URI(scanUrl))).andReturn(None)
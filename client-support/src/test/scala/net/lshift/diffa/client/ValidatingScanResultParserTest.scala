@@ -19,11 +19,11 @@ package net.lshift.diffa.client
 import org.junit.Test
 import org.hamcrest.Matchers._
 import org.junit.Assert._
-import java.io.{InputStreamReader, BufferedReader, InputStream, ByteArrayInputStream}
+import java.io.{ByteArrayOutputStream, InputStreamReader, BufferedReader, InputStream, ByteArrayInputStream}
 import net.lshift.diffa.adapter.scanning.{OutOfOrderException, AsciiCollation, Collation, ScanResultEntry}
 import org.joda.time.{DateTimeZone, DateTime}
 import scala.collection.JavaConversions._
-import net.lshift.diffa.adapter.common.ScanEntityValidator
+import net.lshift.diffa.adapter.common.{BinaryScanResultHelper, ScanEntityValidator}
 import org.easymock.EasyMock._
 import net.lshift.diffa.kernel.config.{PairRef, PairServiceLimitsView}
 import net.lshift.diffa.schema.servicelimits.ScanResponseSizeLimit
@@ -55,6 +55,23 @@ class ValidatingScanResultParserTest {
       is(equalTo(Seq(singleEntity))))
   }
 
+  @Test
+  def shouldParseJsonToEntitiesIncrementally {
+    assertThat(parser.parseIncrementally(singleEntityStream).toList,
+      is(equalTo(List(singleEntity))))
+  }
+
+  @Test
+  def shouldOnlyValidateEntitiesAsTheyAreConsumed {
+    val twoEntityStream = streamFor("[%s,%s]".format(singleEntityStr, singleEntityStr.replace("id1", "id2")))
+
+    expect(validator.process(singleEntity))
+    replay(validator)
+    val entries = parser.parseIncrementally(twoEntityStream)
+    entries.next()
+    verify(validator)
+  }
+
   @Test
   def shouldValidateEachEntity {
     expect(validator.process(singleEntity))
@@ -63,6 +80,27 @@ class ValidatingScanResultParserTest {
     verify(validator)
   }
 
+  lazy val binarySingleEntityStream = {
+    val out = new ByteArrayOutputStream
+    BinaryScanResultHelper.writeQueryResult(out, Seq(singleEntity))
+    new ByteArrayInputStream(out.toByteArray)
+  }
+
+  @Test
+  def shouldRecogniseAndValidateBinaryEntities {
+    expect(validator.process(singleEntity))
+    replay(validator)
+    assertThat(parser.parse(binarySingleEntityStream),
+      is(equalTo(Seq(singleEntity))))
+    verify(validator)
+  }
+
+  @Test
+  def shouldParseBinaryEntitiesIncrementally {
+    assertThat(parser.parseIncrementally(binarySingleEntityStream).toList,
+      is(equalTo(List(singleEntity))))
+  }
+
 }
 
 class LengthCheckingParserTest { self =>
@@ -83,6 +121,10 @@ class LengthCheckingParserTest { self =>
       Seq(canary)
     }
 
+    // Yields an entry for each byte read, so that the stream is only consumed as the result is iterated
+    override def parseIncrementally(s: InputStream) =
+      Iterator.continually(s.read()).takeWhile(_ >= 0).map(_ => canary)
+
   }
   val checkingParser = new DummyParser with LengthCheckingParser
 
@@ -117,6 +159,20 @@ class LengthCheckingParserTest { self =>
     assertThat(checkingParser.parse(emptyResponse), is(Seq(canary)))
   }
 
+  @Test
+  def shouldAllowIncrementalParsingOfResponsesWithinTheScanResponseSizeLimit {
+    withExpectedResponseSizeLimit(emptyResponseContent.size)
+
+    assertThat(checkingParser.parseIncrementally(emptyResponse).size, is(emptyResponseContent.size))
+  }
+
+  @Test(expected = classOf[ScanLimitBreachedException])
+  def shouldRejectIncrementallyParsedResponsesLongerThanScanResponseSizeLimit {
+    withExpectedResponseSizeLimit(emptyResponseContent.size-1)
+
+    checkingParser.parseIncrementally(emptyResponse).foreach(_ => ())
+  }
+
   def withExpectedResponseSizeLimit(size: Int) {
     expect(serviceLimitsView.getEffectiveLimitByNameForPair(
       pairRef.space, pairRef.name, ScanResponseSizeLimit)).andReturn(size)
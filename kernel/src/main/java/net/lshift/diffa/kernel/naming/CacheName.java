@@ -15,27 +15,69 @@
  */
 package net.lshift.diffa.kernel.naming;
 
-import net.lshift.diffa.schema.tables.Diffs;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This a is canonical list of names used to identify caches.
+ *
+ * Each cache can also declare the attributes of its values that should be indexed, so that subsets selected on those
+ * attributes don't require a scan of the whole cache, and whether it should be near-cached, so that repeated lookups
+ * of the same keys are served locally rather than from the cluster member that owns them. Near caches suit caches
+ * that are read far more often than they are written.
  */
 public enum CacheName {
 
   USER_DOMAIN_MEMBERS,
 
-  DOMAIN_CONFIG_OPTIONS_MAP,
-  DOMAIN_CONFIG_OPTIONS,
-  DOMAIN_PAIR_BREAKERS,
+  // Not near-cached, since near caches are invalidated asynchronously and the versions are what detect config changes
+  DOMAIN_CONFIG_VERSIONS,
+  DOMAIN_PAIRS(true),
+  DOMAIN_PAIRS_BY_KEY(true, "space"),
+  DOMAIN_PAIRS_BY_ENDPOINT(true),
+  DOMAIN_ENDPOINTS(true),
+  DOMAIN_ENDPOINTS_BY_KEY(true, "space"),
+
+  DOMAIN_CONFIG_OPTIONS_MAP(true),
+  DOMAIN_CONFIG_OPTIONS(true),
+  DOMAIN_PAIR_BREAKERS(true),
 
   SPACE_SUPERSPACES,
   SPACE_POLICIES,
   SPACE_POLICY_STATEMENTS,
   
-  SPACE_PATHS,
-  SPACE_IDS,
+  SPACE_PATHS(true),
+  SPACE_IDS(true),
+
+  DIFFS(false, "objId.pair.space", "objId.pair.name"),
+  PENDING_DIFFS(false, "oid", "objId.pair.space", "objId.pair.name"),
+
+  EXTENT_PAIRS;
+
+  private final boolean nearCached;
+  private final List<String> indexedAttributes;
+
+  CacheName() {
+    this(false);
+  }
+
+  CacheName(boolean nearCached, String... indexedAttributes) {
+    this.nearCached = nearCached;
+    this.indexedAttributes = Collections.unmodifiableList(Arrays.asList(indexedAttributes));
+  }
 
-  DIFFS,
+  /**
+   * Whether lookups in this cache should be served from a copy held locally by each cluster member.
+   */
+  public boolean isNearCached() {
+    return nearCached;
+  }
 
-  EXTENT_PAIRS
+  /**
+   * The attributes of the cached values that should be indexed.
+   */
+  public List<String> getIndexedAttributes() {
+    return indexedAttributes;
+  }
 }
@@ -23,7 +23,7 @@ import net.lshift.diffa.kernel.participants.{DownstreamParticipant, UpstreamPart
 import org.joda.time.{DateTimeZone, DateTime}
 import net.lshift.diffa.kernel.util.AlertCodes._
 import akka.actor._
-import scala.concurrent.{Await, Future, ExecutionContext}
+import scala.concurrent.{Await, ExecutionContext}
 import scala.concurrent.duration._
 import scala.concurrent.ExecutionContext.Implicits.global
 import akka.pattern.{ask, AskTimeoutException}
@@ -38,7 +38,7 @@ import net.lshift.diffa.kernel.util.{EndpointSide, DownstreamEndpoint, UpstreamE
 import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanResultEntry, ScanConstraint}
 import akka.util.Timeout
 import net.lshift.diffa.kernel.frontend.DomainPairDef
-import net.lshift.diffa.kernel.scanning.{ScanStatement, ScanActivityStore}
+import net.lshift.diffa.kernel.scanning.{ScanPriority, ScanExecutionService, ScanStatement, ScanActivityStore}
 
 
 /**
@@ -56,6 +56,7 @@ case class PairActor(pair:DomainPairDef,
                      diagnostics:DiagnosticsManager,
                      domainConfigStore:DomainConfigStore,
                      scanActivityStore:ScanActivityStore,
+                     scanExecutor:ScanExecutionService,
                      changeEventBusyTimeoutMillis: Long,
                      changeEventQuietTimeoutMillis: Long,
                      indexWriterCloseInterval: Int,
@@ -188,6 +189,7 @@ case class PairActor(pair:DomainPairDef,
       }
     }
     case c:ChangeMessage                   => handleChangeMessage(c)
+    case c:ChangeBatchMessage              => handleChangeBatchMessage(c)
     case i:InventoryMessage                => sender ! handleInventoryMessage(i)
     case i:StartInventoryMessage           => sender ! handleStartInventoryMessage(i)
     case DifferenceMessage                 => handleDifferenceMessage()
@@ -198,6 +200,7 @@ case class PairActor(pair:DomainPairDef,
     }
     case camsg:ChildActorScanMessage if isOwnedByOutstandingScan(camsg) =>
       updateOutstandingScans(camsg)     // Allow outstanding cancelled scans to clean themselves up nicely
+    case ScanMetricsMessage                => sender ! None
     case CancelMessage                     => {
       if (logger.isDebugEnabled) {
           logger.debug(formatAlertCode(pairRef, CANCELLATION_REQUEST_RECEIVED)  + " Received cancellation request in non-scanning state, ignoring")
@@ -220,6 +223,7 @@ case class PairActor(pair:DomainPairDef,
     case CancelMessage                      =>
       handleCancellation()
       sender ! true
+    case ScanMetricsMessage                 => sender ! Some(feedbackHandle.metrics.snapshot)
     case c: VersionCorrelationWriterCommand =>
       if (isOwnedByActiveScan(c)) {
         sender ! c.invokeWriter(writer)
@@ -266,7 +270,9 @@ case class PairActor(pair:DomainPairDef,
       logger.trace("Finished scan %s".format(activeScan.id))
 
       // Notify all interested parties of all of the outstanding mismatches
+      val flushStart = System.currentTimeMillis()
       writer.flush()
+      feedbackHandle.metrics.writerFlushed(System.currentTimeMillis() - flushStart)
 
       try {
         diagnostics.logPairEvent(Some(activeScan.id), pairRef, DiagnosticLevel.INFO, "Calculating differences")
@@ -303,7 +309,7 @@ case class PairActor(pair:DomainPairDef,
     }
 
     val scanStatement = ScanStatement(
-      space = -1L,
+      space = pairRef.space,
       id = activeScan.id,
       pair = pairRef.name,
       initiatedBy = activeScan.initiatingUser,
@@ -313,6 +319,7 @@ case class PairActor(pair:DomainPairDef,
     )
 
     scanActivityStore.createOrUpdateStatement(scanStatement)
+    scanActivityStore.recordMetrics(pairRef, scanStatement.id, feedbackHandle.metrics.snapshot)
 
     // Remove the record of the active scan
     activeScan = null
@@ -344,8 +351,16 @@ case class PairActor(pair:DomainPairDef,
   /**
    * Events out normal changes.
    */
-  def handleChangeMessage(message:ChangeMessage) = {
-    policy.onChange(writer, message.event)
+  def handleChangeMessage(message:ChangeMessage) = handleChanges(policy.onChange(writer, message.event))
+
+  /**
+   * Applies a batch of changes to the writer as a single batch, counting the whole batch as a single action.
+   */
+  def handleChangeBatchMessage(message:ChangeBatchMessage) =
+    handleChanges(writer.batch(w => policy.onChanges(w, message.events)))
+
+  private def handleChanges(applyChanges: => Unit) {
+    applyChanges
     // if no events have arrived within the timeout period, flush and clear the buffer
     if (timeSince(lastEventTime) > changeEventBusyTimeoutMillis) {
       writer.flush()
@@ -443,8 +458,11 @@ case class PairActor(pair:DomainPairDef,
 
       diagnostics.logPairEvent(Some(createdScan.id), pairRef, DiagnosticLevel.INFO, infoMsg)
 
+      // Each half of the scan is queued separately, and manually requested scans take priority over scheduled ones
+      val priority = ScanPriority.of(initiatingUser)
+
       if (us.supportsScanning) {
-        Future {
+        scanExecutor.submit(pairRef, priority) {
           try {
             policy.scanUpstream(createdScan.id, pairRef, us, scanView, writer, usp, bufferingListener, currentFeedbackHandle)
             self ! ChildActorCompletionMessage(createdScan.id, Up, Success)
@@ -463,7 +481,7 @@ case class PairActor(pair:DomainPairDef,
       }
 
       if (ds.supportsScanning) {
-        Future {
+        scanExecutor.submit(pairRef, priority) {
           try {
             policy.scanDownstream(createdScan.id, pairRef, ds, scanView, writer, usp, dsp, bufferingListener, currentFeedbackHandle)
             self ! ChildActorCompletionMessage(createdScan.id, Down, Success)
@@ -588,6 +606,7 @@ case object Cancellation extends Result
  */
 abstract class Deferrable
 case class ChangeMessage(event: PairChangeEvent) extends Deferrable
+case class ChangeBatchMessage(events: Seq[PairChangeEvent]) extends Deferrable
 case object DifferenceMessage extends Deferrable
 case class ScanMessage(scanView:Option[String], initiatingUser:Option[String])
 case class StartInventoryMessage(side:EndpointSide, view:Option[String])
@@ -597,6 +616,10 @@ case class InventoryMessage(side:EndpointSide, constraints:Seq[ScanConstraint],
  * This message indicates that this actor should cancel all current and pending scan operations.
  */
 case object CancelMessage
+/**
+ * This message requests a snapshot of the metrics of the scan that is currently running, if there is one.
+ */
+case object ScanMetricsMessage
 /**
  * An internal command that indicates to the actor that the underlying writer should be flushed
  */
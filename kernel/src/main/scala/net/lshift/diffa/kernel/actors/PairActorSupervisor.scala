@@ -32,7 +32,7 @@ import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanResu
 import net.lshift.diffa.kernel.util.AlertCodes._
 import scala.concurrent.{Await}
 import scala.concurrent.duration._
-import net.lshift.diffa.kernel.scanning.ScanActivityStore
+import net.lshift.diffa.kernel.scanning.{ScanMetricsSnapshot, ScanExecutionService, ScanActivityStore}
 
 case class PairActorSupervisor(policyManager:VersionPolicyManager,
                                systemConfig:SystemConfigStore,
@@ -43,6 +43,7 @@ case class PairActorSupervisor(policyManager:VersionPolicyManager,
                                stores:VersionCorrelationStoreFactory,
                                diagnostics:DiagnosticsManager,
                                scanActivityStore:ScanActivityStore,
+                               scanExecutor:ScanExecutionService,
                                changeEventBusyTimeoutMillis:Long,
                                changeEventQuietTimeoutMillis:Long,
                                indexWriterCloseInterval: Int,
@@ -71,7 +72,7 @@ case class PairActorSupervisor(policyManager:VersionPolicyManager,
        Some(actorSystem.actorOf(Props(
          new PairActor(pair, us, ds, usp, dsp, pol, stores(pairRef),
            differencesManager, pairScanListener,
-           diagnostics, domainConfig, scanActivityStore, changeEventBusyTimeoutMillis, changeEventQuietTimeoutMillis,
+           diagnostics, domainConfig, scanActivityStore, scanExecutor, changeEventBusyTimeoutMillis, changeEventQuietTimeoutMillis,
            indexWriterCloseInterval, actorSystem)
        )))
      case None =>
@@ -82,6 +83,8 @@ case class PairActorSupervisor(policyManager:VersionPolicyManager,
 
   def propagateChangeEvent(event:PairChangeEvent) = findActor(event.id) ! ChangeMessage(event)
 
+  def propagateChangeEvents(pair:PairRef, events:Seq[PairChangeEvent]) = findActor(pair) ! ChangeBatchMessage(events)
+
   // TODO: Pick more appropriate value.
   implicit val waitTimeout = Timeout(10 seconds)
   def startInventory(pair: PairRef, side: EndpointSide, view:Option[String]): Seq[ScanRequest] = {
@@ -116,4 +119,11 @@ case class PairActorSupervisor(policyManager:VersionPolicyManager,
     }
   }
 
+  def scanMetrics(pairRef:PairRef) = {
+    val future = findActor(pairRef) ? ScanMetricsMessage
+    Await.result(future, waitTimeout.duration).asInstanceOf[Option[ScanMetricsSnapshot]]
+  }
+
+  def commitStats(pairRef:PairRef) = stores.commitStats(pairRef)
+
 }
@@ -21,6 +21,8 @@ import net.lshift.diffa.kernel.events.PairChangeEvent
 import net.lshift.diffa.kernel.config.{PairRef, DiffaPairRef}
 import net.lshift.diffa.kernel.util.EndpointSide
 import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanResultEntry, ScanConstraint}
+import net.lshift.diffa.kernel.scanning.ScanMetricsSnapshot
+import net.lshift.diffa.kernel.indexing.GroupCommitStats
 
 /**
  * This is a thread safe entry point to an underlying version policy.
@@ -32,6 +34,11 @@ trait PairPolicyClient {
    */
   def propagateChangeEvent(event:PairChangeEvent) : Unit
 
+  /**
+   * Propagates a batch of change events for the given pair to the underlying policy, as a single operation.
+   */
+  def propagateChangeEvents(pair:PairRef, events:Seq[PairChangeEvent]) : Unit
+
   /**
    * Requests that an inventory be initiated, to return the details of what operations need to be performed
    * to begin an inventory on this node.
@@ -62,4 +69,14 @@ trait PairPolicyClient {
    * This is a blocking call, so it will only return after all current and pending scans have been cancelled.
    */
   def cancelScans(pair:PairRef) : Boolean
+
+  /**
+   * Retrieves the metrics recorded so far by the scan that is currently running for the given pair, if there is one.
+   */
+  def scanMetrics(pair:PairRef) : Option[ScanMetricsSnapshot]
+
+  /**
+   * Retrieves the statistics about the commits made to the correlation store of the given pair.
+   */
+  def commitStats(pair:PairRef) : Option[GroupCommitStats]
 }
@@ -26,4 +26,9 @@ trait ChangesClient {
    * Reports a change with the given details to the agent.
    */
   def onChangeEvent(evt:ChangeEvent)
+
+  /**
+   * Reports a batch of changes to the agent in a single submission.
+   */
+  def onChangeEvents(evts:Seq[ChangeEvent])
 }
\ No newline at end of file
@@ -63,12 +63,12 @@ class JooqDomainConfigStore(jooq:JooqDatabaseFacade,
   private val pairEventSubscribers = new ListBuffer[PairLifecycleAware]
   def registerPairEventListener(p:PairLifecycleAware) = pairEventSubscribers += p
 
-  private val cachedConfigVersions = cacheProvider.getCachedMap[Long,Int]("domain.config.versions")
-  private val cachedPairs = cacheProvider.getCachedMap[Long, java.util.List[DomainPairDef]]("domain.pairs")
-  private val cachedPairsByKey = cacheProvider.getCachedMap[DomainPairKey, DomainPairDef]("domain.pairs.by.key")
-  private val cachedEndpoints = cacheProvider.getCachedMap[Long, java.util.List[DomainEndpointDef]]("domain.endpoints")
-  private val cachedEndpointsByKey = cacheProvider.getCachedMap[DomainEndpointKey, DomainEndpointDef]("domain.endpoints.by.key")
-  private val cachedPairsByEndpoint = cacheProvider.getCachedMap[DomainEndpointKey, java.util.List[DomainPairDef]]("domain.pairs.by.endpoint")
+  private val cachedConfigVersions = cacheProvider.getCachedMap[Long,Int](DOMAIN_CONFIG_VERSIONS)
+  private val cachedPairs = cacheProvider.getCachedMap[Long, java.util.List[DomainPairDef]](DOMAIN_PAIRS)
+  private val cachedPairsByKey = cacheProvider.getCachedMap[DomainPairKey, DomainPairDef](DOMAIN_PAIRS_BY_KEY)
+  private val cachedEndpoints = cacheProvider.getCachedMap[Long, java.util.List[DomainEndpointDef]](DOMAIN_ENDPOINTS)
+  private val cachedEndpointsByKey = cacheProvider.getCachedMap[DomainEndpointKey, DomainEndpointDef](DOMAIN_ENDPOINTS_BY_KEY)
+  private val cachedPairsByEndpoint = cacheProvider.getCachedMap[DomainEndpointKey, java.util.List[DomainPairDef]](DOMAIN_PAIRS_BY_ENDPOINT)
   private val cachedBreakers = cacheProvider.getCachedMap[BreakerKey, Boolean](DOMAIN_PAIR_BREAKERS)
 
   // Config options
@@ -109,8 +109,8 @@ class JooqDomainConfigStore(jooq:JooqDatabaseFacade,
     cachedEndpoints.evict(space)
     cachedPairs.evict(space)
     cachedPairsByEndpoint.keySubset(EndpointByDomainPredicate(space)).evictAll()
-    cachedPairsByKey.keySubset(PairByDomainPredicate(space)).evictAll()
-    cachedEndpointsByKey.keySubset(EndpointByDomainPredicate(space)).evictAll()
+    cachedPairsByKey.attributeSubset(Map("space" -> space)).evictAll()
+    cachedEndpointsByKey.attributeSubset(Map("space" -> space)).evictAll()
     cachedBreakers.keySubset(BreakerByDomainPredicate(space)).evictAll()
 
     invalidateConfigCaches(space)
@@ -125,12 +125,12 @@ class JooqDomainConfigStore(jooq:JooqDatabaseFacade,
 
     // TODO This is a very coarse grained invalidation of the pair caches - this could be made finer at some stage
     cachedPairs.evict(space)
-    cachedPairsByKey.keySubset(PairByDomainPredicate(space)).evictAll()
+    cachedPairsByKey.attributeSubset(Map("space" -> space)).evictAll()
   }
 
   private def invalidatePairCachesOnly(space:Long) = {
     cachedPairs.evict(space)
-    cachedPairsByKey.keySubset(PairByDomainPredicate(space)).evictAll()
+    cachedPairsByKey.attributeSubset(Map("space" -> space)).evictAll()
     cachedPairsByEndpoint.keySubset(EndpointByDomainPredicate(space)).evictAll()
   }
 
@@ -982,11 +982,6 @@ case class EndpointByDomainPredicate(@BeanProperty var space:Long) extends KeyPr
   def constrain(key: DomainEndpointKey) = key.space == space
 }
 
-case class PairByDomainPredicate(@BeanProperty var space:Long) extends KeyPredicate[DomainPairKey] {
-  def this() = this(space = 0)
-  def constrain(key: DomainPairKey) = key.space == space
-}
-
 case class BreakerByDomainPredicate(@BeanProperty var space:Long) extends KeyPredicate[BreakerKey] {
   def this() = this(space = 0)
   def constrain(key: BreakerKey) = key.space == space
@@ -25,11 +25,17 @@ object ValidServiceLimits {
 
   private val definitions = Seq(
     ChangeEventRate,
+    ChangeEventBatchSize,
     DiagnosticEventBufferSize,
     ExplainFiles,
     ScanConnectTimeout,
     ScanReadTimeout,
-    ScanResponseSizeLimit
+    ScanResponseSizeLimit,
+    ScanConcurrency,
+    CommutativeScanDigests,
+    CorrelationWriterBatchSize,
+    CorrelationWriterBatchInterval,
+    CorrelationWriterBatchMemory
   ).map(d => (d.key, d)).toMap[String,ServiceLimit]
 
   /**
@@ -37,6 +37,12 @@ trait DiagnosticsManager {
    */
   def writePairExplanationObject(scanId:Option[Long] = None, pair:PairRef, source:String, objName: String, f:OutputStream => Unit)
 
+  /**
+   * Determines whether explanations are currently being recorded for the given pair. This allows callers to avoid
+   * retaining data that would only be needed to build an explanation object.
+   */
+  def isExplaining(pair:PairRef):Boolean
+
   /**
    * Queries for known events about the given pair.
    */
@@ -50,6 +50,8 @@ class LocalDiagnosticsManager(systemConfigStore:SystemConfigStore,
     getOrCreatePair(pair).writePairExplanationObject(source, objName, f)
   }
 
+  def isExplaining(pair:PairRef) = getOrCreatePair(pair).isExplaining
+
   def queryEvents(pair:PairRef, maxEvents: Int) = {
     pairs.synchronized { pairs.get(pair) } match {
       case None           => Seq()
@@ -118,6 +120,8 @@ class LocalDiagnosticsManager(systemConfigStore:SystemConfigStore,
     private def getEventBufferSize = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, DiagnosticEventBufferSize)
     private def getMaxExplainFiles = limits.getEffectiveLimitByNameForPair(pair.space, pair.name, ExplainFiles)
 
+    def isExplaining = getMaxExplainFiles > 0
+
     def logPairEvent(evt:PairEvent) {
       log.synchronized {
         log += evt
@@ -158,7 +162,7 @@ class LocalDiagnosticsManager(systemConfigStore:SystemConfigStore,
     }
 
     def logPairExplanation(source:String, msg:String) {
-      if (getMaxExplainFiles > 0) {
+      if (isExplaining) {
         explainLock.synchronized {
           if (explanationWriter == null) {
             explanationWriter = new PrintWriter(new FileWriter(new File(currentExplainDirectory, "explain.log")))
@@ -170,7 +174,7 @@ class LocalDiagnosticsManager(systemConfigStore:SystemConfigStore,
     }
 
     def writePairExplanationObject(source:String, objName: String, f:OutputStream => Unit) {
-      if (getMaxExplainFiles > 0) {
+      if (isExplaining) {
         explainLock.synchronized {
           val outputFile = new File(currentExplainDirectory, objName)
           val outputStream = new FileOutputStream(outputFile)
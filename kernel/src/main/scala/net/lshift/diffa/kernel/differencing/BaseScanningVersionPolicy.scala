@@ -23,21 +23,25 @@ import org.slf4j.LoggerFactory
 import concurrent.SyncVar
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
 import net.lshift.diffa.adapter.common.JSONHelper
-import net.lshift.diffa.kernel.config.{PairRef, DomainConfigStore, DiffaPairRef, Endpoint}
+import net.lshift.diffa.kernel.config.{AggregatingCategoryDescriptor, PairServiceLimitsView, PairRef, DomainConfigStore, DiffaPairRef, Endpoint}
 import org.joda.time.{DateTimeZone, DateTime, Interval}
 import org.joda.time.format.DateTimeFormat
 import java.io.{OutputStream, PrintWriter}
 import net.lshift.diffa.kernel.diag.{DiagnosticsManager, DiagnosticLevel}
 import net.lshift.diffa.adapter.scanning._
 import collection.JavaConversions._
+import collection.mutable.ListBuffer
 import net.lshift.diffa.kernel.util.{CategoryUtil, DownstreamEndpoint, EndpointSide, UpstreamEndpoint}
+import net.lshift.diffa.schema.servicelimits.ScanConcurrency
+import net.lshift.diffa.kernel.scanning.ScanMetrics
 
 /**
  * Standard behaviours supported by scanning version policies.
  */
 abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFactory,
                                          listener:DifferencingListener,
-                                         diagnostics:DiagnosticsManager)
+                                         diagnostics:DiagnosticsManager,
+                                         limits:PairServiceLimitsView)
     extends VersionPolicy {
   protected val alerter = Alerter.forClass(getClass)
 
@@ -49,10 +53,22 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
    * Handles a adapter change. Due to the need to later correlate data, event information is cached to the
    * version correlation store.
    */
-  def onChange(writer: LimitedVersionCorrelationWriter, evt: PairChangeEvent) = {
+  def onChange(writer: LimitedVersionCorrelationWriter, evt: PairChangeEvent) = onChanges(writer, Seq(evt))
 
+  def onChanges(writer: LimitedVersionCorrelationWriter, evts: Seq[PairChangeEvent]) {
+    val corrs = evts.map(evt => (evt, storeChange(writer, evt)))
 
-    val corr = evt match {
+    corrs.foreach { case (evt, corr) =>
+      if (corr.isMatched.booleanValue) {
+        listener.onMatch(evt.id, corr.upstreamVsn, LiveWindow)
+      } else {
+        listener.onMismatch(evt.id, corr.lastUpdate, corr.upstreamVsn, corr.downstreamUVsn, LiveWindow, Unfiltered)
+      }
+    }
+  }
+
+  private def storeChange(writer: LimitedVersionCorrelationWriter, evt: PairChangeEvent) =
+    evt match {
       case UpstreamPairChangeEvent(id, _, lastUpdate, vsn) => vsn match {
         case null => writer.clearUpstreamVersion(id, None)
         case _    => writer.storeUpstreamVersion(id, evt.attributes, maybe(lastUpdate), vsn, None)
@@ -67,13 +83,6 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
       }
     }
 
-    if (corr.isMatched.booleanValue) {
-      listener.onMatch(evt.id, corr.upstreamVsn, LiveWindow)
-    } else {
-      listener.onMismatch(evt.id, corr.lastUpdate, corr.upstreamVsn, corr.downstreamUVsn, LiveWindow, Unfiltered)
-    }
-  }
-
   def startInventory(pairRef:PairRef, endpoint:Endpoint, view:Option[String], writer: LimitedVersionCorrelationWriter, side:EndpointSide) = {
     val strategy = side match {
       case UpstreamEndpoint   => new UpstreamScanStrategy(endpoint.lookupCollation)
@@ -116,8 +125,11 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
                    listener:DifferencingListener, handle:FeedbackHandle) = {
     benchmark(pairRef, "upstream scan", () => {
       val upstreamConstraints = upstream.groupedConstraints(view)
-      constraintsOrEmpty(upstreamConstraints).foreach((new UpstreamScanStrategy(upstream.lookupCollation)
-        .scanParticipant(scanId, pairRef, writer, upstream, upstream.initialBucketing(view), _, participant, listener, handle)))
+      val strategy = new UpstreamScanStrategy(upstream.lookupCollation)
+      val descent = createDescent(pairRef, handle)
+      constraintsOrEmpty(upstreamConstraints).foreach(c => descent.submit(
+        strategy.scanParticipant(scanId, pairRef, writer, upstream, upstream.initialBucketing(view), c, participant, listener, handle, descent)))
+      descent.awaitCompletion()
     })
   }
 
@@ -125,11 +137,28 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
                      ds:DownstreamParticipant, listener:DifferencingListener, handle:FeedbackHandle) = {
     benchmark(pairRef, "downstream scan", () => {
       val downstreamConstraints = downstream.groupedConstraints(view)
-      constraintsOrEmpty(downstreamConstraints).foreach(downstreamStrategy(us,ds, downstream.lookupCollation)
-        .scanParticipant(scanId, pairRef, writer, downstream, downstream.initialBucketing(view), _, ds, listener, handle))
+      val strategy = downstreamStrategy(us,ds, downstream.lookupCollation)
+      val descent = createDescent(pairRef, handle)
+      constraintsOrEmpty(downstreamConstraints).foreach(c => descent.submit(
+        strategy.scanParticipant(scanId, pairRef, writer, downstream, downstream.initialBucketing(view), c, ds, listener, handle, descent)))
+      descent.awaitCompletion()
     })
   }
 
+  /**
+   * Creates the descent that will be used to walk the aggregate tree of an endpoint, bounded by the pair's
+   * scan concurrency limit.
+   */
+  private def createDescent(pairRef:PairRef, handle:FeedbackHandle) = {
+    val concurrency = limits.getEffectiveLimitByNameForPair(pairRef.space, pairRef.name, ScanConcurrency)
+    ScanDescent(pairRef, concurrency, handle)
+  }
+
+  /**
+   * The digest mode that the aggregates of the given pair are compared in.
+   */
+  protected def digestModeFor(pair:PairRef) = DigestModes.forPair(limits, pair)
+
   private def constraintsOrEmpty(grouped:Seq[Seq[ScanConstraint]]):Seq[Seq[ScanConstraint]] =
     if (grouped.length > 0)
       grouped
@@ -148,6 +177,12 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
     val log = LoggerFactory.getLogger(getClass)
 
     def name:String
+    def collation:Collation
+
+    /**
+     * The side of the pair that metrics are recorded against.
+     */
+    lazy val side = name.toLowerCase
 
     def scanParticipant(scanId:Long,
                         pair:PairRef,
@@ -157,12 +192,13 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
                         constraints:Seq[ScanConstraint],
                         participant:Participant,
                         listener:DifferencingListener,
-                        handle:FeedbackHandle) {
+                        handle:FeedbackHandle,
+                        descent:ScanDescent) {
 
       if (bucketing.size == 0) {
         scanEntities(scanId, pair, writer, endpoint, constraints, participant, listener, handle)
       } else {
-        scanAggregates(scanId, pair, writer, endpoint, bucketing, constraints, participant, listener, handle)
+        scanAggregates(scanId, pair, writer, endpoint, bucketing, constraints, participant, listener, handle, descent)
       }
     }
 
@@ -174,14 +210,18 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
                        constraints:Seq[ScanConstraint],
                        participant:Participant,
                        listener:DifferencingListener,
-                       handle:FeedbackHandle) {
-      
+                       handle:FeedbackHandle,
+                       descent:ScanDescent) {
+
       checkForCancellation(handle, pair)
       diagnostics.logPairEvent(Some(scanId), pair, DiagnosticLevel.TRACE, "Scanning aggregates for %s with (constraints=%s, bucketing=%s)".format(endpoint.name, constraints, bucketing))
 
+      handle.metrics.bucketVisited(side, ScanMetrics.levelOf(bucketing.map(b => (b.getAttributeName, b.name))))
+
       val requestTimestamp = new DateTime
-      val remoteDigests = participant.scan(constraints, bucketing)
+      val remoteDigests = ScanMetrics.recording(handle.metrics, side) { participant.scan(constraints, bucketing) }
       val responseTimestamp = new DateTime
+      handle.metrics.remoteRequest(side, responseTimestamp.getMillis - requestTimestamp.getMillis)
 
       val localDigests = getAggregates(pair, bucketing, constraints)
 
@@ -197,11 +237,13 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
         JSONHelper.formatQueryResult(os, remoteDigests)
       })
 
+      // Each mismatched bucket is handed to the descent, which will either recurse into it immediately or queue it for
+      // a worker, depending on the scan concurrency configured for the pair.
       DigestDifferencingUtils.differenceAggregates(remoteDigests, localDigests, bucketing, constraints).foreach(o => o match {
         case AggregateQueryAction(narrowBuckets, narrowConstraints) =>
-          scanAggregates(scanId, pair, writer, endpoint, narrowBuckets, narrowConstraints, participant, listener, handle)
+          descent.submit(scanAggregates(scanId, pair, writer, endpoint, narrowBuckets, narrowConstraints, participant, listener, handle, descent))
         case EntityQueryAction(narrowed)    =>
-          scanEntities(scanId, pair, writer, endpoint, narrowed, participant, listener, handle)
+          descent.submit(scanEntities(scanId, pair, writer, endpoint, narrowed, participant, listener, handle))
       })
     }
 
@@ -216,12 +258,84 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
       checkForCancellation(handle, pair)
       diagnostics.logPairEvent(Some(scanId),  pair, DiagnosticLevel.TRACE, "Scanning entities for %s with (constraints=%s)".format(endpoint.name, constraints))
 
+      handle.metrics.bucketVisited(side, ScanMetrics.EntityLevel)
+
+      participant match {
+        case incremental:IncrementalScanning =>
+          scanEntitiesIncrementally(scanId, pair, writer, endpoint, constraints, incremental, listener, handle.metrics)
+        case _ =>
+          val requestTimestamp = new DateTime
+          val remoteVersions = ScanMetrics.recording(handle.metrics, side) { participant.scan(constraints, Seq()) }
+          val responseTimestamp = new DateTime
+          handle.metrics.remoteRequest(side, responseTimestamp.getMillis - requestTimestamp.getMillis)
+
+          val cachedVersions = getEntities(pair, constraints)
+
+          explainEntities(scanId, pair, endpoint, constraints, requestTimestamp, responseTimestamp, remoteVersions)
+
+          // Validate that the entities provided meet the constraints of the endpoint
+          val endpointCategories = endpoint.categories.toMap
+          val validRemoteVersions = remoteVersions.filter(isValidEntity(scanId, pair, endpointCategories, constraints))
+          handle.metrics.entitiesCompared(side, validRemoteVersions.size)
+
+          differenceEntities(endpointCategories, validRemoteVersions, cachedVersions, constraints)
+            .foreach(handleCountedMismatch(scanId, pair, writer, listener, handle.metrics))
+      }
+    }
+
+    /**
+     * Differences the entities of a participant as they are received, so that the response is never held in memory
+     * as a whole (unless it is needed to explain the scan). Incrementally scanned participants deliver their entities
+     * in collation order, so they can be merged in step with the store's entities. That order is checked as the
+     * response is consumed, and the scan fails should an entity arrive out of order.
+     */
+    private def scanEntitiesIncrementally(scanId:Long,
+                                          pair:PairRef,
+                                          writer:LimitedVersionCorrelationWriter,
+                                          endpoint:Endpoint,
+                                          constraints:Seq[ScanConstraint],
+                                          participant:IncrementalScanning,
+                                          listener:DifferencingListener,
+                                          metrics:ScanMetrics) {
       val requestTimestamp = new DateTime
-      val remoteVersions = participant.scan(constraints, Seq())
-      val responseTimestamp = new DateTime
+      ScanMetrics.recording(metrics, side) { participant.scanIncrementally(constraints, Seq())(remoteVersions => {
+        val responseTimestamp = new DateTime
+        metrics.remoteRequest(side, responseTimestamp.getMillis - requestTimestamp.getMillis)
+
+        val cachedVersions = getEntities(pair, constraints)
+
+        val received = if (diagnostics.isExplaining(pair)) Some(new ListBuffer[ScanResultEntry]) else None
+        val recordedRemoteVersions = received match {
+          case None         => remoteVersions
+          case Some(buffer) => remoteVersions.map(entry => { buffer += entry; entry })
+        }
+
+        val endpointCategories = endpoint.categories.toMap
+        val validRemoteVersions = recordedRemoteVersions.filter(isValidEntity(scanId, pair, endpointCategories, constraints)).map(entry => {
+          metrics.entitiesCompared(side, 1)
+          entry
+        })
+
+        val mismatches = if (DigestDifferencingUtils.isOrderedBy(collation, cachedVersions)) {
+          val orderedRemoteVersions = DigestDifferencingUtils.checkOrderedBy(collation, validRemoteVersions)
+          DigestDifferencingUtils.differenceSortedEntities(endpointCategories, orderedRemoteVersions, cachedVersions.iterator, collation)
+        } else {
+          DigestDifferencingUtils.differenceEntities(endpointCategories, validRemoteVersions.toSeq, cachedVersions, constraints)
+        }
+        mismatches.foreach(handleCountedMismatch(scanId, pair, writer, listener, metrics))
+
+        received.foreach(buffer => explainEntities(scanId, pair, endpoint, constraints, requestTimestamp, responseTimestamp, buffer))
+      })}
+    }
 
-      val cachedVersions = getEntities(pair, constraints)
+    private def handleCountedMismatch(scanId:Long, pair:PairRef, writer:LimitedVersionCorrelationWriter,
+                                      listener:DifferencingListener, metrics:ScanMetrics)(vm:VersionMismatch) {
+      metrics.diffProduced()
+      handleMismatch(Some(scanId), pair, writer, vm, listener)
+    }
 
+    private def explainEntities(scanId:Long, pair:PairRef, endpoint:Endpoint, constraints:Seq[ScanConstraint],
+                                requestTimestamp:DateTime, responseTimestamp:DateTime, remoteVersions:Seq[ScanResultEntry]) {
       // Generate a diagnostic object detailing the response provided by the adapter
       diagnostics.writePairExplanationObject(Some(scanId), pair, "Version Policy", name + "-Entities-" + fileNameFormatter.print(requestTimestamp) + ".json", os => {
         val pw = new PrintWriter(os)
@@ -232,29 +346,41 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
 
         JSONHelper.formatQueryResult(os, remoteVersions)
       })
+    }
 
-      // Validate that the entities provided meet the constraints of the endpoint
-      val endpointCategories = endpoint.categories.toMap
-      val validRemoteVersions = remoteVersions.filter(entry => {
-        val issues = AttributesUtil.detectAttributeIssues(endpointCategories, constraints, entry.getAttributes.toMap)
+    private def isValidEntity(scanId:Long, pair:PairRef, endpointCategories:Map[String, AggregatingCategoryDescriptor],
+                              constraints:Seq[ScanConstraint])(entry:ScanResultEntry) = {
+      val issues = AttributesUtil.detectAttributeIssues(endpointCategories, constraints, entry.getAttributes.toMap)
 
-        if (issues.size == 0) {
-          true
-        } else {
-          log.warn("Dropping invalid scan result entry " + entry + " due to issues " + issues)
-          diagnostics.logPairEvent(Some(scanId), pair, DiagnosticLevel.ERROR,
-            "The result %s was dropped since it didn't meet the request constraints.  Identified issues were (%s)".format(
-              entry, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
-          diagnostics.logPairExplanation(Some(scanId), pair, "Version Policy",
-          "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
+      if (issues.size == 0) {
+        true
+      } else {
+        log.warn("Dropping invalid scan result entry " + entry + " due to issues " + issues)
+        diagnostics.logPairEvent(Some(scanId), pair, DiagnosticLevel.ERROR,
+          "The result %s was dropped since it didn't meet the request constraints.  Identified issues were (%s)".format(
             entry, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
+        diagnostics.logPairExplanation(Some(scanId), pair, "Version Policy",
+        "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
+          entry, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
 
-          false
-        }
-      })
+        false
+      }
+    }
 
-      DigestDifferencingUtils.differenceEntities(endpointCategories, validRemoteVersions, cachedVersions, constraints)
-        .foreach(handleMismatch(Some(scanId), pair, writer, _, listener))
+    /**
+     * The store always returns entities in collation order, and adapters are required to do the same, so the two sides
+     * can normally be merged in step without indexing either of them. Should either side arrive out of order (for
+     * example, from a participant that doesn't validate ordering), fall back to differencing by id.
+     */
+    private def differenceEntities(categories:Map[String, AggregatingCategoryDescriptor],
+                                   remoteVersions:Seq[ScanResultEntry],
+                                   cachedVersions:Seq[ScanResultEntry],
+                                   constraints:Seq[ScanConstraint]):TraversableOnce[VersionMismatch] = {
+      if (DigestDifferencingUtils.isOrderedBy(collation, remoteVersions) && DigestDifferencingUtils.isOrderedBy(collation, cachedVersions)) {
+        DigestDifferencingUtils.differenceSortedEntities(categories, remoteVersions.iterator, cachedVersions.iterator, collation)
+      } else {
+        DigestDifferencingUtils.differenceEntities(categories, remoteVersions, cachedVersions, constraints)
+      }
     }
 
     private def writeCommonHeader(pw:PrintWriter, pair:PairRef, endpoint:Endpoint, requestTimestamp:DateTime, responseTimestamp:DateTime) = {
@@ -281,7 +407,7 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
       if (aggregations.length == 0) {
         val cachedVersions = getEntities(pair, constraints)
 
-        DigestDifferencingUtils.differenceEntities(endpointCategories, inventoryEntries, cachedVersions, constraints)
+        differenceEntities(endpointCategories, inventoryEntries, cachedVersions, constraints)
           .foreach(handleMismatch(None, pair, writer, _, listener))
 
         Seq()
@@ -321,13 +447,16 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
     def handleMismatch(scanId:Option[Long], pair:PairRef, writer: LimitedVersionCorrelationWriter, vm:VersionMismatch, listener:DifferencingListener)
   }
 
-  protected class UpstreamScanStrategy (collation: Collation) extends ScanStrategy {
+  protected class UpstreamScanStrategy (val collation: Collation) extends ScanStrategy {
     val name = "Upstream"
 
-    def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = {
-      val aggregator = new Aggregator(bucketing, collation)
-      stores(pair).queryUpstreams(constraints, aggregator.collectUpstream)
-      aggregator.digests
+    def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = stores(pair) match {
+      case digesting:DigestingVersionCorrelationStore =>
+        digesting.upstreamDigests(bucketing, constraints, collation, digestModeFor(pair))
+      case store =>
+        val aggregator = new Aggregator(bucketing, collation, digestModeFor(pair))
+        store.queryUpstreams(constraints, aggregator.collectUpstream)
+        aggregator.digests
     }
 
     def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) = {
@@ -340,12 +469,10 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
       vm match {
         case VersionMismatch(id, attributes, lastUpdate,  usVsn, _) =>
 
-          val corrrelation = writer.synchronized {
-            if (usVsn != null) {
-              writer.storeUpstreamVersion(VersionID(pair, id), attributes, lastUpdate, usVsn, scanId)
-            } else {
-              writer.clearUpstreamVersion(VersionID(pair, id), scanId)
-            }
+          val corrrelation = if (usVsn != null) {
+            writer.storeUpstreamVersion(VersionID(pair, id), attributes, lastUpdate, usVsn, scanId)
+          } else {
+            writer.clearUpstreamVersion(VersionID(pair, id), scanId)
           }
 
           handleUpdatedCorrelation(corrrelation)
@@ -353,8 +480,8 @@ abstract class BaseScanningVersionPolicy(val stores:VersionCorrelationStoreFacto
     }
   }
 
-  protected class Aggregator(bucketing:Seq[ScanAggregation], collation: Collation) {
-    val builder = new DigestBuilder(bucketing, collation)
+  protected class Aggregator(bucketing:Seq[ScanAggregation], collation: Collation, mode:DigestMode) {
+    val builder = new DigestBuilder(bucketing, collation, mode)
 
     def collectUpstream(id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, vsn:String) =
       builder.add(id.id, attributes, vsn)
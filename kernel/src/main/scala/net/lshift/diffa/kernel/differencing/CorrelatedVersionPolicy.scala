@@ -21,7 +21,7 @@ import net.lshift.diffa.kernel.participants._
 import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
-import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
 import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstraint, ScanResultEntry}
 
 
@@ -33,22 +33,26 @@ import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstr
  */
 class CorrelatedVersionPolicy(stores:VersionCorrelationStoreFactory,
                               listener:DifferencingListener,
-                              diagnostics:DiagnosticsManager)
-    extends BaseScanningVersionPolicy(stores, listener, diagnostics) {
+                              diagnostics:DiagnosticsManager,
+                              limits:PairServiceLimitsView)
+    extends BaseScanningVersionPolicy(stores, listener, diagnostics, limits) {
 
   def downstreamStrategy(us:UpstreamParticipant, ds:DownstreamParticipant, collation: Collation) =
     new DownstreamCorrelatingScanStrategy(us,ds, collation)
   
   protected class DownstreamCorrelatingScanStrategy(val us:UpstreamParticipant, val ds:DownstreamParticipant,
-                                                     collation: Collation                                                     )
+                                                     val collation: Collation                                                     )
       extends ScanStrategy {
     val name = "DownstreamCorrelating"
 
 
-    def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = {
-      val aggregator = new Aggregator(bucketing, collation)
-      stores(pair).queryDownstreams(constraints, aggregator.collectDownstream)
-      aggregator.digests
+    def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = stores(pair) match {
+      case digesting:DigestingVersionCorrelationStore =>
+        digesting.downstreamDigests(bucketing, constraints, collation, digestModeFor(pair))
+      case store =>
+        val aggregator = new Aggregator(bucketing, collation, digestModeFor(pair))
+        store.queryDownstreams(constraints, aggregator.collectDownstream)
+        aggregator.digests
     }
 
     def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) = {
@@ -60,23 +64,19 @@ class CorrelatedVersionPolicy(stores:VersionCorrelationStoreFactory,
     def handleMismatch(scanId:Option[Long], pair:PairRef, writer: LimitedVersionCorrelationWriter, vm:VersionMismatch, listener:DifferencingListener) = {
       vm match {
         case VersionMismatch(id, categories, _, null, storedVsn) =>
-          val correlation = writer.synchronized{
-            writer.clearDownstreamVersion(VersionID(pair, id), scanId)
-          }
+          val correlation = writer.clearDownstreamVersion(VersionID(pair, id), scanId)
           handleUpdatedCorrelation(correlation)
         case VersionMismatch(id, categories, lastUpdated, partVsn, _) =>
           val content = us.retrieveContent(id)
           val response = ds.generateVersion(content)
 
-          val correlation = writer.synchronized {
-            if (response.getDvsn == partVsn) {
-              // This is the same destination object, so we're safe to store the correlation
-              writer.storeDownstreamVersion(VersionID(pair, id), categories, lastUpdated, response.getUvsn, response.getDvsn, scanId)
-            } else {
-              // We don't know of an upstream version, so we'll put in a proxy dummy value.
-                // TODO: Is this an appropriate behaviour?
-              writer.storeDownstreamVersion(VersionID(pair, id), categories, lastUpdated, "UNKNOWN", partVsn, scanId)
-            }
+          val correlation = if (response.getDvsn == partVsn) {
+            // This is the same destination object, so we're safe to store the correlation
+            writer.storeDownstreamVersion(VersionID(pair, id), categories, lastUpdated, response.getUvsn, response.getDvsn, scanId)
+          } else {
+            // We don't know of an upstream version, so we'll put in a proxy dummy value.
+              // TODO: Is this an appropriate behaviour?
+            writer.storeDownstreamVersion(VersionID(pair, id), categories, lastUpdated, "UNKNOWN", partVsn, scanId)
           }
           handleUpdatedCorrelation(correlation)
       }
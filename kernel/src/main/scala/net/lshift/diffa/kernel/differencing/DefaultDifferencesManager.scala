@@ -43,6 +43,9 @@ import net.lshift.diffa.kernel.escalation.EscalationHandler
  * are likely to be generated internally in normal flows that will never be shown externally (eg, a message sent from
  * A -> B will likely be marked as mismatched by the differencing engine for a short period of time, but be suppressed
  * whilst the matching manager waits for it to expire).
+ *
+ * @param differenceWriterBatchSize the number of reportable mismatches that a difference writer will stage before
+ *                                  writing them to the store
  */
 class DefaultDifferencesManager(
         val systemConfig:SystemConfigStore,
@@ -51,7 +54,8 @@ class DefaultDifferencesManager(
         val matching:MatchingManager,
         val participantFactory:ParticipantFactory,
         val differenceListener:DifferencingListener,
-        val escalationHandler:EscalationHandler)
+        val escalationHandler:EscalationHandler,
+        val differenceWriterBatchSize:Int = 500)
     extends DifferencesManager
     with DifferencingListener with MatchingStatusListener with AgentLifecycleAware {
 
@@ -75,24 +79,52 @@ class DefaultDifferencesManager(
       case None          => 0L
     }
 
+    // Reportable mismatches are staged, and written to the store in batches
+    val staged = new ListBuffer[(UnmatchedEventDetail, MatchOrigin)]
+
     def writeMismatch(id: VersionID, lastUpdate: DateTime, upstreamVsn: String, downstreamVsn: String, origin: MatchOrigin, storeVersion:Long) {
-      onMismatch(id, lastUpdate, upstreamVsn, downstreamVsn, origin, Unfiltered)
+      log.trace("Processing mismatch for " + id + " with upstreamVsn '" + upstreamVsn + "' and downstreamVsn '" + downstreamVsn + "'")
+      if (isPending(id)) {
+        reportPending(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
+      } else {
+        staged += ((UnmatchedEventDetail(id, lastUpdate, upstreamVsn, downstreamVsn), origin))
+        if (staged.size >= differenceWriterBatchSize) {
+          flush()
+        }
+      }
+
       if (storeVersion > latestStoreVersion) {
         latestStoreVersion = storeVersion
       }
     }
 
     def evictTombstones(tombstones:Iterable[Correlation]) {
+      flush()
       tombstones.foreach(t => onMatch(t.asVersionID, t.upstreamVsn, TriggeredByScan))
     }
 
     def abort() {
-      // Nothing to do
+      // Drop anything still staged. Since the latest version won't be recorded, the staged mismatches will be
+      // replayed the next time that the pair is synchronized.
+      staged.clear()
     }
 
     def close() {
+      flush()
       domainDifferenceStore.recordLatestVersion(pairRef, latestStoreVersion)
     }
+
+    private def flush() {
+      if (!staged.isEmpty) {
+        val batch = staged.toList
+        staged.clear()
+
+        val results = domainDifferenceStore.addReportableUnmatchedEvents(pairRef, batch.map(_._1), new DateTime)
+        batch.zip(results).foreach { case ((detail, origin), (status, event)) =>
+          onReportedUnmatched(detail.id, detail.lastUpdate, detail.upstreamVsn, detail.downstreamVsn, origin, status, event)
+        }
+      }
+    }
   }
 
   def retrieveDomainSequenceNum(space:Long) = domainDifferenceStore.currentSequenceId(space)
@@ -116,6 +148,12 @@ class DefaultDifferencesManager(
   def retrievePagedEvents(space:Long, pairKey:String, interval:Interval, offset:Int, length:Int, options:EventOptions) =
     domainDifferenceStore.retrievePagedEvents(PairRef(name = pairKey, space = space), interval, offset, length, options)
 
+  def retrieveEventsAfter(space:Long, pairKey:String, interval:Interval, after:Option[DifferenceCursor], length:Int, options:EventOptions) =
+    domainDifferenceStore.retrieveEventsAfter(PairRef(name = pairKey, space = space), interval, after, length, options)
+
+  def streamUnmatchedEvents(space:Long, pairKey:String, handler:(ReportedDifferenceEvent) => Unit) =
+    domainDifferenceStore.streamUnmatchedEvents(PairRef(name = pairKey, space = space), handler)
+
   def countEvents(space:Long, pairKey: String, interval: Interval) =
     domainDifferenceStore.countUnmatchedEvents(PairRef(name = pairKey, space = space), interval.getStart, interval.getEnd)
 
@@ -188,20 +226,22 @@ class DefaultDifferencesManager(
    */
   def onMismatch(id: VersionID, lastUpdate:DateTime, upstreamVsn: String, downstreamVsn: String, origin:MatchOrigin, level:DifferenceFilterLevel) = {
     log.trace("Processing mismatch for " + id + " with upstreamVsn '" + upstreamVsn + "' and downstreamVsn '" + downstreamVsn + "'")
-    matching.getMatcher(id.pair) match {
-      case Some(matcher) => {
-        matcher.isVersionIDActive(id) match {
-          case true  => reportPending(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
-          case false => reportUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
-        }
-      }
-      case None    => {
-        // If no matcher is configured, then report mis-matches immediately
-        reportUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
-      }
+    if (isPending(id)) {
+      reportPending(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
+    } else {
+      reportUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin)
     }
   }
 
+  /**
+   * Determines whether a mismatch for the given id should be held as pending, since the matching manager is still
+   * waiting on events for it. If no matcher is configured, then mis-matches are reported immediately.
+   */
+  private def isPending(id:VersionID) = matching.getMatcher(id.pair) match {
+    case Some(matcher) => matcher.isVersionIDActive(id)
+    case None          => false
+  }
+
   /**
    * This is the callback that channels match events from the version policy into the domain cache.
    * If the ID is currently in our list of reportable events, generate a match event to reverse it,
@@ -272,6 +312,11 @@ class DefaultDifferencesManager(
   def reportUnmatched(id:VersionID, lastUpdate:DateTime, upstreamVsn: String, downstreamVsn: String, origin: MatchOrigin) {
     log.trace("Report unmatched for %s at %s, upstream %s, downstream %s, origin %s".format(id,lastUpdate, upstreamVsn, downstreamVsn, origin))
     val (status, event) = domainDifferenceStore.addReportableUnmatchedEvent(id, lastUpdate, upstreamVsn, downstreamVsn, new DateTime)
+    onReportedUnmatched(id, lastUpdate, upstreamVsn, downstreamVsn, origin, status, event)
+  }
+
+  private def onReportedUnmatched(id:VersionID, lastUpdate:DateTime, upstreamVsn: String, downstreamVsn: String,
+                                  origin: MatchOrigin, status:DifferenceEventStatus, event:DifferenceEvent) {
     differenceListener.onMismatch(id, lastUpdate, upstreamVsn, downstreamVsn, origin, MatcherFiltered)
 
     status match {
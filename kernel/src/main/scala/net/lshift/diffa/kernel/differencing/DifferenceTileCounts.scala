@@ -0,0 +1,317 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import org.jooq.impl.Factory
+import org.jooq.impl.Factory._
+import org.joda.time.{Minutes, DateTime}
+import net.lshift.diffa.kernel.util.DateUtils
+import net.lshift.diffa.schema.Tables._
+import net.lshift.diffa.schema.jooq.DatabaseFacade
+import net.lshift.diffa.schema.jooq.DatabaseFacade.timestampToDateTime
+import scala.collection.JavaConversions._
+import scala.collection.mutable.{Map => MutableMap}
+import java.lang.{Long => LONG, Integer => INT}
+import org.slf4j.LoggerFactory
+
+/**
+ * Materialized counts of the outstanding (unmatched and unignored) differences in each extent, kept for tiles of
+ * several widths aligned to the epoch.
+ *
+ * The counts are adjusted in the same transaction as the differences that they count, so an aggregate can be read
+ * directly from the tiles that cover it - whole days, then whole hours, then whole quarter hours, then whole minutes -
+ * and its cost depends only on the number of tiles requested, not on the number of differences. The only differences
+ * that are ever counted from the DIFFS table are those in the part of a minute at either end of a request that isn't
+ * aligned to a minute boundary.
+ */
+class DifferenceTileCounts(db:DatabaseFacade) {
+
+  import DifferenceTileCounts._
+
+  val logger = LoggerFactory.getLogger(getClass)
+
+  /**
+   * Records that an outstanding difference in the given extent has moved from being counted at one detection time to
+   * another. None means that the difference isn't counted (because it didn't or doesn't exist, or was matched or
+   * ignored) on that side of the change.
+   */
+  def onChange(t:Factory, extent:Long, before:Option[DateTime], after:Option[DateTime]) {
+    onChanges(t, extent, Seq((before, after)))
+  }
+
+  /**
+   * Records a number of changes to the differences in an extent, applying a single adjustment to each affected tile.
+   */
+  def onChanges(t:Factory, extent:Long, changes:Iterable[(Option[DateTime], Option[DateTime])]) {
+    val deltas = MutableMap[(Int, Long), Int]()
+
+    changes.foreach { case (before, after) =>
+      if (before != after) {
+        before.foreach(d => widths.foreach(w => adjust(deltas, (w, tileIndex(d, w)), -1)))
+        after.foreach(d => widths.foreach(w => adjust(deltas, (w, tileIndex(d, w)), 1)))
+      }
+    }
+
+    // Apply the adjustments in key order, so that concurrent writers to the same extent take their locks in a
+    // consistent order
+    val updates = deltas.filter { case (_, delta) => delta != 0 }.toSeq.sortBy(_._1).map { case ((width, tile), delta) =>
+      t.insertInto(DIFF_TILES).
+          set(DIFF_TILES.EXTENT, extent:LONG).
+          set(DIFF_TILES.WIDTH, width:INT).
+          set(DIFF_TILES.TILE, tile:LONG).
+          set(DIFF_TILES.DIFF_COUNT, delta:INT).
+        onDuplicateKeyUpdate().
+          set(DIFF_TILES.DIFF_COUNT, DIFF_TILES.DIFF_COUNT.add(delta)):org.jooq.Query
+    }
+
+    if (updates.size == 1) updates.head.execute()
+    else if (updates.size > 1) t.batch(updates:_*).execute()
+  }
+
+  /**
+   * Retrieves the number of outstanding differences in the extent for the given range, optionally subdivided into
+   * tiles of the given number of minutes.
+   *
+   * @param countDifferences counts the differences in a (sub-minute) range directly.
+   */
+  def retrieveAggregates(t:Factory, extent:Long, start:DateTime, end:DateTime, aggregateMinutes:Option[Int],
+                         countDifferences:(DateTime, DateTime) => Int):Seq[AggregateTile] = {
+    if (!DateUtils.safeIsBefore(start, end)) {
+      throw new InvalidAggregateRequestException("start time must be before end time")
+    }
+
+    val bounds = aggregateMinutes match {
+      case None    => Seq((start, end))
+      case Some(a) => slice(start, end, a)
+    }
+
+    val plans = bounds.map { case (s, e) => (s, e, plan(s, e)) }
+
+    // Read each width of tile that is needed with a single query over the extent of the requested ranges
+    val counts = plans.flatMap(_._3.ranges).groupBy(_.width).map { case (width, ranges) =>
+      width -> fetchTiles(t, extent, width, lowest(ranges.map(_.from)), highest(ranges.map(_.until)))
+    }
+
+    plans.map { case (s, e, p) =>
+      val materialized = p.ranges.map(r => sum(counts(r.width), r.from, r.until)).sum
+      val unaligned = p.edges.map { case (edgeStart, edgeEnd) => countDifferences(edgeStart, edgeEnd) }.sum
+
+      AggregateTile(s, e, materialized + unaligned)
+    }
+  }
+
+  /**
+   * Recounts the tiles for every extent from the differences themselves.
+   */
+  def rebuild(t:Factory) {
+    val counts = MutableMap[(Long, Int, Long), Int]()
+
+    val cursor = t.select(DIFFS.EXTENT, DIFFS.DETECTED_AT).
+                   from(DIFFS).
+                   where(DIFFS.IS_MATCH.equal(false)).
+                     and(DIFFS.IGNORED.equal(false)).
+                   fetchLazy()
+
+    db.processAsStream(cursor, (r:org.jooq.Record) => {
+      val extent = r.getValue(DIFFS.EXTENT).longValue()
+      val detectedAt = timestampToDateTime(r.getValue(DIFFS.DETECTED_AT))
+      widths.foreach(w => {
+        val key = (extent, w, tileIndex(detectedAt, w))
+        counts(key) = counts.getOrElse(key, 0) + 1
+      })
+    })
+
+    t.delete(DIFF_TILES).execute()
+
+    if (!counts.isEmpty) {
+      val insert = t.batch(
+        t.insertInto(DIFF_TILES).
+          set(DIFF_TILES.EXTENT, param("extent", DIFF_TILES.EXTENT.getDataType)).
+          set(DIFF_TILES.WIDTH, param("width", DIFF_TILES.WIDTH.getDataType)).
+          set(DIFF_TILES.TILE, param("tile", DIFF_TILES.TILE.getDataType)).
+          set(DIFF_TILES.DIFF_COUNT, param("diff_count", DIFF_TILES.DIFF_COUNT.getDataType)))
+
+      counts.foreach { case ((extent, width, tile), count) =>
+        insert.bind(extent:LONG, width:INT, tile:LONG, count:INT)
+      }
+      insert.execute()
+    }
+
+    logger.info("Rebuilt %s difference tile count(s)".format(counts.size))
+  }
+
+  /**
+   * Determines whether there are outstanding differences that have not been counted into any tile, which is the case
+   * when the tiles have been introduced into an existing schema.
+   */
+  def requiresRebuild(t:Factory) =
+    t.selectOne().from(DIFF_TILES).limit(1).fetch().isEmpty &&
+      !t.selectOne().from(DIFFS).where(DIFFS.IS_MATCH.equal(false)).and(DIFFS.IGNORED.equal(false)).limit(1).fetch().isEmpty
+
+  /**
+   * Removes the tiles of extents that are no longer in use by any pair.
+   */
+  def purgeOrphanedTiles(t:Factory) =
+    t.delete(DIFF_TILES).
+      whereNotExists(
+        t.select(field("1")).
+          from(PAIRS).
+          where(PAIRS.EXTENT.eq(DIFF_TILES.EXTENT))
+      ).execute()
+
+  def clear(t:Factory) {
+    t.truncate(DIFF_TILES).execute()
+  }
+
+  private def adjust(deltas:MutableMap[(Int, Long), Int], key:(Int, Long), delta:Int) {
+    deltas(key) = deltas.getOrElse(key, 0) + delta
+  }
+
+  private def fetchTiles(t:Factory, extent:Long, width:Int, from:Option[Long], until:Option[Long]) = {
+    var query = t.select(DIFF_TILES.TILE, DIFF_TILES.DIFF_COUNT).
+                  from(DIFF_TILES).
+                  where(DIFF_TILES.EXTENT.equal(extent)).
+                    and(DIFF_TILES.WIDTH.equal(width)).
+                    and(DIFF_TILES.DIFF_COUNT.notEqual(0))
+
+    from.foreach(f => query = query.and(DIFF_TILES.TILE.greaterOrEqual(f)))
+    until.foreach(u => query = query.and(DIFF_TILES.TILE.lessThan(u)))
+
+    val tiles = new java.util.TreeMap[LONG, INT]()
+    query.fetch().foreach(r => tiles.put(r.getValue(DIFF_TILES.TILE), r.getValue(DIFF_TILES.DIFF_COUNT)))
+    tiles
+  }
+
+  private def sum(tiles:java.util.NavigableMap[LONG, INT], from:Option[Long], until:Option[Long]) = {
+    val lower = from.map(f => tiles.tailMap(f, true)).getOrElse(tiles)
+    val range = until.map(u => lower.headMap(u, false)).getOrElse(lower)
+    range.values.foldLeft(0)(_ + _.intValue())
+  }
+
+  private def slice(startTime:DateTime, endTime:DateTime, aggregateMinutes:Int) : Seq[(DateTime, DateTime)] = {
+    if (startTime == null || endTime == null) {
+      throw new InvalidAggregateRequestException("Both a start and end time must be defined when requesting bucketing")
+    }
+
+    val divisions = scala.math.ceil(
+      Minutes.minutesBetween(startTime, endTime).getMinutes.asInstanceOf[Double] / aggregateMinutes).toInt
+
+    if (startTime.plusMinutes(divisions * aggregateMinutes) != endTime) {
+      throw new InvalidAggregateRequestException("Time range %s minutes (%s -> %s) is not a multiple of %s minutes".format(
+        Minutes.minutesBetween(startTime, endTime).getMinutes, startTime, endTime, aggregateMinutes))
+    }
+
+    (0 to (divisions - 1)).
+      map(d => (startTime.plusMinutes(d * aggregateMinutes), startTime.plusMinutes((d + 1) * aggregateMinutes)))
+  }
+}
+
+object DifferenceTileCounts {
+
+  /**
+   * The widths, in minutes, of the tiles that are counted, from widest to narrowest. Each width is a multiple of the
+   * next, and the narrowest is a single minute. The intermediate widths correspond to the daily, hourly and quarter
+   * hourly zoom levels, so a tile at any zoom level is read from at most a handful of materialized tiles.
+   */
+  val widths = Seq(
+    ZoomLevels.lookupZoomLevel(ZoomLevels.DAILY),
+    ZoomLevels.lookupZoomLevel(ZoomLevels.HOURLY),
+    ZoomLevels.lookupZoomLevel(ZoomLevels.QUARTER_HOURLY),
+    1
+  )
+
+  private val millisPerMinute = 60 * 1000L
+
+  /**
+   * A range of tiles of a given width, each bound being a tile index. None denotes an unbounded range.
+   */
+  case class TileRange(width:Int, from:Option[Long], until:Option[Long])
+
+  /**
+   * How the count for a requested range is made up - the materialized tiles that it covers, plus any parts of a minute
+   * at either end that need to be counted directly.
+   */
+  case class TilePlan(ranges:Seq[TileRange], edges:Seq[(DateTime, DateTime)])
+
+  def tileIndex(detectedAt:DateTime, width:Int) = floorDiv(detectedAt.getMillis, width * millisPerMinute)
+
+  /**
+   * Plans the count for the range between start (inclusive) and end (exclusive), either of which may be null to
+   * denote an unbounded range.
+   */
+  def plan(start:DateTime, end:DateTime):TilePlan = {
+    val firstMinute = Option(start).map(s => ceilDiv(s.getMillis, millisPerMinute))
+    val lastMinute = Option(end).map(e => floorDiv(e.getMillis, millisPerMinute))
+
+    (firstMinute, lastMinute) match {
+      case (Some(f), Some(l)) if f > l =>
+        // The range lies within a single minute
+        TilePlan(Seq(), Seq((start, end)))
+      case _ =>
+        val leading = firstMinute.filter(_ * millisPerMinute != start.getMillis).
+          map(f => (start, new DateTime(f * millisPerMinute, start.getZone)))
+        val trailing = lastMinute.filter(_ * millisPerMinute != end.getMillis).
+          map(l => (new DateTime(l * millisPerMinute, end.getZone), end))
+
+        TilePlan(decompose(firstMinute, lastMinute, widths.toList), leading.toSeq ++ trailing.toSeq)
+    }
+  }
+
+  /**
+   * Breaks a range of minutes into the widest tiles that fit within it, narrowing towards either end.
+   */
+  private def decompose(from:Option[Long], until:Option[Long], remaining:List[Int]):List[TileRange] = remaining match {
+    case Nil        => Nil
+    case 1 :: _     => if (before(from, until)) List(TileRange(1, from, until)) else Nil
+    case w :: rest  =>
+      val firstTile = from.map(ceilDiv(_, w))
+      val lastTile = until.map(floorDiv(_, w))
+
+      if (before(firstTile, lastTile)) {
+        val leading = if (from.isDefined) decompose(from, firstTile.map(_ * w), rest) else Nil
+        val trailing = if (until.isDefined) decompose(lastTile.map(_ * w), until, rest) else Nil
+        leading ++ List(TileRange(w, firstTile, lastTile)) ++ trailing
+      } else {
+        decompose(from, until, rest)
+      }
+  }
+
+  private def before(from:Option[Long], until:Option[Long]) = (from, until) match {
+    case (Some(f), Some(u)) => f < u
+    case _                  => true
+  }
+
+  private def lowest(bounds:Seq[Option[Long]]) = if (bounds.exists(_.isEmpty)) None else Some(bounds.flatten.min)
+  private def highest(bounds:Seq[Option[Long]]) = if (bounds.exists(_.isEmpty)) None else Some(bounds.flatten.max)
+
+  private def floorDiv(x:Long, y:Long) = {
+    val q = x / y
+    if ((x % y != 0) && ((x < 0) != (y < 0))) q - 1 else q
+  }
+
+  private def ceilDiv(x:Long, y:Long) = -floorDiv(-x, y)
+}
+
+/**
+ * Exception indicating that an aggregate request was badly formed.
+ */
+class InvalidAggregateRequestException(msg:String) extends RuntimeException(msg)
+
+/**
+ * A tile containing the count from a given start to end time.
+ */
+case class AggregateTile(start:DateTime, end:DateTime, count:Int)
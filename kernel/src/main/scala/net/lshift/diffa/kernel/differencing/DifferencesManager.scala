@@ -70,6 +70,19 @@ trait DifferencesManager {
    */
   def retrievePagedEvents(space:Long, pairKey:String, interval:Interval, offset:Int, length:Int, options:EventOptions) : Seq[DifferenceEvent]
 
+  /**
+   * Retrieves up to length unmatched events within the specified interval that follow the given cursor, ordered by
+   * detection time and then sequence id. The cursor for the next page is derived from the last event returned.
+   * @throws MissingObjectException if the requested domain does not exist
+   */
+  def retrieveEventsAfter(space:Long, pairKey:String, interval:Interval, after:Option[DifferenceCursor], length:Int, options:EventOptions) : Seq[DifferenceEvent]
+
+  /**
+   * Streams every outstanding (unmatched and unignored) event for the given pair to the given handler, as the
+   * underlying cursor yields them.
+   */
+  def streamUnmatchedEvents(space:Long, pairKey:String, handler:(ReportedDifferenceEvent) => Unit)
+
   /**
    * Count the number of events for the given pair within the given interval.
    * @throws MissingObjectException if the requested domain does not exist
@@ -18,9 +18,9 @@ package net.lshift.diffa.kernel.differencing
 
 import collection.mutable.{ListBuffer, HashMap}
 import net.lshift.diffa.kernel.participants._
-import net.lshift.diffa.kernel.config.AggregatingCategoryDescriptor
+import net.lshift.diffa.kernel.config.{UnorderedCollationOrdering, AggregatingCategoryDescriptor}
 import scala.collection.JavaConversions._
-import net.lshift.diffa.adapter.scanning.{ScanConstraint, ScanResultEntry}
+import net.lshift.diffa.adapter.scanning.{OutOfOrderException, Collation, ScanConstraint, ScanResultEntry}
 
 /**
  * Utility methods for differencing sequences of digests.
@@ -60,6 +60,89 @@ object DigestDifferencingUtils {
     result
   }
 
+  /**
+   * Differences two streams of entities that are both ordered by the given collation, by walking them in step. Unlike
+   * differenceEntities, neither side is indexed, so mismatches are produced lazily as the inputs are consumed and only
+   * the head of each stream needs to be held at any one time.
+   */
+  def differenceSortedEntities(categories:Map[String, AggregatingCategoryDescriptor],
+                               ds1:Iterator[ScanResultEntry],
+                               ds2:Iterator[ScanResultEntry],
+                               collation:Collation) : Iterator[VersionMismatch] = new Iterator[VersionMismatch] {
+    private val left = ds1.buffered
+    private val right = ds2.buffered
+    private var pending:Option[VersionMismatch] = None
+
+    def hasNext = {
+      advance()
+      pending.isDefined
+    }
+
+    def next() = {
+      advance()
+      val result = pending.getOrElse(throw new NoSuchElementException)
+      pending = None
+      result
+    }
+
+    private def advance() {
+      while (pending.isEmpty && (left.hasNext || right.hasNext)) {
+        pending =
+          if (left.hasNext && right.hasNext && left.head.getId == right.head.getId) {
+            // Matching ids are paired before consulting the collation, so that a pair can never be split by it
+            val ds1Digest = left.next()
+            val ds2Digest = right.next()
+            if (ds1Digest.getVersion == ds2Digest.getVersion) {
+              None
+            } else {
+              Some(VersionMismatch(ds1Digest.getId, AttributesUtil.toTypedMap(categories, ds1Digest.getAttributes.toMap), ds1Digest.getLastUpdated, ds1Digest.getVersion, ds2Digest.getVersion))
+            }
+          } else if (!right.hasNext || (left.hasNext && collation.sortsBefore(left.head.getId, right.head.getId))) {
+            Some(onlyInFirst(left.next()))
+          } else if (!left.hasNext || collation.sortsBefore(right.head.getId, left.head.getId)) {
+            Some(onlyInSecond(right.next()))
+          } else {
+            // The collation considers two different ids to be equivalent, so neither can be present on the other side
+            Some(onlyInFirst(left.next()))
+          }
+      }
+    }
+
+    private def onlyInFirst(ds1Digest:ScanResultEntry) =
+      VersionMismatch(ds1Digest.getId, AttributesUtil.toTypedMap(categories, ds1Digest.getAttributes.toMap), ds1Digest.getLastUpdated, ds1Digest.getVersion, null)
+    private def onlyInSecond(ds2Digest:ScanResultEntry) =
+      VersionMismatch(ds2Digest.getId, AttributesUtil.toTypedMap(categories, ds2Digest.getAttributes.toMap), ds2Digest.getLastUpdated, null, ds2Digest.getVersion)
+  }
+
+  /**
+   * Determines whether the given collation imposes a strict order at all. The unordered collation considers every id
+   * to sort before every other, so no sequence can be merged in step under it.
+   */
+  def isStrict(collation:Collation) = collation != UnorderedCollationOrdering
+
+  /**
+   * Determines whether the given entities are strictly ordered by the given collation, and can therefore be
+   * differenced with differenceSortedEntities.
+   */
+  def isOrderedBy(collation:Collation, entries:Seq[ScanResultEntry]) = isStrict(collation) &&
+    entries.iterator.zip(entries.iterator.drop(1)).forall { case (a, b) => collation.sortsBefore(a.getId, b.getId) }
+
+  /**
+   * Passes the given entities through unchanged, but fails with an OutOfOrderException as soon as one of them doesn't
+   * sort strictly after its predecessor. Used to guard the merge join against a participant that claims an order it
+   * doesn't deliver.
+   */
+  def checkOrderedBy(collation:Collation, entries:Iterator[ScanResultEntry]):Iterator[ScanResultEntry] = {
+    var previousId:Option[String] = None
+    entries.map(entry => {
+      previousId.foreach(prevId => {
+        if (!collation.sortsBefore(prevId, entry.getId)) throw new OutOfOrderException(entry.getId, prevId)
+      })
+      previousId = Some(entry.getId)
+      entry
+    })
+  }
+
   def differenceAggregates(ds1:Seq[ScanResultEntry],
                            ds2:Seq[ScanResultEntry],
                            bucketing:Seq[CategoryFunction],
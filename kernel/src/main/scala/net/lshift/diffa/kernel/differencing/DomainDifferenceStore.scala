@@ -58,6 +58,13 @@ trait DomainDifferenceStore {
    */
   def addReportableUnmatchedEvent(id:VersionID, lastUpdate:DateTime, upstreamVsn:String, downstreamVsn:String, seen:DateTime):(DifferenceEventStatus,DifferenceEvent)
 
+  /**
+   * Adds a batch of reportable unmatched events for a single pair, as per addReportableUnmatchedEvent. The batch is
+   * applied in as few round trips as the implementation can manage. Returns the status and detail of each event, in
+   * the order that they were provided.
+   */
+  def addReportableUnmatchedEvents(pair:PairRef, events:Seq[UnmatchedEventDetail], seen:DateTime):Seq[(DifferenceEventStatus,DifferenceEvent)]
+
   /**
    * Upgrades the given pending event to a reportable event. Returns the detail of the event (including a sequence id).
    * Any previous matched event for the same id will be removed. If no event is available to upgrade with the given
@@ -70,6 +77,12 @@ trait DomainDifferenceStore {
    */
   def cancelPendingUnmatchedEvent(id:VersionID, vsn:String):Boolean
 
+  /**
+   * Persists pending events that have been held in memory for longer than the store's write-behind age, or all of
+   * them if flushAll is set, so that they survive a restart.
+   */
+  def checkpointPendingEvents(flushAll:Boolean)
+
   /**
    * Adds a matched event to the cache. This will result in the removal of any earlier unmatched event for the same id.
    * The matched event will also be marked for expiry at some interval defined by the cache implementation, ensuring
@@ -118,6 +131,14 @@ trait DomainDifferenceStore {
    */
   def retrievePagedEvents(pair: PairRef, interval:Interval, offset:Int, length:Int, options:EventOptions = EventOptions()) : Seq[DifferenceEvent]
 
+  /**
+   * Retrieves up to length unmatched events that have a detection time within the specified interval and which
+   * are ordered after the given cursor, or from the start of the interval when no cursor is given. Events are ordered
+   * by detection time and then sequence id, so a page is found by seeking rather than by counting past the pages
+   * before it, and is unaffected by events being added to or removed from earlier pages.
+   */
+  def retrieveEventsAfter(pair: PairRef, interval:Interval, after:Option[DifferenceCursor], length:Int, options:EventOptions = EventOptions()) : Seq[DifferenceEvent]
+
   /**
    * Count the number of unmatched events for the given pair within the given interval.
    */
@@ -163,11 +184,50 @@ trait DomainDifferenceStore {
   def purgeOrphanedEvents : Int
 }
 
+/**
+ * The detail of an unmatched event that is to be recorded as part of a batch.
+ */
+case class UnmatchedEventDetail(
+  id:VersionID,
+  lastUpdate:DateTime,
+  upstreamVsn:String,
+  downstreamVsn:String
+)
+
 case class TileGroup(
   lowerBound:DateTime,
   tiles:Map[DateTime,Int]
 )
 
+/**
+ * The position of a difference in the (detection time, sequence id) order used to page through differences.
+ */
+case class DifferenceCursor(detectedAt:DateTime, seqId:Long) {
+  def encode = detectedAt.getMillis + "-" + seqId
+}
+
+object DifferenceCursor {
+
+  /**
+   * The cursor that pages on from the given event.
+   */
+  def after(evt:DifferenceEvent) = DifferenceCursor(evt.detectedAt, evt.sequenceId)
+
+  /**
+   * Parses a cursor produced by encode.
+   * @throws IllegalArgumentException if the value is not a valid cursor
+   */
+  def decode(value:String) = value.split("-") match {
+    case Array(millis, seqId) =>
+      try {
+        DifferenceCursor(new DateTime(millis.toLong), seqId.toLong)
+      } catch {
+        case e:NumberFormatException => throw new IllegalArgumentException("Invalid difference cursor: " + value)
+      }
+    case _ => throw new IllegalArgumentException("Invalid difference cursor: " + value)
+  }
+}
+
 case class EventOptions(
   includeIgnored:Boolean = false    // Whether ignored events should be included in the response
 )
@@ -31,26 +31,37 @@ import net.lshift.diffa.kernel.util.MissingObjectException
 import org.jooq.impl.Factory
 import org.slf4j.LoggerFactory
 import org.jooq._
+import collection.mutable.ListBuffer
 import java.lang.{Long => LONG}
 import java.sql.Timestamp
 import net.lshift.diffa.kernel.naming.CacheName
 import net.lshift.diffa.kernel.events.VersionID
 import net.lshift.diffa.kernel.lifecycle.PairLifecycleAware
-import net.lshift.diffa.snowflake.IdProvider
+import net.lshift.diffa.snowflake.{IdBlock, IdProvider}
 
 /**
  * Hibernate backed Domain Cache provider.
+ *
+ * @param writeBatchSize the number of events that a batched write will apply in a single transaction (and look up
+ *  in a single query).
+ * @param expiryBatchSize the number of matches that expiry deletes in each batch. Expiry pauses between batches, so
+ *  that a large backlog of matches doesn't hold locks on the diffs table for the duration of the whole sweep.
+ * @param pendingWriteBehindMillis how long a pending event is held in memory before it is written to the database.
+ *  Most pending events are cancelled by the matcher well within this period, and so are never written at all.
  */
 class JooqDomainDifferenceStore(db: DatabaseFacade,
                                 cacheProvider:CacheProvider,
-                                idProvider: IdProvider)
+                                idProvider: IdProvider,
+                                writeBatchSize:Int = 500,
+                                val expiryBatchSize:Int = 1000,
+                                pendingWriteBehindMillis:Long = 10000)
     extends DomainDifferenceStore with PairLifecycleAware {
 
   val logger = LoggerFactory.getLogger(getClass)
 
-  val aggregationCache = new DifferenceAggregationCache(this, cacheProvider)
+  val tileCounts = new DifferenceTileCounts(db)
 
-  val pendingEvents = cacheProvider.getCachedMap[VersionID, PendingDifferenceEvent]("pending.difference.events")
+  val pendingEvents = cacheProvider.getCachedMap[VersionID, PendingDifferenceEvent](CacheName.PENDING_DIFFS)
   val reportedEvents = cacheProvider.getCachedMap[VersionID, InternalReportedDifferenceEvent](CacheName.DIFFS)
   val extentsByPair = cacheProvider.getCachedMap[PairRef, java.lang.Long](CacheName.EXTENT_PAIRS)
 
@@ -66,7 +77,12 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
    * there were persistent pending diffs. The motivation is to reduce cache misses in subsequent calls.
    */
   val prefetchLimit = 1000 // TODO This should be a tuning parameter
+
+  val expiryPauseMillis = 50
+
+  val pendingBuffer = new PendingDifferenceBuffer(pendingWriteBehindMillis)
   prefetchPendingEvents(prefetchLimit)
+  rebuildTileCountsIfRequired()
 
   val PAIR_NAME_ALIAS = "pair_name"
   val ESCALATION_NAME_ALIAS = "escalation_name"
@@ -76,7 +92,6 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     pendingEvents.evictAll()
     reportedEvents.evictAll()
     extentsByPair.evictAll()
-    aggregationCache.clear()
   }
 
   def onPairUpdated(pair:PairRef) = extentsByPair.evict(pair)
@@ -93,7 +108,8 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     })
 
     preenExtentsCache(space)
-    preenPendingEventsCache("objId.pair.space", space.toString)
+    preenPendingEventsCache(Map("objId.pair.space" -> space))
+    pendingBuffer.synchronized { pendingBuffer.removeAll(_.pair.space == space) }
   }
 
   def removePair(pair: PairRef) = {
@@ -106,7 +122,8 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     }
 
     extentsByPair.evict(pair)
-    preenPendingEventsCache("objId.pair.name", pair.name)
+    preenPendingEventsCache(Map("objId.pair.space" -> pair.space, "objId.pair.name" -> pair.name))
+    pendingBuffer.synchronized { pendingBuffer.removeAll(_.pair == pair) }
   }
 
   def currentSequenceId(space:Long) = maxSequenceId(space, null, null, null).toString
@@ -116,7 +133,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
   private def maxSequenceId(space:Long, pair:String, start:DateTime, end:DateTime) = {
 
-    db.execute { t =>
+    db.read { t =>
 
       var query = t.select(max(DIFFS.SEQ_ID)).
                     from(DIFFS).
@@ -136,8 +153,13 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     }
   }
 
-  def addPendingUnmatchedEvent(id: VersionID, lastUpdate: DateTime, upstreamVsn: String, downstreamVsn: String, seen: DateTime) = {
-    db.execute(t => {
+  def addPendingUnmatchedEvent(id: VersionID, lastUpdate: DateTime, upstreamVsn: String, downstreamVsn: String, seen: DateTime) {
+    val buffered = pendingBuffer.synchronized {
+      pendingBuffer.get(id).map(pending =>
+        pendingBuffer.put(pending.copy(upstreamVsn = upstreamVsn, downstreamVsn = downstreamVsn, lastSeen = seen)))
+    }
+
+    if (buffered.isEmpty) db.execute(t => {
       val pending = getPendingEvent(t, id)
 
       if (pending.exists()) {
@@ -160,7 +182,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
         }
         else {
           val pendingUnmatched = PendingDifferenceEvent(null, id, lastUpdate, upstreamVsn, downstreamVsn, seen)
-          createPendingEvent(pendingUnmatched)
+          bufferPendingEvent(t, pendingUnmatched)
         }
 
       }
@@ -180,36 +202,76 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     })
 
 
-  def upgradePendingUnmatchedEvent(id: VersionID) = {
+  def addReportableUnmatchedEvents(pair:PairRef, events:Seq[UnmatchedEventDetail], seen:DateTime) = {
+    require(events.forall(_.id.pair == pair), "All events in a batch must belong to pair " + pair)
 
-    db.execute(t => {
-      val pending = getPendingEvent(t, id)
+    uniqueChunks(events, writeBatchSize).flatMap(chunk => {
+      try {
+        db.execute(t => addReportableMismatches(t, pair, chunk, seen))
+      } catch {
+        case e: Exception =>
+          // The cache may now be ahead of the database, so make sure that the affected entries are re-read
+          chunk.foreach(evt => reportedEvents.evict(evt.id))
+          throw e
+      }
+    })
+  }
 
-      if (pending.exists()) {
+  def upgradePendingUnmatchedEvent(id: VersionID) = {
 
-        // Remove the pending and report a mismatch
+    pendingBuffer.synchronized { pendingBuffer.remove(id) } match {
+      case Some(pending) =>
         try {
-
-            removePendingEvent(t, pending)
-            createReportedEvent(t, pending.convertToUnmatched, idProvider.getId)
-
+          db.execute(t => createReportedEvent(t, pending.convertToUnmatched, idProvider.getId))
         } catch {
           case e: Exception =>
+            // Hold on to the pending event so that the upgrade can be retried
+            pendingBuffer.synchronized {
+              if (pendingBuffer.get(id).isEmpty) pendingBuffer.put(pending)
+            }
             reportedEvents.evict(pending.objId)
             throw e
         }
-      }
-      else {
-        // No pending difference, nothing to do
-        null
-      }
 
-    })
+      case None => db.execute(t => {
+        val pending = getPendingEvent(t, id)
 
+        if (pending.exists()) {
+
+          // Remove the pending and report a mismatch
+          try {
+
+              removePendingEvent(t, pending)
+              createReportedEvent(t, pending.convertToUnmatched, idProvider.getId)
+
+          } catch {
+            case e: Exception =>
+              reportedEvents.evict(pending.objId)
+              throw e
+          }
+        }
+        else {
+          // No pending difference, nothing to do
+          null
+        }
+
+      })
+    }
   }
 
   def cancelPendingUnmatchedEvent(id: VersionID, vsn: String) = {
-    db.execute(t => {
+    val buffered = pendingBuffer.synchronized {
+      pendingBuffer.get(id).map(pending => {
+        if (pending.upstreamVsn == vsn || pending.downstreamVsn == vsn) {
+          pendingBuffer.remove(id)
+          true
+        } else {
+          false
+        }
+      })
+    }
+
+    buffered.getOrElse(db.execute(t => {
       val pending = getPendingEvent(t, id)
 
       if (pending.exists()) {
@@ -223,17 +285,21 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
       else {
         false
       }
-    })
+    }))
   }
 
   def addMatchedEvent(id: VersionID, vsn: String) = {
 
+    val wasBuffered = pendingBuffer.synchronized { pendingBuffer.remove(id) }.isDefined
+
     db.execute(t => {
       // Remove any pending events with the given id
-      val pending = getPendingEvent(t, id)
+      if (!wasBuffered) {
+        val pending = getPendingEvent(t, id)
 
-      if (pending.exists()) {
-        removePendingEvent(t, pending)
+        if (pending.exists()) {
+          removePendingEvent(t, pending)
+        }
       }
 
       // Find any existing events we've got for this ID
@@ -245,8 +311,6 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
             event.asDifferenceEvent
           case MatchState.UNMATCHED | MatchState.IGNORED =>
             // A difference has gone away. Remove the difference, and add in a match
-            val previousDetectionTime = event.detectedAt
-
             val newEvent = event.copy(
               detectedAt = new DateTime,
               isMatch = true,
@@ -254,7 +318,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
               downstreamVsn = vsn
             )
 
-            updateAndConvertEvent(t, newEvent, previousDetectionTime)
+            upgradePreviouslyReportedEvent(t, newEvent, event)
         }
       }
       else {
@@ -284,7 +348,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
         val newEvent = evt.copy(ignored = true)
 
-        updateAndConvertEvent(t, newEvent)
+        upgradePreviouslyReportedEvent(t, newEvent, evt)
 
       } else {
         evt.asDifferenceEvent
@@ -314,13 +378,13 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
       val newEvent = evt.copy(ignored = false)
 
-      updateAndConvertEvent(t, newEvent)
+      upgradePreviouslyReportedEvent(t, newEvent, evt)
     }
   }
 
   def lastRecordedVersion(pair:PairRef) = {
 
-    db.execute(t => {
+    db.read(t => {
       val record =  t.select(STORE_CHECKPOINTS.LATEST_VERSION).
                       from(STORE_CHECKPOINTS).
                       where(STORE_CHECKPOINTS.SPACE.equal(pair.space)).
@@ -351,7 +415,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
   def retrieveUnmatchedEvents(space:Long, interval: Interval) = {
 
-    db.execute { t =>
+    db.read { t =>
       t.select(DIFFS.getFields).
         select(PAIRS.SPACE, PAIRS.NAME.as(PAIR_NAME_ALIAS)).
         select(ESCALATIONS.NAME.as(ESCALATION_NAME_ALIAS)).
@@ -395,51 +459,71 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
                         and(PAIRS.NAME.equal(pairRef.name)).
                         and(DIFFS.IS_MATCH.equal(false)).
                         and(DIFFS.IGNORED.equal(false)).
-                      fetchLazy()
+                      fetchLazy(db.streamingFetchSize)
 
       db.processAsStream(cursor, (r:Record) => handler(recordToReportedDifferenceEvent(r).asExternalReportedDifferenceEvent ))
     }
   }
 
-  def retrievePagedEvents(pair: PairRef, interval: Interval, offset: Int, length: Int, options:EventOptions = EventOptions()) = {
+  def retrievePagedEvents(pair: PairRef, interval: Interval, offset: Int, length: Int, options:EventOptions = EventOptions()) : Seq[DifferenceEvent] = {
 
-    db.execute { t =>
-      val query = t.select(DIFFS.getFields).
-                    select(PAIRS.NAME.as(PAIR_NAME_ALIAS), PAIRS.SPACE).
-                    select(ESCALATIONS.NAME.as(ESCALATION_NAME_ALIAS)).
-                    from(DIFFS).
-                    join(PAIRS).
-                      on(PAIRS.EXTENT.equal(DIFFS.EXTENT)).
-                    leftOuterJoin(ESCALATION_RULES).
-                      on(ESCALATION_RULES.ID.eq(DIFFS.NEXT_ESCALATION)).
-                    leftOuterJoin(ESCALATIONS).
-                      on(ESCALATIONS.EXTENT.eq(ESCALATION_RULES.EXTENT)).
-                        and(ESCALATIONS.NAME.eq(ESCALATION_RULES.ESCALATION)).
-                    where(PAIRS.SPACE.equal(pair.space)).
-                      and(PAIRS.NAME.equal(pair.name)).
-                      and(DIFFS.DETECTED_AT.greaterOrEqual(dateTimeToTimestamp(interval.getStart))).
-                      and(DIFFS.DETECTED_AT.lessThan(dateTimeToTimestamp(interval.getEnd))).
-                      and(DIFFS.IS_MATCH.equal(false))
-
-      val results =
-        if (! options.includeIgnored)
-          query.and(DIFFS.IGNORED.equal(false)).limit(length).offset(offset).fetch()
-        else
-        // TODO why shouldn't the query be ordered this way when ignored events are excluded?
-          query.orderBy(DIFFS.SEQ_ID.asc()).limit(length).offset(offset).fetch()
-
-      results.
-        map(new RecordMapper[Record, DifferenceEvent] {
-          def map(r:Record) : DifferenceEvent = {
-            recordToReportedDifferenceEventAsDifferenceEvent(r)
-          }
-        })
+    db.read { t =>
+      pagedEventsQuery(t, pair, interval, options).
+        orderBy(DIFFS.DETECTED_AT.asc(), DIFFS.SEQ_ID.asc()).
+        limit(length).offset(offset).
+        fetch().
+        map(toDifferenceEvent)
     }
   }
 
+  def retrieveEventsAfter(pair: PairRef, interval: Interval, after:Option[DifferenceCursor], length: Int, options:EventOptions = EventOptions()) : Seq[DifferenceEvent] = {
+
+    db.read { t =>
+      var query = pagedEventsQuery(t, pair, interval, options)
+
+      after.foreach(c => {
+        val detectedAt = dateTimeToTimestamp(c.detectedAt)
+        query = query.and(DIFFS.DETECTED_AT.greaterThan(detectedAt).
+          or(DIFFS.DETECTED_AT.equal(detectedAt).and(DIFFS.SEQ_ID.greaterThan(c.seqId))))
+      })
+
+      query.
+        orderBy(DIFFS.DETECTED_AT.asc(), DIFFS.SEQ_ID.asc()).
+        limit(length).
+        fetch().
+        map(toDifferenceEvent)
+    }
+  }
+
+  private def pagedEventsQuery(t:Factory, pair: PairRef, interval: Interval, options:EventOptions) = {
+    val query = t.select(DIFFS.getFields).
+                  select(PAIRS.NAME.as(PAIR_NAME_ALIAS), PAIRS.SPACE).
+                  select(ESCALATIONS.NAME.as(ESCALATION_NAME_ALIAS)).
+                  from(DIFFS).
+                  join(PAIRS).
+                    on(PAIRS.EXTENT.equal(DIFFS.EXTENT)).
+                  leftOuterJoin(ESCALATION_RULES).
+                    on(ESCALATION_RULES.ID.eq(DIFFS.NEXT_ESCALATION)).
+                  leftOuterJoin(ESCALATIONS).
+                    on(ESCALATIONS.EXTENT.eq(ESCALATION_RULES.EXTENT)).
+                      and(ESCALATIONS.NAME.eq(ESCALATION_RULES.ESCALATION)).
+                  where(PAIRS.SPACE.equal(pair.space)).
+                    and(PAIRS.NAME.equal(pair.name)).
+                    and(DIFFS.DETECTED_AT.greaterOrEqual(dateTimeToTimestamp(interval.getStart))).
+                    and(DIFFS.DETECTED_AT.lessThan(dateTimeToTimestamp(interval.getEnd))).
+                    and(DIFFS.IS_MATCH.equal(false))
+
+    if (options.includeIgnored) query
+    else query.and(DIFFS.IGNORED.equal(false))
+  }
+
+  private val toDifferenceEvent = new RecordMapper[Record, DifferenceEvent] {
+    def map(r:Record) : DifferenceEvent = recordToReportedDifferenceEventAsDifferenceEvent(r)
+  }
+
   def countUnmatchedEvents(pair: PairRef, start:DateTime, end:DateTime):Int = {
 
-    db.execute { t =>
+    db.read { t =>
       var query = t.select(count(DIFFS.SEQ_ID)).
                     from(DIFFS).
                     join(PAIRS).
@@ -460,35 +544,111 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
   }
 
   def retrieveAggregates(pair:PairRef, start:DateTime, end:DateTime, aggregateMinutes:Option[Int]):Seq[AggregateTile] =
-    aggregationCache.retrieveAggregates(pair, start, end, aggregateMinutes)
+    db.read { t =>
+      tileCounts.retrieveAggregates(t, getExtent(t, pair), start, end, aggregateMinutes,
+        (s:DateTime, e:DateTime) => countUnmatchedEvents(pair, s, e))
+    }
 
-  def getEvent(space:Long, evtSeqId: String) = db.execute { t =>
+  def getEvent(space:Long, evtSeqId: String) = db.read { t =>
     getEventBySequenceId(t, evtSeqId.toLong).map(_.asDifferenceEvent).getOrElse {
       throw new InvalidSequenceNumberException(evtSeqId)
     }
   }
 
-  def expireMatches(cutoff:DateTime) = db.execute { t =>
-    val deleted =
-      t.delete(DIFFS).
-      where(DIFFS.LAST_SEEN.lessThan(dateTimeToTimestamp(cutoff))).
-      and(DIFFS.IS_MATCH.equal(true)).
-      execute()
+  def expireMatches(cutoff:DateTime) {
+    var expired = 0
+    var batch = expireMatchBatch(cutoff)
 
-    if (deleted > 0) {
+    while (batch == expiryBatchSize) {
+      expired += batch
+      Thread.sleep(expiryPauseMillis)
+      batch = expireMatchBatch(cutoff)
+    }
+    expired += batch
 
-      logger.info("Expired %s events".format(deleted))
-      reportedEvents.evictAll()
+    if (expired > 0) {
+      logger.info("Expired %s events".format(expired))
+    }
+  }
 
-      /*
-      val cachedEvents = reportedEvents.valueSubset("isMatch")
-      // TODO Index the cache and add a date predicate rather than doing this manually
-      cachedEvents.foreach(e => {
-        if (e.lastSeen.isBefore(cutoff)){
-          reportedEvents.evict(e.objId)
+  /**
+   * Deletes up to expiryBatchSize matches that haven't been seen since the cutoff in a single transaction, and then
+   * evicts just those events from the cache. Returns the number of events that were selected for expiry.
+   */
+  private def expireMatchBatch(cutoff:DateTime) = {
+    val lastSeenCutoff = dateTimeToTimestamp(cutoff)
+
+    val expired = db.execute { t =>
+      val candidates =
+        t.select(DIFFS.SEQ_ID, DIFFS.ENTITY_ID, PAIRS.SPACE, PAIRS.NAME).
+          from(DIFFS).
+          leftOuterJoin(PAIRS).
+            on(PAIRS.EXTENT.equal(DIFFS.EXTENT)).
+          where(DIFFS.LAST_SEEN.lessThan(lastSeenCutoff)).
+            and(DIFFS.IS_MATCH.equal(true)).
+          limit(expiryBatchSize).
+          fetch()
+
+      if (candidates.size > 0) {
+        // Re-apply the expiry predicate, since an event may have been re-opened since it was selected
+        t.delete(DIFFS).
+          where(DIFFS.SEQ_ID.in(candidates.getValues(DIFFS.SEQ_ID))).
+            and(DIFFS.LAST_SEEN.lessThan(lastSeenCutoff)).
+            and(DIFFS.IS_MATCH.equal(true)).
+          execute()
+      }
+
+      candidates
+    }
+
+    // Events belonging to a pair that has since been removed will already have been evicted
+    expired.filter(r => r.getValue(PAIRS.NAME) != null).foreach(r => {
+      reportedEvents.evict(VersionID(PairRef(r.getValue(PAIRS.NAME), r.getValue(PAIRS.SPACE)), r.getValue(DIFFS.ENTITY_ID)))
+    })
+
+    expired.size
+  }
+
+  /**
+   * Checkpoints are serialized, so that a flush at shutdown cannot write the same events as a periodic checkpoint.
+   */
+  private val checkpointLock = new Object
+
+  def checkpointPendingEvents(flushAll:Boolean) = checkpointLock.synchronized {
+    val due = pendingBuffer.synchronized {
+      if (flushAll) pendingBuffer.all else pendingBuffer.due()
+    }
+
+    // The buffer isn't locked whilst the events are written, so any of them may be updated, upgraded or cancelled in
+    // the meantime. Only the events that are unchanged are handed over to the database; the rows written for the
+    // others are stale, since the buffer still holds (or has already disposed of) the current state of the event.
+    val stale = due.grouped(writeBatchSize).flatMap(chunk => {
+      try {
+        db.execute(t => t.batch(chunk.map(insertPendingEvent(t, _)):_*).execute())
+
+        pendingBuffer.synchronized {
+          chunk.filterNot(pending => pendingBuffer.get(pending.objId) match {
+            case Some(buffered) if buffered eq pending =>
+              pendingBuffer.remove(pending.objId)
+              pendingEvents.put(pending.objId, pending)
+              true
+            case _ =>
+              false
+          })
         }
-      })
-      */
+      } catch {
+        case e: Exception =>
+          logger.warn("Failed to persist %s pending event(s); they will be retried at the next checkpoint".format(chunk.size), e)
+          Seq()
+      }
+    }).toList
+
+    if (stale.size > 0) {
+      db.execute(t => stale.foreach(pending => removeStalePendingEvent(t, pending)))
+    }
+
+    if (due.size > 0) {
+      logger.debug("Persisted %s pending event(s), %s remain buffered".format(due.size - stale.size, pendingBuffer.size))
     }
   }
 
@@ -562,6 +722,8 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
                         where(PAIRS.EXTENT.eq(DIFFS.EXTENT))
                     ).execute()
 
+      tileCounts.purgeOrphanedTiles(t)
+
       val escalations = t.delete(ESCALATION_RULES).
                           whereNotExists(
                           t.select(field("1")).
@@ -586,6 +748,8 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
   def clearAllDifferences = db.execute { t =>
     reset
+    pendingBuffer.synchronized { pendingBuffer.clear() }
+    tileCounts.clear(t)
     t.truncate(DIFFS).execute()
     t.truncate(PENDING_DIFFS).execute()
   }
@@ -642,33 +806,48 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     getEventInternal(t, id, pendingEvents, query, recordToPendingDifferenceEvent, PendingDifferenceEvent.nonExistent)
   }
 
-  private def createPendingEvent(pending:PendingDifferenceEvent) = db.execute { t =>
+  /**
+   * Holds a new pending event in memory until it is either resolved or persisted at a checkpoint. The pair's extent
+   * is looked up so that an event for a pair that doesn't exist is still rejected straight away.
+   */
+  private def bufferPendingEvent(t:Factory, pending:PendingDifferenceEvent) {
+    getExtent(t, pending.objId.pair)
 
-    val space = pending.objId.pair.space
-    val pair = pending.objId.pair.name
-    val nextSeqId: java.lang.Long = idProvider.getId()
+    pending.oid = idProvider.getId()
+    pendingBuffer.synchronized { pendingBuffer.put(pending) }
+  }
 
+  private def insertPendingEvent(t:Factory, pending:PendingDifferenceEvent) =
     t.insertInto(PENDING_DIFFS).
-        set(PENDING_DIFFS.SEQ_ID, nextSeqId).
-        set(PENDING_DIFFS.SPACE, space:LONG).
-        set(PENDING_DIFFS.PAIR, pair).
+        set(PENDING_DIFFS.SEQ_ID, pending.oid).
+        set(PENDING_DIFFS.SPACE, pending.objId.pair.space:LONG).
+        set(PENDING_DIFFS.PAIR, pending.objId.pair.name).
         set(PENDING_DIFFS.ENTITY_ID, pending.objId.id).
         set(PENDING_DIFFS.DETECTED_AT, dateTimeToTimestamp(pending.detectedAt)).
         set(PENDING_DIFFS.LAST_SEEN, dateTimeToTimestamp(pending.lastSeen)).
         set(PENDING_DIFFS.UPSTREAM_VSN, pending.upstreamVsn).
-        set(PENDING_DIFFS.DOWNSTREAM_VSN, pending.downstreamVsn).
-      execute()
-    
-    pending.oid = nextSeqId
-
-    pendingEvents.put(pending.objId,pending)
-  }
+        set(PENDING_DIFFS.DOWNSTREAM_VSN, pending.downstreamVsn)
 
   private def removePendingEvent(f: Factory, pending:PendingDifferenceEvent) = {
     f.delete(PENDING_DIFFS).where(PENDING_DIFFS.SEQ_ID.equal(pending.oid)).execute()
     pendingEvents.evict(pending.objId)
   }
 
+  /**
+   * Removes a row written for a pending event that changed whilst it was being checkpointed. The row may already
+   * have been picked up from the database and updated or removed by another operation, in which case it is left alone.
+   */
+  private def removeStalePendingEvent(t:Factory, pending:PendingDifferenceEvent) {
+    val removed = t.delete(PENDING_DIFFS).
+      where(PENDING_DIFFS.SEQ_ID.equal(pending.oid)).
+        and(PENDING_DIFFS.LAST_SEEN.equal(dateTimeToTimestamp(pending.lastSeen))).
+      execute()
+
+    if (removed > 0) {
+      pendingEvents.evict(pending.objId)
+    }
+  }
+
   private def updatePendingEvent(t: Factory, pending:PendingDifferenceEvent, upstreamVsn:String, downstreamVsn:String, seenAt:DateTime) = {
     pending.upstreamVsn = upstreamVsn
     pending.downstreamVsn = downstreamVsn
@@ -681,18 +860,16 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
       where(PENDING_DIFFS.SEQ_ID.equal(pending.oid)).
       execute()
 
-    val cachedEvents = pendingEvents.valueSubset("oid", pending.oid.toString)
+    val cachedEvents = pendingEvents.valueSubset(Map("oid" -> pending.oid))
     cachedEvents.foreach(e => pendingEvents.put(e.objId, pending))
 
   }
 
-  private def preenPendingEventsCache(attribute:String, value:String) = {
-    val cachedEvents = pendingEvents.valueSubset(attribute, value)
-    cachedEvents.foreach(e => pendingEvents.evict(e.objId))
-  }
+  private def preenPendingEventsCache(attributes:Map[String,Any]) = pendingEvents.attributeSubset(attributes).evictAll
 
   private def preenExtentsCache(space:Long) = extentsByPair.keySubset(ExtentBySpacePredicate(space)).evictAll
-  private def preenReportedEventsCache(pair:PairRef) = reportedEvents.keySubset(EventByPairPredicate(pair)).evictAll
+  private def preenReportedEventsCache(pair:PairRef) =
+    reportedEvents.attributeSubset(Map("objId.pair.space" -> pair.space, "objId.pair.name" -> pair.name)).evictAll
 
   private def prefetchPendingEvents(prefetchLimit: Int) = db.execute { t =>
     def prefillCache(r: PendingDiffsRecord) {
@@ -703,6 +880,16 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     db.processAsStream(t.selectFrom(PENDING_DIFFS).limit(prefetchLimit).fetchLazy(), prefillCache)
   }
 
+  /**
+   * Counts any outstanding differences into the materialized tiles if they have never been counted, which will be
+   * the case the first time that the store starts against a schema that predates the tiles.
+   */
+  private def rebuildTileCountsIfRequired() = db.execute { t =>
+    if (tileCounts.requiresRebuild(t)) {
+      tileCounts.rebuild(t)
+    }
+  }
+
 
   private def getEventBySequenceId(t:Factory, id: Long) : Option[InternalReportedDifferenceEvent] = {
     Option(
@@ -781,13 +968,14 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
           } else {
             reportableUnmatched.seqId = event.seqId
             reportableUnmatched.extent = event.extent
-            (UpdatedUnmatchedEvent, upgradePreviouslyReportedEvent(t, reportableUnmatched))
+            (UpdatedUnmatchedEvent, upgradePreviouslyReportedEvent(t, reportableUnmatched, event))
           }
 
         case MatchState.MATCHED =>
           // The difference has re-occurred. Remove the match, and add a difference.
           reportableUnmatched.seqId = event.seqId
-          (ReturnedUnmatchedEvent, upgradePreviouslyReportedEvent(t, reportableUnmatched))
+          reportableUnmatched.extent = event.extent
+          (ReturnedUnmatchedEvent, upgradePreviouslyReportedEvent(t, reportableUnmatched, event))
       }
     }
     else {
@@ -809,21 +997,214 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
   }
 
-  private def identicalEventVersions(first:InternalReportedDifferenceEvent, second:InternalReportedDifferenceEvent) =
-    first.upstreamVsn == second.upstreamVsn && first.downstreamVsn == second.downstreamVsn
+  /**
+   * Applies the same state transitions as addReportableMismatch to each of the given events, but looks up the existing
+   * events with a single query and applies the resulting writes as JDBC batches. The events must have distinct ids.
+   */
+  private def addReportableMismatches(t:Factory, pair:PairRef, events:Seq[UnmatchedEventDetail], seen:DateTime) = {
+    val existing = getEventsById(t, pair, events.map(_.id))
+
+    val inserts = new ListBuffer[InternalReportedDifferenceEvent]
+    val touches = new ListBuffer[InternalReportedDifferenceEvent]
+    val upgrades = new ListBuffer[(InternalReportedDifferenceEvent, InternalReportedDifferenceEvent)]
+    val ignores = new ListBuffer[(InternalReportedDifferenceEvent, LONG)]
+
+    val results = events.map(evt => {
+      val reportableUnmatched = InternalReportedDifferenceEvent(
+        objId = evt.id,
+        detectedAt = evt.lastUpdate,
+        isMatch = false,
+        upstreamVsn = evt.upstreamVsn,
+        downstreamVsn = evt.downstreamVsn,
+        lastSeen = seen
+      )
+      val event = existing(evt.id)
+
+      if (reportedEventExists(event)) {
+        event.state match {
+          case MatchState.IGNORED =>
+            if (identicalEventVersions(event, reportableUnmatched)) {
+              event.lastSeen = seen
+              touches += event
+              (UnchangedIgnoredEvent, event)
+            } else {
+              ignores += ((event, event.seqId))
+              (UpdatedIgnoredEvent, event)
+            }
+          case MatchState.UNMATCHED =>
+            if (identicalEventVersions(event, reportableUnmatched)) {
+              event.lastSeen = seen
+              touches += event
+              (UnchangedUnmatchedEvent, event)
+            } else {
+              reportableUnmatched.seqId = event.seqId
+              reportableUnmatched.extent = event.extent
+              upgrades += ((reportableUnmatched, event))
+              (UpdatedUnmatchedEvent, reportableUnmatched)
+            }
+          case MatchState.MATCHED =>
+            reportableUnmatched.seqId = event.seqId
+            reportableUnmatched.extent = event.extent
+            upgrades += ((reportableUnmatched, event))
+            (ReturnedUnmatchedEvent, reportableUnmatched)
+        }
+      } else {
+        inserts += reportableUnmatched
+        (NewUnmatchedEvent, reportableUnmatched)
+      }
+    })
 
-  private def updateAndConvertEvent(t:Factory, evt:InternalReportedDifferenceEvent, previousDetectionTime:DateTime) = {
-    val res = upgradePreviouslyReportedEvent(t, evt)
-    updateAggregateCache(evt.objId.pair, previousDetectionTime)
-    res
+    if (!touches.isEmpty) {
+      val touchBatch = t.batch(
+        t.update(DIFFS).
+            set(DIFFS.LAST_SEEN, param("last_seen", DIFFS.LAST_SEEN.getDataType)).
+          where(DIFFS.SEQ_ID.eq(keyParam("seq_id"))).
+            and(DIFFS.EXTENT.eq(keyParam("extent"))))
+
+      touches.foreach(e => touchBatch.bind(dateTimeToTimestamp(e.lastSeen), e.seqId, e.extent))
+      touchBatch.execute()
+      reportedEvents.putAll(touches.map(e => e.objId -> e).toMap)
+    }
+
+    if (!ignores.isEmpty) {
+      val ignoreBatch = t.batch(
+        t.update(DIFFS).
+            set(DIFFS.LAST_SEEN, param("last_seen", DIFFS.LAST_SEEN.getDataType)).
+            set(DIFFS.IGNORED, java.lang.Boolean.TRUE).
+            set(DIFFS.SEQ_ID, param("next_seq_id", DIFFS.SEQ_ID.getDataType)).
+          where(DIFFS.SEQ_ID.eq(keyParam("seq_id"))).
+            and(DIFFS.EXTENT.eq(keyParam("extent"))))
+
+      val seqIds = IdBlock.reserve(idProvider, ignores.size)
+      ignores.zipWithIndex.foreach { case ((e, previousSeqId), i) =>
+        e.seqId = seqIds(i)
+        ignoreBatch.bind(dateTimeToTimestamp(e.lastSeen), java.lang.Boolean.TRUE, e.seqId, previousSeqId, e.extent)
+      }
+      ensureRowsUpdated(ignoreBatch.execute(), ignores.map(_._1))
+      reportedEvents.putAll(ignores.map { case (e, _) => e.objId -> e }.toMap)
+    }
+
+    if (!upgrades.isEmpty) {
+      val upgradeBatch = t.batch(
+        t.update(DIFFS).
+            set(DIFFS.SEQ_ID, param("next_seq_id", DIFFS.SEQ_ID.getDataType)).
+            set(DIFFS.IS_MATCH, java.lang.Boolean.FALSE).
+            set(DIFFS.DETECTED_AT, param("detected_at", DIFFS.DETECTED_AT.getDataType)).
+            set(DIFFS.LAST_SEEN, param("last_seen", DIFFS.LAST_SEEN.getDataType)).
+            set(DIFFS.UPSTREAM_VSN, param("upstream_vsn", DIFFS.UPSTREAM_VSN.getDataType)).
+            set(DIFFS.DOWNSTREAM_VSN, param("downstream_vsn", DIFFS.DOWNSTREAM_VSN.getDataType)).
+            set(DIFFS.IGNORED, java.lang.Boolean.FALSE).
+          where(DIFFS.SEQ_ID.eq(keyParam("seq_id"))).
+            and(DIFFS.EXTENT.eq(keyParam("extent"))))
+
+      val seqIds = IdBlock.reserve(idProvider, upgrades.size)
+      upgrades.zipWithIndex.foreach { case ((e, _), i) =>
+        val previousSeqId = e.seqId
+        e.seqId = seqIds(i)
+        upgradeBatch.bind(e.seqId, java.lang.Boolean.FALSE, dateTimeToTimestamp(e.detectedAt),
+          dateTimeToTimestamp(e.lastSeen), e.upstreamVsn, e.downstreamVsn, java.lang.Boolean.FALSE, previousSeqId, e.extent)
+      }
+      ensureRowsUpdated(upgradeBatch.execute(), upgrades.map(_._1))
+      upgrades.groupBy(_._2.extent).foreach { case (extent, changes) =>
+        tileCounts.onChanges(t, extent, changes.map { case (e, previous) => (previous.countedAt, e.countedAt) })
+      }
+      reportedEvents.putAll(upgrades.map { case (e, _) => e.objId -> e }.toMap)
+    }
+
+    if (!inserts.isEmpty) {
+      val extent = getExtent(t, pair)
+      val insertBatch = t.batch(
+        t.insertInto(DIFFS).
+            set(DIFFS.SEQ_ID, param("seq_id", DIFFS.SEQ_ID.getDataType)).
+            set(DIFFS.EXTENT, param("extent", DIFFS.EXTENT.getDataType)).
+            set(DIFFS.ENTITY_ID, param("entity_id", DIFFS.ENTITY_ID.getDataType)).
+            set(DIFFS.IS_MATCH, java.lang.Boolean.FALSE).
+            set(DIFFS.DETECTED_AT, param("detected_at", DIFFS.DETECTED_AT.getDataType)).
+            set(DIFFS.LAST_SEEN, param("last_seen", DIFFS.LAST_SEEN.getDataType)).
+            set(DIFFS.UPSTREAM_VSN, param("upstream_vsn", DIFFS.UPSTREAM_VSN.getDataType)).
+            set(DIFFS.DOWNSTREAM_VSN, param("downstream_vsn", DIFFS.DOWNSTREAM_VSN.getDataType)).
+            set(DIFFS.IGNORED, java.lang.Boolean.FALSE))
+
+      val seqIds = IdBlock.reserve(idProvider, inserts.size)
+      inserts.zipWithIndex.foreach { case (e, i) =>
+        e.seqId = seqIds(i)
+        e.extent = extent
+        insertBatch.bind(e.seqId, e.extent, e.objId.id, java.lang.Boolean.FALSE, dateTimeToTimestamp(e.detectedAt),
+          dateTimeToTimestamp(e.lastSeen), e.upstreamVsn, e.downstreamVsn, java.lang.Boolean.FALSE)
+      }
+      insertBatch.execute()
+      tileCounts.onChanges(t, extent, inserts.map(e => (None, e.countedAt)))
+      reportedEvents.putAll(inserts.map(e => e.objId -> e).toMap)
+    }
+
+    results.map { case (status, event) => (status, event.asDifferenceEvent) }
+  }
+
+  /**
+   * A bind variable for the key columns of a batched statement. A condition against a parameter with a null value is
+   * rendered as "is null", so the parameter carries a placeholder value that is replaced by each set of bound values.
+   */
+  private def keyParam(name:String) = param(name, -1L:LONG)
+
+  /**
+   * Looks up the reported events for the given ids, preferring the cache and fetching any that are missing from it
+   * with a single query. Ids without an event map to the non-existent marker.
+   */
+  private def getEventsById(t:Factory, pair:PairRef, ids:Seq[VersionID]) : Map[VersionID, InternalReportedDifferenceEvent] = {
+    val cached = reportedEvents.getAll(ids.toSet)
+    val missing = ids.filterNot(cached.contains(_))
+
+    val fetched = if (missing.isEmpty) {
+      Map[VersionID, InternalReportedDifferenceEvent]()
+    } else {
+      t.select(DIFFS.getFields).
+          select(PAIRS.SPACE, PAIRS.NAME.as(PAIR_NAME_ALIAS)).
+          select(ESCALATIONS.NAME.as(ESCALATION_NAME_ALIAS)).
+          from(DIFFS).
+          join(PAIRS).
+            on(PAIRS.EXTENT.equal(DIFFS.EXTENT)).
+          leftOuterJoin(ESCALATION_RULES).
+            on(ESCALATION_RULES.ID.eq(DIFFS.NEXT_ESCALATION)).
+          leftOuterJoin(ESCALATIONS).
+            on(ESCALATIONS.EXTENT.eq(ESCALATION_RULES.EXTENT)).
+              and(ESCALATIONS.NAME.eq(ESCALATION_RULES.ESCALATION)).
+          where(PAIRS.SPACE.equal(pair.space).
+            and(PAIRS.NAME.equal(pair.name)).
+            and(DIFFS.ENTITY_ID.in(missing.map(_.id):_*))).
+          fetch().toList.
+        map(r => recordToReportedDifferenceEvent(r)).
+        map(e => e.objId -> e).toMap
+    }
+
+    ids.map(id => id -> cached.getOrElse(id, fetched.getOrElse(id, nonExistentReportedEvent))).toMap
   }
 
-  private def updateAndConvertEvent(t:Factory, evt:InternalReportedDifferenceEvent) = {
-    var res = upgradePreviouslyReportedEvent(t, evt)
-    updateAggregateCache(evt.objId.pair, res.detectedAt)
-    res
+  /**
+   * Splits the given events into chunks of at most the given size, starting a new chunk whenever an id repeats so that
+   * each chunk can be applied as a single batch.
+   */
+  private def uniqueChunks(events:Seq[UnmatchedEventDetail], size:Int) = {
+    val chunks = new ListBuffer[Seq[UnmatchedEventDetail]]
+    var current = new ListBuffer[UnmatchedEventDetail]
+    val ids = new scala.collection.mutable.HashSet[VersionID]
+
+    events.foreach(evt => {
+      if (current.size >= size || ids.contains(evt.id)) {
+        chunks += current.toList
+        current = new ListBuffer[UnmatchedEventDetail]
+        ids.clear()
+      }
+      current += evt
+      ids += evt.id
+    })
+    if (!current.isEmpty) chunks += current.toList
+
+    chunks.toList
   }
 
+  private def identicalEventVersions(first:InternalReportedDifferenceEvent, second:InternalReportedDifferenceEvent) =
+    first.upstreamVsn == second.upstreamVsn && first.downstreamVsn == second.downstreamVsn
+
 
   /**
    * Does not uprev the sequence id for this event
@@ -846,9 +1227,10 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
   }
 
   /**
-   * Uprevs the sequence id for this event
+   * Uprevs the sequence id for this event, which replaces the given previous state of the event
    */
-  private def upgradePreviouslyReportedEvent(t:Factory, reportableUnmatched:InternalReportedDifferenceEvent) = {
+  private def upgradePreviouslyReportedEvent(t:Factory, reportableUnmatched:InternalReportedDifferenceEvent,
+                                             previous:InternalReportedDifferenceEvent) = {
 
     val nextSeqId: java.lang.Long = idProvider.getId()
 
@@ -881,6 +1263,7 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
       throw new IllegalStateException(msg)
     }
 
+    tileCounts.onChange(t, previous.extent, previous.countedAt, reportableUnmatched.countedAt)
     updateSequenceValueAndCache(reportableUnmatched, nextSeqId)
   }
 
@@ -934,10 +1317,23 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
 
     evt.extent = extent
 
-    updateAggregateCache(evt.objId.pair, evt.detectedAt)
+    tileCounts.onChange(t, extent, None, evt.countedAt)
     updateSequenceValueAndCache(evt, nextSeqId)
   }
 
+  /**
+   * Fails the transaction if any of the updates in a batch against previously reported diffs didn't find its row,
+   * as a single update does. Drivers that don't report the count of each update in a batch are trusted.
+   */
+  private def ensureRowsUpdated(counts:Array[Int], updated:Seq[InternalReportedDifferenceEvent]) {
+    counts.zip(updated).find { case (rows, _) => rows == 0 }.foreach { case (_, e) =>
+      val alert = formatAlertCode(e.objId.pair.space, e.objId.pair.name, INCONSISTENT_DIFF_STORE)
+      val msg = " %s No rows updated for previously reported diff %s, next sequence id was %s".format(alert, e, e.seqId)
+      logger.error(msg)
+      throw new IllegalStateException(msg)
+    }
+  }
+
   private def getExtent(t:Factory, ref:PairRef) = {
     extentsByPair.readThrough(ref, () => {
       val extent =  t.select(nvl(max(PAIRS.EXTENT).asInstanceOf[Field[Any]],-1)).
@@ -956,9 +1352,6 @@ class JooqDomainDifferenceStore(db: DatabaseFacade,
     })
   }
 
-  private def updateAggregateCache(pair:PairRef, detectedAt:DateTime) =
-    aggregationCache.onStoreUpdate(pair, detectedAt)
-
   private def removeLatestRecordedVersion(t:Factory, pair: PairRef) = {
     t.delete(STORE_CHECKPOINTS).
       where(STORE_CHECKPOINTS.SPACE.equal(pair.space)).
@@ -1038,6 +1431,11 @@ case class InternalReportedDifferenceEvent(
 
   def this() = this(seqId = -1)
 
+  /**
+   * The detection time under which this event is counted as an outstanding difference, if it is one.
+   */
+  def countedAt = if (isMatch || ignored) None else Some(detectedAt)
+
   def state = if (isMatch) {
     MatchState.MATCHED
   } else {
@@ -1119,7 +1517,3 @@ case class ExtentBySpacePredicate(@BeanProperty var space: java.lang.Long) exten
   def constrain(key: PairRef) = key.space == space
 }
 
-case class EventByPairPredicate(@BeanProperty var pair: PairRef) extends KeyPredicate[VersionID] {
-  def this() = this(pair = null)
-  def constrain(key: VersionID) = key.pair == pair
-}
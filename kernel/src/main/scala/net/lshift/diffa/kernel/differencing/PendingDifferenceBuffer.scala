@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import java.util.concurrent.ConcurrentHashMap
+import net.lshift.diffa.kernel.events.VersionID
+import scala.collection.JavaConversions._
+
+/**
+ * Holds pending differences in memory until they have been outstanding for long enough to be worth persisting.
+ * Most pending differences are cancelled by the matcher within seconds of being reported, so buffering them saves
+ * inserting (and then deleting) a pending_diffs row for each one.
+ *
+ * Entries are persisted by the store at each checkpoint once they are older than maxAgeMillis, so at most a
+ * checkpoint interval's worth of pending differences can be lost if the agent stops abruptly. Since pending
+ * differences are re-derived by the next scan, this only delays their reporting.
+ *
+ * Callers should synchronize on the buffer whilst moving an entry between the buffer and the database.
+ */
+class PendingDifferenceBuffer(val maxAgeMillis:Long) {
+
+  private case class Entry(event:PendingDifferenceEvent, bufferedAt:Long)
+
+  private val entries = new ConcurrentHashMap[VersionID, Entry]
+
+  def get(id:VersionID) = Option(entries.get(id)).map(_.event)
+
+  /**
+   * Buffers the given event. An event that replaces one that is already buffered keeps the original's age, so that
+   * a frequently updated pending difference is still persisted.
+   */
+  def put(event:PendingDifferenceEvent, now:Long = System.currentTimeMillis()) {
+    val bufferedAt = Option(entries.get(event.objId)).map(_.bufferedAt).getOrElse(now)
+    entries.put(event.objId, Entry(event, bufferedAt))
+  }
+
+  def remove(id:VersionID) = Option(entries.remove(id)).map(_.event)
+
+  def removeAll(p:VersionID => Boolean) {
+    entries.keySet.filter(p).toList.foreach(entries.remove(_))
+  }
+
+  /**
+   * Retrieves the events that have been buffered for longer than the maximum age as of the given time.
+   */
+  def due(now:Long = System.currentTimeMillis()) = dueBefore(now - maxAgeMillis)
+
+  /**
+   * Retrieves every buffered event, regardless of its age.
+   */
+  def all = dueBefore(Long.MaxValue)
+
+  def clear() {
+    entries.clear()
+  }
+
+  def size = entries.size
+
+  private def dueBefore(cutoff:Long) =
+    entries.values.filter(_.bufferedAt < cutoff).map(_.event).toList
+}
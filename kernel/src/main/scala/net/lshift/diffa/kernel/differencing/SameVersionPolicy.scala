@@ -21,7 +21,7 @@ import net.lshift.diffa.kernel.events._
 import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
-import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
 import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstraint, ScanResultEntry}
 
 /**
@@ -32,20 +32,23 @@ import net.lshift.diffa.adapter.scanning.{Collation, ScanAggregation, ScanConstr
  * Compliance with this policy could also be achieved by the downstream simply recording the versions of received
  * upstream events.
  */
-class SameVersionPolicy(stores:VersionCorrelationStoreFactory, listener:DifferencingListener, diagnostics:DiagnosticsManager)
-    extends BaseScanningVersionPolicy(stores, listener, diagnostics) {
+class SameVersionPolicy(stores:VersionCorrelationStoreFactory, listener:DifferencingListener, diagnostics:DiagnosticsManager,
+                        limits:PairServiceLimitsView)
+    extends BaseScanningVersionPolicy(stores, listener, diagnostics, limits) {
 
   def downstreamStrategy(us:UpstreamParticipant, ds:DownstreamParticipant, collation: Collation) =
     new DownstreamSameScanStrategy(collation)
 
-  protected class DownstreamSameScanStrategy(collation: Collation) extends ScanStrategy {
+  protected class DownstreamSameScanStrategy(val collation: Collation) extends ScanStrategy {
     val name = "DownstreamSame"
 
-    def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = {
-
-      val aggregator = new Aggregator(bucketing, collation)
-      stores(pair).queryDownstreams(constraints, aggregator.collectDownstream)
-      aggregator.digests
+    def getAggregates(pair:PairRef, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint]) = stores(pair) match {
+      case digesting:DigestingVersionCorrelationStore =>
+        digesting.downstreamDigests(bucketing, constraints, collation, digestModeFor(pair))
+      case store =>
+        val aggregator = new Aggregator(bucketing, collation, digestModeFor(pair))
+        store.queryDownstreams(constraints, aggregator.collectDownstream)
+        aggregator.digests
     }
 
     def getEntities(pair:PairRef, constraints:Seq[ScanConstraint]) = {
@@ -58,12 +61,10 @@ class SameVersionPolicy(stores:VersionCorrelationStoreFactory, listener:Differen
       vm match {
         case VersionMismatch(id, categories, lastUpdated, partVsn, _) =>
 
-          val correlation = writer.synchronized{
-            if (partVsn != null) {
-              writer.storeDownstreamVersion(VersionID(pair, id), categories, lastUpdated, partVsn, partVsn, scanId)
-            } else {
-              writer.clearDownstreamVersion(VersionID(pair, id), scanId)
-            }
+          val correlation = if (partVsn != null) {
+            writer.storeDownstreamVersion(VersionID(pair, id), categories, lastUpdated, partVsn, partVsn, scanId)
+          } else {
+            writer.clearDownstreamVersion(VersionID(pair, id), scanId)
           }
 
           handleUpdatedCorrelation(correlation)
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import java.util.concurrent._
+import java.util.concurrent.atomic.{AtomicReference, AtomicInteger}
+import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.schema.servicelimits.ScanConcurrency
+
+/**
+ * Controls how the sibling buckets of an aggregate tree are visited during a scan. Each bucket that needs further
+ * investigation is submitted as a task; the scan is complete once every task (including those submitted by other
+ * tasks) has run.
+ */
+trait ScanDescent {
+
+  /**
+   * Submits the scan of a single bucket.
+   */
+  def submit(task: => Unit)
+
+  /**
+   * Blocks until all submitted buckets have been scanned. If any bucket failed (or the scan was cancelled), then the
+   * first failure is rethrown once the remaining workers have drained.
+   */
+  def awaitCompletion()
+}
+
+object ScanDescent {
+
+  private val pools = new ConcurrentHashMap[PairRef, PairScanPool]
+
+  /**
+   * Creates a descent that will scan up to the given number of buckets at a time. A concurrency of one (or less)
+   * preserves the original depth-first, single threaded behaviour. Concurrent descents of the same pair share its
+   * workers, and are held to the given number of buckets between them.
+   */
+  def apply(pair:PairRef, concurrency:Int, handle:FeedbackHandle):ScanDescent =
+    if (concurrency > 1) new ConcurrentScanDescent(pair, poolFor(pair).slots(concurrency), handle)
+    else new SequentialScanDescent
+
+  private def poolFor(pair:PairRef) = pools.get(pair) match {
+    case null =>
+      val pool = new PairScanPool(pair)
+      pools.putIfAbsent(pair, pool) match {
+        case null     => pool
+        case existing => existing
+      }
+    case pool => pool
+  }
+}
+
+/**
+ * Scans each bucket inline on the calling thread, recursing depth first.
+ */
+class SequentialScanDescent extends ScanDescent {
+  def submit(task: => Unit) { task }
+  def awaitCompletion() {}
+}
+
+/**
+ * Scans buckets on the workers of the pair. Buckets are queued in the order that they are discovered, so a level
+ * of the tree is walked concurrently whilst its children are queued behind it.
+ *
+ * Once a bucket fails, or the feedback handle is cancelled, buckets that have not yet started are discarded.
+ */
+class ConcurrentScanDescent(pair:PairRef, slots:ScanSlots, handle:FeedbackHandle) extends ScanDescent {
+
+  private val outstanding = new AtomicInteger(0)
+  private val failure = new AtomicReference[Throwable]
+  private val completionLock = new Object
+
+  def submit(task: => Unit) {
+    outstanding.incrementAndGet()
+
+    slots.execute(new Runnable {
+      def run() {
+        try {
+          if (failure.get == null) {
+            if (handle.isCancelled) {
+              throw new ScanCancelledException(pair)
+            }
+            task
+          }
+        } catch {
+          case t:Throwable => failure.compareAndSet(null, t)
+        } finally {
+          if (outstanding.decrementAndGet() == 0) {
+            completionLock.synchronized { completionLock.notifyAll() }
+          }
+        }
+      }
+    })
+  }
+
+  def awaitCompletion() {
+    completionLock.synchronized {
+      while (outstanding.get > 0) {
+        completionLock.wait()
+      }
+    }
+
+    failure.get match {
+      case null =>
+      case t    => throw t
+    }
+  }
+}
+
+/**
+ * The workers that scan the buckets of a single pair, shared by every descent of the pair (including the upstream and
+ * downstream halves of a scan). The pool is bounded by the hard limit on scan concurrency, and idle workers are
+ * retired, so a pair that isn't being scanned holds no threads.
+ */
+private[differencing] class PairScanPool(pair:PairRef) {
+
+  private val executor = new ThreadPoolExecutor(ScanConcurrency.hardLimit, ScanConcurrency.hardLimit,
+    60L, TimeUnit.SECONDS, new LinkedBlockingQueue[Runnable], new ScanThreadFactory)
+  executor.allowCoreThreadTimeOut(true)
+
+  private var current:ScanSlots = null
+
+  /**
+   * Provides the slots that limit the pair to the given number of buckets at a time. The slots are replaced when the
+   * pair's limit changes; descents that are already running keep the slots that they started with.
+   */
+  def slots(concurrency:Int) = synchronized {
+    if (current == null || current.concurrency != concurrency) {
+      current = new ScanSlots(executor, concurrency)
+    }
+    current
+  }
+
+  private class ScanThreadFactory extends ThreadFactory {
+    private val count = new AtomicInteger(0)
+
+    def newThread(r:Runnable) = {
+      val t = new Thread(r, "scan-%s-%s".format(pair.identifier, count.incrementAndGet()))
+      t.setDaemon(true)
+      t
+    }
+  }
+}
+
+/**
+ * Hands queued buckets to the executor whilst a permit is available, so that no more than the given number of
+ * buckets run at once. Workers never block waiting for a permit; a finishing bucket dispatches the next in its place.
+ */
+class ScanSlots(executor:Executor, val concurrency:Int) {
+
+  private val permits = new Semaphore(concurrency)
+  private val pending = new ConcurrentLinkedQueue[Runnable]
+
+  def execute(task:Runnable) {
+    pending.add(task)
+    dispatch()
+  }
+
+  private def dispatch() {
+    while (!pending.isEmpty && permits.tryAcquire()) {
+      pending.poll() match {
+        case null => permits.release()
+        case task => executor.execute(new Runnable {
+          def run() {
+            try {
+              task.run()
+            } finally {
+              permits.release()
+              dispatch()
+            }
+          }
+        })
+      }
+    }
+  }
+}
@@ -20,9 +20,10 @@ import java.io.Closeable
 import net.lshift.diffa.kernel.events.VersionID
 import org.joda.time.{LocalDate, DateTimeZone, DateTime}
 import org.slf4j.LoggerFactory
-import net.lshift.diffa.adapter.scanning.ScanConstraint
+import net.lshift.diffa.adapter.scanning.{DigestMode, Collation, ScanResultEntry, ScanAggregation, ScanConstraint}
 import net.lshift.diffa.kernel.config.PairRef
 import net.lshift.diffa.kernel.util.{CategoryChange, EndpointSide}
+import net.lshift.diffa.kernel.indexing.GroupCommitStats
 
 /**
  * Store used for caching version correlation information between a pair of participants.
@@ -114,7 +115,28 @@ object VersionCorrelationStore {
 }
 
 /**
- * Issues write commands to an underlying correlation store.
+ * Implemented by correlation stores that can provide the digests for an aggregate query directly, typically from
+ * digests that are maintained as versions are written, rather than requiring every version within the constraints
+ * to be visited and re-hashed.
+ */
+trait DigestingVersionCorrelationStore {
+
+  /**
+   * Retrieves the upstream digests within the given constraints, bucketed by the given aggregations and computed
+   * in the given digest mode.
+   */
+  def upstreamDigests(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation, mode:DigestMode):Seq[ScanResultEntry]
+
+  /**
+   * Retrieves the downstream digests (of the downstream versions) within the given constraints, bucketed by the
+   * given aggregations and computed in the given digest mode.
+   */
+  def downstreamDigests(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation, mode:DigestMode):Seq[ScanResultEntry]
+}
+
+/**
+ * Issues write commands to an underlying correlation store. Implementations must be safe for concurrent use, since the
+ * upstream and downstream halves of a scan write through the same writer at the same time.
  */
 trait LimitedVersionCorrelationWriter {
 
@@ -155,6 +177,12 @@ trait ExtendedVersionCorrelationWriter extends LimitedVersionCorrelationWriter w
    */
   def flush(): Unit
 
+  /**
+   * Applies the updates made by the given function as a single batch. Whether the pending changes should be
+   * committed is decided once the whole batch has been written, rather than after each of its updates.
+   */
+  def batch[T](f:LimitedVersionCorrelationWriter => T): T
+
   /**
    * Removes all correlations from the store.
    */
@@ -191,6 +219,12 @@ trait VersionCorrelationStoreFactory extends Closeable {
    * Does not remove any persistent resources.
    */
   def close(pair: PairRef)
+
+  /**
+   * Retrieves the statistics about the commits made by the writer of the correlation store for the given pair,
+   * if that store is currently open.
+   */
+  def commitStats(pair: PairRef): Option[GroupCommitStats]
 }
 
 abstract class TypedAttribute { def value:String }
@@ -22,6 +22,7 @@ import net.lshift.diffa.kernel.participants.{UpstreamParticipant, DownstreamPart
 import net.lshift.diffa.kernel.config.{PairRef, Endpoint, DiffaPairRef}
 import net.lshift.diffa.kernel.util.EndpointSide
 import net.lshift.diffa.adapter.scanning.{ScanAggregation, ScanRequest, ScanResultEntry, ScanConstraint}
+import net.lshift.diffa.kernel.scanning.ScanMetrics
 
 /**
  * Policy implementations of this trait provide different mechanism for handling the matching of upstream
@@ -40,6 +41,12 @@ trait VersionPolicy {
    */
   def onChange(writer: LimitedVersionCorrelationWriter, evt:PairChangeEvent) : Unit
 
+  /**
+   * Indicates to the policy that a batch of changes has occurred within a adapter. All of the changes are written
+   * before any of the resulting matches or mismatches are reported.
+   */
+  def onChanges(writer: LimitedVersionCorrelationWriter, evts:Seq[PairChangeEvent]) : Unit
+
   /**
    * Requests that the policy return details of how to start an inventory.
    */
@@ -85,6 +92,11 @@ trait FeedbackHandle {
    */
   def isCancelled : Boolean
 
+  /**
+   * The metrics recorded by the running task.
+   */
+  val metrics = new ScanMetrics
+
 }
 
 /**
@@ -44,46 +44,78 @@ class Changes(val domainConfig:DomainConfigStore,
   def onChange(space:Long, endpoint:String, evt:ChangeEvent) {
     log.debug("Received change event for %s %s: %s".format(space, endpoint, evt))
 
-    evt.ensureContainsMandatoryFields();
+    toPairEvents(space, endpoint, Seq(evt)).foreach { case (pair, pairEvts) =>
+      pairEvts.foreach(changeEventClient.propagateChangeEvent(_))
+    }
+  }
 
-    val targetEndpoint = domainConfig.getEndpoint(space, endpoint)
-    val evtAttributes:Map[String, String] = if (evt.getAttributes != null) evt.getAttributes.toMap else Map()
-    val typedAttributes = targetEndpoint.schematize(evtAttributes)
+  /**
+   * Indicates that a batch of changes has occurred within an adapter. The endpoint's configuration is looked up once
+   * for the whole batch, and the valid events are provided to the policy of each pair as a single batch.
+   */
+  def onChanges(space:Long, endpoint:String, evts:Seq[ChangeEvent]) {
+    log.debug("Received batch of %s change events for %s %s".format(evts.size, space, endpoint))
 
-    domainConfig.listPairsForEndpoint(space, endpoint).foreach(pair => {
-      val pairEvt = if (pair.upstreamName == endpoint) {
-        UpstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
-      } else {
-        if (pair.versionPolicyName == "same" || evt.getParentVersion == null) {
-          DownstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
-        } else {
-          DownstreamCorrelatedPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getParentVersion, evt.getVersion)
-        }
+    toPairEvents(space, endpoint, evts).foreach { case (pair, pairEvts) =>
+      if (pairEvts.size > 0) {
+        changeEventClient.propagateChangeEvents(pair, pairEvts)
       }
+    }
+  }
+
+  /**
+   * Converts the given events into events for each pair that the endpoint belongs to, dropping any events that don't
+   * meet the constraints of the endpoint, and notifying the matcher for the pair (if there is one) of each event.
+   */
+  private def toPairEvents(space:Long, endpoint:String, evts:Seq[ChangeEvent]) = {
+    evts.foreach(_.ensureContainsMandatoryFields())
 
-      // Validate that the entities provided meet the constraints of the endpoint
-      val endpointCategories = targetEndpoint.categories.toMap
+    val targetEndpoint = domainConfig.getEndpoint(space, endpoint)
+    val endpointCategories = targetEndpoint.categories.toMap
+    val endpointConstraints = targetEndpoint.initialConstraints(None)
+
+    val typedEvts = evts.map(evt => {
+      val evtAttributes:Map[String, String] = if (evt.getAttributes != null) evt.getAttributes.toMap else Map()
+      val typedAttributes = targetEndpoint.schematize(evtAttributes)
       val issues = AttributesUtil.detectAttributeIssues(
-        endpointCategories, targetEndpoint.initialConstraints(None), evtAttributes, typedAttributes)
+        endpointCategories, endpointConstraints, evtAttributes, typedAttributes)
 
-      if (issues.size > 0) {
-        log.warn("Dropping invalid pair event " + pairEvt + " due to issues " + issues)
-        diagnostics.logPairExplanation(None, pair.asRef, "Version Policy",
-          "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
-            pairEvt, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
-      } else {
-        // TODO: Write a test to enforce that the matching manager processes first. This is necessary to ensure
-        //    that the DifferencesManager doesn't emit spurious events.
-
-        // If there is a matcher available, notify it first
-        mm.getMatcher(pair.asRef) match {
-          case None =>
-          case Some(matcher) => matcher.onChange(pairEvt, () => {})
+      (evt, typedAttributes, issues)
+    })
+
+    domainConfig.listPairsForEndpoint(space, endpoint).map(pair => {
+      lazy val matcher = mm.getMatcher(pair.asRef)
+
+      val pairEvts = typedEvts.flatMap { case (evt, typedAttributes, issues) =>
+        val pairEvt = if (pair.upstreamName == endpoint) {
+          UpstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
+        } else {
+          if (pair.versionPolicyName == "same" || evt.getParentVersion == null) {
+            DownstreamPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getVersion)
+          } else {
+            DownstreamCorrelatedPairChangeEvent(VersionID(pair.asRef, evt.getId), typedAttributes, evt.getLastUpdated, evt.getParentVersion, evt.getVersion)
+          }
         }
 
-        // Propagate the change event to the corresponding policy
-        changeEventClient.propagateChangeEvent(pairEvt)
+        // Validate that the entities provided meet the constraints of the endpoint
+        if (issues.size > 0) {
+          log.warn("Dropping invalid pair event " + pairEvt + " due to issues " + issues)
+          diagnostics.logPairExplanation(None, pair.asRef, "Version Policy",
+            "The result %s was dropped since it didn't meet the request constraints. Identified issues were (%s)".format(
+              pairEvt, issues.map { case (k, v) => k + ": " + v }.mkString(", ")))
+          None
+        } else {
+          // TODO: Write a test to enforce that the matching manager processes first. This is necessary to ensure
+          //    that the DifferencesManager doesn't emit spurious events.
+
+          // If there is a matcher available, notify it first
+          matcher.foreach(_.onChange(pairEvt, () => {}))
+
+          Some(pairEvt)
+        }
       }
+
+      (pair.asRef, pairEvts)
     })
   }
 
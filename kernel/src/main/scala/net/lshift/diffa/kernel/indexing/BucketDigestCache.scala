@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import org.apache.lucene.document.Document
+import net.lshift.diffa.adapter.scanning._
+import scala.collection.JavaConversions._
+import scala.collection.mutable.{ListBuffer, HashMap}
+import org.slf4j.LoggerFactory
+
+/**
+ * Cache of the digests produced for each aggregate query made against a correlation store, keyed by the side being
+ * queried, the bucketing, the digest mode and the constraints that define the parent bucket.
+ *
+ * Entries are maintained as versions become visible to readers of the index. Commutative digests are updated in place,
+ * by removing an entity's previous contribution from its old bucket and adding its new one, so they never need to be
+ * recomputed. Ordered digests depend on every entity in the bucket, so only the entries whose constraints admit an
+ * entity's previous or new state are dropped, and the digests for unaffected buckets survive from one scan to the next.
+ */
+class BucketDigestCache(maxEntries:Int = BucketDigestCache.defaultMaxEntries) {
+
+  import BucketDigestCache._
+  import LuceneVersionCorrelationHandler._
+
+  private val log = LoggerFactory.getLogger(getClass)
+
+  private val entries = new java.util.LinkedHashMap[CacheKey, CachedDigests](16, 0.75f, true) {
+    override def removeEldestEntry(eldest:java.util.Map.Entry[CacheKey, CachedDigests]) = {
+      val evict = size > maxEntries
+      if (evict) unindex(eldest.getKey)
+      evict
+    }
+  }
+
+  /**
+   * The cached queries of each side, grouped by the constraints of their parent bucket. A change only needs to be
+   * tested against each distinct set of constraints once, however many bucketings and digest modes share it.
+   */
+  private val byConstraints = HashMap[StoreParticipantType, HashMap[Seq[ScanConstraint], HashMap[CacheKey, CachedDigests]]]()
+
+  /**
+   * Incremented on every update, so that digests computed across a change to the index are not cached.
+   */
+  private var generation = 0L
+
+  /**
+   * Retrieves the digests for the given query, using the provided function to compute them if they aren't cached.
+   */
+  def digests(partType:StoreParticipantType, bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint],
+              collation:Collation, mode:DigestMode)(compute: => Seq[ScanResultEntry]):Seq[ScanResultEntry] = {
+    val key = CacheKey(partType, bucketing, constraints, collation, mode)
+    val (cached, startGeneration) = synchronized { (Option(entries.get(key)).map(_.digests), generation) }
+
+    cached match {
+      case Some(digests) => digests
+      case None          =>
+        val digests = compute.toList
+        synchronized {
+          if (generation == startGeneration && !entries.containsKey(key)) {
+            val cachedDigests = new CachedDigests(key, digests)
+            entries.put(key, cachedDigests)
+            byConstraints.getOrElseUpdate(partType, HashMap()).getOrElseUpdate(constraints, HashMap()).put(key, cachedDigests)
+          }
+        }
+        digests
+    }
+  }
+
+  /**
+   * Applies the given changes to the cached digests, each one being the id of a document and its state before and
+   * after it was updated.
+   */
+  def update(changes:Iterable[(String, DocumentState, DocumentState)]) {
+    synchronized {
+      generation += 1
+
+      changes.foreach { case (id, before, after) =>
+        updateSide(Upstream, id, before.upstream, after.upstream)
+        updateSide(Downstream, id, before.downstream, after.downstream)
+      }
+    }
+  }
+
+  def clear() {
+    synchronized {
+      generation += 1
+      entries.clear()
+      byConstraints.clear()
+    }
+  }
+
+  def size = synchronized { entries.size }
+
+  private def updateSide(partType:StoreParticipantType, id:String, before:Option[SideState], after:Option[SideState]) {
+    if (before != after) {
+      val dropped = new ListBuffer[CacheKey]
+
+      byConstraints.get(partType).foreach(_.foreach { case (constraints, queries) =>
+        val wasAdmitted = before.map(s => admission(constraints, s.attributes)).getOrElse(Some(false))
+        val isAdmitted = after.map(s => admission(constraints, s.attributes)).getOrElse(Some(false))
+
+        if (wasAdmitted != Some(false) || isAdmitted != Some(false)) {
+          queries.foreach { case (key, cachedDigests) =>
+            // Should the constraints not be understood, it isn't known which buckets the entity moves between
+            val maintained = wasAdmitted.isDefined && isAdmitted.isDefined &&
+              cachedDigests.update(id, before.filter(_ => wasAdmitted.get), after.filter(_ => isAdmitted.get))
+            if (!maintained) dropped += key
+          }
+        }
+      })
+
+      if (log.isTraceEnabled && dropped.size > 0) {
+        log.trace("Invalidating %s cached %s digest(s)".format(dropped.size, partType))
+      }
+
+      dropped.foreach(key => {
+        entries.remove(key)
+        unindex(key)
+      })
+    }
+  }
+
+  private def unindex(key:CacheKey) {
+    byConstraints.get(key.partType).foreach(queries => {
+      queries.get(key.constraints).foreach(keys => {
+        keys.remove(key)
+        if (keys.isEmpty) queries.remove(key.constraints)
+      })
+    })
+  }
+}
+
+object BucketDigestCache {
+  import LuceneVersionCorrelationHandler._
+
+  val defaultMaxEntries = 10000
+
+  private case class CacheKey(partType:StoreParticipantType, bucketing:Seq[ScanAggregation],
+                              constraints:Seq[ScanConstraint], collation:Collation, mode:DigestMode)
+
+  /**
+   * The digests cached for one query. Commutative digests are held per bucket so that they can be maintained in place.
+   */
+  private class CachedDigests(key:CacheKey, computed:Seq[ScanResultEntry]) {
+    private val buckets = HashMap[Map[String, String], CommutativeDigest]()
+    if (key.mode == DigestMode.COMMUTATIVE) {
+      computed.foreach(d => buckets(d.getAttributes.toMap) = CommutativeDigest.fromHex(d.getVersion))
+    }
+
+    def digests:Seq[ScanResultEntry] =
+      if (key.mode == DigestMode.COMMUTATIVE) buckets.map { case (bucket, digest) => ScanResultEntry.forAggregate(digest.toHex, bucket) }.toList
+      else computed
+
+    /**
+     * Moves an entity between the buckets of this query, where a state of None is outside of the query. Returns false,
+     * leaving the digests untouched, if they can't be maintained in place and need to be recomputed instead.
+     */
+    def update(id:String, removed:Option[SideState], added:Option[SideState]) = {
+      val from = removed.map(contribution)
+      val to = added.map(contribution)
+
+      if (key.mode != DigestMode.COMMUTATIVE || from.exists(_.isEmpty) || to.exists(_.isEmpty) ||
+          from.flatten.exists { case (bucket, _) => !buckets.contains(bucket) }) {
+        false
+      } else {
+        from.flatten.foreach { case (bucket, vsn) =>
+          if (buckets(bucket).remove(id, vsn) == emptyDigest) buckets.remove(bucket)
+        }
+        to.flatten.foreach { case (bucket, vsn) =>
+          buckets.getOrElseUpdate(bucket, new CommutativeDigest).add(id, vsn)
+        }
+        true
+      }
+    }
+
+    /**
+     * The bucket that an entity in the given state falls into, and the version it contributes to that bucket's digest,
+     * partitioned in the same way as the DigestBuilder.
+     */
+    private def contribution(state:SideState):Option[(Map[String, String], String)] = {
+      val vsn = key.partType match {
+        case Upstream   => state.versions(0)
+        case Downstream => state.versions(1)
+      }
+
+      try {
+        if (vsn == null || key.bucketing.exists(a => !state.attributes.contains(a.getAttributeName))) {
+          None
+        } else {
+          Some((state.attributes ++ key.bucketing.map(a => a.getAttributeName -> a.bucket(state.attributes(a.getAttributeName))), vsn))
+        }
+      } catch {
+        case e:InvalidAttributeValueException => None
+        case e:IllegalArgumentException       => None
+      }
+    }
+  }
+
+  private val emptyDigest = new CommutativeDigest
+
+  /**
+   * The digest-relevant state of one side of a document: its versions and its stored (untyped) attributes.
+   */
+  case class SideState(versions:Seq[String], attributes:Map[String, String])
+
+  /**
+   * The digest-relevant state of a document. A side that isn't present is None.
+   */
+  case class DocumentState(upstream:Option[SideState], downstream:Option[SideState])
+
+  val absent = DocumentState(None, None)
+
+  def stateOf(doc:Document) = {
+    val upstream =
+      if (hasUpstream(doc)) Some(SideState(Seq(doc.get("uvsn")), findAttributes(doc, Upstream.prefix).toMap))
+      else None
+    val downstream =
+      if (hasDownstream(doc)) Some(SideState(Seq(doc.get("duvsn"), doc.get("ddvsn")), findAttributes(doc, Downstream.prefix).toMap))
+      else None
+
+    DocumentState(upstream, downstream)
+  }
+
+  /**
+   * Determines whether an entity with the given stored attributes would be returned by a query with the given
+   * constraints. This mirrors the queries built by the LuceneVersionCorrelationStore, and errs on the side of
+   * admitting the entity for any constraint it doesn't understand.
+   */
+  def admits(constraints:Seq[ScanConstraint], attributes:Map[String, String]) =
+    admission(constraints, attributes).getOrElse(true)
+
+  /**
+   * As admits, but answers None rather than guessing when a constraint isn't understood.
+   */
+  def admission(constraints:Seq[ScanConstraint], attributes:Map[String, String]):Option[Boolean] = {
+    val answers = constraints.view.map(c => {
+      attributes.get(c.getAttributeName) match {
+        case None        => Some(false)
+        case Some(value) => c match {
+          case t:TimeRangeConstraint    => Some(inRange(value, formatDateTime(t.getStart), formatDateTime(t.getEnd)))
+          case d:DateRangeConstraint    => Some(inRange(value, formatDate(d.getStart), formatDate(d.getEnd)))
+          case i:IntegerRangeConstraint =>
+            try {
+              val v = value.toInt
+              Some((i.getStart == null || v >= i.getStart.intValue) && (i.getEnd == null || v <= i.getEnd.intValue))
+            } catch {
+              case e:NumberFormatException => None
+            }
+          case s:StringPrefixConstraint => Some(value.startsWith(s.getPrefix))
+          case s:SetConstraint          => Some(s.getValues.contains(value))
+          case _                        => None
+        }
+      }
+    })
+
+    if (answers.exists(_ == Some(false))) Some(false)
+    else if (answers.exists(_.isEmpty)) None
+    else Some(true)
+  }
+
+  private def inRange(value:String, start:String, end:String) =
+    (start == null || value.compareTo(start) >= 0) && (end == null || value.compareTo(end) <= 0)
+}
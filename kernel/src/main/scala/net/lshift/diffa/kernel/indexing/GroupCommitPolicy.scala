@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.indexing
+
+import org.slf4j.LoggerFactory
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef}
+import net.lshift.diffa.schema.servicelimits._
+
+/**
+ * Decides when the updates buffered by a LuceneWriter should be committed, so that a steady stream of changes is
+ * written in batches rather than committing (and syncing the index to disk) for each change.
+ *
+ * A batch is committed once it reaches the size or estimated memory thresholds, or once its oldest update has been
+ * waiting for the batch interval. When commits are slow, the interval is stretched so that no more than a tenth of
+ * the writer's time is spent committing. Updates that arrive when the pair is otherwise quiet are committed by the
+ * PairActor's periodic flush.
+ */
+class GroupCommitPolicy(thresholds: () => GroupCommitThresholds) {
+
+  import GroupCommitPolicy._
+
+  private val log = LoggerFactory.getLogger(getClass)
+
+  @volatile private var current = thresholds()
+  @volatile private var averageCommitMillis = 0.0
+
+  private var commits = 0L
+  private var committedUpdates = 0L
+  private var totalCommitMillis = 0L
+  private var maxCommitMillis = 0L
+
+  /**
+   * Determines whether a batch with the given number of updates, estimated size and age should be committed now.
+   */
+  def isDue(batchSize:Int, batchBytes:Long, batchAgeMillis:Long) = {
+    val t = current
+    batchSize >= t.maxBatchSize ||
+      batchBytes >= t.maxBatchBytes ||
+      batchAgeMillis >= math.max(t.batchIntervalMillis, (averageCommitMillis * commitTimeRatio).toLong)
+  }
+
+  /**
+   * Records that a batch of the given size has been committed. The thresholds are re-read after each commit, so
+   * that changes to the limits take effect with the next batch.
+   */
+  def committed(batchSize:Int, commitMillis:Long) {
+    synchronized {
+      commits += 1
+      committedUpdates += batchSize
+      totalCommitMillis += commitMillis
+      maxCommitMillis = math.max(maxCommitMillis, commitMillis)
+      averageCommitMillis =
+        if (commits == 1) commitMillis
+        else averageCommitMillis + smoothing * (commitMillis - averageCommitMillis)
+    }
+
+    if (log.isDebugEnabled) {
+      log.debug("Committed %s correlation update(s) in %sms (average commit %.1fms)".format(
+        batchSize, commitMillis, averageCommitMillis))
+    }
+
+    current = thresholds()
+  }
+
+  def stats = synchronized {
+    GroupCommitStats(commits, committedUpdates, totalCommitMillis, maxCommitMillis)
+  }
+}
+
+object GroupCommitPolicy {
+
+  /**
+   * The maximum ratio between the batch interval and the average commit time.
+   */
+  val commitTimeRatio = 10
+
+  /**
+   * The weight given to each commit in the moving average of commit times.
+   */
+  val smoothing = 0.2
+
+  val defaultThresholds = GroupCommitThresholds(
+    maxBatchSize = CorrelationWriterBatchSize.defaultLimit.longValue,
+    batchIntervalMillis = CorrelationWriterBatchInterval.defaultLimit.longValue,
+    maxBatchBytes = CorrelationWriterBatchMemory.defaultLimit.longValue)
+
+  def withDefaults = new GroupCommitPolicy(() => defaultThresholds)
+
+  /**
+   * Creates a policy whose thresholds are the effective service limits for the given pair.
+   */
+  def forPair(pair:PairRef, limits:PairServiceLimitsView) = new GroupCommitPolicy(() => {
+    def limit(l:ServiceLimit) =
+      limits.getEffectiveLimitByNameForPair(pair.space, pair.name, l)
+
+    GroupCommitThresholds(
+      maxBatchSize = orUnlimited(limit(CorrelationWriterBatchSize)),
+      batchIntervalMillis = orUnlimited(limit(CorrelationWriterBatchInterval)),
+      maxBatchBytes = orUnlimited(limit(CorrelationWriterBatchMemory)))
+  })
+
+  // An unlimited threshold never forces a commit
+  private def orUnlimited(value:Int) = if (value < 0) Long.MaxValue else value.toLong
+}
+
+case class GroupCommitThresholds(maxBatchSize:Long, batchIntervalMillis:Long, maxBatchBytes:Long)
+
+/**
+ * Statistics about the commits made by a writer.
+ */
+case class GroupCommitStats(commits:Long, committedUpdates:Long, totalCommitMillis:Long, maxCommitMillis:Long) {
+  def averageBatchSize = if (commits == 0) 0.0 else committedUpdates.toDouble / commits
+  def averageCommitMillis = if (commits == 0) 0.0 else totalCommitMillis.toDouble / commits
+}
@@ -32,6 +32,12 @@ object IndexWriterFactory {
  */
 trait IndexReaderFactory {
   def createIndexReader(writer: IndexWriter): (Closeable, IndexReader)
+
+  /**
+   * Reopens the given reader if the writer has changed the index since it was opened, or returns None otherwise.
+   */
+  def reopenIndexReader(reader: IndexReader, writer: IndexWriter): Option[(Closeable, IndexReader)] =
+    Option(IndexReader.openIfChanged(reader, writer, true)).map(r => (r, r))
 }
 
 object IndexReaderFactory {
@@ -45,14 +45,16 @@ object LuceneVersionCorrelationHandler {
     val presenceIndicator = "hasDownstream"
   }
 
-  def withSearcher[T](writer:LuceneWriter, f:IndexSearcher => T) = {
-    val searcher = new IndexSearcher(writer.getReader)
-    val result = f(searcher)
-    searcher.close()
-    result
-  }
+  def withSearcher[T](writer:LuceneCorrelationWriter, f:IndexSearcher => T) = writer.withReader(reader => {
+    val searcher = new IndexSearcher(reader)
+    try {
+      f(searcher)
+    } finally {
+      searcher.close()
+    }
+  })
 
-  def retrieveCurrentDoc(writer:LuceneWriter, id:VersionID) : Option[Document] = withSearcher(writer, s => {
+  def retrieveCurrentDoc(writer:LuceneCorrelationWriter, id:VersionID) : Option[Document] = withSearcher(writer, s => {
     val hits = s.search(queryForId(id), 1)
     if (hits.scoreDocs.size == 0) {
       None
@@ -37,17 +37,24 @@ import net.lshift.diffa.kernel.util._
  * Implementation of the VersionCorrelationStore that utilises Lucene to store (and index) the version information
  * provided. Lucene is utilised as it provides for schema-free storage, which strongly suits the dynamic schema nature
  * of pair attributes.
+ *
+ * When given more than one index, the correlations are sharded across them (see ShardedLuceneWriter).
  */
 class LuceneVersionCorrelationStore(val pair: PairRef,
-                                    index:Directory,
+                                    indexes:Seq[Directory],
                                     configStore:SystemConfigStore,
                                     domainConfigStore: DomainConfigStore,
-                                    diagnostics:DiagnosticsManager)
+                                    diagnostics:DiagnosticsManager,
+                                    commitPolicy:GroupCommitPolicy = GroupCommitPolicy.withDefaults)
     extends VersionCorrelationStore
+    with DigestingVersionCorrelationStore
     with Closeable {
 
   import LuceneVersionCorrelationHandler._
 
+  def this(pair: PairRef, index:Directory, configStore:SystemConfigStore, domainConfigStore: DomainConfigStore,
+           diagnostics:DiagnosticsManager) = this(pair, Seq(index), configStore, domainConfigStore, diagnostics)
+
   private val log = LoggerFactory.getLogger(getClass)
 
   val version = VersionCorrelationStore.currentSchemaVersion.toString
@@ -67,7 +74,12 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
     }
   }
 
-  lazy val writer = new LuceneWriter(index, diagnostics)
+  lazy val writer:LuceneCorrelationWriter = indexes match {
+    case Seq(index) => new LuceneWriter(index, diagnostics, commitPolicy = commitPolicy)
+    case _          => ShardedLuceneWriter(indexes, diagnostics, commitPolicy)
+  }
+
+  def commitStats = commitPolicy.stats
 
   def openWriter() = writer // TODO: rename this - openWriter is a misnomer; probably should be getWriter
 
@@ -125,12 +137,29 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
     val query = new BooleanQuery
     applyConstraints(query, constraints, Downstream, false)
 
-    val idOnlyCollector = new DocIdOnlyCollector
-    val searcher = new IndexSearcher(writer.getReader)
-    searcher.search(preventEmptyQuery(query), idOnlyCollector)
-    idOnlyCollector.allSortedCorrelations(searcher, orderingFor(DownstreamEndpoint)).filter(c => c.downstreamUVsn != null)
+    withSearcher(writer, s => {
+      val idOnlyCollector = new DocIdOnlyCollector
+      s.search(preventEmptyQuery(query), idOnlyCollector)
+      idOnlyCollector.allSortedCorrelations(s, orderingFor(DownstreamEndpoint)).filter(c => c.downstreamUVsn != null)
+    })
   }
 
+  def upstreamDigests(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation, mode:DigestMode) =
+    writer.digestCache.digests(Upstream, bucketing, constraints, collation, mode) {
+      val builder = new DigestBuilder(bucketing, collation, mode)
+      queryUpstreams(constraints, (id:VersionID, attributes:Map[String, String], lastUpdate, vsn:String) =>
+        builder.add(id.id, attributes, vsn))
+      builder.toDigests
+    }
+
+  def downstreamDigests(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint], collation:Collation, mode:DigestMode) =
+    writer.digestCache.digests(Downstream, bucketing, constraints, collation, mode) {
+      val builder = new DigestBuilder(bucketing, collation, mode)
+      queryDownstreams(constraints, (id:VersionID, attributes:Map[String, String], lastUpdate, uvsn:String, dvsn:String) =>
+        builder.add(id.id, attributes, dvsn))
+      builder.toDigests
+    }
+
   def orderingFor(side: EndpointSide): Collation = {
     val p = domainConfigStore.getPairDef(pair)
     val endpointName = side match {
@@ -261,7 +290,7 @@ class LuceneVersionCorrelationStore(val pair: PairRef,
 
   def close = {
     openWriter.close
-    index.close
+    indexes.foreach(_.close)
   }
 
   def reset() = {
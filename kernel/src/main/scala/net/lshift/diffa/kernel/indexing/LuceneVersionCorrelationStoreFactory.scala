@@ -24,7 +24,8 @@ import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import org.apache.commons.io.FileUtils
 import org.apache.lucene.store.{SimpleFSDirectory, NIOFSDirectory}
 import org.slf4j.LoggerFactory
-import net.lshift.diffa.kernel.config.{PairRef, DomainConfigStore, DiffaPairRef}
+import net.lshift.diffa.kernel.config.{PairServiceLimitsView, PairRef, DomainConfigStore, DiffaPairRef}
+import net.lshift.diffa.schema.configs.CorrelationStoreShards
 
 /**
  * Factory that creates LuceneVersionCorrelationStore instances.
@@ -33,7 +34,8 @@ class LuceneVersionCorrelationStoreFactory(
   baseDir: String,
   configStore: SystemConfigStore,
   domainConfigStore: DomainConfigStore,
-  diagnostics:DiagnosticsManager
+  diagnostics:DiagnosticsManager,
+  limits:PairServiceLimitsView
 ) extends VersionCorrelationStoreFactory {
 
   import LuceneVersionCorrelationStoreFactory._
@@ -42,7 +44,8 @@ class LuceneVersionCorrelationStoreFactory(
   
   def apply(pair: PairRef) =
     stores.getOrElseUpdate(pair,
-      new LuceneVersionCorrelationStore(pair, luceneDirectory(pair), configStore, domainConfigStore, diagnostics))
+      new LuceneVersionCorrelationStore(pair, luceneDirectories(pair), configStore, domainConfigStore, diagnostics,
+        GroupCommitPolicy.forPair(pair, limits)))
 
   private def directory(pair: PairRef) = {
     val dir = new File(baseDir)
@@ -50,8 +53,41 @@ class LuceneVersionCorrelationStoreFactory(
     new File(baseDir, pair.identifier)
   }
 
-  private def luceneDirectory(pair: PairRef) =
-    directoryClass.getConstructor(classOf[File]).newInstance(directory(pair))
+  private def luceneDirectory(dir: File) =
+    directoryClass.getConstructor(classOf[File]).newInstance(dir)
+
+  /**
+   * Unsharded indexes live directly in the pair's directory, whereas each shard of a sharded index lives in a
+   * shard-N subdirectory. The configured number of shards only applies to pairs without an index yet, since
+   * changing the number of shards would change the shard that each entity hashes to.
+   */
+  private def luceneDirectories(pair: PairRef) = {
+    val pairDir = directory(pair)
+    val existingShards = Option(pairDir.listFiles()).map(_.count(f => f.isDirectory && f.getName.startsWith(shardPrefix))).getOrElse(0)
+    val hasUnshardedIndex = Option(pairDir.listFiles()).exists(_.exists(f => f.isFile))
+
+    val shards =
+      if (existingShards > 0) existingShards
+      else if (hasUnshardedIndex) 1
+      else configuredShards
+
+    if (shards == 1) {
+      Seq(luceneDirectory(pairDir))
+    } else {
+      (0 until shards).map(i => luceneDirectory(new File(pairDir, shardPrefix + i)))
+    }
+  }
+
+  private def configuredShards = {
+    val value = configStore.systemConfigOptionOrDefault(CorrelationStoreShards.key, CorrelationStoreShards.defaultValue)
+    try {
+      math.max(1, value.toInt)
+    } catch {
+      case e:NumberFormatException =>
+        log.warn("Ignoring invalid value %s for %s; not sharding correlation stores".format(value, CorrelationStoreShards.key))
+        1
+    }
+  }
 
 
 
@@ -70,6 +106,8 @@ class LuceneVersionCorrelationStoreFactory(
     }
   }
 
+  def commitStats(pair: PairRef) = stores.get(pair).map(_.commitStats)
+
   def close() {
     stores.keys.foreach(close(_))
   }
@@ -80,6 +118,8 @@ object LuceneVersionCorrelationStoreFactory {
 
   val log = LoggerFactory.getLogger(classOf[LuceneVersionCorrelationStoreFactory])
 
+  val shardPrefix = "shard-"
+
   lazy val directoryClass = {
     val os = System.getProperty("os.name")
     if (os != null && os.toLowerCase.indexOf("win") >= 0) {
@@ -25,22 +25,43 @@ import collection.mutable.HashMap
 import scala.collection.JavaConversions._
 import org.apache.lucene.index.{IndexReader, IndexWriter, Term}
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import java.io.Closeable
 
+/**
+ * A writer over a Lucene correlation index, whose readers see its updates once they are flushed.
+ */
+trait LuceneCorrelationWriter extends ExtendedVersionCorrelationWriter {
+  def withReader[T](f: IndexReader => T): T
+  def digestCache: BucketDigestCache
+}
 
+/**
+ * Writes correlations to a single Lucene index. All writes are serialized on the writer, so it may be shared
+ * between threads.
+ *
+ * @param storeVersions the counter used to version the documents written. Writers that share a counter produce
+ *  store versions that are ordered with respect to each other.
+ * @param commitPolicy decides when buffered updates are committed to the index.
+ */
 class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
                    indexWriterFactory: IndexWriterFactory = IndexWriterFactory.defaultFactory,
-                   indexReaderFactory: IndexReaderFactory = IndexReaderFactory.defaultFactory)
-  extends ExtendedVersionCorrelationWriter {
+                   indexReaderFactory: IndexReaderFactory = IndexReaderFactory.defaultFactory,
+                   val digestCache: BucketDigestCache = new BucketDigestCache,
+                   storeVersions: AtomicLong = new AtomicLong,
+                   commitPolicy: GroupCommitPolicy = GroupCommitPolicy.withDefaults)
+  extends LuceneCorrelationWriter {
 
   import LuceneVersionCorrelationHandler._
 
   private val log = LoggerFactory.getLogger(getClass)
 
-  private val maxBufferSize = 10000
-
   private val updatedDocs = HashMap[VersionID, Document]()
+  private val updatedDocSizes = HashMap[VersionID, Int]()
+  private var pendingBytes = 0L
+  private var oldestPendingUpdate = 0L
+  private var batchDepth = 0
+  private val originalStates = HashMap[VersionID, BucketDigestCache.DocumentState]()
   private var isClosed: Boolean = _ // This is effectively true whenever the writer/closeableWriter are closed or undefined.
   private var (closeableWriter: Closeable, writer: IndexWriter) = createIndexWriter(index)
 
@@ -66,13 +87,16 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     writer
   }
 
-  def rollback() = {
+  def rollback() = synchronized {
     writerLock.synchronized {
       getWriter.rollback()
       isClosed = true
     }
     // TODO: we don't really need to eagerly create a new writer, since it will be created as needed on next use.
     getWriter    // We need to create a new writer, since rollback will have closed the previous one
+    reader.close()
+    clearPendingUpdates()
+    digestCache.clear()
     log.info("Writer rolled back")
   }
 
@@ -82,31 +106,15 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
       isClosed = true
     }
 
-    val toClose = readers.remove(writer)
-    if (toClose != null) {
-      toClose.foreach(_.close())
-    }
-
+    reader.close()
   }
 
-  val readers = new ConcurrentHashMap[IndexWriter, List[Closeable]]()
+  private val reader = new SharedIndexReader(indexReaderFactory, () => getWriter)
 
-  // TODO: examine for race conditions.
-  def getReader: IndexReader = {
-    val (closeableReader, reader) = indexReaderFactory.createIndexReader(getWriter)
-    val readerList = readers.get(getWriter)
-    val list = closeableReader :: (if (readerList != null) {
-      readerList
-    } else {
-      List[Closeable]()
-    })
-    if (readers.putIfAbsent(getWriter, list) != null)
-      readers.replace(getWriter, list)
-    reader
-  }
+  def withReader[T](f: IndexReader => T) = reader.withReader(f)
 
   private val VERSION_LABEL = "latest.store.version"
-  private var latestVersion : Long = getReader.getCommitUserData match {
+  private val committedVersion : Long = withReader(_.getCommitUserData) match {
     case null     => 0L
     case userData => {
       userData.get(VERSION_LABEL) match {
@@ -116,7 +124,14 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     }
   }
 
-  def storeUpstreamVersion(id:VersionID, attributes:scala.collection.immutable.Map[String,TypedAttribute], lastUpdated: DateTime, vsn: String, scanId:Option[Long]) = {
+  // Make sure that the shared counter starts beyond anything already committed to this index
+  private def advanceStoreVersions() {
+    val current = storeVersions.get
+    if (current < committedVersion && !storeVersions.compareAndSet(current, committedVersion)) advanceStoreVersions()
+  }
+  advanceStoreVersions()
+
+  def storeUpstreamVersion(id:VersionID, attributes:scala.collection.immutable.Map[String,TypedAttribute], lastUpdated: DateTime, vsn: String, scanId:Option[Long]) = synchronized {
     log.trace("Indexing upstream " + id + " with attributes: " + attributes + " lastupdated at " + lastUpdated + " with version " + vsn)
 
     def extractKeyFields(doc:Document) = Map("uvsn" -> doc.get("uvsn")) ++ findAttributes(doc, "up.")
@@ -130,7 +145,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     })
   }
 
-  def storeDownstreamVersion(id: VersionID, attributes: scala.collection.immutable.Map[String, TypedAttribute], lastUpdated: DateTime, uvsn: String, dvsn: String, scanId:Option[Long]) = {
+  def storeDownstreamVersion(id: VersionID, attributes: scala.collection.immutable.Map[String, TypedAttribute], lastUpdated: DateTime, uvsn: String, dvsn: String, scanId:Option[Long]) = synchronized {
     log.trace("Indexing downstream " + id + " with attributes: " + attributes + " lastupdated at " + lastUpdated + " with up-version " + uvsn + "and down-version " + dvsn)
 
     def extractKeyFields(doc:Document) =
@@ -147,7 +162,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     })
   }
 
-  def clearUpstreamVersion(id:VersionID, scanId:Option[Long]) = {
+  def clearUpstreamVersion(id:VersionID, scanId:Option[Long]) = synchronized {
     doClearAttributes(id, scanId, "upstream", doc => {
       // Remove all the upstream attributes. Convert to list as middle-step to prevent ConcurrentModificationEx - see #177
       doc.getFields.toList.foreach(f => {
@@ -158,7 +173,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     })
   }
 
-  def clearDownstreamVersion(id:VersionID, scanId:Option[Long]) = {
+  def clearDownstreamVersion(id:VersionID, scanId:Option[Long]) = synchronized {
     doClearAttributes(id, scanId, "downstream", doc => {
       // Remove all the upstream attributes. Convert to list as middle-step to prevent ConcurrentModificationEx - see #177
       doc.getFields.toList.foreach(f => {
@@ -170,33 +185,86 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     })
   }
 
-  def isDirty = updatedDocs.size > 0
+  def isDirty = synchronized { updatedDocs.size > 0 }
 
-  def clearTombstones() {
+  def clearTombstones() = synchronized {
     prepareFlush()
     getWriter.deleteDocuments(createTombstoneQuery)
     flushInternal()
   }
 
-  def flush() {
+  def flush() = synchronized {
     if (prepareFlush()) {
       flushInternal()
     }
   }
 
-  def reset() {
+  def batch[T](f:LimitedVersionCorrelationWriter => T) = deferringCommits(f(this))
+
+  /**
+   * Evaluates the given updates without committing any of them, and then commits them if the batch is due.
+   */
+  private[indexing] def deferringCommits[T](f: => T) = synchronized {
+    batchDepth += 1
+    val result = try {
+      f
+    } finally {
+      batchDepth -= 1
+    }
+
+    if (batchDepth == 0) {
+      commitIfDue()
+    }
+    result
+  }
+
+  def reset() = synchronized {
     getWriter.deleteAll()
     getWriter.commit()
-    updatedDocs.clear()
+    reader.refresh()
+    clearPendingUpdates()
+    digestCache.clear()
   }
 
   private def prepareUpdate(id: VersionID, doc: Document) = {
+    if (updatedDocs.isEmpty) {
+      oldestPendingUpdate = System.currentTimeMillis()
+    }
     updatedDocs.put(id, doc)
-    if (updatedDocs.size >= maxBufferSize) {
+
+    val size = estimateSize(doc)
+    pendingBytes += size - updatedDocSizes.put(id, size).getOrElse(0)
+
+    if (batchDepth == 0) {
+      commitIfDue()
+    }
+  }
+
+  private def commitIfDue() {
+    if (!updatedDocs.isEmpty &&
+        commitPolicy.isDue(updatedDocs.size, pendingBytes, System.currentTimeMillis() - oldestPendingUpdate)) {
       flush()
     }
   }
 
+  private val documentOverhead = 64
+  private val fieldOverhead = 48
+
+  /**
+   * A rough estimate of the memory held by a buffered document, based on the lengths of its field names and values.
+   */
+  private def estimateSize(doc:Document) = doc.getFields.foldLeft(documentOverhead)((size, f) => {
+    val value = f.stringValue
+    size + fieldOverhead + 2 * (f.name.length + (if (value == null) 0 else value.length))
+  })
+
+  private def clearPendingUpdates() {
+    updatedDocs.clear()
+    updatedDocSizes.clear()
+    originalStates.clear()
+    pendingBytes = 0L
+  }
+
   private def getCurrentOrNewDoc(id:VersionID) = {
     if (updatedDocs.contains(id)) {
       updatedDocs(id)
@@ -235,6 +303,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
         changedFields.map { case (k, (ov, nv)) => k + ": " + ov + " -> " + nv }.mkString(", ")))
 
       // Increment the version counter and update the entry
+      rememberOriginalState(id, doc)
       updateStoreVersion(doc)
       f(doc)
 
@@ -262,9 +331,18 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
     docToCorrelation(doc, id)
   }
 
+  /**
+   * Records the state of a document before its first buffered update, so that the digest cache can be invalidated
+   * against both its old and new state once the update is flushed.
+   */
+  private def rememberOriginalState(id:VersionID, doc:Document) {
+    if (!originalStates.contains(id)) {
+      originalStates(id) = BucketDigestCache.stateOf(doc)
+    }
+  }
+
   private def updateStoreVersion(doc:Document) = {
-    latestVersion += 1
-    updateField(doc, longField("store.version", latestVersion))
+    updateField(doc, longField("store.version", storeVersions.incrementAndGet))
   }
 
   private def doClearAttributes(id:VersionID, scanId:Option[Long], sectionName:String, f:Document => Unit) = {
@@ -279,6 +357,7 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
       case Some(doc) => {
 
         // Increment the version counter and update the entry
+        rememberOriginalState(id, doc)
         updateStoreVersion(doc)
         f(doc)
 
@@ -362,8 +441,17 @@ class LuceneWriter(index: Directory, diagnostics:DiagnosticsManager,
   }
 
   private def flushInternal() {
-    getWriter.commit(Map(VERSION_LABEL -> latestVersion.toString))
-    updatedDocs.clear()
+    val start = System.currentTimeMillis()
+    getWriter.commit(Map(VERSION_LABEL -> storeVersions.get.toString))
+
+    // Only update cached digests once the changes are visible, so that they can't be recomputed from the old reader
+    reader.refresh()
+    digestCache.update(updatedDocs.map { case (id, doc) =>
+      (id.id, originalStates.getOrElse(id, BucketDigestCache.absent), BucketDigestCache.stateOf(doc))
+    })
+
+    commitPolicy.committed(updatedDocs.size, System.currentTimeMillis() - start)
+    clearPendingUpdates()
     log.trace("Writer flushed")
   }
 }
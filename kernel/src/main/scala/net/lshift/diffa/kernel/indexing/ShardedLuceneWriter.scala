@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.indexing
+
+import org.apache.lucene.store.Directory
+import org.apache.lucene.index.{MultiReader, IndexReader}
+import org.joda.time.DateTime
+import java.util.concurrent.atomic.AtomicLong
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.differencing.{LimitedVersionCorrelationWriter, TypedAttribute}
+import net.lshift.diffa.kernel.diag.DiagnosticsManager
+
+/**
+ * Spreads the correlations of a pair over several Lucene indexes, each with its own LuceneWriter, by hashing
+ * entity ids. Writes to different shards don't contend with each other, so concurrent scans and change events can
+ * be written in parallel. Readers span all of the shards.
+ *
+ * Each shard is committed independently, so a flush isn't atomic across shards.
+ */
+class ShardedLuceneWriter(shards:Seq[LuceneWriter], val digestCache:BucketDigestCache) extends LuceneCorrelationWriter {
+
+  def storeUpstreamVersion(id:VersionID, attributes:Map[String, TypedAttribute], lastUpdated:DateTime, vsn:String, scanId:Option[Long]) =
+    shardFor(id).storeUpstreamVersion(id, attributes, lastUpdated, vsn, scanId)
+
+  def storeDownstreamVersion(id:VersionID, attributes:Map[String, TypedAttribute], lastUpdated:DateTime, uvsn:String, dvsn:String, scanId:Option[Long]) =
+    shardFor(id).storeDownstreamVersion(id, attributes, lastUpdated, uvsn, dvsn, scanId)
+
+  def clearUpstreamVersion(id:VersionID, scanId:Option[Long]) = shardFor(id).clearUpstreamVersion(id, scanId)
+  def clearDownstreamVersion(id:VersionID, scanId:Option[Long]) = shardFor(id).clearDownstreamVersion(id, scanId)
+
+  def isDirty = shards.exists(_.isDirty)
+
+  def flush() { shards.foreach(_.flush()) }
+
+  /**
+   * Applies the batch with commits deferred on every shard, so that each shard decides whether to commit once the
+   * whole batch has been written.
+   */
+  def batch[T](f:LimitedVersionCorrelationWriter => T) = deferringCommits(shards.toList, f(this))
+
+  private def deferringCommits[T](remaining:List[LuceneWriter], f: => T):T = remaining match {
+    case shard :: rest => shard.deferringCommits(deferringCommits(rest, f))
+    case Nil           => f
+  }
+  def reset() { shards.foreach(_.reset()) }
+  def rollback() { shards.foreach(_.rollback()) }
+  def clearTombstones() { shards.foreach(_.clearTombstones()) }
+  def close() { shards.foreach(_.close()) }
+
+  /**
+   * Runs the given function against a reader over all of the shards, holding a reference to each shard's reader
+   * for the duration of the call.
+   */
+  def withReader[T](f:IndexReader => T):T = withShardReaders(shards.toList, Nil, f)
+
+  private def withShardReaders[T](remaining:List[LuceneWriter], acquired:List[IndexReader], f:IndexReader => T):T =
+    remaining match {
+      case shard :: rest => shard.withReader(r => withShardReaders(rest, r :: acquired, f))
+      case Nil           => f(new MultiReader(acquired.reverse.toArray, false))
+    }
+
+  private def shardFor(id:VersionID) = shards(ShardedLuceneWriter.shardIndex(id.id, shards.size))
+}
+
+object ShardedLuceneWriter {
+
+  /**
+   * Creates a writer with a shard for each of the given indexes. The shards share a digest cache and a store
+   * version counter, so that digests and store versions remain consistent across the pair. They also share a
+   * commit policy, although each shard's batch is committed independently.
+   */
+  def apply(indexes:Seq[Directory], diagnostics:DiagnosticsManager,
+            commitPolicy:GroupCommitPolicy = GroupCommitPolicy.withDefaults) = {
+    val digestCache = new BucketDigestCache
+    val storeVersions = new AtomicLong
+    val shards = indexes.map(index => new LuceneWriter(index, diagnostics,
+      digestCache = digestCache, storeVersions = storeVersions, commitPolicy = commitPolicy))
+
+    new ShardedLuceneWriter(shards, digestCache)
+  }
+
+  def shardIndex(id:String, shardCount:Int) = {
+    val h = id.hashCode % shardCount
+    if (h < 0) h + shardCount else h
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.indexing
+
+import org.apache.lucene.index.{IndexWriter, IndexReader}
+import java.io.Closeable
+
+/**
+ * A near-real-time reader over an index that is shared between all of the queries against it, rather than a reader
+ * being opened for each query. The reader is only reopened when the writer has changed the index, and is reference
+ * counted so that queries running against a previous reader can complete after it has been replaced.
+ */
+class SharedIndexReader(indexReaderFactory:IndexReaderFactory, writer: () => IndexWriter) {
+
+  /**
+   * A reader, along with the number of references to it. The shared reader holds a reference to its current reader,
+   * which it gives up when the reader is replaced.
+   */
+  private class Lease(val closeable:Closeable, val reader:IndexReader) {
+    var references = 1
+  }
+
+  private var current:Option[Lease] = None
+
+  /**
+   * Runs the given function against the current reader, holding a reference to it for the duration of the call.
+   */
+  def withReader[T](f:IndexReader => T):T = {
+    val lease = acquire()
+    try {
+      f(lease.reader)
+    } finally {
+      release(lease)
+    }
+  }
+
+  private def acquire() = synchronized {
+    val lease = current.getOrElse {
+      val (closeable, reader) = indexReaderFactory.createIndexReader(writer())
+      val opened = new Lease(closeable, reader)
+      current = Some(opened)
+      opened
+    }
+    lease.references += 1
+    lease
+  }
+
+  private def release(lease:Lease) {
+    synchronized {
+      lease.references -= 1
+      if (lease.references == 0) {
+        lease.closeable.close()
+      }
+    }
+  }
+
+  /**
+   * Reopens the reader if the writer has made changes since it was opened. This should be called once changes have
+   * been applied to the writer, so that they become visible to subsequent queries.
+   */
+  def refresh() {
+    synchronized {
+      current.foreach(lease => {
+        indexReaderFactory.reopenIndexReader(lease.reader, writer()).foreach { case (closeable, reader) =>
+          current = Some(new Lease(closeable, reader))
+          release(lease)
+        }
+      })
+    }
+  }
+
+  /**
+   * Gives up the current reader, so that the next query opens a new one. This is needed when the writer that the
+   * reader was opened from has been replaced.
+   */
+  def close() {
+    synchronized {
+      current.foreach(release(_))
+      current = None
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.limiting
+
+import net.lshift.diffa.kernel.config.DomainServiceLimitsView
+import net.lshift.diffa.schema.servicelimits.{Unlimited, ChangeEventBatchSize, ChangeEventRate}
+
+/**
+ * Applies a space's change event limits to submissions of change events. Every event in a batch is charged against
+ * the space's change event rate, and batches larger than the space's batch size limit are refused, so that changes
+ * arriving over REST and over AMQP are held to the same limits.
+ */
+class ChangeEventLimiter(rateLimiterFactory: DomainRateLimiterFactory, limits: DomainServiceLimitsView) {
+
+  def maxBatchSize(space: Long) = limits.getEffectiveLimitByNameForDomain(space, ChangeEventBatchSize)
+
+  def exceedsMaxBatchSize(space: Long, count: Int) = {
+    val maxBatchSize = this.maxBatchSize(space)
+    maxBatchSize != Unlimited.value && count > maxBatchSize
+  }
+
+  /**
+   * Charges the given number of change events against the space's rate limit, returning false (and charging nothing)
+   * if the space may not accept them yet.
+   */
+  def tryAcquire(space: Long, count: Int) = {
+    val limiter = ServiceLimiterRegistry.get(
+      ServiceLimiterKey(ChangeEventRate, Some(space), None),
+      () => rateLimiterFactory.createRateLimiter(space))
+
+    limiter.accept(count)
+  }
+}
@@ -48,17 +48,24 @@ class RateLimiter(eventsPerSecondFn: () => Int, clock: Clock = SystemClock) exte
   }
 
   private val tokenBucket = TokenBucket(params, clock)
-  private val acceptFn: () => Boolean = if (eventsPerSecondFn() == Unlimited.value) {
-    () => true
+  private val acceptFn: Int => Boolean = if (eventsPerSecondFn() == Unlimited.value) {
+    permits => true
   } else {
-    () => tokenBucket.tryConsume
+    permits => tokenBucket.tryConsume(permits)
   }
 
-  def accept() = acceptFn()
+  def accept() = acceptFn(1)
+
+  def accept(permits: Int) = acceptFn(permits)
 }
 
 trait Limiter {
   def accept(): Boolean
+
+  /**
+   * Accepts a single submission that counts as the given number of actions, such as a batch of change events.
+   */
+  def accept(permits: Int): Boolean
 }
 
 trait TypedLimiter[ActionType] {
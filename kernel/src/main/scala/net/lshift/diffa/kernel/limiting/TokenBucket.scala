@@ -22,6 +22,7 @@ object TokenBucket {
 
 trait TokenBucket {
   def tryConsume: Boolean
+  def tryConsume(count: Long): Boolean
   def refill()
 }
 
@@ -29,12 +30,19 @@ class FixedIntervalTokenBucket(params: TokenBucketParameters, clock: Clock) {
   private var lastDrip = clock.currentTimeMillis
   private var volume: Long = params.initialVolume
 
-  def tryConsume: Boolean = {
+  def tryConsume: Boolean = tryConsume(1L)
+
+  /**
+   * Takes the given number of tokens from the bucket, or none at all if there are not enough of them. A request for
+   * more tokens than the bucket can hold is granted once the bucket is full, and leaves the bucket in debt until
+   * enough refills have paid it back, so that such a request can neither starve nor exceed the refill rate.
+   */
+  def tryConsume(count: Long): Boolean = {
     synchronized {
       refill()
 
-      if (volume > 0) {
-        volume -= 1
+      if (volume > 0 && volume >= math.min(count, params.capacity)) {
+        volume -= count
         true
       } else {
         false
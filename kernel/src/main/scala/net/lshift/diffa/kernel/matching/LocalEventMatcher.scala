@@ -17,20 +17,28 @@
 package net.lshift.diffa.kernel.matching
 
 import net.lshift.diffa.kernel.events._
-import collection.mutable.{HashMap, LinkedHashMap, ListBuffer}
+import collection.mutable.ListBuffer
 import org.joda.time.DateTime
 import org.slf4j.{Logger, LoggerFactory}
 import net.lshift.diffa.kernel.frontend.DomainPairDef
+import java.util.concurrent.ConcurrentHashMap
+import java.util.Collections
 
 /**
  * Local, in memory, event matcher.
+ *
+ * Pending transactions are held in a concurrent table, and all the transactions for a given entity are guarded by one
+ * of a fixed set of lock stripes, so that events for different entities can be matched in parallel. Expiry is handled
+ * by scheduling each unmatched transaction with the reaper; a transaction that is matched or superseded in the
+ * meantime is removed from the reaper again.
  */
 class LocalEventMatcher(val pair:DomainPairDef, reaper:LocalEventMatcherReaper) extends EventMatcher {
   private val log:Logger = LoggerFactory.getLogger(getClass)
 
   val listeners = new ListBuffer[MatchingStatusListener]
-  private val entries = new LinkedHashMap[TxnIdVsn, TxnDetail]
-  private val inProgress = new HashMap[VersionID, Int]
+  private val entries = new ConcurrentHashMap[TxnIdVsn, TxnDetail]
+  private val inProgress = new ConcurrentHashMap[VersionID, Int]
+  private val stripes = Array.fill(LocalEventMatcher.stripeCount)(new Object)
 
   reaper.attachMatcher(this)
 
@@ -48,45 +56,55 @@ class LocalEventMatcher(val pair:DomainPairDef, reaper:LocalEventMatcherReaper)
       case DownstreamCorrelatedPairChangeEvent(id, _, _, uvsn, _) => TxnDetail(TxnIdVsn(id, uvsn, DownstreamSource), eventAckCallback, expiry)
     }
 
-    // See if we have an event to match by trying to find the inverse of this event
-    val possibleMatch = entries.synchronized { entries.remove(txnDetail.idVsn.inverse) }
+    // See if we have an event to match by trying to find the inverse of this event. If there isn't one, then this is
+    // a new event, so index it whilst still holding the stripe so that a concurrent inverse can't be missed.
+    val (possibleMatch, superseded) = stripeFor(txnDetail.idVsn.id).synchronized {
+      Option(entries.remove(txnDetail.idVsn.inverse)) match {
+        case None =>
+          (None, enterTxn(txnDetail))
+        case matched =>
+          // The entry that was previously stored is now no longer active
+          versionLeft(txnDetail.idVsn.id)
+          (matched, None)
+      }
+    }
+
+    // A repeated event takes over from the one that was pending, so the sender of that one can be acked now
+    superseded.foreach(previous => {
+      reaper.cancelExpiry(this, previous)
+      previous.eventAckCallback()
+    })
+
     possibleMatch match {
       case None => {
-        // This is a new event. Index it.
-        enterTxn(txnDetail)
+        reaper.scheduleExpiry(this, txnDetail)
       }
       case Some(pair) => {
         // We've just paired these events. We can mark them as matched and drop them.
+        reaper.cancelExpiry(this, pair)
         onMatched(txnDetail, pair)
       }
     }
   }
 
-  def isVersionIDActive(id: VersionID) = {
-    inProgress.synchronized {
-      inProgress.contains(id)
-    }
-  }
+  def isVersionIDActive(id: VersionID) = inProgress.containsKey(id)
 
   def dispose = {
     log.debug("Disposing analyzer for pair: " + pair)
     reaper.detachMatcher(this)
   }
 
-  def nextExpiring:Option[TxnDetail] = {
-    entries.synchronized {
-      entries.headOption match {
-        case None         => None
-        case Some((_, detail:TxnDetail))  => Some(detail)
-      }
-    }
-  }
-
+  /**
+   * Expires the given transaction, provided it is still pending (ie, it hasn't been matched or superseded).
+   */
   def expireTxn(txnDetail:TxnDetail) {
-    entries.synchronized {
-      entries.remove(txnDetail.idVsn)
-      versionLeft(txnDetail.idVsn.id)
+    val expired = stripeFor(txnDetail.idVsn.id).synchronized {
+      val removed = entries.remove(txnDetail.idVsn, txnDetail)
+      if (removed) versionLeft(txnDetail.idVsn.id)
+      removed
+    }
 
+    if (expired) {
       txnDetail.idVsn.source match {
         case UpstreamSource   => {
           log.debug("Processing event for expired upstream: " + txnDetail.idVsn.id + "; listeners = " + listeners.size)
@@ -104,9 +122,6 @@ class LocalEventMatcher(val pair:DomainPairDef, reaper:LocalEventMatcherReaper)
   private def onMatched(a:TxnDetail, b:TxnDetail) = {
     log.debug("Processing event for matched pair: " + a.idVsn.id + "; listeners = " + listeners.size)
 
-    // The entry that was previously stored is now no longer active
-    versionLeft(a.idVsn.id)
-
     // Emit an event indicating the match, then ack both the messages
     fireListeners(l => l.onPaired(a.idVsn.id, a.idVsn.vsn))
     a.eventAckCallback()
@@ -114,38 +129,52 @@ class LocalEventMatcher(val pair:DomainPairDef, reaper:LocalEventMatcherReaper)
   }
   private def fireListeners(f:(MatchingStatusListener) => Unit) = listeners.foreach(l => f(l))
 
+  private def stripeFor(id:VersionID) = stripes((id.hashCode & Int.MaxValue) % stripes.length)
+
+  /**
+   * Must be called whilst holding the stripe for the transaction's entity. Returns the pending transaction that the
+   * given one supersedes, if there is one.
+   */
   private def enterTxn(txnDetail:TxnDetail) = {
-    entries.synchronized {
-      entries(txnDetail.idVsn) = txnDetail
+    // A repeated event supersedes the one already pending, rather than counting as another version in progress
+    val superseded = Option(entries.put(txnDetail.idVsn, txnDetail))
+    if (superseded.isEmpty) {
       versionEntered(txnDetail.idVsn.id)
-
-      // If this is the first entry for the list, then should wake up the inform the reaper so it will monitor
-      // this event.
-      if (entries.size == 1) {
-        reaper.notifyReaper
-      }
     }
+    superseded
   }
 
+  /**
+   * Must be called whilst holding the stripe for the given entity.
+   */
   private def versionEntered(id: VersionID) {
-    inProgress.synchronized {
-      inProgress.get(id) match {
-        case None => inProgress.put(id, 1)
-        case Some(current) => inProgress.put(id, current + 1)
-      }
+    if (inProgress.containsKey(id)) {
+      inProgress.put(id, inProgress.get(id) + 1)
+    } else {
+      inProgress.put(id, 1)
     }
   }
+
+  /**
+   * Must be called whilst holding the stripe for the given entity.
+   */
   private def versionLeft(id: VersionID) {
-    inProgress.synchronized {
+    if (inProgress.containsKey(id)) {
       inProgress.get(id) match {
-        case None => // Ignore
-        case Some(1) => inProgress.remove(id)
-        case Some(current) => inProgress.put(id, current - 1)
+        case 1       => inProgress.remove(id)
+        case current => inProgress.put(id, current - 1)
       }
     }
   }
 }
 
+object LocalEventMatcher {
+  /**
+   * The number of locks that the entities of a matcher are spread across.
+   */
+  val stripeCount = 64
+}
+
 abstract class TxnSource {
   def inverse:TxnSource
 }
@@ -164,29 +193,52 @@ case class TxnDetail(idVsn:TxnIdVsn, eventAckCallback:Function0[Unit], expiry:Da
   def hasExpired(now:DateTime) = !expiry.isAfter(now)
 }
 
-class LocalEventMatcherReaper {
+/**
+ * Expires the pending transactions of all of the local matchers, using a single timing wheel that is advanced by a
+ * background thread. The thread sleeps until the next tick whilst anything is scheduled, and until something is
+ * scheduled otherwise.
+ */
+class LocalEventMatcherReaper(tickMillis:Long = LocalEventMatcherReaper.defaultTickMillis,
+                              wheelSize:Int = LocalEventMatcherReaper.defaultWheelSize,
+                              levels:Int = LocalEventMatcherReaper.defaultLevels) {
   private val log:Logger = LoggerFactory.getLogger(getClass)
 
-  private val matchers = new ListBuffer[LocalEventMatcher]
-  private var continueReaping = true
+  private val matchers = Collections.newSetFromMap(new ConcurrentHashMap[LocalEventMatcher, java.lang.Boolean])
+  private val wheel = new TimingWheel[(LocalEventMatcher, TxnDetail)](tickMillis, wheelSize, levels, System.currentTimeMillis)
+  @volatile private var continueReaping = true
+  @volatile private var idle = false
   private val reaperMon = new Object
   private val reaper = new Thread { override def run = reap }
   reaper.setName("LocalEventMatcher-Reaper")
   reaper.start
 
   def attachMatcher(m:LocalEventMatcher) = {
-    matchers.synchronized {
-      matchers += m
-    }
-    notifyReaper
+    matchers.add(m)
   }
 
   def detachMatcher(m:LocalEventMatcher) = {
-    matchers.synchronized {
-      matchers -= m
+    matchers.remove(m)
+  }
+
+  /**
+   * Arranges for the given transaction to be expired from the given matcher once its expiry time has passed.
+   */
+  def scheduleExpiry(m:LocalEventMatcher, detail:TxnDetail) {
+    if (!wheel.schedule(detail.expiry.getMillis, (m, detail))) {
+      expire(m, detail)
+    } else if (idle) {
+      // The reaper may be waiting indefinitely, so wake it up so it will monitor this transaction
+      notifyReaper
     }
   }
 
+  /**
+   * Removes the pending expiry of a transaction that has been matched or superseded.
+   */
+  def cancelExpiry(m:LocalEventMatcher, detail:TxnDetail) {
+    wheel.cancel((m, detail))
+  }
+
   def dispose {
     log.debug("Disposing LocalEventReaper")
 
@@ -198,49 +250,33 @@ class LocalEventMatcherReaper {
   }
 
   def notifyReaper = reaperMon.synchronized { reaperMon.notifyAll }
+
+  private def expire(m:LocalEventMatcher, detail:TxnDetail) {
+    // Matchers that have been disposed of no longer report expiries
+    if (matchers.contains(m)) {
+      m.expireTxn(detail)
+    }
+  }
+
   private def reap {
-    while (true) {
+    while (continueReaping) {
       try {
-        // Allow the reaper to be shut down
-        reaperMon.synchronized {
-          if (!continueReaping) return
-        }
-
-        val now = new DateTime
-        var nextExpireTime:Option[DateTime] = None
-        matchers.synchronized {
-          // Retrieve the heads of each matcher, and find those expiring. Also work out the next expire time
-          val heads = matchers.map(m => (m, m.nextExpiring)).foreach {
-            case (m, Some(detail)) => {
-//              log.debug("First expiring for " + m.pairKey + " is " + detail)
-
-              if (detail.hasExpired(now)) {
-//                log.debug("Expiring " + detail)
-                m.expireTxn(detail)
-                nextExpireTime = Some(now)      // Since we've expired something, we'll want to run the loop again
-              } else {
-                nextExpireTime match {
-                  case None       => nextExpireTime = Some(detail.expiry)
-                  case Some(best) => if (best.isAfter(detail.expiry)) nextExpireTime = Some(detail.expiry)
-                }
-              }
-            }
-            case (_, None) =>
-          }
+        wheel.advance(System.currentTimeMillis).foreach {
+          case (m, detail) => expire(m, detail)
         }
 
-        // Wait for an appropriate amount of time
-//        log.debug("Using nextExpireTime of " + nextExpireTime)
-        nextExpireTime match {
-          case None      => reaperMon.synchronized { reaperMon.wait }
-          case Some(t)   => {
-            val waitMillis = t.getMillis - now.getMillis
-            if (waitMillis > 0) {
-//              log.debug("About to sleep " + waitMillis)
-
-              reaperMon.synchronized {
-                reaperMon.wait(waitMillis)
-              }
+        // Wait until the next tick is due, or indefinitely if there is nothing to expire
+        reaperMon.synchronized {
+          if (continueReaping) {
+            // Announce that we're idle before checking, so that a concurrent schedule either sees the flag or is seen
+            idle = true
+            if (wheel.isEmpty) {
+              reaperMon.wait
+              idle = false
+            } else {
+              idle = false
+              val waitMillis = wheel.nextTickMillis - System.currentTimeMillis
+              if (waitMillis > 0) reaperMon.wait(waitMillis)
             }
           }
         }
@@ -249,4 +285,10 @@ class LocalEventMatcherReaper {
       }
     }
   }
-}
\ No newline at end of file
+}
+
+object LocalEventMatcherReaper {
+  val defaultTickMillis = 50L
+  val defaultWheelSize = 64
+  val defaultLevels = 4
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.matching
+
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import collection.mutable.ListBuffer
+import scala.collection.JavaConversions._
+
+/**
+ * Hierarchical timing wheel, holding items until their expiry time has passed. Scheduling an item costs O(1)
+ * regardless of how many items are pending, and advancing the wheel only touches the buckets that have come due
+ * (plus an amortised O(1) cascade of items from the coarser levels into the finer ones).
+ *
+ * The finest level has wheelSize buckets of tickMillis each; every subsequent level has buckets spanning the whole of
+ * the level below it. Items that expire beyond the range of the coarsest level are parked in its furthest bucket,
+ * and re-scheduled from there once it comes due.
+ *
+ * Items are never released before their expiry, but may be released up to one tick afterwards. Any number of threads
+ * may schedule and cancel items concurrently, but the wheel must only be advanced by one thread at a time. Each item
+ * may only be scheduled once at a time.
+ */
+class TimingWheel[T](val tickMillis:Long, wheelSize:Int, levels:Int, startMillis:Long) {
+  require(tickMillis > 0, "tickMillis must be positive")
+  require(wheelSize > 1 && Integer.bitCount(wheelSize) == 1, "wheelSize must be a power of two")
+  require(levels > 0, "levels must be positive")
+
+  private class Entry(val tick:Long, val item:T) {
+    @volatile var bucket:ConcurrentLinkedQueue[Entry] = null
+  }
+
+  private val bits = Integer.numberOfTrailingZeros(wheelSize)
+  private val mask = wheelSize - 1
+  private val buckets = Array.fill(levels, wheelSize)(new ConcurrentLinkedQueue[Entry])
+  private val pending = new AtomicInteger(0)
+  private val scheduled = new ConcurrentHashMap[T, Entry]
+
+  /**
+   * Scheduling and cancelling only read the current tick, and so share the lock. Advancing moves the current tick and
+   * the entries between buckets, and so needs to exclude them whilst it does so, otherwise an item could be placed in a
+   * bucket that has just been drained, or missed by a cancellation whilst it is being moved.
+   */
+  private val lock = new ReentrantReadWriteLock
+
+  /**
+   * The index of the tick currently being filled. Every item whose expiry falls in an earlier tick has been released.
+   */
+  @volatile private var currentTick = startMillis / tickMillis
+
+  /**
+   * Schedules the given item to be released once the given time has passed. Returns false (without scheduling the item)
+   * if that time has already passed, in which case the caller should process the item itself.
+   */
+  def schedule(expiryMillis:Long, item:T):Boolean = {
+    lock.readLock.lock()
+    try {
+      val entry = new Entry(expiryMillis / tickMillis, item)
+      val placed = place(entry)
+      if (placed) scheduled.put(item, entry)
+      placed
+    } finally {
+      lock.readLock.unlock()
+    }
+  }
+
+  /**
+   * Removes the given item from the wheel, so that it won't be released. Returns false if the item isn't scheduled,
+   * such as when it has already been released.
+   */
+  def cancel(item:T):Boolean = {
+    lock.readLock.lock()
+    try {
+      val entry = scheduled.remove(item)
+      if (entry != null && entry.bucket.remove(entry)) {
+        pending.decrementAndGet()
+        true
+      } else {
+        false
+      }
+    } finally {
+      lock.readLock.unlock()
+    }
+  }
+
+  /**
+   * The number of items currently held by the wheel.
+   */
+  def size = pending.get
+
+  def isEmpty = size == 0
+
+  /**
+   * The time at which the wheel next needs to be advanced.
+   */
+  def nextTickMillis = (currentTick + 1) * tickMillis
+
+  /**
+   * Advances the wheel to the given time, returning the items that have expired on the way.
+   */
+  def advance(nowMillis:Long):Seq[T] = {
+    val expired = new ListBuffer[T]
+    val targetTick = nowMillis / tickMillis
+
+    lock.writeLock.lock()
+    try {
+      while (currentTick < targetTick) {
+        if (pending.get == 0) {
+          // Nothing to release or cascade, so skip straight to the target
+          currentTick = targetTick
+        } else {
+          tick(expired)
+        }
+      }
+    } finally {
+      lock.writeLock.unlock()
+    }
+
+    expired.toSeq
+  }
+
+  private def tick(expired:ListBuffer[T]) {
+    drain(0, currentTick).foreach(e => {
+      pending.decrementAndGet()
+      release(e, expired)
+    })
+
+    currentTick += 1
+
+    // Whenever a level wraps, bring the items from the next bucket of the level above down into the finer levels
+    var level = 1
+    while (level < levels && (currentTick & ((1L << (bits * level)) - 1)) == 0) {
+      drain(level, currentTick >> (bits * level)).foreach(e => {
+        pending.decrementAndGet()
+        if (!place(e)) release(e, expired)
+      })
+      level += 1
+    }
+  }
+
+  private def release(entry:Entry, expired:ListBuffer[T]) {
+    scheduled.remove(entry.item)
+    expired += entry.item
+  }
+
+  private def drain(level:Int, slot:Long) = {
+    val bucket = buckets(level)((slot & mask).toInt)
+    if (bucket.isEmpty) {
+      Nil
+    } else {
+      val entries = bucket.toList
+      bucket.clear()
+      entries
+    }
+  }
+
+  private def place(entry:Entry):Boolean = {
+    val now = currentTick
+    if (entry.tick < now) {
+      false
+    } else {
+      val level = (0 until levels).find(l => (entry.tick >> (bits * l)) - (now >> (bits * l)) < wheelSize)
+      val slot = level match {
+        case Some(l) => buckets(l)(((entry.tick >> (bits * l)) & mask).toInt)
+        case None    => buckets(levels - 1)((((now >> (bits * (levels - 1))) + wheelSize - 1) & mask).toInt)
+      }
+
+      pending.incrementAndGet()
+      entry.bucket = slot
+      slot.add(entry)
+      true
+    }
+  }
+}
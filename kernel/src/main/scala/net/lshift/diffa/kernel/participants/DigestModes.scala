@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.kernel.participants
+
+import net.lshift.diffa.adapter.scanning.DigestMode
+import net.lshift.diffa.kernel.config.{PairRef, PairServiceLimitsView}
+import net.lshift.diffa.schema.servicelimits.CommutativeScanDigests
+
+/**
+ * Determines the digest mode used for the aggregates of a pair. Both the agent and the pair's adapters need to
+ * agree on the mode, so it is requested from adapters on each aggregate scan.
+ */
+object DigestModes {
+  def forPair(limits:PairServiceLimitsView, pair:PairRef) =
+    if (limits.getEffectiveLimitByNameForPair(pair.space, pair.name, CommutativeScanDigests) > 0) DigestMode.COMMUTATIVE
+    else DigestMode.ORDERED
+}
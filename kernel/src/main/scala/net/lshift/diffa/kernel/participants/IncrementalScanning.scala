@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.participants
+
+import net.lshift.diffa.adapter.scanning.{ScanConstraint, ScanResultEntry}
+
+/**
+ * Implemented by participants that can hand scan results over as they are received from the adapter, rather than
+ * buffering the entire response before returning it. Results are delivered in the collation order of the endpoint,
+ * since implementations are expected to validate the ordering as each entry is read.
+ */
+trait IncrementalScanning {
+  /**
+   * Scans the adapter with the given constraints and aggregations, passing the results to the given function as
+   * they arrive. The iterator is only valid for the duration of the call, since the underlying response is released
+   * once the function returns.
+   */
+  def scanIncrementally[T](constraints:Seq[ScanConstraint], aggregations:Seq[CategoryFunction])(f:Iterator[ScanResultEntry] => T):T
+}
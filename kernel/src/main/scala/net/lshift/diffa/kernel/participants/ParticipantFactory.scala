@@ -17,7 +17,7 @@
 package net.lshift.diffa.kernel.participants
 
 import collection.mutable.ListBuffer
-import net.lshift.diffa.adapter.scanning.ScanConstraint
+import net.lshift.diffa.adapter.scanning.{ScanResultEntry, ScanConstraint}
 import net.lshift.diffa.kernel.config.{PairRef, Endpoint}
 
 /**
@@ -37,7 +37,14 @@ class ParticipantFactory() {
     val scanningParticipant = createScanningParticipant(endpoint, pair)
     val contentParticipant = createContentParticipant(endpoint, pair)
 
-    new CompositeUpstreamParticipant(endpoint.name, scanningParticipant, contentParticipant)
+    scanningParticipant match {
+      case Some(incremental:IncrementalScanning) =>
+        new CompositeUpstreamParticipant(endpoint.name, scanningParticipant, contentParticipant) with IncrementalCompositeParticipant {
+          val incrementalScanning = incremental
+        }
+      case _ =>
+        new CompositeUpstreamParticipant(endpoint.name, scanningParticipant, contentParticipant)
+    }
   }
 
   def createDownstreamParticipant(endpoint:Endpoint, pair:PairRef): DownstreamParticipant = {
@@ -45,7 +52,14 @@ class ParticipantFactory() {
     val contentParticipant = createContentParticipant(endpoint, pair)
     val versioningParticipant = createVersioningParticipant(endpoint, pair)
 
-    new CompositeDownstreamParticipant(endpoint.name, scanningParticipant, contentParticipant, versioningParticipant)
+    scanningParticipant match {
+      case Some(incremental:IncrementalScanning) =>
+        new CompositeDownstreamParticipant(endpoint.name, scanningParticipant, contentParticipant, versioningParticipant) with IncrementalCompositeParticipant {
+          val incrementalScanning = incremental
+        }
+      case _ =>
+        new CompositeDownstreamParticipant(endpoint.name, scanningParticipant, contentParticipant, versioningParticipant)
+    }
   }
 
   def createScanningParticipant(endpoint:Endpoint, pair:PairRef): Option[ScanningParticipantRef] =
@@ -81,6 +95,16 @@ class ParticipantFactory() {
 
   }
 
+  /**
+   * Exposes incremental scanning on a composite participant whose scanning reference supports it.
+   */
+  private trait IncrementalCompositeParticipant extends IncrementalScanning {
+    val incrementalScanning:IncrementalScanning
+
+    def scanIncrementally[T](constraints: Seq[ScanConstraint], aggregations: Seq[CategoryFunction])(f:Iterator[ScanResultEntry] => T) =
+      incrementalScanning.scanIncrementally(constraints, aggregations)(f)
+  }
+
   private class CompositeUpstreamParticipant(partName:String, scanning:Option[ScanningParticipantRef], content:Option[ContentParticipantRef])
       extends CompositeParticipant(partName, scanning, content)
       with UpstreamParticipant {
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.reporting
+
+import java.io.Writer
+import net.lshift.diffa.kernel.differencing.ReportedDifferenceEvent
+import org.joda.time.format.ISODateTimeFormat
+import org.codehaus.jackson.JsonFactory
+import org.codehaus.jackson.JsonGenerator
+
+/**
+ * A format that unmatched differences can be exported in. Exports are written one difference at a time as they are
+ * streamed from the difference store, so the memory needed to produce an export doesn't grow with its size.
+ */
+sealed abstract class DifferenceExportFormat(val name:String, val contentType:String, val extension:String) {
+
+  /**
+   * Creates a writer that renders differences to the given output in this format.
+   */
+  def createWriter(out:Writer):DifferenceExportWriter
+}
+
+object DifferenceExportFormat {
+
+  /**
+   * Comma separated values, preceded by a header line. This is the format used when dispatching pair reports.
+   */
+  case object CSV extends DifferenceExportFormat("csv", "text/csv", "csv") {
+    def createWriter(out:Writer) = new CsvDifferenceExportWriter(out)
+  }
+
+  /**
+   * Newline delimited JSON, with one object per difference.
+   */
+  case object NDJSON extends DifferenceExportFormat("ndjson", "application/x-ndjson", "ndjson") {
+    def createWriter(out:Writer) = new NdjsonDifferenceExportWriter(out)
+  }
+
+  val formats = Seq(CSV, NDJSON)
+
+  def lookup(name:String) = formats.find(_.name == name)
+
+  /**
+   * Classifies a difference by the side(s) that it is present on.
+   */
+  def stateOf(event:ReportedDifferenceEvent) = (event.upstreamVsn, event.downstreamVsn) match {
+    case (null, null) => "entirely-absent"
+    case (_, null)    => "missing-from-downstream"
+    case (null, _)    => "missing-from-upstream"
+    case (_, _)       => "version-mismatch"
+  }
+}
+
+/**
+ * Renders exported differences to an underlying writer. The writer is flushed every flushInterval differences, so
+ * that a consumer starts receiving output before the export has completed.
+ */
+abstract class DifferenceExportWriter(out:Writer, flushInterval:Int = DifferenceExportWriter.defaultFlushInterval) {
+  private var written = 0
+
+  def writeHeader() {}
+
+  def write(event:ReportedDifferenceEvent) {
+    writeEvent(event)
+
+    written += 1
+    if (written % flushInterval == 0) {
+      out.flush()
+    }
+  }
+
+  def finish() {
+    out.flush()
+  }
+
+  protected def writeEvent(event:ReportedDifferenceEvent)
+}
+
+object DifferenceExportWriter {
+  val defaultFlushInterval = 100
+  val datetimeFormatter = ISODateTimeFormat.basicDateTime().withZoneUTC()
+}
+
+class CsvDifferenceExportWriter(out:Writer) extends DifferenceExportWriter(out) {
+  import DifferenceExportWriter._
+
+  override def writeHeader() {
+    out.write("detection date,entity id,upstream version,downstream version,state\n")
+  }
+
+  protected def writeEvent(event:ReportedDifferenceEvent) {
+    out.write(event.detectedAt.toString(datetimeFormatter))
+    out.write(',')
+    out.write(quote(event.objId.id))
+    out.write(',')
+    out.write(quote(event.upstreamVsn))
+    out.write(',')
+    out.write(quote(event.downstreamVsn))
+    out.write(',')
+    out.write(DifferenceExportFormat.stateOf(event))
+    out.write('\n')
+  }
+
+  /**
+   * Values are only quoted when they contain a character that would otherwise be misinterpreted (RFC 4180).
+   */
+  private def quote(value:String) = value match {
+    case null                           => ""
+    case v if v.exists(quotedChars(_))  => "\"" + v.replace("\"", "\"\"") + "\""
+    case v                              => v
+  }
+
+  private val quotedChars = Set(',', '"', '\n', '\r')
+}
+
+class NdjsonDifferenceExportWriter(out:Writer) extends DifferenceExportWriter(out) {
+  import DifferenceExportWriter._
+
+  private val factory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+
+  protected def writeEvent(event:ReportedDifferenceEvent) {
+    val generator = factory.createJsonGenerator(out)
+    generator.writeStartObject()
+    generator.writeNumberField("seqId", event.seqId)
+    generator.writeStringField("entityId", event.objId.id)
+    generator.writeStringField("detectedAt", event.detectedAt.toString(datetimeFormatter))
+    generator.writeStringField("lastSeen", event.lastSeen.toString(datetimeFormatter))
+    generator.writeStringField("upstreamVsn", event.upstreamVsn)
+    generator.writeStringField("downstreamVsn", event.downstreamVsn)
+    generator.writeStringField("state", DifferenceExportFormat.stateOf(event))
+    generator.writeEndObject()
+    generator.close()
+
+    out.write('\n')
+  }
+}
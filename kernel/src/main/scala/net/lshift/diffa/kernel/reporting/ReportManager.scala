@@ -23,7 +23,6 @@ import org.apache.http.client.methods.HttpPost
 import org.apache.commons.io.FileUtils
 import java.io.{FileInputStream, FileWriter, PrintWriter, File}
 import org.apache.http.entity.InputStreamEntity
-import org.joda.time.format.ISODateTimeFormat
 import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.util.MissingObjectException
 
@@ -65,25 +64,11 @@ class ReportManager(configStore:DomainConfigStore, diffStore:DomainDifferenceSto
   }
 
   private def generateDifferencesReport(pair:PairRef, reportWriter:PrintWriter) {
-    val datetimeFormatter = ISODateTimeFormat.basicDateTime().withZoneUTC()
+    val csvWriter = DifferenceExportFormat.CSV.createWriter(reportWriter)
 
-    reportWriter.println("detection date,entity id,upstream version,downstream version,state")
-    diffStore.streamUnmatchedEvents(pair, event => {
-      val state = (event.upstreamVsn, event.downstreamVsn) match {
-        case (null, null) => "entirely-absent"
-        case (_, null)    => "missing-from-downstream"
-        case (null, _)    => "missing-from-upstream"
-        case (_, _)       => "version-mismatch"
-      }
-
-      reportWriter.println(
-        event.detectedAt.toString(datetimeFormatter) + "," +
-        event.objId.id + "," +
-        formatVersion(event.upstreamVsn) + "," +
-        formatVersion(event.downstreamVsn) + "," +
-        state
-      )
-    })
+    csvWriter.writeHeader()
+    diffStore.streamUnmatchedEvents(pair, event => csvWriter.write(event))
+    csvWriter.finish()
   }
 
   private def postReport(target:String, reportFile:File) {
@@ -94,7 +79,7 @@ class ReportManager(configStore:DomainConfigStore, diffStore:DomainDifferenceSto
     try {
       val reportPost = new HttpPost(target)
       val entity = new InputStreamEntity(fileStream, reportLength)
-      entity.setContentType("text/csv")
+      entity.setContentType(DifferenceExportFormat.CSV.contentType)
       reportPost.setEntity(entity)
       client.execute(reportPost)
     } finally {
@@ -112,9 +97,4 @@ class ReportManager(configStore:DomainConfigStore, diffStore:DomainDifferenceSto
         reportTmp.deleteOnExit();
     }
   }
-
-  private def formatVersion(vsn:String) = vsn match {
-    case null => ""
-    case v    => v
-  }
-}
\ No newline at end of file
+}
@@ -18,8 +18,9 @@ package net.lshift.diffa.kernel.scanning
 import net.lshift.diffa.schema.jooq.DatabaseFacade
 import net.lshift.diffa.schema.jooq.DatabaseFacade._
 import net.lshift.diffa.schema.tables.ScanStatements.SCAN_STATEMENTS
+import net.lshift.diffa.schema.tables.ScanMetrics.SCAN_METRICS
 import net.lshift.diffa.kernel.config.PairRef
-import org.jooq.Record
+import org.jooq.{RecordMapper, Record}
 import scala.collection.JavaConversions._
 import java.lang.{Long => LONG}
 
@@ -58,6 +59,52 @@ class JooqScanActivityStore(jooq:DatabaseFacade) extends ScanActivityStore {
     })
   }
 
+  def recordMetrics(pair:PairRef, scanId:Long, metrics:ScanMetricsSnapshot) {
+    jooq.execute(t => {
+      t.delete(SCAN_METRICS).
+        where(SCAN_METRICS.SPACE.equal(pair.space)).
+          and(SCAN_METRICS.PAIR.equal(pair.name)).
+          and(SCAN_METRICS.SCAN_ID.equal(scanId)).
+        execute()
+
+      val rows = JooqScanActivityStore.toRows(metrics)
+      if (!rows.isEmpty) {
+        val batch = t.batch(
+          t.insertInto(SCAN_METRICS).
+            set(SCAN_METRICS.SPACE, pair.space:LONG).
+            set(SCAN_METRICS.PAIR, pair.name).
+            set(SCAN_METRICS.SCAN_ID, scanId:LONG).
+            set(SCAN_METRICS.SIDE, null:String).
+            set(SCAN_METRICS.METRIC, null:String).
+            set(SCAN_METRICS.LABEL, null:String).
+            set(SCAN_METRICS.METRIC_VALUE, null:LONG))
+
+        rows.foreach { case (side, metric, label, value) =>
+          batch.bind(pair.space:LONG, pair.name, scanId:LONG, side, metric, label, value:LONG)
+        }
+        batch.execute()
+      }
+    })
+  }
+
+  def getMetrics(pair:PairRef, scanId:Long) : Option[ScanMetricsSnapshot] = {
+    val rows = jooq.read(t => {
+      t.select(SCAN_METRICS.SIDE, SCAN_METRICS.METRIC, SCAN_METRICS.LABEL, SCAN_METRICS.METRIC_VALUE).
+        from(SCAN_METRICS).
+        where(SCAN_METRICS.SPACE.equal(pair.space)).
+          and(SCAN_METRICS.PAIR.equal(pair.name)).
+          and(SCAN_METRICS.SCAN_ID.equal(scanId)).
+        fetch().
+        map(new RecordMapper[Record, (String, String, String, Long)] {
+          def map(r:Record) = (r.getValue(SCAN_METRICS.SIDE), r.getValue(SCAN_METRICS.METRIC),
+                               r.getValue(SCAN_METRICS.LABEL), r.getValue(SCAN_METRICS.METRIC_VALUE).longValue())
+        }).toSeq
+    })
+
+    if (rows.isEmpty) None
+    else Some(JooqScanActivityStore.fromRows(rows))
+  }
+
   private def recordToStatement(record:Record) = ScanStatement(
     id = record.getValue(SCAN_STATEMENTS.ID),
     space =  record.getValue(SCAN_STATEMENTS.SPACE),
@@ -68,3 +115,57 @@ class JooqScanActivityStore(jooq:DatabaseFacade) extends ScanActivityStore {
     state = record.getValue(SCAN_STATEMENTS.STATE)
   )
 }
+
+object JooqScanActivityStore {
+
+  /**
+   * The side that metrics covering the whole scan are stored against.
+   */
+  val ScanSide = "scan"
+
+  /**
+   * The label that is stored for metrics that are not broken down any further.
+   */
+  val Total = "total"
+
+  private[scanning] def toRows(m:ScanMetricsSnapshot) : Seq[(String, String, String, Long)] = {
+    val sides = m.sides.toSeq.flatMap { case (side, s) =>
+      s.bucketsVisited.toSeq.map { case (level, count) => (side, "buckets", level, count) } ++
+      s.latencyHistogram.toSeq.map { case (bucket, count) => (side, "latency", bucket, count) } ++
+      Seq(
+        (side, "entities", Total, s.entitiesCompared),
+        (side, "requests", Total, s.requests),
+        (side, "request_millis", Total, s.requestMillis),
+        (side, "bytes", Total, s.bytesReceived))
+    }
+
+    sides ++ Seq(
+      (ScanSide, "writer_flushes", Total, m.writerFlushes),
+      (ScanSide, "writer_flush_millis", Total, m.writerFlushMillis),
+      (ScanSide, "diffs", Total, m.diffsProduced))
+  }
+
+  private[scanning] def fromRows(rows:Seq[(String, String, String, Long)]) = {
+    def scanValue(metric:String) =
+      rows.find { case (side, name, _, _) => side == ScanSide && name == metric }.map(_._4).getOrElse(0L)
+
+    val sides = rows.filter(_._1 != ScanSide).groupBy(_._1).map { case (side, sideRows) =>
+      def labelled(metric:String) = sideRows.filter(_._2 == metric).map(r => r._3 -> r._4).toMap
+      def total(metric:String) = labelled(metric).getOrElse(Total, 0L)
+
+      side -> SideMetrics(
+        bucketsVisited = labelled("buckets"),
+        entitiesCompared = total("entities"),
+        requests = total("requests"),
+        requestMillis = total("request_millis"),
+        latencyHistogram = labelled("latency"),
+        bytesReceived = total("bytes"))
+    }
+
+    ScanMetricsSnapshot(
+      sides = sides,
+      writerFlushes = scanValue("writer_flushes"),
+      writerFlushMillis = scanValue("writer_flush_millis"),
+      diffsProduced = scanValue("diffs"))
+  }
+}
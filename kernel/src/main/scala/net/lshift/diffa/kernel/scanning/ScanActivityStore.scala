@@ -27,6 +27,16 @@ trait ScanActivityStore {
   def createOrUpdateStatement(s:ScanStatement)
   def getStatement(pair:PairRef, id:Long) : ScanStatement
 
+  /**
+   * Records the metrics gathered by a scan, replacing any that were previously recorded for it.
+   */
+  def recordMetrics(pair:PairRef, scanId:Long, metrics:ScanMetricsSnapshot)
+
+  /**
+   * Retrieves the metrics recorded for a scan, if there are any.
+   */
+  def getMetrics(pair:PairRef, scanId:Long) : Option[ScanMetricsSnapshot]
+
 }
 
 case class ScanStatement(id:Long = System.currentTimeMillis(),
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.scanning
+
+import java.io.Closeable
+import java.util.concurrent.locks.ReentrantLock
+import org.slf4j.LoggerFactory
+import net.lshift.diffa.kernel.config.PairRef
+import scala.collection.JavaConversions._
+
+/**
+ * The urgency of a scan. Scans requested by a user are run ahead of those started by the scheduler.
+ */
+sealed abstract class ScanPriority(val rank:Int)
+
+object ScanPriority {
+  case object Manual extends ScanPriority(0)
+  case object Scheduled extends ScanPriority(1)
+
+  def of(initiatingUser:Option[String]) = initiatingUser match {
+    case Some(_) => Manual
+    case None    => Scheduled
+  }
+}
+
+/**
+ * Queueing metrics for the scans of a space, or of the whole agent.
+ */
+case class ScanExecutionStatistics(queued:Int = 0,
+                                   running:Int = 0,
+                                   completed:Long = 0,
+                                   totalQueueMillis:Long = 0,
+                                   maxQueueMillis:Long = 0) {
+
+  def meanQueueMillis = if (completed + running == 0) 0L else totalQueueMillis / (completed + running)
+}
+
+/**
+ * Runs the upstream and downstream halves of pair scans on a dedicated, bounded pool of threads, so that scans that
+ * block on participants can't starve anything else in the agent.
+ *
+ * Queued scans are started in priority order and then in the order that they were submitted, except that no more
+ * than maxConcurrentScansPerSpace scans will run for any one space at once. A scan that is held back by that limit
+ * doesn't prevent scans for other spaces from starting.
+ */
+class ScanExecutionService(maxConcurrentScans:Int, maxConcurrentScansPerSpace:Int) extends Closeable {
+
+  require(maxConcurrentScans > 0, "At least one scan must be allowed to run")
+  require(maxConcurrentScansPerSpace > 0, "At least one scan per space must be allowed to run")
+
+  private val log = LoggerFactory.getLogger(getClass)
+
+  private case class QueuedScan(pair:PairRef, priority:ScanPriority, sequence:Long, queuedAt:Long, task:() => Unit)
+
+  private val lock = new ReentrantLock
+  private val changed = lock.newCondition()
+
+  private val queue = new java.util.TreeSet[QueuedScan](new java.util.Comparator[QueuedScan] {
+    def compare(a:QueuedScan, b:QueuedScan) =
+      if (a.priority.rank != b.priority.rank) a.priority.rank - b.priority.rank
+      else java.lang.Long.valueOf(a.sequence).compareTo(b.sequence)
+  })
+
+  private val spaces = new java.util.HashMap[Long, ScanExecutionStatistics]
+  private var nextSequence = 0L
+  private var closed = false
+
+  private val workers = (1 to maxConcurrentScans).map(i => {
+    val worker = new Thread(new Runnable { def run() { work() } }, "scan-executor-" + i)
+    worker.setDaemon(true)
+    worker.start()
+    worker
+  })
+
+  /**
+   * Queues a scan task for the given pair.
+   */
+  def submit(pair:PairRef, priority:ScanPriority)(task: => Unit) {
+    withLock {
+      if (closed) {
+        throw new IllegalStateException("Scan executor has been shut down")
+      }
+
+      queue.add(QueuedScan(pair, priority, nextSequence, System.currentTimeMillis(), () => task))
+      nextSequence += 1
+      update(pair.space)(s => s.copy(queued = s.queued + 1))
+
+      if (log.isDebugEnabled) {
+        log.debug("Queued %s scan task for %s; %s task(s) now queued".format(priority, pair.identifier, queue.size))
+      }
+
+      changed.signalAll()
+    }
+  }
+
+  def statistics(space:Long) = withLock { Option(spaces.get(space)).getOrElse(ScanExecutionStatistics()) }
+
+  def statistics = withLock {
+    spaces.values.foldLeft(ScanExecutionStatistics())((total, s) => ScanExecutionStatistics(
+      queued = total.queued + s.queued,
+      running = total.running + s.running,
+      completed = total.completed + s.completed,
+      totalQueueMillis = total.totalQueueMillis + s.totalQueueMillis,
+      maxQueueMillis = math.max(total.maxQueueMillis, s.maxQueueMillis)))
+  }
+
+  /**
+   * Stops the workers once their current tasks are complete. Any scans that are still queued are discarded.
+   */
+  def close() {
+    withLock {
+      closed = true
+      if (!queue.isEmpty) {
+        log.warn("Discarding %s queued scan task(s) on shutdown".format(queue.size))
+        queue.clear()
+      }
+      changed.signalAll()
+    }
+  }
+
+  private def work() {
+    var next = take()
+    while (next.isDefined) {
+      val scan = next.get
+      try {
+        scan.task()
+      } catch {
+        case t:Throwable => log.error("Scan task for %s failed".format(scan.pair.identifier), t)
+      } finally {
+        withLock {
+          update(scan.pair.space)(s => s.copy(running = s.running - 1, completed = s.completed + 1))
+          changed.signalAll()
+        }
+      }
+      next = take()
+    }
+  }
+
+  /**
+   * Waits for a scan that is permitted to run, returning None once the executor is closed.
+   */
+  private def take():Option[QueuedScan] = withLock {
+    var found:Option[QueuedScan] = None
+
+    while (!closed && found.isEmpty) {
+      found = queue.iterator.find(q => statistics(q.pair.space).running < maxConcurrentScansPerSpace)
+      found match {
+        case Some(scan) =>
+          queue.remove(scan)
+          val waited = System.currentTimeMillis() - scan.queuedAt
+          update(scan.pair.space)(s => s.copy(
+            queued = s.queued - 1,
+            running = s.running + 1,
+            totalQueueMillis = s.totalQueueMillis + waited,
+            maxQueueMillis = math.max(s.maxQueueMillis, waited)))
+        case None =>
+          changed.await()
+      }
+    }
+
+    found
+  }
+
+  private def update(space:Long)(f:ScanExecutionStatistics => ScanExecutionStatistics) {
+    spaces.put(space, f(statistics(space)))
+  }
+
+  private def withLock[T](f: => T) = {
+    lock.lock()
+    try {
+      f
+    } finally {
+      lock.unlock()
+    }
+  }
+}
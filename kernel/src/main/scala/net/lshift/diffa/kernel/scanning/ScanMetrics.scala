@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.scanning
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.JavaConversions._
+
+/**
+ * Accumulates the work done by a single scan, so that it is possible to tell which participants and which levels of
+ * the aggregate tree account for the time that a scan takes. Metrics are kept separately for each side of the pair,
+ * and are safe to record from the concurrent workers of a scan.
+ */
+class ScanMetrics {
+
+  import ScanMetrics._
+
+  private class SideCounters {
+    val buckets = new ConcurrentHashMap[String, AtomicLong]
+    val entities = new AtomicLong
+    val requests = new AtomicLong
+    val requestMillis = new AtomicLong
+    val latencies = latencyBounds.map(_ => new AtomicLong) :+ new AtomicLong
+    val bytes = new AtomicLong
+  }
+
+  private val sides = new ConcurrentHashMap[String, SideCounters]
+  private val writerFlushes = new AtomicLong
+  private val writerFlushMillis = new AtomicLong
+  private val diffs = new AtomicLong
+
+  /**
+   * Records a visit to an aggregate bucket at the given level of the tree.
+   */
+  def bucketVisited(side:String, level:String) {
+    counterFor(countersFor(side).buckets, level).incrementAndGet()
+  }
+
+  def entitiesCompared(side:String, count:Long) {
+    countersFor(side).entities.addAndGet(count)
+  }
+
+  /**
+   * Records the time taken for a participant to respond to a request.
+   */
+  def remoteRequest(side:String, millis:Long) {
+    val counters = countersFor(side)
+    counters.requests.incrementAndGet()
+    counters.requestMillis.addAndGet(millis)
+
+    val bucket = latencyBounds.indexWhere(millis <= _)
+    counters.latencies(if (bucket < 0) latencyBounds.length else bucket).incrementAndGet()
+  }
+
+  def bytesReceived(side:String, count:Long) {
+    countersFor(side).bytes.addAndGet(count)
+  }
+
+  def writerFlushed(millis:Long) {
+    writerFlushes.incrementAndGet()
+    writerFlushMillis.addAndGet(millis)
+  }
+
+  def diffProduced() {
+    diffs.incrementAndGet()
+  }
+
+  def snapshot = ScanMetricsSnapshot(
+    sides = sides.map { case (side, c) =>
+      side -> SideMetrics(
+        bucketsVisited = c.buckets.map { case (level, count) => level -> count.get }.toMap,
+        entitiesCompared = c.entities.get,
+        requests = c.requests.get,
+        requestMillis = c.requestMillis.get,
+        latencyHistogram = latencyLabels.zip(c.latencies.map(_.get)).filter(_._2 > 0).toMap,
+        bytesReceived = c.bytes.get)
+    }.toMap,
+    writerFlushes = writerFlushes.get,
+    writerFlushMillis = writerFlushMillis.get,
+    diffsProduced = diffs.get)
+
+  private def countersFor(side:String) = {
+    val existing = sides.get(side)
+    if (existing != null) existing
+    else {
+      val fresh = new SideCounters
+      Option(sides.putIfAbsent(side, fresh)).getOrElse(fresh)
+    }
+  }
+
+  private def counterFor(counters:ConcurrentHashMap[String, AtomicLong], key:String) = {
+    val existing = counters.get(key)
+    if (existing != null) existing
+    else {
+      val fresh = new AtomicLong
+      Option(counters.putIfAbsent(key, fresh)).getOrElse(fresh)
+    }
+  }
+}
+
+object ScanMetrics {
+
+  val Upstream = "upstream"
+  val Downstream = "downstream"
+
+  /**
+   * The upper bounds (inclusive, in milliseconds) of the buckets of the request latency histogram. Anything slower
+   * than the last bound is counted in a final, open ended bucket.
+   */
+  val latencyBounds = Seq(10L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L)
+  val latencyLabels = latencyBounds.map("<=" + _) :+ (">" + latencyBounds.last)
+
+  /**
+   * The level recorded for buckets that are compared entity by entity.
+   */
+  val EntityLevel = "entities"
+
+  private val current = new ThreadLocal[(ScanMetrics, String)]
+
+  /**
+   * Names a level of the aggregate tree by the categories that it is bucketed by.
+   */
+  def levelOf(bucketing:Seq[(String, String)]) =
+    if (bucketing.isEmpty) EntityLevel
+    else bucketing.map { case (attribute, function) => attribute + ":" + function }.mkString(",")
+
+  /**
+   * Makes the given metrics available to code that is called on this thread to talk to a participant (such as an HTTP
+   * client), which otherwise has no knowledge of the scan that it is working for.
+   */
+  def recording[T](metrics:ScanMetrics, side:String)(f: => T) = {
+    val previous = current.get
+    current.set((metrics, side))
+    try {
+      f
+    } finally {
+      current.set(previous)
+    }
+  }
+
+  /**
+   * Records a number of bytes against the scan that the current thread is working for, if any.
+   */
+  def recordBytesReceived(count:Long) {
+    val active = current.get
+    if (active != null) {
+      active._1.bytesReceived(active._2, count)
+    }
+  }
+}
+
+/**
+ * The metrics recorded for one side of a scan. Buckets visited are counted per level of the aggregate tree, and the
+ * latency histogram is keyed by the labels in ScanMetrics.latencyLabels.
+ */
+case class SideMetrics(bucketsVisited:Map[String, Long] = Map(),
+                       entitiesCompared:Long = 0,
+                       requests:Long = 0,
+                       requestMillis:Long = 0,
+                       latencyHistogram:Map[String, Long] = Map(),
+                       bytesReceived:Long = 0)
+
+case class ScanMetricsSnapshot(sides:Map[String, SideMetrics] = Map(),
+                               writerFlushes:Long = 0,
+                               writerFlushMillis:Long = 0,
+                               diffsProduced:Long = 0)
@@ -28,6 +28,7 @@ class Sweeper(val period:Int, diffStore:DomainDifferenceStore) {
 
   val sweepTask = new TimerTask {
     def run() {
+      diffStore.checkpointPendingEvents(false)
       diffStore.expireMatches(new DateTime().minusMinutes(matchAgeMins))
       diffStore.purgeOrphanedEvents
     }
@@ -39,5 +40,6 @@ class Sweeper(val period:Int, diffStore:DomainDifferenceStore) {
 
   def shutdown() {
     timer.cancel()
+    diffStore.checkpointPendingEvents(true)
   }
 }
\ No newline at end of file
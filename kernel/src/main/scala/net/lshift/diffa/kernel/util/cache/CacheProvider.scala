@@ -25,13 +25,25 @@ import net.lshift.diffa.kernel.naming.CacheName
 trait CacheProvider {
 
   /**
-   * Returns a reference to a managed cache instance identified by the given name.
+   * Returns a reference to a managed cache instance identified by the given name. When named by a CacheName, the
+   * cache is set up with the indexes and near-caching that the name declares.
    */
   @Deprecated def getCachedMap[K,V](name:String) : CachedMap[K,V]
   def getCachedMap[K,V](name:CacheName) : CachedMap[K,V]
 
+  /**
+   * Statistics for each of the caches that have been retrieved, by cache name. Providers that don't keep statistics
+   * report none.
+   */
+  def statistics : Map[String, CacheStatistics] = Map()
+
 }
 
+/**
+ * Usage of a single cache.
+ */
+case class CacheStatistics(entries:Long, bytes:Long, maxBytes:Long, hits:Long, misses:Long, evictions:Long)
+
 /**
  * This is an in-memory key-value store with a minimal set of primitives to facilitate caching.
  */
@@ -52,6 +64,16 @@ trait CachedMap[K,V] extends CachedSubset[K,V] {
    */
   def put(key:K, value:V)
 
+  /**
+   * Retrieves the values for each of the supplied keys that are present in the cache, in a single operation.
+   */
+  def getAll(keys:Set[K]) : Map[K,V]
+
+  /**
+   * Inserts all of the supplied values into the cache against their keys, in a single operation.
+   */
+  def putAll(entries:Map[K,V])
+
   /**
    * Removes a value based on the supplied key from the cache.
    */
@@ -68,14 +90,16 @@ trait CachedMap[K,V] extends CachedSubset[K,V] {
   def valueSubset(attribute:String, value:String) : List[V]
 
   /**
-   * NOTE: NOT PORTABLE
-   *
-   * This provides zero abstraction over the capabilities of the underlying implementation :-(
-   *
-   * But OTOH it allows you to express a query in SQL syntax, so in the interests of expediency
-   * and the fact we don't have a 2nd cache provider yet, lets go with this for now.
+   * Retrieves a subset by retrieving map values where each of the given attributes of the map value matches the
+   * supplied value. Attributes that the cache's name declares as indexed are looked up without scanning every value.
+   */
+  def valueSubset(attributes:Map[String,Any]) : List[V]
+
+  /**
+   * Retrieves a subset of the cache made up of the entries whose values match each of the given attribute values,
+   * using any declared indexes in the same way as valueSubset.
    */
-  def valueSubset(predicate:String) : List[V]
+  def attributeSubset(attributes:Map[String,Any]) : CachedSubset[K,V]
 
   /**
    * Retrieves a value based on the supplied key from the cache, if the value is already cached.
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.util.cache
+
+import scala.collection.JavaConversions._
+
+/**
+ * Creates the cache provider selected by configuration. Clustered agents need the Hazelcast provider, whereas an agent
+ * running on a single node can use the local provider, whose caches are bounded by a budget of bytes each.
+ */
+object CacheProviders {
+
+  val HAZELCAST = "hazelcast"
+  val LOCAL = "local"
+
+  /**
+   * The system property naming the provider to use.
+   */
+  val PROVIDER_PROPERTY = "diffa.cache.provider"
+
+  /**
+   * The system property giving the default budget of the local provider's caches, in bytes. The budget of an
+   * individual cache can be given by suffixing this with the name of the cache, eg diffa.cache.local.max.bytes.DIFFS.
+   */
+  val MAX_BYTES_PROPERTY = "diffa.cache.local.max.bytes"
+
+  def create(provider:String, defaultMaxBytes:Long, maxBytesByCache:Map[String,Long]) : CacheProvider = provider match {
+    case HAZELCAST => new HazelcastCacheProvider
+    case LOCAL     => new LocalCacheProvider(defaultMaxBytes, maxBytesByCache)
+    case other     => throw new IllegalArgumentException("Unknown cache provider: " + other)
+  }
+
+  /**
+   * Creates the provider named by the system properties, which is Hazelcast unless the local provider is selected.
+   */
+  def fromSystemProperties : CacheProvider = {
+    val properties = System.getProperties
+    val prefix = MAX_BYTES_PROPERTY + "."
+    val maxBytesByCache = properties.stringPropertyNames.filter(_.startsWith(prefix)).map(name =>
+      name.substring(prefix.length) -> properties.getProperty(name).toLong).toMap
+    val defaultMaxBytes = properties.getProperty(MAX_BYTES_PROPERTY, LocalCacheProvider.DEFAULT_MAX_BYTES.toString).toLong
+
+    create(properties.getProperty(PROVIDER_PROPERTY, HAZELCAST), defaultMaxBytes, maxBytesByCache)
+  }
+}
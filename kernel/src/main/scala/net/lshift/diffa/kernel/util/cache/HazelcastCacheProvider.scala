@@ -16,25 +16,64 @@
 package net.lshift.diffa.kernel.util.cache
 
 import scala.collection.JavaConversions._
-import java.util.concurrent.TimeUnit
 import com.hazelcast.core.{MapEntry, IMap, Hazelcast}
-import com.hazelcast.query.{SqlPredicate, PredicateBuilder, Predicate}
-import java.util
+import com.hazelcast.query.{Expression, Predicates, PredicateBuilder, Predicate}
+import com.hazelcast.config.{MapIndexConfig, NearCacheConfig, MapConfig}
 import net.lshift.diffa.kernel.naming.CacheName
 
 class HazelcastCacheProvider extends CacheProvider {
 
+  import HazelcastCacheProvider._
+
   def getCachedMap[K,V](name: String) = {
     val underlying = Hazelcast.getMap[K,V](name)
     new HazelcastBackedMap[K,V](underlying)
   }
 
   def getCachedMap[K,V](name:CacheName) : CachedMap[K,V] = {
+    configure(name)
     val underlying = Hazelcast.getMap[K,V](name.toString)
     new HazelcastBackedMap[K,V](underlying)
   }
 }
 
+object HazelcastCacheProvider {
+
+  /**
+   * Near caches are bounded in the same way as the default map configuration.
+   */
+  val NEAR_CACHE_MAX_SIZE = 10000
+  val NEAR_CACHE_MAX_IDLE_SECONDS = 300
+
+  /**
+   * Registers the indexes and near cache declared by the given name, derived from the default map configuration.
+   * Hazelcast only applies the configuration of a map when it is first created, so this must happen before the map is
+   * first retrieved.
+   */
+  private def configure(name:CacheName) = {
+    val config = Hazelcast.getConfig
+    config.synchronized {
+      if (!config.getMapConfigs.containsKey(name.toString)) {
+        val mapConfig = new MapConfig(config.findMatchingMapConfig(name.toString))
+        mapConfig.setName(name.toString)
+        mapConfig.setMapIndexConfigs(new java.util.ArrayList[MapIndexConfig](
+          name.getIndexedAttributes.map(attribute => new MapIndexConfig(attribute, false))))
+
+        if (name.isNearCached) {
+          mapConfig.setNearCacheConfig(new NearCacheConfig().
+            setMaxSize(NEAR_CACHE_MAX_SIZE).
+            setMaxIdleSeconds(NEAR_CACHE_MAX_IDLE_SECONDS).
+            setInvalidateOnChange(true))
+        } else {
+          mapConfig.setNearCacheConfig(null)
+        }
+
+        config.addMapConfig(mapConfig)
+      }
+    }
+  }
+}
+
 class HazelcastBackedMap[K,V](underlying:IMap[K,V]) extends CachedMap[K,V] {
 
   def size = underlying.size
@@ -49,7 +88,6 @@ class HazelcastBackedMap[K,V](underlying:IMap[K,V]) extends CachedMap[K,V] {
     }
   }
 
-  // TODO apply indexes to speed up this search
   def valueSubset(attribute:String, value:String) = {
     val entryObject = new PredicateBuilder().getEntryObject
     val predicate = entryObject.get(attribute).equal(value)
@@ -57,18 +95,32 @@ class HazelcastBackedMap[K,V](underlying:IMap[K,V]) extends CachedMap[K,V] {
     v.toList
   }
 
-  // TODO apply indexes to speed up this search
-  def valueSubset(predicate:String) = {
-    val v = underlying.values(new SqlPredicate(predicate))
-    v.toList
+  def valueSubset(attributes:Map[String,Any]) = underlying.values(attributePredicate(attributes)).toList
+
+  def attributeSubset(attributes:Map[String,Any]) = {
+    val projectedKeys = underlying.keySet(attributePredicate(attributes))
+    new CachedSubset[K,V] {
+      def evictAll = projectedKeys.foreach(underlying.remove(_))
+    }
   }
 
   def put(key:K, value:V) = underlying.put(key, value)
 
   def get(key:K) = underlying.get(key)
 
+  def getAll(keys:Set[K]) = if (keys.isEmpty) Map[K,V]() else underlying.getAll(keys).toMap
+
+  def putAll(entries:Map[K,V]) = if (!entries.isEmpty) underlying.putAll(entries)
+
   def evict(key:K) = underlying.evict(key)
 
+  private def attributePredicate(attributes:Map[String,Any]) = {
+    val predicates : Iterable[Predicate[_,_]] = attributes.map {
+      case (attribute, value) =>
+        Predicates.equal(Predicates.get(attribute).asInstanceOf[Expression[AnyRef]], value.asInstanceOf[AnyRef])
+    }
+    predicates.reduceLeft[Predicate[_,_]]((p1, p2) => Predicates.and(p1, p2)).asInstanceOf[Predicate[K,V]]
+  }
 }
 
 class HazelcastKeyPredicate[K,V](keyPredicate:KeyPredicate[K]) extends Predicate[K,V] {
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.util.cache
+
+import scala.collection.JavaConversions._
+import com.google.common.cache._
+import java.io._
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import net.lshift.diffa.kernel.naming.CacheName
+
+/**
+ * Cache provider for agents that run on a single node, and so don't need their caches to be shared across a cluster.
+ *
+ * Values are held in serialized form, which keeps them compact and gives the same copy semantics as a clustered
+ * cache: a value retrieved from the cache can be modified without affecting the cached copy. Each cache has a budget
+ * of bytes, beyond which the least recently used entries are evicted, so that caches of diffs can't grow with the
+ * number of differences in the way that unbounded maps do.
+ *
+ * @param defaultMaxBytes the budget for caches that aren't named in maxBytesByCache.
+ * @param maxBytesByCache the budgets for individual caches, by cache name.
+ */
+class LocalCacheProvider(defaultMaxBytes:Long = LocalCacheProvider.DEFAULT_MAX_BYTES,
+                         maxBytesByCache:Map[String,Long] = Map()) extends CacheProvider {
+
+  private val caches = new ConcurrentHashMap[String, LocalBackedMap[_,_]]
+
+  def getCachedMap[K,V](name:String) = getOrCreate[K,V](name, Seq())
+
+  def getCachedMap[K,V](name:CacheName) : CachedMap[K,V] = getOrCreate[K,V](name.toString, name.getIndexedAttributes)
+
+  override def statistics : Map[String, CacheStatistics] = caches.toMap.map { case (name, cache) => name -> cache.statistics }
+
+  private def getOrCreate[K,V](name:String, indexedAttributes:Seq[String]) = {
+    val maxBytes = maxBytesByCache.getOrElse(name, defaultMaxBytes)
+    caches.putIfAbsent(name, new LocalBackedMap[K,V](maxBytes, indexedAttributes))
+    caches.get(name).asInstanceOf[LocalBackedMap[K,V]]
+  }
+}
+
+object LocalCacheProvider {
+  val DEFAULT_MAX_BYTES = 64L * 1024 * 1024
+
+  /**
+   * Allowance for the key and bookkeeping of each entry, in addition to its serialized value.
+   */
+  val ENTRY_OVERHEAD_BYTES = 64
+
+  private val getters = new ConcurrentHashMap[(Class[_], String), Method]
+
+  /**
+   * Resolves an attribute of a value, following a dotted path through nested values by their bean getters in the same
+   * way as Hazelcast queries do.
+   */
+  def attribute(value:Any, path:String) : Any = path.split('.').foldLeft(value) { (v, name) =>
+    if (v == null) null else getter(v.getClass, name).invoke(v)
+  }
+
+  /**
+   * Whether an attribute matches the value being looked for. Numbers match by value regardless of their type, and a
+   * string matches the string form of a non-string attribute, as the string based valueSubset expects.
+   */
+  def matches(attributeValue:Any, value:Any) = (attributeValue, value) match {
+    case (a, s:String) if a != null && !a.isInstanceOf[String] => a.toString == s
+    case (a, v)                                                => a == v
+  }
+
+  /**
+   * The key under which an attribute value is indexed. Integral numbers are widened so that they can be looked up
+   * with any integral type.
+   */
+  def indexKey(value:Any) : Any = value match {
+    case n:java.lang.Integer => n.longValue
+    case n:java.lang.Short   => n.longValue
+    case n:java.lang.Byte    => n.longValue
+    case v                   => v
+  }
+
+  private def getter(c:Class[_], name:String) = getters.get((c, name)) match {
+    case null =>
+      val capitalised = name.capitalize
+      val method = Seq("get" + capitalised, "is" + capitalised, name).flatMap(candidate =>
+        try {
+          Some(c.getMethod(candidate))
+        } catch {
+          case _:NoSuchMethodException => None
+        }).headOption.getOrElse(
+          throw new IllegalArgumentException("No attribute %s on %s".format(name, c.getName)))
+      getters.put((c, name), method)
+      method
+    case method => method
+  }
+}
+
+/**
+ * A cached value, along with the values of its indexed attributes at the time it was cached.
+ */
+private case class LocalEntry(bytes:Array[Byte], indexValues:Seq[Any]) {
+  def weight = bytes.length + LocalCacheProvider.ENTRY_OVERHEAD_BYTES
+}
+
+class LocalBackedMap[K,V](maxBytes:Long, indexedAttributes:Seq[String]) extends CachedMap[K,V] {
+
+  private val bytes = new AtomicLong
+
+  /**
+   * For each indexed attribute, the keys of the entries with each value of that attribute. Updates to the indexes are
+   * made whilst holding the indexLock, so that they stay consistent with the entries.
+   */
+  private val indexes = indexedAttributes.map(a => a -> new ConcurrentHashMap[Any, java.util.Set[K]]).toMap
+  private val indexLock = new Object
+
+  // Keys are always boxed at runtime, so a cache of references can hold keys of any type
+  private val cache : Cache[K, LocalEntry] = CacheBuilder.newBuilder().
+    maximumWeight(maxBytes).
+    weigher(new Weigher[AnyRef, LocalEntry] {
+      def weigh(key:AnyRef, entry:LocalEntry) = entry.weight
+    }).
+    removalListener(new RemovalListener[AnyRef, LocalEntry] {
+      def onRemoval(notification:RemovalNotification[AnyRef, LocalEntry]) {
+        bytes.addAndGet(-notification.getValue.weight)
+        unindex(notification.getKey.asInstanceOf[K], notification.getValue)
+      }
+    }).
+    build[AnyRef, LocalEntry]().asInstanceOf[Cache[K, LocalEntry]]
+
+  def statistics = {
+    val stats = cache.stats()
+    CacheStatistics(cache.size(), bytes.get, maxBytes, stats.hitCount, stats.missCount, stats.evictionCount)
+  }
+
+  def size = cache.size().toInt
+
+  def evictAll = cache.invalidateAll()
+
+  def get(key:K) = {
+    val entry = cache.getIfPresent(key)
+    if (entry == null) null.asInstanceOf[V] else deserialize(entry)
+  }
+
+  def getAll(keys:Set[K]) = cache.getAllPresent(keys).toMap.map { case (k, entry) => k -> deserialize(entry) }
+
+  def put(key:K, value:V) = {
+    val entry = LocalEntry(serialize(value),
+      indexedAttributes.map(a => LocalCacheProvider.indexKey(LocalCacheProvider.attribute(value, a))))
+    bytes.addAndGet(entry.weight)
+
+    if (indexes.isEmpty) {
+      cache.put(key, entry)
+    } else {
+      indexLock.synchronized {
+        // Null attribute values aren't indexed, so looking for them always examines every entry
+        indexedAttributes.zip(entry.indexValues).filter(_._2 != null).foreach { case (attribute, indexValue) =>
+          val keys = indexes(attribute).get(indexValue) match {
+            case null =>
+              val keys = java.util.Collections.newSetFromMap(new ConcurrentHashMap[K, java.lang.Boolean])
+              indexes(attribute).put(indexValue, keys)
+              keys
+            case keys => keys
+          }
+          keys.add(key)
+        }
+        cache.put(key, entry)
+      }
+    }
+  }
+
+  def putAll(entries:Map[K,V]) = entries.foreach { case (k, v) => put(k, v) }
+
+  def evict(key:K) = cache.invalidate(key)
+
+  def keySubset(predicate:KeyPredicate[K]) = subset(cache.asMap().keySet().filter(predicate.constrain(_)))
+
+  def valueSubset(attribute:String, value:String) = matching(Map(attribute -> value)).map(_._2).toList
+
+  def valueSubset(attributes:Map[String,Any]) = matching(attributes).map(_._2).toList
+
+  def attributeSubset(attributes:Map[String,Any]) = subset(matching(attributes).map(_._1))
+
+  private def subset(keys:Iterable[K]) = {
+    val projectedKeys = keys.toList
+    new CachedSubset[K,V] {
+      def evictAll = cache.invalidateAll(projectedKeys)
+    }
+  }
+
+  /**
+   * Finds the entries whose values match all of the given attributes. Where one of the attributes is indexed (and
+   * isn't being matched against null), only the entries listed in its index are examined; otherwise every entry is.
+   */
+  private def matching(attributes:Map[String,Any]) : Iterable[(K,V)] = {
+    val candidates = attributes.find { case (a, v) => v != null && indexes.contains(a) } match {
+      case Some((attribute, value)) => indexes(attribute).get(LocalCacheProvider.indexKey(value)) match {
+        // A string may still match the string form of a non-string attribute, which isn't indexed
+        case null if value.isInstanceOf[String] => cache.asMap().keySet().toList
+        case null                                => Seq()
+        case keys                                => keys.toList
+      }
+      case None => cache.asMap().keySet().toList
+    }
+
+    candidates.flatMap(key => cache.asMap().get(key) match {
+      case null  => None
+      case entry =>
+        val value = deserialize(entry)
+        if (attributes.forall { case (a, v) => LocalCacheProvider.matches(LocalCacheProvider.attribute(value, a), v) })
+          Some(key -> value)
+        else
+          None
+    })
+  }
+
+  /**
+   * Removes a key from the index entries of a value that has left the cache, unless the key has since been cached
+   * again with the same attribute value.
+   */
+  private def unindex(key:K, entry:LocalEntry) = if (!indexes.isEmpty) {
+    indexLock.synchronized {
+      val current = cache.asMap().get(key)
+      indexedAttributes.zip(entry.indexValues).zipWithIndex.foreach { case ((attribute, indexValue), i) =>
+        if (indexValue != null && (current == null || current.indexValues(i) != indexValue)) {
+          val keys = indexes(attribute).get(indexValue)
+          if (keys != null) {
+            keys.remove(key)
+            if (keys.isEmpty) indexes(attribute).remove(indexValue)
+          }
+        }
+      }
+    }
+  }
+
+  private def serialize(value:V) = {
+    val buffer = new ByteArrayOutputStream
+    val out = new ObjectOutputStream(buffer)
+    out.writeObject(value)
+    out.close()
+    buffer.toByteArray
+  }
+
+  private def deserialize(entry:LocalEntry) = {
+    val in = new ObjectInputStream(new ByteArrayInputStream(entry.bytes))
+    try {
+      in.readObject().asInstanceOf[V]
+    } finally {
+      in.close()
+    }
+  }
+}
@@ -10,7 +10,7 @@ import org.hibernate.dialect.Dialect
 import org.slf4j.LoggerFactory
 import preferences.JooqUserPreferencesStore
 import scanning.JooqScanActivityStore
-import util.cache.HazelcastCacheProvider
+import util.cache.CacheProviders
 import util.MissingObjectException
 import org.hibernate.SessionFactory
 import net.lshift.diffa.schema.hibernate.SessionHelper.sessionFactoryToSessionHelper
@@ -89,7 +89,7 @@ class LazyCleanStoreReferenceContainer(val applicationEnvironment: DatabaseEnvir
     def onMembershipCreated(member: Member) {}
     def onMembershipRemoved(member: Member) {}
   }
-  private def cacheProvider = new HazelcastCacheProvider
+  private lazy val cacheProvider = CacheProviders.fromSystemProperties
   private val idProvider = IncrementingIdProvider
 
   def sessionFactory = _sessionFactory.getOrElse {
@@ -158,6 +158,7 @@ class LazyCleanStoreReferenceContainer(val applicationEnvironment: DatabaseEnvir
       ds.setUsername(applicationEnvironment.username)
       ds.setPassword(applicationEnvironment.password)
       ds.setDriverClass(applicationEnvironment.driver)
+      ds.setStatementsCacheSize(64)
       ds
     })
   }
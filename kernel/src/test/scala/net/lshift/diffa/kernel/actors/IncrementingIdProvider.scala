@@ -16,7 +16,7 @@
 
 package net.lshift.diffa.kernel.actors
 
-import net.lshift.diffa.snowflake.IdProvider
+import net.lshift.diffa.snowflake.{IdBlock, IdProvider}
 
 /**
  * A simple sequentially incrementing ID Provider for single-threaded, single-node testing only.
@@ -28,4 +28,10 @@ object IncrementingIdProvider extends IdProvider {
     next = next + 1
     next
   }
+
+  def reserveBlock(size:Int) = {
+    val block = new IdBlock(next + 1, size)
+    next = next + size
+    block
+  }
 }
@@ -41,7 +41,7 @@ import org.junit.runner.RunWith
 import org.junit.experimental.theories.{DataPoint, Theories, Theory}
 import org.junit.{Ignore, Test, After, Before}
 import net.lshift.diffa.kernel.frontend.DomainPairDef
-import net.lshift.diffa.kernel.scanning.{ScanStatement, ScanActivityStore}
+import net.lshift.diffa.kernel.scanning.{ScanMetricsSnapshot, ScanExecutionService, ScanStatement, ScanActivityStore}
 import scala.concurrent.ExecutionContext
 import scala.concurrent.Future
 import scala.concurrent.ExecutionContext.Implicits.global
@@ -131,9 +131,12 @@ class PairActorTest {
 
   val scanActivityStore = createStrictMock(classOf[ScanActivityStore])
   expect(scanActivityStore.createOrUpdateStatement(EasyMock.isA(classOf[ScanStatement]))); expectLastCall().atLeastOnce()
+  expect(scanActivityStore.recordMetrics(EasyMock.isA(classOf[PairRef]), EasyMock.anyLong(), EasyMock.isA(classOf[ScanMetricsSnapshot]))); expectLastCall().anyTimes()
   replay(scanActivityStore)
 
-  val supervisor = new PairActorSupervisor(versionPolicyManager, systemConfigStore, domainConfigStore, differencesManager, scanListener, participantFactory, stores, diagnostics, scanActivityStore, 50, 100, closeInterval, actorSystem)
+  val scanExecutor = new ScanExecutionService(4, 2)
+
+  val supervisor = new PairActorSupervisor(versionPolicyManager, systemConfigStore, domainConfigStore, differencesManager, scanListener, participantFactory, stores, diagnostics, scanActivityStore, scanExecutor, 50, 100, closeInterval, actorSystem)
   supervisor.onAgentAssemblyCompleted
   supervisor.onAgentConfigurationActivated
 
@@ -141,6 +144,7 @@ class PairActorTest {
   def stop = {
     supervisor.stopActor(pair.asRef)
     actorSystem.shutdown()
+    scanExecutor.close()
   }
 
   // Check for spurious actor events
@@ -573,6 +577,37 @@ class PairActorTest {
     verify(versionPolicy)
   }
 
+  @Test
+  def propagateChangeBatch = {
+    val first = buildUpstreamEvent()
+    val second = UpstreamPairChangeEvent(VersionID(PairRef(pairKey, spaceId), "bar"), Map(), new DateTime, "baz")
+    val monitor = new Object
+
+    expect(writer.flush()).atLeastOnce
+    writer.close
+    expect(writer.batch(EasyMock.anyObject[LimitedVersionCorrelationWriter => Unit]())).andAnswer(new IAnswer[Unit] {
+      def answer = EasyMock.getCurrentArguments()(0).asInstanceOf[LimitedVersionCorrelationWriter => Unit](writer)
+    })
+    expect(versionPolicy.onChanges(writer, Seq(first, second))).andAnswer(new IAnswer[Unit] {
+      def answer = {
+        monitor.synchronized {
+          monitor.notifyAll
+        }
+      }
+    })
+    replay(store, diffWriter, versionPolicy, writer)
+
+    supervisor.startActor(pair.asRef)
+    supervisor.propagateChangeEvents(pair.asRef, Seq(first, second))
+
+    // propagateChangeEvents is an aysnc call, so yield the test thread to allow the actor to invoke the policy
+    monitor.synchronized {
+      monitor.wait(1000)
+    }
+
+    verify(versionPolicy)
+  }
+
   @Test
   def propagateUpstreamInventory() { propagateInventory(upstream, UpstreamEndpoint) }
 
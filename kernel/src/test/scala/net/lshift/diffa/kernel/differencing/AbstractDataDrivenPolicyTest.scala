@@ -32,6 +32,7 @@ import net.lshift.diffa.kernel.events.VersionID
 import net.lshift.diffa.kernel.config._
 import net.lshift.diffa.adapter.scanning._
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
+import net.lshift.diffa.schema.servicelimits.{CommutativeScanDigests, ScanConcurrency, ServiceLimit}
 import org.junit.Assume._
 import org.junit.Assert._
 import java.util.HashMap
@@ -50,14 +51,23 @@ abstract class AbstractDataDrivenPolicyTest {
   // The policy instance under test
   protected def policy:VersionPolicy
 
+  // Whether the participants hand over the results of entity scans incrementally
+  protected def incrementalScanning = false
+
   // The various mocks for listeners and participants
-  val usMock = createStrictMock("us", classOf[UpstreamParticipant])
-  val dsMock = createStrictMock("ds", classOf[DownstreamParticipant])
+  val usMock:UpstreamParticipant =
+    if (incrementalScanning) createStrictMock("us", classOf[IncrementalUpstreamParticipant])
+    else createStrictMock("us", classOf[UpstreamParticipant])
+  val dsMock:DownstreamParticipant =
+    if (incrementalScanning) createStrictMock("ds", classOf[IncrementalDownstreamParticipant])
+    else createStrictMock("ds", classOf[DownstreamParticipant])
   EasyMock.checkOrder(usMock, false)   // Not all adapter operations are going to be strictly ordered
   EasyMock.checkOrder(dsMock, false)   // Not all adapter operations are going to be strictly ordered
 
   val nullListener = new NullDifferencingListener
-  val diagnostics = createStrictMock("diagnostics", classOf[DiagnosticsManager])
+  val diagnostics = createNiceMock("diagnostics", classOf[DiagnosticsManager])
+  expect(diagnostics.isExplaining(anyObject())).andStubReturn(true)
+  replay(diagnostics)
 
   val writer = createMock("writer", classOf[LimitedVersionCorrelationWriter])
   val extendedWriter = createMock("extendedWriter", classOf[ExtendedVersionCorrelationWriter])
@@ -66,11 +76,26 @@ abstract class AbstractDataDrivenPolicyTest {
     def apply(pair: PairRef) = store
     def remove(pair: PairRef) {}
     def close(pair: PairRef) {}
+    def commitStats(pair: PairRef) = None
     def close {}
   }
 
   val feedbackHandle = new NonCancellingFeedbackHandle
 
+  // The number of buckets that the policy may scan concurrently
+  protected def scanConcurrency = 1
+
+  // Whether the policy should compare aggregates using commutative digests
+  protected def commutativeDigests = false
+
+  val limits = new PairServiceLimitsView {
+    def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit match {
+      case ScanConcurrency        => scanConcurrency
+      case CommutativeScanDigests => if (commutativeDigests) 1 else 0
+      case _                      => limit.defaultLimit
+    }
+  }
+
   val listener = createStrictMock("listener", classOf[DifferencingListener])
   EasyMock.checkOrder(listener, false)   // Not all adapter operations are going to be strictly ordered
 
@@ -397,7 +422,7 @@ abstract class AbstractDataDrivenPolicyTest {
   }
 
   protected def expectUpstreamEntityScan(pair:PairRef, constraints:Seq[ScanConstraint], partResp:Seq[Vsn], storeResp:Seq[Vsn]) {
-    expect(usMock.scan(asUnorderedList(constraints), EasyMock.eq(Seq()))).andReturn(participantEntityResponse(partResp))
+    expectEntityScan(usMock, constraints, participantEntityResponse(partResp))
     expectUpstreamStoreQuery(pair, constraints, storeResp)
   }
   protected def expectUpstreamStoreQuery(pair:PairRef, constraints:Seq[ScanConstraint], storeResp:Seq[Vsn]) {
@@ -408,7 +433,7 @@ abstract class AbstractDataDrivenPolicyTest {
     expect(store.queryUpstreams(asUnorderedList(constraints))).andReturn(correlations)
   }
   protected def expectDownstreamEntityScan(pair:PairRef, constraints:Seq[ScanConstraint], partResp:Seq[Vsn], storeResp:Seq[Vsn]) {
-    expect(dsMock.scan(asUnorderedList(constraints), EasyMock.eq(Seq()))).andReturn(participantEntityResponse(partResp))
+    expectEntityScan(dsMock, constraints, participantEntityResponse(partResp))
     expectDownstreamStoreQuery(pair, constraints, storeResp)
   }
   protected def expectDownstreamStoreQuery(pair:PairRef, constraints:Seq[ScanConstraint], storeResp:Seq[Vsn]) {
@@ -419,6 +444,20 @@ abstract class AbstractDataDrivenPolicyTest {
     expect(store.queryDownstreams(asUnorderedList(constraints))).andReturn(correlations)
   }
 
+  protected def expectEntityScan(participant:Participant, constraints:Seq[ScanConstraint], partResp:Seq[ScanResultEntry]) {
+    participant match {
+      case incremental:IncrementalScanning if incrementalScanning =>
+        expect(incremental.scanIncrementally[Unit](asUnorderedList(constraints), EasyMock.eq(Seq()))(anyObject())).andAnswer(new IAnswer[Unit] {
+          def answer {
+            val consumer = EasyMock.getCurrentArguments()(2).asInstanceOf[Iterator[ScanResultEntry] => Unit]
+            consumer(partResp.iterator)
+          }
+        })
+      case _ =>
+        expect(participant.scan(asUnorderedList(constraints), EasyMock.eq(Seq()))).andReturn(partResp)
+    }
+  }
+
   protected def expectUpstreamEntityStore(pair:PairRef, entities:Seq[Vsn], matched:Boolean, scanId:Option[Long]) {
     entities.foreach(v => {
       val downstreamVsnToUse = if (matched) { v.vsn } else { null }   // If we're matched, make the vsn match
@@ -437,7 +476,7 @@ abstract class AbstractDataDrivenPolicyTest {
   }
 
   protected def participantDigestResponse(buckets:Seq[Bucket]):Seq[ScanResultEntry] =
-    buckets.map(b => ScanResultEntry.forAggregate(b.vsn, b.attrs))
+    buckets.map(b => ScanResultEntry.forAggregate(if (commutativeDigests) b.commutativeVsn else b.vsn, b.attrs))
   protected def participantEntityResponse(entities:Seq[Vsn]):Seq[ScanResultEntry] =
     entities.map(e => ScanResultEntry.forEntity(e.id, e.vsn, e.lastUpdated, e.strAttrs))
 
@@ -479,6 +518,9 @@ abstract class AbstractDataDrivenPolicyTest {
       }
     }
 }
+trait IncrementalUpstreamParticipant extends UpstreamParticipant with IncrementalScanning
+trait IncrementalDownstreamParticipant extends DownstreamParticipant with IncrementalScanning
+
 object AbstractDataDrivenPolicyTest {
 
   //
@@ -857,6 +899,7 @@ object AbstractDataDrivenPolicyTest {
   case class Bucket(name:String, attrs:Map[String, String], nextTx:Tx) {
     lazy val allVsns = nextTx.allVsns
     lazy val vsn = DigestUtils.md5Hex(allVsns.map(v => v.vsn).foldLeft("")(_ + _))
+    lazy val commutativeVsn = allVsns.foldLeft(new CommutativeDigest)((d, v) => d.add(v.id, v.vsn)).toHex
 
     def alterFirstVsn(newVsn:String):Bucket = Bucket(name, attrs, nextTx.alterFirstVsn(newVsn))
 
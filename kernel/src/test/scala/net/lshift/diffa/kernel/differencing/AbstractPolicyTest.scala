@@ -33,6 +33,7 @@ import net.lshift.diffa.kernel.config._
 import net.lshift.diffa.kernel.util.NonCancellingFeedbackHandle
 import net.lshift.diffa.adapter.scanning._
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
+import net.lshift.diffa.schema.servicelimits.{ScanConcurrency, ServiceLimit}
 import net.lshift.diffa.kernel.config.system.SystemConfigStore
 import net.lshift.diffa.kernel.frontend.DomainPairDef
 
@@ -61,11 +62,22 @@ abstract class AbstractPolicyTest {
     def apply(pairKey: PairRef) = store
     def remove(pairKey: PairRef) {}
     def close(pairKey: PairRef) {}
+    def commitStats(pairKey: PairRef) = None
     def close {}
   }
 
   val feedbackHandle = new NonCancellingFeedbackHandle
 
+  // The number of buckets that the policy may scan concurrently
+  protected def scanConcurrency = 1
+
+  val limits = new PairServiceLimitsView {
+    def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit match {
+      case ScanConcurrency => scanConcurrency
+      case _               => limit.defaultLimit
+    }
+  }
+
   val listener = createStrictMock("listener", classOf[DifferencingListener])
   val diffWriter = createStrictMock("diffWriter", classOf[DifferenceWriter])
 
@@ -292,6 +292,50 @@ class DefaultDifferencesManagerTest {
     assertEquals(result, manager.retrieveAggregates(pair1.asRef, start, end, Some(12 * 60)))
   }
 
+  @Test
+  def differenceWriterShouldStageReportableMismatchesAndWriteThemAsABatchOnClose() {
+    val timestamp = new DateTime()
+    val pendingId = VersionID(pair1.asRef, "id")
+    val reportableId = VersionID(pair1.asRef, "id2")
+    val evt = DifferenceEvent(
+      seqId = "123", objId = reportableId, detectedAt = timestamp,
+      state = MatchState.UNMATCHED, upstreamVsn = "uvsn", downstreamVsn = "dvsn")
+
+    expect(domainDifferenceStore.lastRecordedVersion(pair1.asRef)).andReturn(Some(5L))
+    domainDifferenceStore.addPendingUnmatchedEvent(
+      EasyMock.eq(pendingId), EasyMock.eq(timestamp), EasyMock.eq("uvsn"), EasyMock.eq("dvsn"), anyTimestamp); expectLastCall()
+    expect(domainDifferenceStore.addReportableUnmatchedEvents(
+        EasyMock.eq(pair1.asRef), EasyMock.eq(Seq(UnmatchedEventDetail(reportableId, timestamp, "uvsn", "dvsn"))), anyTimestamp)).
+      andReturn(Seq((NewUnmatchedEvent, evt)))
+    domainDifferenceStore.recordLatestVersion(pair1.asRef, 7L); expectLastCall()
+    expect(listener.onMismatch(reportableId, timestamp, "uvsn", "dvsn", TriggeredByScan, MatcherFiltered))
+    escalationHandler.initiateEscalation(evt); expectLastCall()
+    replayAll
+    replay(domainDifferenceStore, escalationHandler)
+
+    val writer = manager.createDifferenceWriter(spaceId, pair1.key, overwrite = true)
+    writer.writeMismatch(pendingId, timestamp, "uvsn", "dvsn", TriggeredByScan, 6L)
+    writer.writeMismatch(reportableId, timestamp, "uvsn", "dvsn", TriggeredByScan, 7L)
+    writer.close()
+
+    verifyAll
+    verify(domainDifferenceStore, escalationHandler)
+  }
+
+  @Test
+  def abortedDifferenceWriterShouldNotWriteStagedMismatches() {
+    expect(domainDifferenceStore.lastRecordedVersion(pair1.asRef)).andReturn(None)
+    replayAll
+    replay(domainDifferenceStore, escalationHandler)
+
+    val writer = manager.createDifferenceWriter(spaceId, pair1.key, overwrite = true)
+    writer.writeMismatch(VersionID(pair1.asRef, "id2"), new DateTime, "uvsn", "dvsn", TriggeredByScan, 1L)
+    writer.abort()
+
+    verifyAll
+    verify(domainDifferenceStore, escalationHandler)
+  }
+
   private def replayAll = replay(listener, matcher)
   private def verifyAll = verify(listener, matcher)
 }
\ No newline at end of file
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import org.junit.Test
+import org.junit.Assert._
+import org.joda.time.{DateTimeZone, DateTime}
+import net.lshift.diffa.kernel.differencing.DifferenceTileCounts._
+
+class DifferenceTileCountsTest {
+
+  val day = new DateTime(2011, 4, 12, 0, 0, 0, 0, DateTimeZone.UTC)
+
+  @Test
+  def alignedDayShouldBeReadFromASingleDailyTile {
+    val p = plan(day, day.plusDays(1))
+
+    assertEquals(Seq(TileRange(1440, Some(tileIndex(day, 1440)), Some(tileIndex(day, 1440) + 1))), p.ranges)
+    assertEquals(Seq(), p.edges)
+  }
+
+  @Test
+  def unalignedRangeShouldNarrowTowardsEitherEnd {
+    val start = day.withTime(22, 7, 30, 0)
+    val end = day.plusDays(2).withTime(1, 20, 0, 0)
+    val p = plan(start, end)
+
+    def range(width:Int, from:DateTime, until:DateTime) = TileRange(width, Some(tileIndex(from, width)), Some(tileIndex(until, width)))
+
+    assertEquals(Seq(
+      range(1, day.withTime(22, 8, 0, 0), day.withTime(22, 15, 0, 0)),
+      range(15, day.withTime(22, 15, 0, 0), day.withTime(23, 0, 0, 0)),
+      range(60, day.withTime(23, 0, 0, 0), day.plusDays(1)),
+      range(1440, day.plusDays(1), day.plusDays(2)),
+      range(60, day.plusDays(2), day.plusDays(2).withTime(1, 0, 0, 0)),
+      range(15, day.plusDays(2).withTime(1, 0, 0, 0), day.plusDays(2).withTime(1, 15, 0, 0)),
+      range(1, day.plusDays(2).withTime(1, 15, 0, 0), day.plusDays(2).withTime(1, 20, 0, 0))
+    ), p.ranges)
+    assertEquals(Seq((start, day.withTime(22, 8, 0, 0))), p.edges)
+  }
+
+  @Test
+  def rangeWithinAMinuteShouldOnlyBeCountedDirectly {
+    val start = day.withTime(9, 30, 10, 0)
+    val p = plan(start, start.plusSeconds(20))
+
+    assertEquals(Seq(), p.ranges)
+    assertEquals(Seq((start, start.plusSeconds(20))), p.edges)
+  }
+
+  @Test
+  def openEndedRangesShouldBeReadFromUnboundedDailyTiles {
+    val before = plan(null, day.withTime(6, 0, 0, 0))
+    assertEquals(Seq(
+      TileRange(1440, None, Some(tileIndex(day, 1440))),
+      TileRange(60, Some(tileIndex(day, 60)), Some(tileIndex(day, 60) + 6))
+    ), before.ranges)
+
+    val after = plan(day, null)
+    assertEquals(Seq(TileRange(1440, Some(tileIndex(day, 1440)), None)), after.ranges)
+  }
+
+  @Test
+  def tileIndexShouldRoundDownForTimesBeforeTheEpoch {
+    assertEquals(-1L, tileIndex(new DateTime(1969, 12, 31, 23, 59, 30, 0, DateTimeZone.UTC), 1))
+    assertEquals(-1L, tileIndex(new DateTime(1969, 12, 31, 0, 0, 0, 0, DateTimeZone.UTC), 1440))
+  }
+}
@@ -24,9 +24,9 @@ import net.lshift.diffa.kernel.util.FullDateTimes._
 import net.lshift.diffa.kernel.participants._
 import collection.mutable.HashMap
 import org.joda.time.DateTime
-import net.lshift.diffa.kernel.config.RangeCategoryDescriptor
+import net.lshift.diffa.kernel.config.{UnorderedCollationOrdering, RangeCategoryDescriptor}
 import scala.collection.JavaConversions._
-import net.lshift.diffa.adapter.scanning.{TimeRangeConstraint, ScanResultEntry}
+import net.lshift.diffa.adapter.scanning.{OutOfOrderException, AsciiCollation, TimeRangeConstraint, ScanResultEntry}
 
 /**
  * Test cases for the DigestDifferencingUtils object.
@@ -200,4 +200,102 @@ class DigestDifferencingUtilsTest {
     val actions = DigestDifferencingUtils.differenceAggregates(a, b, Seq(YearlyCategoryFunction("bizDateTime", TimeDataType)), Seq())
     assertEquals(HashSet(AggregateQueryAction(Seq(MonthlyCategoryFunction("bizDateTime", TimeDataType)), Seq(dateTimeRangeConstraint(JAN_1_2010, endOfDay(DEC_31_2010))))), HashSet(actions: _*))
   }
-}
\ No newline at end of file
+
+  @Test
+  def shouldReportNothingWhenMergingMatchingSortedLists {
+    val a = Seq(entity("id1", "h1"), entity("id2", "h2"))
+    val b = Seq(entity("id1", "h1"), entity("id2", "h2"))
+
+    val actions = DigestDifferencingUtils.differenceSortedEntities(dateTimeOnlyAttrs, a.iterator, b.iterator, new AsciiCollation)
+    assertEquals(0, actions.length)
+  }
+
+  @Test
+  def shouldReportMissingAndMismatchedVersionsWhenMergingSortedLists {
+    val a = Seq(entity("id1", "v1"), entity("id3", "v3"), entity("id4", "v4"), entity("id6", "v6"))
+    val b = Seq(entity("id2", "v2"), entity("id3", "v3"), entity("id4", "v4-changed"), entity("id5", "v5"))
+
+    val actions = DigestDifferencingUtils.differenceSortedEntities(dateTimeOnlyAttrs, a.iterator, b.iterator, new AsciiCollation)
+    val attributes = Map("bizDateTime" -> DateTimeAttribute(JAN_1_2010))
+    assertEquals(Seq(
+        VersionMismatch("id1", attributes, JAN_1_2010, "v1", null),
+        VersionMismatch("id2", attributes, JAN_1_2010, null, "v2"),
+        VersionMismatch("id4", attributes, JAN_1_2010, "v4", "v4-changed"),
+        VersionMismatch("id5", attributes, JAN_1_2010, null, "v5"),
+        VersionMismatch("id6", attributes, JAN_1_2010, "v6", null)),
+      actions.toSeq)
+  }
+
+  @Test
+  def shouldOnlyConsumeSortedInputsAsMismatchesAreRequested {
+    val a = Iterator(entity("id1", "v1"), entity("id2", "v2")) ++ Iterator.continually[ScanResultEntry] { fail("Should not have been read"); null }
+    val b = Iterator(entity("id2", "v2"))
+
+    val actions = DigestDifferencingUtils.differenceSortedEntities(dateTimeOnlyAttrs, a, b, new AsciiCollation)
+    assertEquals("id1", actions.next().id)
+  }
+
+  @Test
+  def shouldDetectWhetherEntitiesAreOrderedByCollation {
+    assertTrue(DigestDifferencingUtils.isOrderedBy(new AsciiCollation, Seq()))
+    assertTrue(DigestDifferencingUtils.isOrderedBy(new AsciiCollation, Seq(entity("id1", "v1"), entity("id2", "v2"))))
+    assertFalse(DigestDifferencingUtils.isOrderedBy(new AsciiCollation, Seq(entity("id2", "v2"), entity("id1", "v1"))))
+    assertFalse(DigestDifferencingUtils.isOrderedBy(new AsciiCollation, Seq(entity("id1", "v1"), entity("id1", "v1"))))
+  }
+
+  @Test
+  def shouldPassThroughEntitiesThatAreOrderedByCollation {
+    val entities = Seq(entity("id1", "v1"), entity("id2", "v2"), entity("id3", "v3"))
+
+    assertEquals(entities, DigestDifferencingUtils.checkOrderedBy(new AsciiCollation, entities.iterator).toSeq)
+  }
+
+  @Test
+  def shouldFailMergeOfOutOfOrderRemoteStreamWhenTheOffendingEntityIsReached {
+    val remote = Seq(entity("id1", "v1"), entity("id3", "v3"), entity("id2", "v2"), entity("id4", "v4"))
+    val cached = Seq(entity("id1", "v1"), entity("id2", "v2"), entity("id3", "v3"), entity("id4", "v4"))
+
+    val checked = DigestDifferencingUtils.checkOrderedBy(new AsciiCollation, remote.iterator)
+    val actions = DigestDifferencingUtils.differenceSortedEntities(dateTimeOnlyAttrs, checked, cached.iterator, new AsciiCollation)
+    try {
+      actions.toList
+      fail("Expected the out of order entity to fail the merge")
+    } catch {
+      case ex:OutOfOrderException => assertEquals("The id id2 was added after id3", ex.getMessage)
+    }
+  }
+
+  @Test
+  def shouldNeverConsiderEntitiesOrderedByTheUnorderedCollation {
+    assertFalse(DigestDifferencingUtils.isOrderedBy(UnorderedCollationOrdering, Seq(entity("id1", "v1"), entity("id2", "v2"))))
+    assertFalse(DigestDifferencingUtils.isOrderedBy(UnorderedCollationOrdering, Seq(entity("id2", "v2"), entity("id1", "v1"))))
+  }
+
+  @Test
+  def shouldPairOverlappingIdsWhenCollationIsNotAStrictOrder {
+    val a = Seq(entity("id2", "v2"), entity("id1", "v1"), entity("id3", "v3"))
+    val b = Seq(entity("id2", "v2"), entity("id1", "v1-changed"), entity("id3", "v3"))
+
+    val actions = DigestDifferencingUtils.differenceSortedEntities(dateTimeOnlyAttrs, a.iterator, b.iterator, UnorderedCollationOrdering)
+    val attributes = Map("bizDateTime" -> DateTimeAttribute(JAN_1_2010))
+    assertEquals(Seq(VersionMismatch("id1", attributes, JAN_1_2010, "v1", "v1-changed")), actions.toSeq)
+  }
+
+  @Test
+  def shouldOnlyReportGenuineDifferencesForUnorderedCollationWithOverlappingIds {
+    val a = Seq(entity("id3", "v3"), entity("id1", "v1"), entity("id2", "v2"))
+    val b = Seq(entity("id1", "v1"), entity("id4", "v4"), entity("id3", "v3-changed"))
+
+    assertFalse(DigestDifferencingUtils.isOrderedBy(UnorderedCollationOrdering, a))
+    val actions = DigestDifferencingUtils.differenceEntities(dateTimeOnlyAttrs, a, b, Seq())
+    val attributes = Map("bizDateTime" -> DateTimeAttribute(JAN_1_2010))
+    assertEquals(HashSet(
+        VersionMismatch("id3", attributes, JAN_1_2010, "v3", "v3-changed"),
+        VersionMismatch("id2", attributes, JAN_1_2010, "v2", null),
+        VersionMismatch("id4", attributes, JAN_1_2010, null, "v4")),
+      HashSet(actions: _*))
+  }
+
+  private def entity(id:String, vsn:String) =
+    ScanResultEntry.forEntity(id, vsn, JAN_1_2010, Map("bizDateTime" -> JAN_1_2010.toString()))
+}
@@ -11,6 +11,8 @@ import org.junit.{Ignore, Test}
 import net.lshift.diffa.kernel.config.PairRef
 import net.lshift.diffa.schema.environment.TestDatabaseEnvironments
 import net.lshift.diffa.kernel.StoreReferenceContainer
+import net.lshift.diffa.kernel.frontend.{PairDef, EndpointDef}
+import org.apache.commons.lang.RandomStringUtils
 
 /**
  * Performance test for the domain cache.
@@ -23,7 +25,7 @@ class DomainDifferenceStorePerfTest {
 
   @Test
   def differenceInsertionShouldBeConstantTime() {
-    val pair = PairRef(name = "pair", space = System.currentTimeMillis())
+    val Seq(pair) = createPairs("pair")
 
     runPerformanceTest(4) { count =>
       linearCost(count)(() => {
@@ -34,9 +36,48 @@ class DomainDifferenceStorePerfTest {
     }
   }
 
+  @Test
+  def batchedDifferenceInsertionShouldBeConstantTime() {
+    val Seq(pair) = createPairs("pair")
+
+    runPerformanceTest(5) { count =>
+      linearCost(count)(() => {
+        val events = (0L until count).map(j => UnmatchedEventDetail(VersionID(pair, "id" + j), new DateTime, "uV", "dV"))
+        diffStore.addReportableUnmatchedEvents(pair, events, new DateTime)
+      })
+    }
+  }
+
+  @Test
+  def batchedDifferenceInsertionShouldBeCheaperThanIndividualInsertion() {
+    val Seq(pair) = createPairs("pair")
+    val count = 10000L
+
+    diffStore.clearAllDifferences
+    val (individualDuration, individualCost) = linearCost(count)(() => {
+      for (j <- 0L until count) {
+        diffStore.addReportableUnmatchedEvent(VersionID(pair, "id" + j), new DateTime, "uV", "dV", new DateTime)
+      }
+    })
+
+    diffStore.clearAllDifferences
+    val (batchedDuration, batchedCost) = linearCost(count)(() => {
+      val events = (0L until count).map(j => UnmatchedEventDetail(VersionID(pair, "id" + j), new DateTime, "uV", "dV"))
+      diffStore.addReportableUnmatchedEvents(pair, events, new DateTime)
+    })
+
+    println("Mode,Total,Per Event")
+    println("individual," + individualDuration + "," + individualCost)
+    println("batched," + batchedDuration + "," + batchedCost)
+
+    assertTrue(
+      "Batched cost %s per event was not less than half of the individual cost %s".format(batchedCost, individualCost),
+      batchedCost < individualCost / 2)
+  }
+
   @Test
   def differenceUpgradingShouldBeConstantTime() {
-    val pair = PairRef(name = "pair",space = System.currentTimeMillis())
+    val Seq(pair) = createPairs("pair")
 
     runPerformanceTest(4) { count =>
       linearCost(count)(() => {
@@ -52,7 +93,7 @@ class DomainDifferenceStorePerfTest {
 
   @Test
   def matchInsertionShouldBeConstantTime() {
-    val pair = PairRef(name = "pair", space = System.currentTimeMillis())
+    val Seq(pair) = createPairs("pair")
 
     runPerformanceTest(4) { count =>
       for (j <- 0L until count) {
@@ -68,8 +109,7 @@ class DomainDifferenceStorePerfTest {
 
   @Test
   def differenceQueryShouldGrowLinearlyAsDifferencesIncrease() {
-    val pair = PairRef(name = "pair", space = System.currentTimeMillis())
-    val pair2 = PairRef(name = "pair2", space = System.currentTimeMillis())
+    val Seq(pair, pair2) = createPairs("pair", "pair2")
 
     runPerformanceTest(4) { count =>
       for (j <- 0L until count) {
@@ -87,8 +127,7 @@ class DomainDifferenceStorePerfTest {
   @Test
   @Ignore("detectedAt index doesn't appear to be correcting this")
   def differenceQueryShouldRemainConstantForSameNumberOfDifferences() {
-    val pair = PairRef(name = "pair", space = System.currentTimeMillis())
-    val pair2 = PairRef(name = "pair2", space = System.currentTimeMillis())
+    val Seq(pair, pair2) = createPairs("pair", "pair2")
 
     runPerformanceTest(4, offset = 3) { count =>
       val now = new DateTime()
@@ -115,8 +154,7 @@ class DomainDifferenceStorePerfTest {
 
   @Test
   def oldMismatchesShouldBeAbleToBeExpiredInConstantTime() {
-    val pair = PairRef(name = "pair", space = System.currentTimeMillis())
-    val pair2 = PairRef(name = "pair2", space = System.currentTimeMillis())
+    val Seq(pair, pair2) = createPairs("pair", "pair2")
 
     runPerformanceTest(4) { count =>
       val now = new DateTime()
@@ -145,6 +183,19 @@ class DomainDifferenceStorePerfTest {
   // Support Methods
   //
 
+  def createPairs(names:String*) = {
+    val space = storeReferences.systemConfigStore.createOrUpdateSpace(RandomStringUtils.randomAlphanumeric(10))
+
+    storeReferences.domainConfigStore.createOrUpdateEndpoint(space.id, EndpointDef(name = "upstream"))
+    storeReferences.domainConfigStore.createOrUpdateEndpoint(space.id, EndpointDef(name = "downstream"))
+
+    names.map(name => {
+      storeReferences.domainConfigStore.createOrUpdatePair(space.id,
+        PairDef(key = name, upstreamName = "upstream", downstreamName = "downstream"))
+      PairRef(name = name, space = space.id)
+    })
+  }
+
   def runPerformanceTest(growth:Int, offset:Int = 1)(f:(Long) => (Long, Double)) {
     // Run the tests, and record the cost per operation at each growth rate
     println("Events,Total,Per Event")
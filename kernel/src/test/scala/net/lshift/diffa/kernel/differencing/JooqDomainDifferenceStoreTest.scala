@@ -29,12 +29,11 @@ import org.hibernate.dialect.Dialect
 import net.lshift.diffa.schema.environment.TestDatabaseEnvironments
 import net.lshift.diffa.kernel.StoreReferenceContainer
 import net.lshift.hibernate.migrations.dialects.DialectExtensionSelector
-import org.jooq.exception.DataAccessException
-import java.sql.SQLIntegrityConstraintViolationException
 import collection.mutable.ListBuffer
 import scala.collection.JavaConversions._
 import net.lshift.diffa.kernel.frontend.{RepairActionDef, EscalationDef, EndpointDef, PairDef}
 import org.apache.commons.lang.RandomStringUtils
+import net.lshift.diffa.schema.Tables.PENDING_DIFFS
 
 /**
  * Test cases for the JooqDomainDifferenceStore.
@@ -132,6 +131,58 @@ class JooqDomainDifferenceStoreTest {
     assertEquals("dV2", unmatched.head.downstreamVsn)
   }
 
+  @Test
+  def shouldOnlyPersistPendingEventsThatSurviveUntilACheckpoint() {
+    val timestamp = currentDateTime
+    val pair = PairRef("pair1", space.id)
+    domainDiffStore.addPendingUnmatchedEvent(VersionID(pair, "cancelled"), timestamp, "uV", "dV", timestamp)
+    domainDiffStore.addPendingUnmatchedEvent(VersionID(pair, "matched"), timestamp, "uV", "dV", timestamp)
+    domainDiffStore.addPendingUnmatchedEvent(VersionID(pair, "survivor"), timestamp, "uV", "dV", timestamp)
+
+    domainDiffStore.cancelPendingUnmatchedEvent(VersionID(pair, "cancelled"), "uV")
+    domainDiffStore.addMatchedEvent(VersionID(pair, "matched"), "uV")
+    assertEquals(0, countPendingRows)
+
+    domainDiffStore.checkpointPendingEvents(false)
+    assertEquals(0, countPendingRows)   // The survivor hasn't been pending for long enough yet
+
+    domainDiffStore.checkpointPendingEvents(true)
+    assertEquals(1, countPendingRows)
+    assertEquals(0, domainDiffStore.pendingBuffer.size)
+  }
+
+  @Test
+  def shouldUpdateAndUpgradeCheckpointedPendingEventsAfterCachesAreLost() {
+    val timestamp = currentDateTime
+    val id = VersionID(PairRef("pair1", space.id), "id1")
+    domainDiffStore.addPendingUnmatchedEvent(id, timestamp, "uV", "dV", timestamp)
+    domainDiffStore.checkpointPendingEvents(true)
+    domainDiffStore.reset
+
+    domainDiffStore.addPendingUnmatchedEvent(id, timestamp, "uV2", "dV2", timestamp)
+    domainDiffStore.reset
+    domainDiffStore.upgradePendingUnmatchedEvent(id)
+
+    val interval = new Interval(timestamp.minusDays(1), timestamp.plusDays(1))
+    val unmatched = domainDiffStore.retrieveUnmatchedEvents(space.id, interval)
+    assertEquals(Seq(id), unmatched.map(_.objId))
+    assertEquals("uV2", unmatched.head.upstreamVsn)
+    assertEquals(0, countPendingRows)
+  }
+
+  @Test
+  def shouldCancelCheckpointedPendingEvents() {
+    val timestamp = currentDateTime
+    val id = VersionID(PairRef("pair1", space.id), "id1")
+    domainDiffStore.addPendingUnmatchedEvent(id, timestamp, "uV", "dV", timestamp)
+    domainDiffStore.checkpointPendingEvents(true)
+
+    assertFalse(domainDiffStore.cancelPendingUnmatchedEvent(id, "uV-different"))
+    assertTrue(domainDiffStore.cancelPendingUnmatchedEvent(id, "dV"))
+    assertEquals(0, countPendingRows)
+    assertNull(domainDiffStore.upgradePendingUnmatchedEvent(id))
+  }
+
   @Test
   def shouldIgnoreUpgradeRequestWhenPendingEventHasBeenUpgradedAlready() {
     val timestamp = new DateTime()
@@ -180,6 +231,84 @@ class JooqDomainDifferenceStoreTest {
     assertEquals("dV", unmatched.head.downstreamVsn)
   }
 
+  @Test
+  def shouldPublishABatchOfReportableUnmatchedEvents() {
+    val timestamp = currentDateTime
+    val pair = PairRef("pair2", space.id)
+    val results = domainDiffStore.addReportableUnmatchedEvents(pair,
+      (1 to 3).map(i => UnmatchedEventDetail(VersionID(pair, "id" + i), timestamp, "uV" + i, "dV" + i)), timestamp)
+
+    assertEquals(Seq(NewUnmatchedEvent, NewUnmatchedEvent, NewUnmatchedEvent), results.map(_._1))
+
+    val interval = new Interval(timestamp.minusDays(1), timestamp.plusDays(1))
+    val unmatched = domainDiffStore.retrieveUnmatchedEvents(space.id, interval).sortBy(_.objId.id)
+    assertEquals(results.map(_._2.seqId).sorted, unmatched.map(_.seqId).sorted)
+    assertEquals(Seq("id1", "id2", "id3"), unmatched.map(_.objId.id))
+    assertEquals(Seq("uV1", "uV2", "uV3"), unmatched.map(_.upstreamVsn))
+    assertEquals(Seq("dV1", "dV2", "dV3"), unmatched.map(_.downstreamVsn))
+    assertTrue(unmatched.forall(_.state == MatchState.UNMATCHED))
+  }
+
+  @Test
+  def batchOfReportableUnmatchedEventsShouldApplySameTransitionsAsIndividualEvents() {
+    val timestamp = currentDateTime
+    val later = timestamp.plusMinutes(1)
+    val pair = PairRef("pair1", space.id)
+
+    val (_, unchanged) = domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "unchanged"), timestamp, "uV", "dV", timestamp)
+    val (_, updated) = domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "updated"), timestamp, "uV", "dV", timestamp)
+    val (_, matched) = domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "returned"), timestamp, "uV", "dV", timestamp)
+    domainDiffStore.addMatchedEvent(VersionID(pair, "returned"), "uV")
+
+    // Flush the cache so that the existing events have to be looked up from the database
+    domainDiffStore.reset
+
+    val results = domainDiffStore.addReportableUnmatchedEvents(pair, Seq(
+      UnmatchedEventDetail(VersionID(pair, "unchanged"), timestamp, "uV", "dV"),
+      UnmatchedEventDetail(VersionID(pair, "updated"), timestamp, "uV2", "dV"),
+      UnmatchedEventDetail(VersionID(pair, "returned"), timestamp, "uV", "dV"),
+      UnmatchedEventDetail(VersionID(pair, "new"), timestamp, "uV", "dV"),
+      UnmatchedEventDetail(VersionID(pair, "new"), timestamp, "uV3", "dV")), later)
+
+    assertEquals(Seq(UnchangedUnmatchedEvent, UpdatedUnmatchedEvent, ReturnedUnmatchedEvent, NewUnmatchedEvent, UpdatedUnmatchedEvent),
+      results.map(_._1))
+    assertEquals(unchanged.seqId, results(0)._2.seqId)
+    assertTrue(updated.seqId.toLong < results(1)._2.seqId.toLong)
+    assertTrue(matched.seqId.toLong < results(2)._2.seqId.toLong)
+
+    val interval = new Interval(timestamp.minusDays(1), timestamp.plusDays(1))
+    val unmatched = domainDiffStore.retrieveUnmatchedEvents(space.id, interval).map(e => e.objId.id -> e).toMap
+    assertEquals(Set("unchanged", "updated", "returned", "new"), unmatched.keySet)
+    assertEquals(later, unmatched("unchanged").lastSeen)
+    assertEquals("uV2", unmatched("updated").upstreamVsn)
+    assertEquals(results(2)._2.seqId, unmatched("returned").seqId)
+    assertEquals("uV3", unmatched("new").upstreamVsn)
+  }
+
+  @Test
+  def batchShouldFailWhenAPreviouslyReportedEventIsNoLongerStored() {
+    val timestamp = currentDateTime
+    val pair = PairRef("pair2", space.id)
+    val id = VersionID(pair, "stale")
+    domainDiffStore.addReportableUnmatchedEvent(id, timestamp, "uV", "dV", timestamp)
+
+    // Leave the cache holding a sequence id that no longer identifies the stored event
+    val cached = domainDiffStore.reportedEvents.get(id)
+    domainDiffStore.reportedEvents.put(id, cached.copy(seqId = cached.seqId + 1000000))
+
+    try {
+      domainDiffStore.addReportableUnmatchedEvents(pair, Seq(UnmatchedEventDetail(id, timestamp, "uV2", "dV")), timestamp)
+      fail("Expected the batch to fail since the event to update wasn't found")
+    } catch {
+      case e:IllegalStateException => // expected
+    }
+
+    // The stale entry has been evicted, so a retry finds the stored event
+    val results = domainDiffStore.addReportableUnmatchedEvents(pair,
+      Seq(UnmatchedEventDetail(id, timestamp, "uV2", "dV")), timestamp)
+    assertEquals(Seq(UpdatedUnmatchedEvent), results.map(_._1))
+  }
+
   @Test(expected = classOf[IllegalArgumentException])
   def shouldNotBeAbleToIgnoreDifferenceViaWrongDomain() {
     val timestamp = new DateTime()
@@ -424,6 +553,68 @@ class JooqDomainDifferenceStoreTest {
 
   }
 
+  @Test
+  def shouldPageReportableUnmatchedEventsByCursor() {
+    val start = new DateTime(1982, 5, 5, 14, 15, 19, 0)
+    val interval = addUnmatchedEvents(start, 100, 20, 50)
+    val pair = PairRef("pair2", space.id)
+
+    val firstPage = domainDiffStore.retrieveEventsAfter(pair, interval, None, 19)
+    assertEquals(19, firstPage.length)
+    assertEquals((21 to 39).map("id" + _), firstPage.map(_.objId.id))
+
+    val secondPage = domainDiffStore.retrieveEventsAfter(pair, interval, Some(DifferenceCursor.after(firstPage.last)), 19)
+    assertEquals((40 to 50).map("id" + _), secondPage.map(_.objId.id))
+
+    // The offset based pages should agree with the cursor based ones
+    assertEquals(firstPage.map(_.seqId), domainDiffStore.retrievePagedEvents(pair, interval, 0, 19).map(_.seqId))
+    assertEquals(secondPage.map(_.seqId), domainDiffStore.retrievePagedEvents(pair, interval, 19, 19).map(_.seqId))
+  }
+
+  @Test
+  def shouldPageByCursorThroughEventsDetectedAtTheSameTime() {
+    val timestamp = new DateTime(2008, 3, 1, 9, 30, 0, 0)
+    val pair = PairRef("pair2", space.id)
+    for (i <- 1 to 5) {
+      domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "id" + i), timestamp, "uV", "dV", timestamp)
+    }
+    val interval = new Interval(timestamp.minusMinutes(1), timestamp.plusMinutes(1))
+
+    val firstPage = domainDiffStore.retrieveEventsAfter(pair, interval, None, 2)
+    val secondPage = domainDiffStore.retrieveEventsAfter(pair, interval, Some(DifferenceCursor.after(firstPage.last)), 2)
+    val lastPage = domainDiffStore.retrieveEventsAfter(pair, interval, Some(DifferenceCursor.after(secondPage.last)), 2)
+
+    assertEquals((1 to 5).map("id" + _), (firstPage ++ secondPage ++ lastPage).map(_.objId.id))
+  }
+
+  @Test
+  def cursorPageShouldNotShiftWhenEarlierEventsAreAdded() {
+    val start = new DateTime(1982, 5, 5, 14, 15, 19, 0)
+    val interval = addUnmatchedEvents(start, 100, 20, 50)
+    val pair = PairRef("pair2", space.id)
+
+    val firstPage = domainDiffStore.retrieveEventsAfter(pair, interval, None, 10)
+    val cursor = DifferenceCursor.after(firstPage.last)
+    val secondPage = domainDiffStore.retrieveEventsAfter(pair, interval, Some(cursor), 10)
+
+    val earlier = interval.getStart.plusSeconds(30)
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "early"), earlier, "uV", "dV", earlier)
+
+    assertEquals(secondPage.map(_.seqId), domainDiffStore.retrieveEventsAfter(pair, interval, Some(cursor), 10).map(_.seqId))
+  }
+
+  @Test
+  def cursorShouldRoundTripThroughItsEncoding() {
+    val cursor = DifferenceCursor(new DateTime(2008, 3, 1, 9, 30, 0, 123), 4567L)
+    assertEquals(cursor.detectedAt.getMillis, DifferenceCursor.decode(cursor.encode).detectedAt.getMillis)
+    assertEquals(cursor.seqId, DifferenceCursor.decode(cursor.encode).seqId)
+  }
+
+  @Test(expected = classOf[IllegalArgumentException])
+  def shouldRejectMalformedCursor() {
+    DifferenceCursor.decode("not-a-cursor")
+  }
+
   @Test
   def shouldNotPublishAnIgnoredReportableUnmatchedEventInPagedEventQuery() {
     val timestamp = new DateTime()
@@ -675,6 +866,36 @@ class JooqDomainDifferenceStoreTest {
     assertEquals(0, events.length)
   }
 
+  @Test
+  def shouldExpireMatchesInBatchesAndOnlyEvictExpiredEvents() {
+    val timestamp = new DateTime()
+    val pair = PairRef("pair2", space.id)
+    val matchCount = domainDiffStore.expiryBatchSize + 10
+
+    domainDiffStore.addReportableUnmatchedEvents(pair,
+      (1 to matchCount).map(i => UnmatchedEventDetail(VersionID(pair, "m" + i), timestamp, "uV", "dV")), timestamp)
+    val matches = (1 to matchCount).map(i => domainDiffStore.addMatchedEvent(VersionID(pair, "m" + i), "uV"))
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "u1"), timestamp, "uV", "dV", timestamp)
+
+    domainDiffStore.expireMatches(timestamp.plusSeconds(1))
+
+    val expiredIds = (1 to matchCount).map(i => VersionID(pair, "m" + i))
+    assertTrue(expiredIds.forall(id => domainDiffStore.reportedEvents.get(id) == null))
+    assertNotNull(domainDiffStore.reportedEvents.get(VersionID(pair, "u1")))
+
+    Seq(matches.head, matches.last).foreach(m => {
+      try {
+        domainDiffStore.getEvent(space.id, m.seqId)
+        fail("Match " + m.objId + " should have been expired")
+      } catch {
+        case e:InvalidSequenceNumberException => assertEquals(m.seqId, e.id)
+      }
+    })
+
+    val interval = new Interval(timestamp.minusDays(1), timestamp.plusDays(1))
+    assertEquals(Seq(VersionID(pair, "u1")), domainDiffStore.retrieveUnmatchedEvents(space.id, interval).map(_.objId))
+  }
+
   @Test
   def shouldRemoveEventsWhenPairIsRemoved() {
     val timestamp = new DateTime()
@@ -776,11 +997,9 @@ class JooqDomainDifferenceStoreTest {
 
     try {
       domainDiffStore.addPendingUnmatchedEvent(VersionID(PairRef("nonexistent-pair2", space.id), "id1"), lastUpdate, "uV", "dV", seen)
-      fail("No DataAccessException was thrown")
+      fail("No IllegalStateException was thrown")
     } catch {
-      case e: DataAccessException =>
-        assertTrue("Cause must be an SQLIntegrityConstraintViolationException",
-          e.getCause.isInstanceOf[SQLIntegrityConstraintViolationException])
+      case e: IllegalStateException => assertTrue("Cause must be due to non-existent pair", e.getMessage.contains("No extent for pair"))
     }
   }
 
@@ -894,6 +1113,88 @@ class JooqDomainDifferenceStoreTest {
     assertEquals("Expected tile set not in range at zoom level %s;".format(zoomLevel), expectedTiles, tileGroup.get.tiles)
   }
 
+  @Test
+  def ignoringAndUnignoringEventsShouldUpdateAggregates() {
+    val timestamp = new DateTime(2011, 4, 12, 10, 20, 0, 0, DateTimeZone.UTC)
+    val pair = PairRef("pair1", space.id)
+    val day = (timestamp.withTimeAtStartOfDay, timestamp.withTimeAtStartOfDay.plusDays(1))
+
+    domainDiffStore.clearAllDifferences
+
+    val (_, evt) = domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "ig1"), timestamp, "uV", "dV", timestamp)
+    assertEquals(1, domainDiffStore.retrieveAggregates(pair, day._1, day._2, None).head.count)
+
+    val ignored = domainDiffStore.ignoreEvent(space.id, evt.seqId)
+    assertEquals(0, domainDiffStore.retrieveAggregates(pair, day._1, day._2, None).head.count)
+
+    domainDiffStore.unignoreEvent(space.id, ignored.seqId)
+    assertEquals(1, domainDiffStore.retrieveAggregates(pair, day._1, day._2, None).head.count)
+  }
+
+  @Test
+  def batchOfReportableUnmatchedEventsShouldUpdateAggregates() {
+    val timestamp = new DateTime(2011, 4, 12, 10, 20, 0, 0, DateTimeZone.UTC)
+    val pair = PairRef("pair1", space.id)
+
+    domainDiffStore.clearAllDifferences
+
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "moved"), timestamp, "uV", "dV", timestamp)
+    domainDiffStore.reset
+
+    domainDiffStore.addReportableUnmatchedEvents(pair, Seq(
+      UnmatchedEventDetail(VersionID(pair, "moved"), timestamp.plusHours(2), "uV2", "dV2"),
+      UnmatchedEventDetail(VersionID(pair, "new1"), timestamp, "uV", "dV"),
+      UnmatchedEventDetail(VersionID(pair, "new2"), timestamp.plusMinutes(5), "uV", "dV")
+    ), timestamp)
+
+    val hours = domainDiffStore.retrieveAggregates(pair, timestamp.withMinuteOfHour(0), timestamp.withMinuteOfHour(0).plusHours(3), Some(60))
+    assertEquals(Seq(2, 0, 1), hours.map(_.count))
+  }
+
+  @Test
+  def aggregatesShouldCountEventsInUnalignedRanges() {
+    val timestamp = new DateTime(2011, 4, 12, 10, 20, 30, 0, DateTimeZone.UTC)
+    val pair = PairRef("pair1", space.id)
+
+    domainDiffStore.clearAllDifferences
+
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "u1"), timestamp, "uV", "dV", timestamp)
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "u2"), timestamp.plusSeconds(20), "uV", "dV", timestamp)
+    domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "u3"), timestamp.plusHours(26), "uV", "dV", timestamp)
+
+    def count(start:DateTime, end:DateTime) = domainDiffStore.retrieveAggregates(pair, start, end, None).head.count
+
+    assertEquals(2, count(timestamp.minusSeconds(1), timestamp.plusSeconds(21)))
+    assertEquals(1, count(timestamp.plusSeconds(1), timestamp.plusDays(1)))
+    assertEquals(3, count(timestamp.minusDays(3).plusSeconds(7), timestamp.plusDays(3).plusSeconds(7)))
+    assertEquals(2, count(null, timestamp.plusHours(1)))
+    assertEquals(2, count(timestamp.plusSeconds(10), null))
+  }
+
+  @Test
+  def rebuiltTileCountsShouldMatchIncrementallyMaintainedCounts() {
+    val start = new DateTime(2011, 4, 12, 0, 0, 0, 0, DateTimeZone.UTC)
+    val pair = PairRef("pair1", space.id)
+
+    domainDiffStore.clearAllDifferences
+
+    for (i <- 1 to 40) {
+      val detectedAt = start.plusMinutes(i * 35)
+      domainDiffStore.addReportableUnmatchedEvent(VersionID(pair, "r" + i), detectedAt, "uV", "dV", detectedAt)
+    }
+    (1 to 40 by 3).foreach(i => domainDiffStore.addMatchedEvent(VersionID(pair, "r" + i), "uV"))
+
+    val maintained = domainDiffStore.retrieveAggregates(pair, start, start.plusDays(1), Some(15))
+    storeReferences.facade.execute(t => domainDiffStore.tileCounts.rebuild(t))
+    val rebuilt = domainDiffStore.retrieveAggregates(pair, start, start.plusDays(1), Some(15))
+
+    assertEquals(maintained, rebuilt)
+    assertEquals(40 - (1 to 40 by 3).size, rebuilt.map(_.count).sum)
+  }
+
+  def countPendingRows = storeReferences.facade.execute(t =>
+    t.selectCount().from(PENDING_DIFFS).fetchOne().getValue(0).asInstanceOf[Int])
+
   def retrieveEventTiles(pair:PairRef, zoomLevel:Int, timestamp:DateTime) = {
     val alignedTimespan = ZoomLevels.containingTileGroupInterval(timestamp, zoomLevel)
     val aggregateMinutes = ZoomLevels.lookupZoomLevel(zoomLevel)
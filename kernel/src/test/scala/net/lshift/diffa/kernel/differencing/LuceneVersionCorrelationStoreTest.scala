@@ -39,6 +39,9 @@ import net.lshift.diffa.kernel.util.{CategoryChange, UpstreamEndpoint}
 import net.lshift.diffa.kernel.config._
 import org.junit.{Ignore, Before, Test}
 import net.lshift.diffa.kernel.frontend.DomainPairDef
+import org.apache.commons.codec.digest.DigestUtils
+import net.lshift.diffa.schema.configs.CorrelationStoreShards
+import net.lshift.diffa.schema.servicelimits.ServiceLimit
 
 /**
  * Test cases for the Hibernate backed VersionCorrelationStore.
@@ -587,6 +590,21 @@ class LuceneVersionCorrelationStoreTest {
     assertEquals(0, reopenedStore.unmatchedVersions(Seq(), Seq(), None).length)
   }
 
+  @Test
+  def factoryShouldReportCommitStatisticsOfOpenStores = {
+    val before = stores.commitStats(pair).get
+
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), emptyAttributes, DEC_31_2009, "upstreamVsn", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), emptyAttributes, DEC_31_2009, "upstreamVsn", None)
+    writer.flush()
+
+    val after = stores.commitStats(pair).get
+    assertEquals(before.commits + 1, after.commits)
+    assertEquals(before.committedUpdates + 2, after.committedUpdates)
+    assertEquals(None, stores.commitStats(PairRef("unopened", 123L)))
+  }
+
   @Test
   def shouldAllowCategoriesToBeAddedWhenEmpty() {
     store.ensureUpgradeable(UpstreamEndpoint,
@@ -704,6 +722,130 @@ class LuceneVersionCorrelationStoreTest {
     }
   }
 
+  @Test
+  def cachedDigestsShouldReflectFlushedChanges() {
+    val writer = store.openWriter()
+    val bucketing = Seq(DailyCategoryFunction("bizDateTime", TimeDataType))
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), bizDateTimeMap(JUL_1_2010_1), DEC_31_2009, "v1", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), bizDateTimeMap(JUL_1_2010_1), DEC_31_2009, "v2", None)
+    writer.flush()
+
+    val initial = store.upstreamDigests(bucketing, dateTimeConstraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    assertEquals(initial, store.upstreamDigests(bucketing, dateTimeConstraints, AsciiCollationOrdering, DigestMode.ORDERED))
+    assertEquals(1, store.writer.digestCache.size)
+
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), bizDateTimeMap(JUL_1_2010_1), DEC_31_2009, "v2-updated", None)
+    writer.flush()
+    val updated = store.upstreamDigests(bucketing, dateTimeConstraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    assertFalse(initial == updated)
+    assertEquals(aggregateUpstreams(bucketing, dateTimeConstraints), updated)
+
+    writer.clearUpstreamVersion(VersionID(pair, "id2"), None)
+    writer.flush()
+    assertEquals(aggregateUpstreams(bucketing, dateTimeConstraints),
+      store.upstreamDigests(bucketing, dateTimeConstraints, AsciiCollationOrdering, DigestMode.ORDERED))
+  }
+
+  @Test
+  def cachedCommutativeDigestsShouldBeMaintainedInPlace() {
+    val writer = store.openWriter()
+    val bucketing = Seq(DailyCategoryFunction("bizDateTime", TimeDataType))
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), bizDateTimeMap(JUL_1_2010_1), DEC_31_2009, "v1", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), bizDateTimeMap(JUL_1_2010_1), DEC_31_2009, "v2", None)
+    writer.flush()
+    store.upstreamDigests(bucketing, dateTimeConstraints, AsciiCollationOrdering, DigestMode.COMMUTATIVE)
+
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), bizDateTimeMap(JUL_1_2010_1), DEC_31_2009, "v2-updated", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id3"), bizDateTimeMap(JUL_1_2010_1.plusDays(1)), DEC_31_2009, "v3", None)
+    writer.clearUpstreamVersion(VersionID(pair, "id1"), None)
+    writer.flush()
+
+    assertEquals(1, store.writer.digestCache.size)
+    assertEquals(aggregateUpstreams(bucketing, dateTimeConstraints, DigestMode.COMMUTATIVE).toSet,
+      store.upstreamDigests(bucketing, dateTimeConstraints, AsciiCollationOrdering, DigestMode.COMMUTATIVE).toSet)
+  }
+
+  @Test
+  def cachedDigestsShouldNotReflectUnflushedChanges() {
+    val writer = store.openWriter()
+    writer.storeDownstreamVersion(VersionID(pair, "id1"), intMap(2500), DEC_31_2009, "u1", "d1", None)
+    writer.flush()
+
+    val initial = store.downstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    writer.storeDownstreamVersion(VersionID(pair, "id1"), intMap(2500), DEC_31_2009, "u1", "d1-updated", None)
+    assertEquals(initial, store.downstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.ORDERED))
+
+    writer.flush()
+    assertFalse(initial == store.downstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.ORDERED))
+  }
+
+  @Test
+  def changesToOneSideShouldNotInvalidateDigestsOfTheOtherSide() {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), intMap(2500), DEC_31_2009, "u1", None)
+    writer.flush()
+
+    store.upstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    writer.storeDownstreamVersion(VersionID(pair, "id1"), intMap(2500), DEC_31_2009, "u1", "d1", None)
+    writer.flush()
+
+    assertEquals(1, store.writer.digestCache.size)
+  }
+
+  @Test
+  def shouldCacheDigestsForEachDigestModeSeparately() {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), intMap(2500), DEC_31_2009, "u1", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), intMap(2500), DEC_31_2009, "u2", None)
+    writer.flush()
+
+    val ordered = store.upstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    val commutative = store.upstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.COMMUTATIVE)
+
+    assertEquals(2, store.writer.digestCache.size)
+    assertEquals(Seq(DigestUtils.md5Hex("u1" + "u2")), ordered.map(_.getVersion))
+    assertEquals(Seq(new CommutativeDigest().add("id2", "u2").add("id1", "u1").toHex), commutative.map(_.getVersion))
+  }
+
+  @Test
+  def resetShouldDiscardCachedDigests() {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), intMap(2500), DEC_31_2009, "u1", None)
+    writer.flush()
+
+    store.upstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    store.reset
+
+    assertEquals(0, store.writer.digestCache.size)
+    assertEquals(Seq(), store.upstreamDigests(Seq(), intConstraints, AsciiCollationOrdering, DigestMode.ORDERED))
+  }
+
+  @Theory
+  def cachedDigestsShouldOnlyBeInvalidatedByChangesWithinTheirConstraints(system:AttributeSystem) {
+    val writer = store.openWriter()
+    writer.storeUpstreamVersion(VersionID(pair, "id1"), system.includedAttrs, DEC_31_2009, "v1", None)
+    writer.flush()
+    store.upstreamDigests(Seq(), system.constraints, AsciiCollationOrdering, DigestMode.ORDERED)
+
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), system.excludedAttrs, DEC_31_2009, "v2", None)
+    writer.flush()
+    assertEquals(1, store.writer.digestCache.size)
+
+    writer.storeUpstreamVersion(VersionID(pair, "id2"), system.includedAttrs, DEC_31_2009, "v2", None)
+    writer.flush()
+    assertEquals(0, store.writer.digestCache.size)
+    assertEquals(aggregateUpstreams(Seq(), system.constraints),
+      store.upstreamDigests(Seq(), system.constraints, AsciiCollationOrdering, DigestMode.ORDERED))
+  }
+
+  private def aggregateUpstreams(bucketing:Seq[ScanAggregation], constraints:Seq[ScanConstraint],
+                                 mode:DigestMode = DigestMode.ORDERED) = {
+    val builder = new DigestBuilder(bucketing, AsciiCollationOrdering, mode)
+    store.queryUpstreams(constraints, (id:VersionID, attributes:Map[String, String], lastUpdate:DateTime, vsn:String) =>
+      builder.add(id.id, attributes, vsn))
+    builder.toDigests.toSeq
+  }
+
   private def assertCorrelationEquals(expected:Correlation, actual:Correlation) {
     if (expected == null) {
       assertNull(actual)
@@ -751,6 +893,9 @@ object LuceneVersionCorrelationStoreTest {
   EasyMock.expect(dummyConfigStore.
     maybeSystemConfigOption(VersionCorrelationStore.schemaVersionKey)).
     andStubReturn(Some(VersionCorrelationStore.currentSchemaVersion.toString))
+  EasyMock.expect(dummyConfigStore.
+    systemConfigOptionOrDefault(CorrelationStoreShards.key, CorrelationStoreShards.defaultValue)).
+    andStubReturn(CorrelationStoreShards.defaultValue)
 
   Map(pair -> AsciiCollationOrdering.name,
     pairWithUnicodeOrder -> UnicodeCollationOrdering.name).foreach {
@@ -776,8 +921,12 @@ object LuceneVersionCorrelationStoreTest {
   val dummyDiagnostics = EasyMock.createNiceMock(classOf[DiagnosticsManager])
   EasyMock.replay(dummyDiagnostics)
 
+  val defaultLimits = new PairServiceLimitsView {
+    def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit.defaultLimit
+  }
+
   val stores = new LuceneVersionCorrelationStoreFactory("target", dummyConfigStore,
-    dummyDomainConfigStore, dummyDiagnostics)
+    dummyDomainConfigStore, dummyDiagnostics, defaultLimits)
 
   // Helper methods for various constraint/attribute scenarios
   def bizDateTimeSeq(d:DateTime) = Seq(d.toString())
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import org.junit.Test
+import org.junit.Assert._
+import org.joda.time.DateTime
+import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.events.VersionID
+
+class PendingDifferenceBufferTest {
+
+  val buffer = new PendingDifferenceBuffer(maxAgeMillis = 1000)
+  val pair = PairRef("p1", 1L)
+
+  def pending(id:String, vsn:String) = PendingDifferenceEvent(1L, VersionID(pair, id), new DateTime, vsn, null, new DateTime)
+
+  @Test
+  def shouldOnlyReturnEventsOlderThanTheMaximumAgeAsDue {
+    buffer.put(pending("old", "v1"), now = 0)
+    buffer.put(pending("young", "v1"), now = 500)
+
+    assertEquals(Seq(), buffer.due(now = 1000).map(_.objId.id))
+    assertEquals(Seq("old"), buffer.due(now = 1001).map(_.objId.id))
+    assertEquals(Set("old", "young"), buffer.all.map(_.objId.id).toSet)
+  }
+
+  @Test
+  def replacedEventShouldKeepItsOriginalAge {
+    buffer.put(pending("id1", "v1"), now = 0)
+    buffer.put(pending("id1", "v2"), now = 900)
+
+    assertEquals(Seq("v2"), buffer.due(now = 1001).map(_.upstreamVsn))
+  }
+
+  @Test
+  def shouldRemoveEventsMatchingPredicate {
+    buffer.put(pending("id1", "v1"))
+    buffer.put(PendingDifferenceEvent(2L, VersionID(PairRef("p2", 1L), "id1"), new DateTime, "v1", null, new DateTime))
+
+    buffer.removeAll(_.pair == pair)
+
+    assertEquals(None, buffer.get(VersionID(pair, "id1")))
+    assertEquals(1, buffer.size)
+  }
+}
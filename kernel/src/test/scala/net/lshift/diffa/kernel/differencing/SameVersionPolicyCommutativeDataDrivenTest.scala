@@ -0,0 +1,26 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+/**
+ * Runs the data driven scenarios for the same version policy with aggregates compared as commutative digests.
+ */
+class SameVersionPolicyCommutativeDataDrivenTest extends AbstractDataDrivenPolicyTest {
+  override protected def commutativeDigests = true
+
+  val policy = new SameVersionPolicy(stores, listener, diagnostics, limits)
+}
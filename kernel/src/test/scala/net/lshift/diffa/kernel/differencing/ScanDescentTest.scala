@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.differencing
+
+import org.junit.Test
+import org.junit.Assert._
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.util.NonCancellingFeedbackHandle
+import java.util.concurrent.atomic.AtomicBoolean
+
+class ScanDescentTest {
+
+  val pair = PairRef(name = "A-B", space = 1L)
+
+  @Test
+  def lowConcurrencyShouldScanInlineOnCallingThread {
+    val descent = ScanDescent(pair, 1, new NonCancellingFeedbackHandle)
+    val caller = Thread.currentThread()
+    var ranOn:Thread = null
+
+    descent.submit { ranOn = Thread.currentThread() }
+    descent.awaitCompletion()
+
+    assertSame(caller, ranOn)
+  }
+
+  @Test
+  def shouldWaitForBucketsSubmittedByOtherBuckets {
+    val descent = ScanDescent(pair, 4, new NonCancellingFeedbackHandle)
+    val scanned = new AtomicInteger(0)
+
+    def scanLevel(depth:Int) {
+      scanned.incrementAndGet()
+      if (depth < 3) {
+        (1 to 3).foreach(_ => descent.submit(scanLevel(depth + 1)))
+      }
+    }
+
+    descent.submit(scanLevel(0))
+    descent.awaitCompletion()
+
+    assertEquals(1 + 3 + 9 + 27, scanned.get)
+  }
+
+  @Test
+  def shouldScanSiblingBucketsConcurrently {
+    val descent = ScanDescent(pair, 3, new NonCancellingFeedbackHandle)
+    val allStarted = new CountDownLatch(3)
+
+    // Each bucket can only complete once all three siblings are running at the same time
+    (1 to 3).foreach(_ => descent.submit {
+      allStarted.countDown()
+      assertTrue(allStarted.await(5, TimeUnit.SECONDS))
+    })
+    descent.awaitCompletion()
+  }
+
+  @Test
+  def shouldNeverExceedConfiguredConcurrency {
+    val descent = ScanDescent(pair, 2, new NonCancellingFeedbackHandle)
+    val active = new AtomicInteger(0)
+    val maxActive = new AtomicInteger(0)
+
+    (1 to 20).foreach(_ => descent.submit {
+      val current = active.incrementAndGet()
+      maxActive.synchronized { if (current > maxActive.get) maxActive.set(current) }
+      Thread.sleep(5)
+      active.decrementAndGet()
+    })
+    descent.awaitCompletion()
+
+    assertEquals(2, maxActive.get)
+  }
+
+  @Test
+  def concurrentDescentsOfAPairShouldShareItsConcurrency {
+    val otherPair = PairRef(name = "C-D", space = 1L)
+    val upstream = ScanDescent(otherPair, 2, new NonCancellingFeedbackHandle)
+    val downstream = ScanDescent(otherPair, 2, new NonCancellingFeedbackHandle)
+    val active = new AtomicInteger(0)
+    val maxActive = new AtomicInteger(0)
+
+    (1 to 20).foreach(i => (if (i % 2 == 0) upstream else downstream).submit {
+      val current = active.incrementAndGet()
+      maxActive.synchronized { if (current > maxActive.get) maxActive.set(current) }
+      Thread.sleep(5)
+      active.decrementAndGet()
+    })
+    upstream.awaitCompletion()
+    downstream.awaitCompletion()
+
+    assertEquals(2, maxActive.get)
+  }
+
+  @Test
+  def shouldRethrowFirstFailureAndSkipRemainingBuckets {
+    val descent = ScanDescent(pair, 2, new NonCancellingFeedbackHandle)
+    val scanned = new AtomicInteger(0)
+
+    descent.submit {
+      (1 to 100).foreach(_ => descent.submit { scanned.incrementAndGet(); Thread.sleep(1) })
+      throw new ScanFailedException("adapter unavailable")
+    }
+
+    try {
+      descent.awaitCompletion()
+      fail("Expected ScanFailedException")
+    } catch {
+      case e:ScanFailedException => assertEquals("adapter unavailable", e.getMessage)
+    }
+    assertTrue(scanned.get < 100)
+  }
+
+  @Test(expected = classOf[ScanCancelledException])
+  def shouldStopScanningWhenHandleIsCancelled {
+    val handle = new FeedbackHandle {
+      private val cancelled = new AtomicBoolean(false)
+      def isCancelled = cancelled.get
+      def cancel() { cancelled.set(true) }
+    }
+    val descent = ScanDescent(pair, 2, handle)
+
+    descent.submit {
+      handle.cancel()
+      descent.submit { fail("Bucket should not have been scanned after cancellation") }
+    }
+    descent.awaitCompletion()
+  }
+}
@@ -73,6 +73,31 @@ class ChangesTest {
     changes.onChange(space.id, "e2", ChangeEvent.forChange("id1", "v1", now))
     verify(changeEventClient, matchingManager)
   }
+
+  @Test
+  def shouldPropagateValidChangesInBatchAsSingleSubmission() {
+    changeEventClient.propagateChangeEvents(pairRef, Seq(
+      DownstreamPairChangeEvent(VersionID(pairRef, "id1"), Map("s" -> StringAttribute("a")), now, "v1"),
+      DownstreamPairChangeEvent(VersionID(pairRef, "id3"), Map("s" -> StringAttribute("b")), now, "v3"))); expectLastCall
+    expect(matchingManager.getMatcher(anyObject[PairRef])).andStubReturn(None)
+    replay(changeEventClient, matchingManager)
+
+    changes.onChanges(space.id, "e2", Seq(
+      ChangeEvent.forChange("id1", "v1", now, Map("s" -> "a")),
+      ChangeEvent.forChange("id2", "v2", now, Map("s" -> "c")),
+      ChangeEvent.forChange("id3", "v3", now, Map("s" -> "b"))))
+    verify(changeEventClient, matchingManager)
+  }
+
+  @Test
+  def shouldNotPropagateBatchWithOnlyInvalidChanges() {
+    replay(changeEventClient, matchingManager)
+
+    changes.onChanges(space.id, "e2", Seq(
+      ChangeEvent.forChange("id1", "v1", now, Map("s" -> "c")),
+      ChangeEvent.forChange("id2", "v2", now)))
+    verify(changeEventClient, matchingManager)
+  }
 }
 
 object ChangesTest {
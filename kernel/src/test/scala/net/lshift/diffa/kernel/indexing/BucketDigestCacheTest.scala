@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.indexing
+
+import org.junit.Test
+import org.junit.Assert._
+import net.lshift.diffa.adapter.scanning._
+import net.lshift.diffa.kernel.config.AsciiCollationOrdering
+import net.lshift.diffa.kernel.indexing.BucketDigestCache._
+import net.lshift.diffa.kernel.indexing.LuceneVersionCorrelationHandler._
+import org.joda.time.{LocalDate, DateTime, DateTimeZone}
+import scala.collection.JavaConversions._
+
+/**
+ * Specifications of the BucketDigestCache's caching and invalidation behaviour.
+ */
+class BucketDigestCacheTest {
+
+  val cache = new BucketDigestCache(maxEntries = 2)
+
+  val digest = ScanResultEntry.forAggregate("digest", Map("someString" -> "a"))
+  val julyConstraints = Seq(new DateRangeConstraint("bizDate", new LocalDate(2010, 7, 1), new LocalDate(2010, 7, 31)))
+  val augustConstraints = Seq(new DateRangeConstraint("bizDate", new LocalDate(2010, 8, 1), new LocalDate(2010, 8, 31)))
+
+  def upstreamState(vsn:String, attributes:(String, String)*) = DocumentState(Some(SideState(Seq(vsn), attributes.toMap)), None)
+
+  @Test
+  def shouldComputeDigestsOnlyOnceWhileUnchanged() {
+    var computations = 0
+    def compute = { computations += 1; Seq(digest) }
+
+    assertEquals(Seq(digest), cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(compute))
+    assertEquals(Seq(digest), cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(compute))
+    assertEquals(1, computations)
+  }
+
+  @Test
+  def shouldOnlyInvalidateEntriesAdmittingTheChangedEntity() {
+    cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(Seq(digest))
+    cache.digests(Upstream, Seq(), augustConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(Seq(digest))
+
+    cache.update(Seq(("id1", absent, upstreamState("v1", "bizDate" -> "2010-07-04"))))
+
+    assertEquals(1, cache.size)
+    var recomputed = false
+    cache.digests(Upstream, Seq(), augustConstraints, AsciiCollationOrdering, DigestMode.ORDERED) { recomputed = true; Seq() }
+    assertFalse(recomputed)
+  }
+
+  @Test
+  def shouldInvalidateEntriesAdmittingThePreviousStateOfAMovedEntity() {
+    cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(Seq(digest))
+
+    cache.update(Seq(("id1", upstreamState("v1", "bizDate" -> "2010-07-04"), upstreamState("v1", "bizDate" -> "2010-08-04"))))
+
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def shouldNotCacheDigestsComputedAcrossAnInvalidation() {
+    cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.ORDERED) {
+      cache.update(Seq(("id1", absent, upstreamState("v1", "bizDate" -> "2012-01-01"))))
+      Seq(digest)
+    }
+
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def shouldMaintainCommutativeDigestsInPlace() {
+    val monthly = Seq(new DateAggregation("bizDate", DateGranularityEnum.Monthly))
+    val initial = Seq(ScanResultEntry.forAggregate(new CommutativeDigest().add("id1", "v1").toHex, Map("bizDate" -> "2010-07")))
+    cache.digests(Upstream, monthly, Seq(), AsciiCollationOrdering, DigestMode.COMMUTATIVE)(initial)
+
+    cache.update(Seq(
+      ("id2", absent, upstreamState("v2", "bizDate" -> "2010-07-20")),
+      ("id1", upstreamState("v1", "bizDate" -> "2010-07-04"), upstreamState("v1", "bizDate" -> "2010-08-04"))))
+
+    var recomputed = false
+    val digests = cache.digests(Upstream, monthly, Seq(), AsciiCollationOrdering, DigestMode.COMMUTATIVE) { recomputed = true; Seq() }
+    assertFalse(recomputed)
+    assertEquals(Set(
+        ScanResultEntry.forAggregate(new CommutativeDigest().add("id2", "v2").toHex, Map("bizDate" -> "2010-07")),
+        ScanResultEntry.forAggregate(new CommutativeDigest().add("id1", "v1").toHex, Map("bizDate" -> "2010-08"))),
+      digests.toSet)
+  }
+
+  @Test
+  def shouldDropCommutativeBucketsThatBecomeEmpty() {
+    val initial = Seq(ScanResultEntry.forAggregate(new CommutativeDigest().add("id1", "v1").toHex, Map("bizDate" -> "2010-07-04")))
+    cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.COMMUTATIVE)(initial)
+
+    cache.update(Seq(("id1", upstreamState("v1", "bizDate" -> "2010-07-04"), absent)))
+
+    assertEquals(1, cache.size)
+    assertEquals(Seq(), cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.COMMUTATIVE) { fail("Recomputed"); Seq() })
+  }
+
+  @Test
+  def shouldInvalidateCommutativeDigestsThatCannotBeMaintainedInPlace() {
+    val initial = Seq(ScanResultEntry.forAggregate(new CommutativeDigest().add("id1", "v1").toHex, Map("bizDate" -> "2010-07-04")))
+    cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.COMMUTATIVE)(initial)
+
+    // The entity's previous state was never part of any cached bucket
+    cache.update(Seq(("id2", upstreamState("v2", "bizDate" -> "2010-07-05"), upstreamState("v3", "bizDate" -> "2010-07-05"))))
+
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def shouldEvictLeastRecentlyUsedEntriesBeyondTheLimit() {
+    val septemberConstraints = Seq(new DateRangeConstraint("bizDate", new LocalDate(2010, 9, 1), new LocalDate(2010, 9, 30)))
+
+    cache.digests(Upstream, Seq(), julyConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(Seq(digest))
+    cache.digests(Upstream, Seq(), augustConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(Seq(digest))
+    cache.digests(Upstream, Seq(), septemberConstraints, AsciiCollationOrdering, DigestMode.ORDERED)(Seq(digest))
+
+    assertEquals(2, cache.size)
+  }
+
+  @Test
+  def shouldAdmitAttributesMatchingEachConstraintType() {
+    val july = new DateTime(2010, 7, 1, 12, 0, 0, 0, DateTimeZone.UTC)
+    val attributes = Map("someString" -> "abc", "someInt" -> "25", "bizDateTime" -> formatDateTime(july))
+
+    assertTrue(admits(Seq(), attributes))
+    assertTrue(admits(Seq(new StringPrefixConstraint("someString", "ab")), attributes))
+    assertFalse(admits(Seq(new StringPrefixConstraint("someString", "b")), attributes))
+    assertTrue(admits(Seq(new SetConstraint("someString", Set("abc", "def"))), attributes))
+    assertFalse(admits(Seq(new SetConstraint("someString", Set("def"))), attributes))
+    assertTrue(admits(Seq(new IntegerRangeConstraint("someInt", 20, 29)), attributes))
+    assertFalse(admits(Seq(new IntegerRangeConstraint("someInt", 100, 200)), attributes))
+    assertTrue(admits(Seq(new TimeRangeConstraint("bizDateTime", july.minusDays(1), null)), attributes))
+    assertFalse(admits(Seq(new TimeRangeConstraint("bizDateTime", null, july.minusDays(1))), attributes))
+    assertFalse(admits(Seq(new StringPrefixConstraint("otherString", "a")), attributes))
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.indexing
+
+import org.junit.Test
+import org.junit.Assert._
+import net.lshift.diffa.kernel.config.{PairRef, PairServiceLimitsView}
+import net.lshift.diffa.schema.servicelimits._
+
+class GroupCommitPolicyTest {
+
+  private val thresholds = GroupCommitThresholds(maxBatchSize = 100, batchIntervalMillis = 1000, maxBatchBytes = 4096)
+  private val policy = new GroupCommitPolicy(() => thresholds)
+
+  @Test
+  def smallRecentBatchShouldNotBeDue() {
+    assertFalse(policy.isDue(10, 1024, 10))
+  }
+
+  @Test
+  def batchShouldBeDueWhenItReachesAnyThreshold() {
+    assertTrue(policy.isDue(100, 1024, 10))
+    assertTrue(policy.isDue(10, 4096, 10))
+    assertTrue(policy.isDue(10, 1024, 1000))
+  }
+
+  @Test
+  def intervalShouldBeStretchedWhenCommitsAreSlow() {
+    policy.committed(10, 500)
+
+    assertFalse(policy.isDue(10, 1024, 1000))
+    assertTrue(policy.isDue(10, 1024, 5000))
+  }
+
+  @Test
+  def shouldTrackCommitStatistics() {
+    policy.committed(10, 20)
+    policy.committed(30, 40)
+
+    assertEquals(GroupCommitStats(commits = 2, committedUpdates = 40, totalCommitMillis = 60, maxCommitMillis = 40), policy.stats)
+    assertEquals(20.0, policy.stats.averageBatchSize, 0.001)
+    assertEquals(30.0, policy.stats.averageCommitMillis, 0.001)
+  }
+
+  @Test
+  def pairPolicyShouldUseEffectiveLimitsAndPickUpChangesAfterACommit() {
+    var batchSize = 50
+    val limits = new PairServiceLimitsView {
+      def getEffectiveLimitByNameForPair(space:Long, pairKey:String, limit:ServiceLimit) = limit match {
+        case CorrelationWriterBatchSize => batchSize
+        case _                          => Unlimited.value
+      }
+    }
+    val pairPolicy = GroupCommitPolicy.forPair(PairRef(name = "pair", space = 1L), limits)
+
+    assertTrue(pairPolicy.isDue(50, 0, 0))
+    assertFalse(pairPolicy.isDue(49, Long.MaxValue - 1, Long.MaxValue - 1))
+
+    batchSize = 10
+    assertFalse(pairPolicy.isDue(10, 0, 0))
+    pairPolicy.committed(50, 1)
+    assertTrue(pairPolicy.isDue(10, 0, 0))
+  }
+}
@@ -20,9 +20,13 @@ import org.easymock.classextension.EasyMock._
 import org.easymock.EasyMock.expect
 import net.lshift.diffa.kernel.diag.DiagnosticsManager
 import org.junit.{Before, Test}
-import org.apache.lucene.store.Directory
-import org.apache.lucene.index.{IndexReader, IndexWriter}
+import org.apache.lucene.store.{RAMDirectory, Directory}
+import org.apache.lucene.index.{Term, IndexReader, IndexWriter}
 import java.io.Closeable
+import org.junit.Assert._
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.config.PairRef
+import org.joda.time.DateTime
 
 /**
  * Specifications of required behaviour of the LuceneWriter.
@@ -67,4 +71,68 @@ class LuceneWriterTest {
     luceneWriter.close
     verify(closeableIndexWriter)
   }
+
+  @Test
+  def readerShouldBeSharedBetweenLookupsUntilChangesAreFlushed {
+    var readersOpened = 0
+    var readersReopened = 0
+    val writer = new LuceneWriter(new RAMDirectory, createNiceMock(classOf[DiagnosticsManager]),
+      indexReaderFactory = new IndexReaderFactory {
+        def createIndexReader(writer: IndexWriter) = {
+          readersOpened += 1
+          IndexReaderFactory.defaultFactory.createIndexReader(writer)
+        }
+        override def reopenIndexReader(reader: IndexReader, writer: IndexWriter) = {
+          val reopened = super.reopenIndexReader(reader, writer)
+          if (reopened.isDefined) readersReopened += 1
+          reopened
+        }
+      })
+
+    val pair = PairRef(name = "pair", space = 1L)
+    (1 to 10).foreach(i => writer.storeUpstreamVersion(VersionID(pair, "id" + i), Map(), new DateTime, "v1", None))
+    assertEquals(1, readersOpened)
+    assertEquals(0, writer.withReader(_.docFreq(new Term("id", "id1"))))
+
+    writer.flush()
+    assertEquals(1, readersReopened)
+    assertEquals(1, writer.withReader(_.docFreq(new Term("id", "id1"))))
+
+    writer.flush()
+    assertEquals(1, readersReopened)
+    assertEquals(1, readersOpened)
+
+    writer.close()
+  }
+
+  @Test
+  def bufferedUpdatesShouldBeCommittedInBatchesOfTheConfiguredSize {
+    val policy = new GroupCommitPolicy(() => GroupCommitPolicy.defaultThresholds.copy(maxBatchSize = 5))
+    val writer = new LuceneWriter(new RAMDirectory, createNiceMock(classOf[DiagnosticsManager]), commitPolicy = policy)
+
+    val pair = PairRef(name = "pair", space = 1L)
+    (1 to 12).foreach(i => writer.storeUpstreamVersion(VersionID(pair, "id" + i), Map(), new DateTime, "v1", None))
+
+    assertEquals(2, policy.stats.commits)
+    assertEquals(10, policy.stats.committedUpdates)
+    assertTrue(writer.isDirty)
+
+    writer.close()
+  }
+
+  @Test
+  def batchedUpdatesShouldBeCommittedOnceTheWholeBatchIsWritten {
+    val policy = new GroupCommitPolicy(() => GroupCommitPolicy.defaultThresholds.copy(maxBatchSize = 5))
+    val writer = new LuceneWriter(new RAMDirectory, createNiceMock(classOf[DiagnosticsManager]), commitPolicy = policy)
+
+    val pair = PairRef(name = "pair", space = 1L)
+    writer.batch(w =>
+      (1 to 12).foreach(i => w.storeUpstreamVersion(VersionID(pair, "id" + i), Map(), new DateTime, "v1", None)))
+
+    assertEquals(1, policy.stats.commits)
+    assertEquals(12, policy.stats.committedUpdates)
+    assertFalse(writer.isDirty)
+
+    writer.close()
+  }
 }
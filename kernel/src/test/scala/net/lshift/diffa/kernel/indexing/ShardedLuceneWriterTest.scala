@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.indexing
+
+import org.junit.Test
+import org.junit.Assert._
+import org.apache.lucene.store.RAMDirectory
+import org.joda.time.DateTime
+import java.util.concurrent.{TimeUnit, Executors}
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.differencing.{IntegerAttribute, TypedAttribute}
+import net.lshift.diffa.kernel.differencing.LuceneVersionCorrelationStoreTest._
+import net.lshift.diffa.adapter.scanning.{DigestMode, IntegerRangeConstraint}
+import net.lshift.diffa.kernel.config.AsciiCollationOrdering
+
+/**
+ * Checks that a correlation store sharded over several indexes behaves as a single store.
+ */
+class ShardedLuceneWriterTest {
+
+  private val shardCount = 4
+  private val store = new LuceneVersionCorrelationStore(pair, (1 to shardCount).map(_ => new RAMDirectory),
+    dummyConfigStore, dummyDomainConfigStore, dummyDiagnostics)
+
+  private val lastUpdated = new DateTime(2012, 6, 1, 12, 0, 0, 0)
+  private val noAttributes:Map[String, TypedAttribute] = Map()
+
+  private def ids(count:Int) = (1 to count).map(i => "id" + i)
+
+  @Test
+  def shouldSpreadEntitiesOverAllShards() {
+    val shardsUsed = ids(100).map(ShardedLuceneWriter.shardIndex(_, shardCount)).toSet
+    assertEquals((0 until shardCount).toSet, shardsUsed)
+  }
+
+  @Test
+  def shardIndexShouldBeInRangeForNegativeHashCodes() {
+    val id = "polygenelubricants"   // hashCode is Int.MinValue
+    assertTrue(id.hashCode < 0)
+    val shard = ShardedLuceneWriter.shardIndex(id, shardCount)
+    assertTrue(shard >= 0 && shard < shardCount)
+  }
+
+  @Test
+  def queriesShouldSpanAllShards() {
+    val writer = store.openWriter()
+    ids(50).foreach(id => writer.storeUpstreamVersion(VersionID(pair, id), noAttributes, lastUpdated, "v-" + id, None))
+    writer.flush()
+
+    assertEquals(ids(50).sorted, store.queryUpstreams(Seq()).map(_.id))
+    assertEquals(50, store.unmatchedVersions(Seq(), Seq(), None).size)
+    assertEquals(Some("v-id17"), store.retrieveCurrentCorrelation(VersionID(pair, "id17")).map(_.upstreamVsn))
+  }
+
+  @Test
+  def storeVersionsShouldBeOrderedAcrossShards() {
+    val writer = store.openWriter()
+    ids(20).foreach(id => writer.storeUpstreamVersion(VersionID(pair, id), noAttributes, lastUpdated, "v1", None))
+    writer.flush()
+    val latest = store.unmatchedVersions(Seq(), Seq(), None).map(_.storeVersion.longValue).max
+
+    writer.storeUpstreamVersion(VersionID(pair, "id3"), noAttributes, lastUpdated, "v2", None)
+    writer.storeUpstreamVersion(VersionID(pair, "id14"), noAttributes, lastUpdated, "v2", None)
+    writer.flush()
+
+    val changed = store.unmatchedVersions(Seq(), Seq(), Some(latest))
+    assertEquals(Set("id3", "id14"), changed.map(_.id).toSet)
+  }
+
+  @Test
+  def digestsShouldBeInvalidatedByChangesInAnyShard() {
+    val writer = store.openWriter()
+    val constraints = Seq(new IntegerRangeConstraint("someInt", 0, 100))
+    ids(20).foreach(id => writer.storeUpstreamVersion(VersionID(pair, id), Map("someInt" -> IntegerAttribute(10)), lastUpdated, "v1", None))
+    writer.flush()
+
+    val initial = store.upstreamDigests(Seq(), constraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    assertEquals(1, store.writer.digestCache.size)
+
+    ids(20).foreach(id => {
+      writer.storeUpstreamVersion(VersionID(pair, id), Map("someInt" -> IntegerAttribute(10)), lastUpdated, "v2", None)
+      writer.flush()
+      assertEquals(0, store.writer.digestCache.size)
+      store.upstreamDigests(Seq(), constraints, AsciiCollationOrdering, DigestMode.ORDERED)
+    })
+
+    assertFalse(initial == store.upstreamDigests(Seq(), constraints, AsciiCollationOrdering, DigestMode.ORDERED))
+  }
+
+  @Test
+  def rollbackShouldDiscardChangesInAllShards() {
+    val writer = store.openWriter()
+    ids(20).foreach(id => writer.storeUpstreamVersion(VersionID(pair, id), noAttributes, lastUpdated, "v1", None))
+    assertTrue(writer.isDirty)
+
+    writer.rollback()
+    assertFalse(writer.isDirty)
+    assertEquals(0, store.queryUpstreams(Seq()).size)
+  }
+
+  @Test
+  def shouldAcceptConcurrentWrites() {
+    val writer = store.openWriter()
+    val executor = Executors.newFixedThreadPool(shardCount)
+    (0 until shardCount).foreach(t => executor.submit(new Runnable {
+      def run() {
+        ids(250).foreach(id => writer.storeUpstreamVersion(VersionID(pair, t + "-" + id), noAttributes, lastUpdated, "v1", None))
+      }
+    }))
+    executor.shutdown()
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS))
+    writer.flush()
+
+    assertEquals(1000, store.queryUpstreams(Seq()).size)
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.limiting
+
+import org.easymock.EasyMock.{createMock, expect, replay}
+import org.junit.{After, Test, Assert}
+import net.lshift.diffa.kernel.config.DomainServiceLimitsView
+import net.lshift.diffa.schema.servicelimits.{Unlimited, ChangeEventBatchSize, ChangeEventRate}
+
+class ChangeEventLimiterTest {
+  val space = System.currentTimeMillis()
+  val limits = createMock("limits", classOf[DomainServiceLimitsView])
+  val rateLimiterFactory = new DomainRateLimiterFactory {
+    def createRateLimiter(space: Long) =
+      new RateLimiter(() => limits.getEffectiveLimitByNameForDomain(space, ChangeEventRate))
+  }
+  val changeEventLimiter = new ChangeEventLimiter(rateLimiterFactory, limits)
+
+  @After
+  def clearLimiters() {
+    ServiceLimiterRegistry.clear()
+  }
+
+  @Test
+  def shouldRefuseBatchesLargerThanTheBatchSizeLimit() {
+    givenLimits(batchSize = 10, rate = Unlimited.value)
+
+    Assert.assertFalse(changeEventLimiter.exceedsMaxBatchSize(space, 10))
+    Assert.assertTrue(changeEventLimiter.exceedsMaxBatchSize(space, 11))
+  }
+
+  @Test
+  def shouldNotRefuseAnyBatchWhenTheBatchSizeIsUnlimited() {
+    givenLimits(batchSize = Unlimited.value, rate = Unlimited.value)
+
+    Assert.assertFalse(changeEventLimiter.exceedsMaxBatchSize(space, 100000))
+  }
+
+  @Test
+  def shouldChargeEveryEventOfABatchAgainstTheSpacesRate() {
+    givenLimits(batchSize = 10, rate = 3)
+
+    Assert.assertTrue(changeEventLimiter.tryAcquire(space, 3))
+    Assert.assertFalse(changeEventLimiter.tryAcquire(space, 1))
+  }
+
+  private def givenLimits(batchSize: Int, rate: Int) {
+    expect(limits.getEffectiveLimitByNameForDomain(space, ChangeEventBatchSize)).andReturn(batchSize).anyTimes()
+    expect(limits.getEffectiveLimitByNameForDomain(space, ChangeEventRate)).andReturn(rate).anyTimes()
+    replay(limits)
+  }
+}
@@ -138,6 +138,31 @@ class ChangeEventRateLimiterTest {
     })
   }
 
+  @Test
+  def shouldChargeEveryEventOfABatchAgainstTheRate() {
+    setRateLimit(5)
+    setClock(oneSecondAfterInitialization)
+
+    Assert.assertTrue("A batch within the rate should be accepted", limiter.accept(3))
+    Assert.assertFalse("A batch exceeding the remaining rate should be refused", limiter.accept(3))
+    Assert.assertTrue("A batch within the remaining rate should be accepted", limiter.accept(2))
+    Assert.assertFalse("No events should be accepted once the rate is used up", limiter.accept())
+  }
+
+  @Test
+  def shouldHoldBackEventsAfterABatchLargerThanTheRateUntilItHasBeenRepaid() {
+    setRateLimit(2)
+    setClock(oneSecondAfterInitialization)
+    Assert.assertTrue("A batch larger than the rate should be accepted when no events are pending", limiter.accept(5))
+
+    setClock(oneSecondAfterInitialization + 1000L)
+    Assert.assertFalse("Events should be refused while the batch is being repaid", limiter.accept())
+
+    setClock(oneSecondAfterInitialization + 2000L)
+    Assert.assertTrue("Events should be accepted once the batch has been repaid", limiter.accept())
+    Assert.assertFalse("A large batch should be refused until no events are pending", limiter.accept(5))
+  }
+
   private def setRateLimit(eventsPerSecond: Int) {
     reset(rateLimitView)
     expect(rateLimitView.getEffectiveLimitByNameForDomain(space, ChangeEventRate)).
@@ -101,7 +101,8 @@ class StoreSynchronizationTest {
       FileUtils.deleteDirectory(dir)
     }
     stores = new LuceneVersionCorrelationStoreFactory(
-      StoreSynchronizationTest.indexDir, systemConfigStore, domainConfigStore, diagnosticsManager)
+      StoreSynchronizationTest.indexDir, systemConfigStore, domainConfigStore, diagnosticsManager,
+      serviceLimitsStore)
     store = stores(pairRef)
 
     domainConfigStore.createOrUpdateEndpoint(space.id, toEndpointDef(u))
@@ -335,6 +335,33 @@ abstract class AbstractMatcherTest {
     }
     assertFalse(analyser.isVersionIDActive(id7))
   }
+
+  @Test
+  def repeatedEventShouldAckTheEventItSupersedesAndOnlyExpireOnce() {
+    val mb = new LinkedBlockingQueue[Object]
+    analyser.addListener(new MatchingStatusListener {
+      def onUpstreamExpired(id: VersionID, vsn:String) { mb.add(new Object) }
+      def onPaired(id: VersionID, vsn:String) {}
+      def onDownstreamExpired(id: VersionID, vsn:String) {}
+    })
+
+    analyser.onChange(new UpstreamPairChangeEvent(id6, Map(), new DateTime, "vsnAAAA"), ackCallbackA)
+    analyser.onChange(new UpstreamPairChangeEvent(id6, Map(), new DateTime, "vsnAAAA"), ackCallbackB)
+
+    ackCallbackAListener.poll(100, TimeUnit.MILLISECONDS) match {
+      case null => fail("Ack Callback for superseded upstream not triggered")
+      case _    =>
+    }
+    assertNull(ackCallbackBListener.poll(100, TimeUnit.MILLISECONDS))
+
+    mb.poll(5, TimeUnit.SECONDS) match {
+      case null => fail("Should have received expiry event")
+      case _    =>
+    }
+    assertNotNull(ackCallbackBListener.poll(100, TimeUnit.MILLISECONDS))
+    assertNull(mb.poll(1500, TimeUnit.MILLISECONDS))
+    assertFalse(analyser.isVersionIDActive(id6))
+  }
 }
 object AbstractMatcherTest {
   private val counter = new AtomicInteger(1)
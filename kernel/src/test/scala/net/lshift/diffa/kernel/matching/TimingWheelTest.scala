@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.matching
+
+import org.junit.Test
+import org.junit.Assert._
+
+class TimingWheelTest {
+  // Each level has four buckets of 10ms, 40ms, 160ms respectively; everything beyond 640ms is parked at the top
+  val wheel = new TimingWheel[String](10, 4, 3, 0)
+
+  @Test
+  def shouldRefuseItemsThatHaveAlreadyExpired() {
+    wheel.advance(100)
+
+    assertFalse(wheel.schedule(99, "a"))
+    assertTrue(wheel.isEmpty)
+  }
+
+  @Test
+  def shouldNotReleaseItemsBeforeTheirExpiry() {
+    assertTrue(wheel.schedule(25, "a"))
+
+    assertEquals(Seq(), wheel.advance(20))
+    assertEquals(Seq(), wheel.advance(25))
+    assertEquals(Seq("a"), wheel.advance(30))
+    assertTrue(wheel.isEmpty)
+  }
+
+  @Test
+  def shouldCascadeItemsFromCoarserLevels() {
+    wheel.schedule(55, "level1")
+    wheel.schedule(395, "level2")
+
+    assertEquals(Seq(), wheel.advance(50))
+    assertEquals(Seq("level1"), wheel.advance(60))
+    assertEquals(Seq(), wheel.advance(390))
+    assertEquals(Seq("level2"), wheel.advance(400))
+  }
+
+  @Test
+  def shouldReleaseItemsBeyondTheRangeOfTheWheel() {
+    wheel.schedule(5000, "far")
+
+    assertEquals(Seq(), wheel.advance(4990))
+    assertEquals(1, wheel.size)
+    assertEquals(Seq("far"), wheel.advance(5010))
+  }
+
+  @Test
+  def shouldReleaseItemsInExpiryOrderWhenAdvancedInOneStep() {
+    wheel.schedule(300, "c")
+    wheel.schedule(15, "a")
+    wheel.schedule(120, "b")
+
+    assertEquals(Seq("a", "b", "c"), wheel.advance(1000))
+  }
+
+  @Test
+  def shouldSkipAheadWhenEmpty() {
+    wheel.advance(1000000)
+
+    assertEquals(1000010, wheel.nextTickMillis)
+    assertTrue(wheel.schedule(1000015, "a"))
+    assertEquals(Seq("a"), wheel.advance(1000020))
+  }
+
+  @Test
+  def shouldNotReleaseCancelledItems() {
+    wheel.schedule(25, "a")
+    wheel.schedule(25, "b")
+
+    assertTrue(wheel.cancel("a"))
+    assertEquals(1, wheel.size)
+    assertEquals(Seq("b"), wheel.advance(30))
+    assertFalse(wheel.cancel("b"))
+  }
+
+  @Test
+  def shouldCancelItemsThatHaveCascaded() {
+    wheel.schedule(395, "level2")
+    wheel.advance(330)
+
+    assertTrue(wheel.cancel("level2"))
+    assertTrue(wheel.isEmpty)
+    assertEquals(Seq(), wheel.advance(400))
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.reporting
+
+import org.junit.Test
+import org.junit.Assert._
+import java.io.StringWriter
+import org.joda.time.{DateTimeZone, DateTime}
+import org.codehaus.jackson.map.ObjectMapper
+import net.lshift.diffa.kernel.config.PairRef
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.differencing.ReportedDifferenceEvent
+
+class DifferenceExportFormatTest {
+
+  val pair = PairRef("p1", 1L)
+  val detectedAt = new DateTime(2013, 2, 14, 10, 30, 0, 0, DateTimeZone.UTC)
+
+  def event(id:String, upstreamVsn:String, downstreamVsn:String) = ReportedDifferenceEvent(seqId = 12,
+    objId = VersionID(pair, id), detectedAt = detectedAt, lastSeen = detectedAt,
+    upstreamVsn = upstreamVsn, downstreamVsn = downstreamVsn)
+
+  def export(format:DifferenceExportFormat, events:ReportedDifferenceEvent*) = {
+    val out = new StringWriter
+    val writer = format.createWriter(out)
+    writer.writeHeader()
+    events.foreach(writer.write(_))
+    writer.finish()
+    out.toString
+  }
+
+  @Test
+  def shouldWriteCsvWithHeaderAndQuoteOnlyWhenNecessary {
+    val csv = export(DifferenceExportFormat.CSV, event("id1", "a", null), event("id,2", null, "say \"b\""))
+
+    assertEquals(
+      "detection date,entity id,upstream version,downstream version,state\n" +
+      "20130214T103000.000Z,id1,a,,missing-from-downstream\n" +
+      "20130214T103000.000Z,\"id,2\",,\"say \"\"b\"\"\",missing-from-upstream\n", csv)
+  }
+
+  @Test
+  def shouldWriteOneJsonObjectPerLine {
+    val lines = export(DifferenceExportFormat.NDJSON, event("id1", "a", "b"), event("id2", null, "b")).split("\n")
+    assertEquals(2, lines.length)
+
+    val first = new ObjectMapper().readTree(lines(0))
+    assertEquals(12L, first.get("seqId").getLongValue)
+    assertEquals("id1", first.get("entityId").getTextValue)
+    assertEquals("version-mismatch", first.get("state").getTextValue)
+
+    val second = new ObjectMapper().readTree(lines(1))
+    assertTrue(second.get("upstreamVsn").isNull)
+    assertEquals("missing-from-upstream", second.get("state").getTextValue)
+  }
+
+  @Test
+  def shouldLookupFormatsByName {
+    assertEquals(Some(DifferenceExportFormat.CSV), DifferenceExportFormat.lookup("csv"))
+    assertEquals(Some(DifferenceExportFormat.NDJSON), DifferenceExportFormat.lookup("ndjson"))
+    assertEquals(None, DifferenceExportFormat.lookup("xml"))
+  }
+}
@@ -70,6 +70,39 @@ class JooqScanActivityStoreTest {
     assertEquals(updatedStatement, secondRetrievedStatement)
   }
 
+  @Test
+  def shouldBeAbleToRecordAndThenReplaceScanMetrics {
+
+    val space = systemConfigStore.createOrUpdateSpace(RandomStringUtils.randomAlphanumeric(10))
+    val ref = PairRef(name = RandomStringUtils.randomAlphanumeric(10), space = space.id)
+    val id = System.currentTimeMillis()
+
+    assertEquals(None, scanActivityStore.getMetrics(ref, id))
+
+    val originalMetrics = ScanMetricsSnapshot(
+      sides = Map(
+        ScanMetrics.Upstream -> SideMetrics(
+          bucketsVisited = Map("someDate:yearly" -> 1L, "someDate:monthly" -> 12L, ScanMetrics.EntityLevel -> 40L),
+          entitiesCompared = 1000L,
+          requests = 53L,
+          requestMillis = 2400L,
+          latencyHistogram = Map("<=10" -> 20L, "<=50" -> 30L, ">10000" -> 3L),
+          bytesReceived = 123456L),
+        ScanMetrics.Downstream -> SideMetrics(entitiesCompared = 998L)),
+      writerFlushes = 1L,
+      writerFlushMillis = 15L,
+      diffsProduced = 2L)
+
+    scanActivityStore.recordMetrics(ref, id, originalMetrics)
+    assertEquals(Some(originalMetrics), scanActivityStore.getMetrics(ref, id))
+
+    val updatedMetrics = ScanMetricsSnapshot(
+      sides = Map(ScanMetrics.Upstream -> SideMetrics(requests = 1L, latencyHistogram = Map("<=10" -> 1L))))
+
+    scanActivityStore.recordMetrics(ref, id, updatedMetrics)
+    assertEquals(Some(updatedMetrics), scanActivityStore.getMetrics(ref, id))
+  }
+
 }
 
 object JooqScanActivityStoreTest {
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.scanning
+
+import org.junit.{After, Test}
+import org.junit.Assert._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import net.lshift.diffa.kernel.config.PairRef
+import scala.collection.mutable.ListBuffer
+
+class ScanExecutionServiceTest {
+
+  var executor:ScanExecutionService = null
+
+  @After
+  def shutdown {
+    if (executor != null) executor.close()
+  }
+
+  @Test
+  def manualScansShouldOvertakeQueuedScheduledScans {
+    executor = new ScanExecutionService(1, 1)
+
+    val release = new CountDownLatch(1)
+    val finished = new CountDownLatch(4)
+    val order = new ListBuffer[String]
+
+    def record(name:String) = executor.synchronized { order += name }
+
+    executor.submit(PairRef("blocker", 1L), ScanPriority.Scheduled) { release.await(); finished.countDown() }
+    executor.submit(PairRef("a", 1L), ScanPriority.Scheduled) { record("a"); finished.countDown() }
+    executor.submit(PairRef("b", 1L), ScanPriority.Scheduled) { record("b"); finished.countDown() }
+    executor.submit(PairRef("c", 1L), ScanPriority.Manual) { record("c"); finished.countDown() }
+
+    release.countDown()
+    assertTrue(finished.await(5, TimeUnit.SECONDS))
+    assertEquals(Seq("c", "a", "b"), executor.synchronized { order.toList })
+  }
+
+  @Test
+  def shouldLimitConcurrentScansPerSpaceWithoutHoldingUpOtherSpaces {
+    executor = new ScanExecutionService(4, 1)
+
+    val release = new CountDownLatch(1)
+    val started = new CountDownLatch(2)
+
+    executor.submit(PairRef("a", 1L), ScanPriority.Scheduled) { started.countDown(); release.await() }
+    executor.submit(PairRef("b", 1L), ScanPriority.Scheduled) { started.countDown(); release.await() }
+    executor.submit(PairRef("c", 2L), ScanPriority.Scheduled) { started.countDown(); release.await() }
+
+    assertTrue(started.await(5, TimeUnit.SECONDS))
+    assertEquals(ScanExecutionStatistics(queued = 1, running = 1), executor.statistics(1L).copy(totalQueueMillis = 0, maxQueueMillis = 0))
+    assertEquals(1, executor.statistics(2L).running)
+
+    release.countDown()
+    waitForCompletion(3)
+    assertEquals(2, executor.statistics(1L).completed)
+  }
+
+  @Test
+  def failingTaskShouldNotStopTheWorker {
+    executor = new ScanExecutionService(1, 1)
+    val ran = new CountDownLatch(1)
+
+    executor.submit(PairRef("a", 1L), ScanPriority.Manual) { throw new RuntimeException("Participant unavailable") }
+    executor.submit(PairRef("b", 1L), ScanPriority.Manual) { ran.countDown() }
+
+    assertTrue(ran.await(5, TimeUnit.SECONDS))
+    waitForCompletion(2)
+  }
+
+  @Test
+  def shouldRecordTimeSpentQueued {
+    executor = new ScanExecutionService(1, 1)
+    val release = new CountDownLatch(1)
+
+    executor.submit(PairRef("a", 1L), ScanPriority.Scheduled) { release.await() }
+    executor.submit(PairRef("b", 1L), ScanPriority.Scheduled) { }
+
+    Thread.sleep(100)
+    release.countDown()
+    waitForCompletion(2)
+
+    val stats = executor.statistics
+    assertEquals(0, stats.queued)
+    assertEquals(0, stats.running)
+    assertTrue("Expected to have waited at least 100ms, but waited " + stats.maxQueueMillis, stats.maxQueueMillis >= 100)
+  }
+
+  @Test(expected = classOf[IllegalStateException])
+  def shouldRejectScansOnceClosed {
+    executor = new ScanExecutionService(1, 1)
+    executor.close()
+    executor.submit(PairRef("a", 1L), ScanPriority.Manual) { }
+  }
+
+  private def waitForCompletion(count:Int) {
+    val deadline = System.currentTimeMillis() + 5000
+    while (executor.statistics.completed < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10)
+    }
+    assertEquals(count, executor.statistics.completed)
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.scanning
+
+import org.junit.Test
+import org.junit.Assert._
+import ScanMetrics._
+
+class ScanMetricsTest {
+
+  val metrics = new ScanMetrics
+
+  @Test
+  def shouldCountBucketsPerLevelOfTheTree {
+    metrics.bucketVisited(Upstream, levelOf(Seq(("someDate", "yearly"))))
+    metrics.bucketVisited(Upstream, levelOf(Seq(("someDate", "monthly"), ("someString", "prefix(1)"))))
+    metrics.bucketVisited(Upstream, levelOf(Seq(("someDate", "monthly"), ("someString", "prefix(1)"))))
+    metrics.bucketVisited(Downstream, levelOf(Seq()))
+
+    val snapshot = metrics.snapshot
+    assertEquals(Map("someDate:yearly" -> 1L, "someDate:monthly,someString:prefix(1)" -> 2L),
+                 snapshot.sides(Upstream).bucketsVisited)
+    assertEquals(Map(EntityLevel -> 1L), snapshot.sides(Downstream).bucketsVisited)
+  }
+
+  @Test
+  def shouldPlaceRequestsIntoLatencyBuckets {
+    metrics.remoteRequest(Upstream, 0)
+    metrics.remoteRequest(Upstream, 10)
+    metrics.remoteRequest(Upstream, 11)
+    metrics.remoteRequest(Upstream, 20000)
+
+    val side = metrics.snapshot.sides(Upstream)
+    assertEquals(4L, side.requests)
+    assertEquals(20021L, side.requestMillis)
+    assertEquals(Map("<=10" -> 2L, "<=50" -> 1L, ">10000" -> 1L), side.latencyHistogram)
+  }
+
+  @Test
+  def shouldOnlyRecordBytesAgainstTheScanThatTheThreadIsWorkingFor {
+    recordBytesReceived(100)
+    recording(metrics, Downstream) {
+      recordBytesReceived(50)
+      recordBytesReceived(25)
+    }
+    recordBytesReceived(100)
+
+    assertEquals(Map(Downstream -> SideMetrics(bytesReceived = 75L)), metrics.snapshot.sides)
+  }
+
+  @Test
+  def shouldAccumulateScanWideMetrics {
+    metrics.writerFlushed(5)
+    metrics.writerFlushed(7)
+    metrics.diffProduced()
+    metrics.entitiesCompared(Upstream, 10)
+
+    assertEquals(
+      ScanMetricsSnapshot(
+        sides = Map(Upstream -> SideMetrics(entitiesCompared = 10L)),
+        writerFlushes = 2L,
+        writerFlushMillis = 12L,
+        diffsProduced = 1L),
+      metrics.snapshot)
+  }
+}
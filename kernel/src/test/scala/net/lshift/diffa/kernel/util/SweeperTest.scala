@@ -49,6 +49,9 @@ class SweeperTest {
 
     expect(diffStore.purgeOrphanedEvents).andStubReturn(10)
 
+    diffStore.checkpointPendingEvents(anyBoolean())
+    expectLastCall[Unit]().asStub()
+
     replay(diffStore)
 
     val startTime = System.currentTimeMillis()
@@ -16,8 +16,15 @@
 package net.lshift.diffa.kernel.util.cache
 
 import org.junit.Assert._
+import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.experimental.theories.{DataPoint, Theories, Theory}
+import com.hazelcast.core.Hazelcast
+import scala.collection.JavaConversions._
+import net.lshift.diffa.kernel.naming.CacheName
+import net.lshift.diffa.kernel.differencing.InternalReportedDifferenceEvent
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.config.PairRef
 
 @RunWith(classOf[Theories])
 class CacheProviderTest {
@@ -101,6 +108,69 @@ class CacheProviderTest {
 
   }
 
+  @Theory
+  def shouldSupportBulkRetrievalAndInsertion(provider:CacheProvider) {
+    val cache = provider.getCachedMap[String,String]("bulk-cache")
+
+    reset(cache)
+
+    cache.putAll(Map("foo" -> "foo-value", "bar" -> "bar-value", "baz" -> "baz-value"))
+
+    assertEquals(3, cache.size())
+    assertEquals(Map("foo" -> "foo-value", "baz" -> "baz-value"), cache.getAll(Set("foo", "baz", "missing")))
+    assertEquals(Map(), cache.getAll(Set()))
+  }
+
+  @Theory
+  def shouldSupportRemovalBasedOnValueAttributes(provider:CacheProvider) {
+    val cache = provider.getCachedMap[String,NonProductionCacheValue]("attribute-cache")
+
+    reset(cache)
+
+    val foo1 = NonProductionCacheValue("foo", 1)
+    val foo2 = NonProductionCacheValue("foo", 2)
+    val bar1 = NonProductionCacheValue("bar", 1)
+    cache.putAll(Map("foo1" -> foo1, "foo2" -> foo2, "bar1" -> bar1))
+
+    assertEquals(Set(foo1, bar1), cache.valueSubset(Map("secondAttribute" -> 1)).toSet)
+
+    cache.attributeSubset(Map("firstAttribute" -> "foo", "secondAttribute" -> 1)).evictAll
+
+    assertEquals(2, cache.size())
+    assertNull(cache.get("foo1"))
+    assertEquals(foo2, cache.get("foo2"))
+    assertEquals(bar1, cache.get("bar1"))
+  }
+
+  @Test
+  def hazelcastShouldApplyIndexesAndNearCachesDeclaredByCacheName() {
+    val provider = new HazelcastCacheProvider
+    val cache = provider.getCachedMap[VersionID,InternalReportedDifferenceEvent](CacheName.DIFFS)
+    provider.getCachedMap[String,String](CacheName.DOMAIN_PAIRS_BY_KEY)
+
+    val diffsConfig = Hazelcast.getConfig.getMapConfigs.get(CacheName.DIFFS.toString)
+    assertEquals(CacheName.DIFFS.getIndexedAttributes.toList, diffsConfig.getMapIndexConfigs.map(_.getAttribute).toList)
+    assertNull(diffsConfig.getNearCacheConfig)
+    assertNotNull(Hazelcast.getConfig.getMapConfigs.get(CacheName.DOMAIN_PAIRS_BY_KEY.toString).getNearCacheConfig)
+
+    reset(cache)
+
+    def event(space:Long, pair:String, id:String) = {
+      val e = InternalReportedDifferenceEvent(objId = VersionID(PairRef(pair, space), id))
+      e.objId -> e
+    }
+    cache.putAll(Map(event(1L, "a", "id1"), event(1L, "a", "id2"), event(1L, "b", "id1"), event(2L, "a", "id1")))
+
+    cache.attributeSubset(Map("objId.pair.space" -> 1L, "objId.pair.name" -> "a")).evictAll
+
+    assertEquals(Set(VersionID(PairRef("b", 1L), "id1"), VersionID(PairRef("a", 2L), "id1")),
+      cache.valueSubset(Map("objId.pair.space" -> 1L)).map(_.objId).toSet ++
+        cache.valueSubset(Map("objId.pair.space" -> 2L)).map(_.objId).toSet)
+    assertEquals(2, cache.size())
+
+    reset(cache)
+  }
+
   private def reset(cache:CachedMap[_,_]) = {
     cache.evictAll
     assertEquals(0, cache.size)
@@ -110,6 +180,7 @@ class CacheProviderTest {
 
 object CacheProviderTest {
   @DataPoint def hazelcast = new HazelcastCacheProvider
+  @DataPoint def local = new LocalCacheProvider
 }
 
 class UnderlyingDataSource(responseValue:String) {
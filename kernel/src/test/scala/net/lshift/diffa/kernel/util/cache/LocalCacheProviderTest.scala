@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.kernel.util.cache
+
+import org.junit.Test
+import org.junit.Assert._
+import net.lshift.diffa.kernel.naming.CacheName
+import net.lshift.diffa.kernel.differencing.{PendingDifferenceEvent, InternalReportedDifferenceEvent}
+import net.lshift.diffa.kernel.events.VersionID
+import net.lshift.diffa.kernel.config.PairRef
+
+class LocalCacheProviderTest {
+
+  @Test
+  def shouldEvictLeastRecentlyUsedEntriesToStayWithinBudget() {
+    val provider = new LocalCacheProvider(maxBytesByCache = Map("bounded" -> 64L * 1024))
+    val cache = provider.getCachedMap[String,String]("bounded")
+    val value = "x" * 1024
+
+    cache.put("hot", value)
+    for (i <- 1 to 500) {
+      cache.put("key" + i, value)
+      assertEquals(value, cache.get("hot"))
+    }
+
+    val stats = provider.statistics("bounded")
+    assertEquals(64L * 1024, stats.maxBytes)
+    assertTrue("%s bytes exceeds budget".format(stats.bytes), stats.bytes <= stats.maxBytes)
+    assertTrue(stats.evictions > 0)
+    assertEquals(cache.size, stats.entries)
+    assertTrue(cache.size < 500)
+    assertEquals(500, stats.hits)
+  }
+
+  @Test
+  def shouldCountMisses() {
+    val provider = new LocalCacheProvider
+    val cache = provider.getCachedMap[String,String]("misses")
+
+    assertNull(cache.get("missing"))
+    cache.readThrough("missing", () => "value")
+    assertEquals("value", cache.get("missing"))
+
+    assertEquals(2, provider.statistics("misses").misses)
+    assertEquals(1, provider.statistics("misses").hits)
+  }
+
+  @Test
+  def shouldReturnCopiesOfCachedValues() {
+    val cache = new LocalCacheProvider().getCachedMap[String,java.util.List[String]]("copies")
+
+    val list = new java.util.ArrayList[String]
+    list.add("a")
+    cache.put("list", list)
+    list.add("b")
+    cache.get("list").add("c")
+
+    assertEquals(java.util.Arrays.asList("a"), cache.get("list"))
+  }
+
+  @Test
+  def shouldKeepIndexesConsistentAsValuesChange() {
+    val cache = new LocalCacheProvider().getCachedMap[VersionID,InternalReportedDifferenceEvent](CacheName.DIFFS)
+    val id = VersionID(PairRef("a", 1L), "id1")
+    def spaceOf(space:Long) = cache.valueSubset(Map("objId.pair.space" -> space)).map(_.objId)
+
+    cache.put(id, InternalReportedDifferenceEvent(objId = id))
+    assertEquals(List(id), spaceOf(1L))
+
+    // Replacing the value moves the entry within the index
+    val moved = VersionID(PairRef("a", 2L), "id1")
+    cache.put(id, InternalReportedDifferenceEvent(objId = moved))
+    assertEquals(List(), spaceOf(1L))
+    assertEquals(List(moved), spaceOf(2L))
+
+    cache.attributeSubset(Map("objId.pair.space" -> 2, "objId.pair.name" -> "a")).evictAll
+    assertEquals(List(), spaceOf(2L))
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def shouldCacheAndFindValuesWithNullIndexedAttributes() {
+    val cache = new LocalCacheProvider().getCachedMap[VersionID,PendingDifferenceEvent](CacheName.PENDING_DIFFS)
+    val unassigned = VersionID(PairRef("a", 1L), "id1")
+    val assigned = VersionID(PairRef("a", 1L), "id2")
+
+    cache.put(unassigned, PendingDifferenceEvent(oid = null, objId = unassigned))
+    cache.put(assigned, PendingDifferenceEvent(oid = 2L, objId = assigned))
+
+    assertEquals(List(unassigned), cache.valueSubset(Map("oid" -> null)).map(_.objId))
+    assertEquals(List(assigned), cache.valueSubset(Map("oid" -> 2L)).map(_.objId))
+
+    cache.evict(unassigned)
+    assertEquals(List(), cache.valueSubset(Map("oid" -> null)))
+  }
+
+  @Test
+  def shouldSelectProviderByName() {
+    assertTrue(CacheProviders.create(CacheProviders.LOCAL, 1024L, Map()).isInstanceOf[LocalCacheProvider])
+    assertTrue(CacheProviders.create(CacheProviders.HAZELCAST, 1024L, Map()).isInstanceOf[HazelcastCacheProvider])
+  }
+
+  @Test(expected = classOf[IllegalArgumentException])
+  def shouldRejectUnknownProvider() {
+    CacheProviders.create("memcached", 1024L, Map())
+  }
+}
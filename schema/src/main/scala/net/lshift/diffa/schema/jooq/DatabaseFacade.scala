@@ -29,31 +29,91 @@ import org.joda.time.DateTime
 import org.jadira.usertype.dateandtime.joda.columnmapper.TimestampColumnDateTimeMapper
 import java.lang.reflect.UndeclaredThrowableException
 
+/**
+ * Executes jOOQ queries against the given data source. Prepared statements aren't cached here, since a statement is
+ * only worth keeping for as long as the physical connection it was prepared on; the connection pool should be
+ * configured to cache them instead (eg. BoneCP's statementsCacheSize).
+ */
 class DatabaseFacade(dataSource: DataSource, dialect: String) {
 
   val resolvedDialect = SQLDialect.valueOf(dialect)
   private val settings = new Settings()
     .withRenderSchema(false)
     .withRenderNameStyle(RenderNameStyle.LOWER)
+    .withExecuteListeners(classOf[QueryTimingListener].getName)
 
   private val jdbcTemplate = new JdbcTemplate(dataSource)
   private val txTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource))
 
-  def execute[T](f: Factory => T): T =
-    try {
-      txTemplate.execute(new TransactionCallback[T] {
-        def doInTransaction(status: TransactionStatus) =
-          jdbcTemplate.execute(new ConnectionCallback[T] {
-            def doInConnection(conn: Connection) = {
-              f(new Factory(conn, resolvedDialect, settings))
-            }
-          })
+  /**
+   * The fetch size for cursors whose rows should be streamed from the database rather than read into memory up
+   * front. MySQL's driver only streams a result when asked for Integer.MIN_VALUE rows at a time, and then doesn't
+   * allow any other statement on the connection until the cursor is closed.
+   */
+  val streamingFetchSize = resolvedDialect match {
+    case SQLDialect.MYSQL => Integer.MIN_VALUE
+    case _                => 1000
+  }
+
+  /**
+   * Timings for each statement executed through this facade.
+   */
+  val statistics = new QueryStatistics
+
+  /**
+   * The connection that the current thread is working with, if any. Nested calls are given the same Factory rather
+   * than going back through the transaction and JDBC templates.
+   */
+  private val currentScope = new ThreadLocal[ConnectionScope]
+
+  private class ConnectionScope(conn: Connection, val transactional: Boolean) {
+    val factory = new Factory(conn, resolvedDialect, settings)
+    factory.setData(QueryTimingListener.STATISTICS_KEY, statistics)
+  }
+
+  def execute[T](f: Factory => T): T = currentScope.get match {
+    case scope if scope != null && scope.transactional =>
+      f(scope.factory)
+    case _ =>
+      try {
+        txTemplate.execute(new TransactionCallback[T] {
+          def doInTransaction(status: TransactionStatus) =
+            jdbcTemplate.execute(new ConnectionCallback[T] {
+              def doInConnection(conn: Connection) = withScope(conn, transactional = true, f)
+            })
+        })
+      } catch {
+        // N.B. TransactionTemplate wraps checked exceptions in UndeclaredThrowableException
+        case e: UndeclaredThrowableException if e.getCause != null =>
+          throw e.getCause
+      }
+  }
+
+  /**
+   * Executes read-only work without starting a transaction, which saves the transaction manager's bookkeeping and
+   * the commit round trip for single statement lookups. When called from within execute, the work joins the current
+   * transaction instead. Work that needs a consistent view across several statements should use execute.
+   */
+  def read[T](f: Factory => T): T = currentScope.get match {
+    case null =>
+      jdbcTemplate.execute(new ConnectionCallback[T] {
+        def doInConnection(conn: Connection) = withScope(conn, transactional = false, f)
       })
-    } catch {
-      // N.B. TransactionTemplate wraps checked exceptions in UndeclaredThrowableException
-      case e: UndeclaredThrowableException if e.getCause != null =>
-        throw e.getCause
+    case scope =>
+      f(scope.factory)
+  }
+
+  private def withScope[T](conn: Connection, transactional: Boolean, f: Factory => T): T = {
+    val outer = currentScope.get
+    val scope = new ConnectionScope(conn, transactional)
+
+    currentScope.set(scope)
+    try {
+      f(scope.factory)
+    } finally {
+      currentScope.set(outer)
     }
+  }
 
   def processAsStream[R <: Record](cursor: Cursor[R], handler: R => Unit) = try {
     while (cursor.hasNext) {
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.jooq
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.JavaConversions._
+import org.jooq.ExecuteContext
+import org.jooq.impl.DefaultExecuteListener
+import org.slf4j.LoggerFactory
+
+/**
+ * Accumulates the number of executions and the time spent in each distinct SQL statement issued through a
+ * DatabaseFacade.
+ *
+ * Statements are only tracked up to maxQueries distinct SQL strings, since queries with a variable number of bind
+ * values (eg. IN lists) render a different string for each size.
+ */
+class QueryStatistics(maxQueries:Int = QueryStatistics.defaultMaxQueries) {
+
+  private class Counters {
+    val executions = new AtomicLong
+    val totalNanos = new AtomicLong
+    val maxNanos = new AtomicLong
+  }
+
+  private val counters = new ConcurrentHashMap[String, Counters]
+
+  def recordExecution(sql:String, nanos:Long) {
+    countersFor(sql).foreach(c => {
+      c.executions.incrementAndGet()
+      c.totalNanos.addAndGet(nanos)
+
+      var max = c.maxNanos.get
+      while (nanos > max && !c.maxNanos.compareAndSet(max, nanos)) {
+        max = c.maxNanos.get
+      }
+    })
+  }
+
+  /**
+   * Retrieves the timings recorded so far, with the statements that have taken the most time in total first.
+   */
+  def snapshot = counters.toSeq.map { case (sql, c) =>
+    QueryTiming(sql, c.executions.get, c.totalNanos.get / 1000000, c.maxNanos.get / 1000000)
+  }.sortBy(- _.totalMillis)
+
+  def reset() {
+    counters.clear()
+  }
+
+  private def countersFor(sql:String) = if (sql == null) None else Option(counters.get(sql)).orElse {
+    if (counters.size < maxQueries) {
+      val fresh = new Counters
+      Option(counters.putIfAbsent(sql, fresh)).orElse(Some(fresh))
+    } else {
+      None
+    }
+  }
+}
+
+object QueryStatistics {
+  val defaultMaxQueries = 1000
+}
+
+case class QueryTiming(sql:String, executions:Long, totalMillis:Long, maxMillis:Long)
+
+/**
+ * Times each query from the point that jOOQ starts to render it until the database has executed it, recording the
+ * result in the QueryStatistics that the executing Factory carries. Queries slower than slowQueryMillis are logged.
+ *
+ * jOOQ creates a new listener for each execution.
+ */
+class QueryTimingListener extends DefaultExecuteListener {
+
+  import QueryTimingListener._
+
+  private var started = 0L
+
+  override def start(ctx:ExecuteContext) {
+    started = System.nanoTime()
+  }
+
+  override def executeEnd(ctx:ExecuteContext) {
+    val elapsed = System.nanoTime() - started
+    val sql = Option(ctx.sql).orElse(Option(ctx.batchSQL).flatMap(_.find(_ != null))).getOrElse("<unknown>")
+
+    ctx.getData(STATISTICS_KEY) match {
+      case statistics:QueryStatistics => statistics.recordExecution(sql, elapsed)
+      case _                          =>
+    }
+
+    val elapsedMillis = elapsed / 1000000
+    if (elapsedMillis >= slowQueryMillis) {
+      log.warn("Slow query (%sms): %s".format(elapsedMillis, sql))
+    } else if (log.isTraceEnabled) {
+      log.trace("Query (%sms): %s".format(elapsedMillis, sql))
+    }
+  }
+}
+
+object QueryTimingListener {
+  val STATISTICS_KEY = "diffa.query.statistics"
+  val slowQueryMillis = 1000
+
+  private val log = LoggerFactory.getLogger(classOf[QueryTimingListener])
+}
@@ -199,6 +199,13 @@ object HibernateConfigStorePreparationStep {
    * Note that these steps should be executed in strictly ascending order.
    */
   val migrationSteps = Seq(
-    Step0054
+    Step0054,
+    Step0055,
+    Step0056,
+    Step0057,
+    Step0058,
+    Step0059,
+    Step0060,
+    Step0061
   )
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.migrations.steps
+
+import net.lshift.diffa.schema.migrations.{MigrationUtil, VerifiedMigrationStep}
+import net.lshift.hibernate.migrations.MigrationBuilder
+import net.lshift.diffa.schema.servicelimits.ScanConcurrency
+import org.hibernate.cfg.Configuration
+import scala.collection.JavaConversions._
+
+/**
+ * Define a limit for the number of buckets that can be scanned concurrently.
+ */
+object Step0055 extends VerifiedMigrationStep {
+
+  def versionId = 55
+
+  def name = "Add scan concurrency limit"
+
+  def createMigration(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    MigrationUtil.insertLimit(migration, ScanConcurrency)
+
+    migration
+  }
+
+  def applyVerification(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    val spaceId = randomInt()
+    createSpace(migration, spaceId, "0", randomString())
+
+    migration.insert("space_limits").values(Map(
+      "space" -> spaceId,
+      "name" -> ScanConcurrency.key,
+      "default_limit" -> "4",
+      "hard_limit" -> "8"
+    ))
+
+    migration
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.migrations.steps
+
+import net.lshift.diffa.schema.migrations.{MigrationUtil, VerifiedMigrationStep}
+import net.lshift.hibernate.migrations.MigrationBuilder
+import net.lshift.diffa.schema.servicelimits.CommutativeScanDigests
+import org.hibernate.cfg.Configuration
+import scala.collection.JavaConversions._
+
+/**
+ * Define the option selecting order-independent digests for aggregate scans.
+ */
+object Step0056 extends VerifiedMigrationStep {
+
+  def versionId = 56
+
+  def name = "Add commutative scan digests option"
+
+  def createMigration(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    MigrationUtil.insertLimit(migration, CommutativeScanDigests)
+
+    migration
+  }
+
+  def applyVerification(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    val spaceId = randomInt()
+    createSpace(migration, spaceId, "0", randomString())
+
+    migration.insert("space_limits").values(Map(
+      "space" -> spaceId,
+      "name" -> CommutativeScanDigests.key,
+      "default_limit" -> "1",
+      "hard_limit" -> "1"
+    ))
+
+    migration
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.schema.migrations.steps
+
+import net.lshift.diffa.schema.migrations.VerifiedMigrationStep
+import net.lshift.hibernate.migrations.MigrationBuilder
+import org.hibernate.cfg.Configuration
+
+/**
+ * Index the differences of each pair in the order in which they are paged through, so that a page can be found
+ * by seeking to the (detected_at, seq_id) of the last difference on the previous page.
+ */
+object Step0058 extends VerifiedMigrationStep {
+
+  def versionId = 58
+
+  def name = "Add difference pagination index"
+
+  def createMigration(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    migration.createIndex("diff_pagination", "diffs", "extent", "detected_at", "seq_id")
+
+    migration
+  }
+
+  def applyVerification(config: Configuration) = new MigrationBuilder(config)
+}
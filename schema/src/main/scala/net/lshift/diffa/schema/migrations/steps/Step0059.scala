@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2010-2012 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.lshift.diffa.schema.migrations.steps
+
+import net.lshift.diffa.schema.migrations.VerifiedMigrationStep
+import net.lshift.hibernate.migrations.MigrationBuilder
+import org.hibernate.cfg.Configuration
+import java.sql.Types
+import scala.collection.JavaConversions._
+
+/**
+ * Materialize the number of outstanding differences in each extent for a set of tile widths, so that aggregates can be
+ * read without counting the differences themselves. A tile is identified by its width in minutes and the index of the
+ * tile since the epoch. Existing differences are counted into the table by the difference store when it starts up.
+ */
+object Step0059 extends VerifiedMigrationStep {
+
+  def versionId = 59
+
+  def name = "Add materialized difference tile counts"
+
+  def createMigration(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    migration.createTable("diff_tiles").
+      column("extent", Types.BIGINT, false).
+      column("width", Types.INTEGER, false).
+      column("tile", Types.BIGINT, false).
+      column("diff_count", Types.INTEGER, false, 0).
+      pk("extent", "width", "tile")
+
+    migration.alterTable("diff_tiles").
+      addForeignKey("fk_dtil_ext", "extent", "extents", "id")
+
+    migration
+  }
+
+  def applyVerification(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    val extent = randomInt()
+
+    migration.insert("extents").values(Map(
+      "id" -> extent
+    ))
+
+    migration.insert("diff_tiles").values(Map(
+      "extent" -> extent,
+      "width" -> "15",
+      "tile" -> randomInt(),
+      "diff_count" -> "1"
+    ))
+
+    migration
+  }
+}
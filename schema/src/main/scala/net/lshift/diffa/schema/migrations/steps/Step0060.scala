@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.migrations.steps
+
+import net.lshift.diffa.schema.migrations.VerifiedMigrationStep
+import net.lshift.hibernate.migrations.MigrationBuilder
+import org.hibernate.cfg.Configuration
+import java.sql.Types
+import scala.collection.JavaConversions._
+
+/**
+ * Record the metrics gathered while a scan runs alongside its scan statement. Each row holds a single counter, named
+ * by the side of the pair it was recorded against, the metric and an optional label (such as a level of the
+ * aggregate tree or a latency bucket).
+ */
+object Step0060 extends VerifiedMigrationStep {
+
+  def versionId = 60
+
+  def name = "Add scan metrics"
+
+  def createMigration(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    migration.createTable("scan_metrics").
+      column("space", Types.BIGINT, false).
+      column("pair", Types.VARCHAR, 50, false).
+      column("scan_id", Types.BIGINT, false).
+      column("side", Types.VARCHAR, 20, false).
+      column("metric", Types.VARCHAR, 50, false).
+      column("label", Types.VARCHAR, 100, false).
+      column("metric_value", Types.BIGINT, false, 0).
+      pk("space", "pair", "scan_id", "side", "metric", "label")
+
+    migration
+  }
+
+  def applyVerification(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    migration.insert("scan_metrics").values(Map(
+      "space" -> randomInt(),
+      "pair" -> randomString(),
+      "scan_id" -> randomInt(),
+      "side" -> "upstream",
+      "metric" -> "buckets",
+      "label" -> "someDate:yearly",
+      "metric_value" -> "1"
+    ))
+
+    migration
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.migrations.steps
+
+import net.lshift.diffa.schema.migrations.{MigrationUtil, VerifiedMigrationStep}
+import net.lshift.hibernate.migrations.MigrationBuilder
+import net.lshift.diffa.schema.servicelimits.ChangeEventBatchSize
+import org.hibernate.cfg.Configuration
+import scala.collection.JavaConversions._
+
+/**
+ * Define the limit on the number of change events that may be submitted in a single batch.
+ */
+object Step0061 extends VerifiedMigrationStep {
+
+  def versionId = 61
+
+  def name = "Add change event batch size limit"
+
+  def createMigration(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    MigrationUtil.insertLimit(migration, ChangeEventBatchSize)
+
+    migration
+  }
+
+  def applyVerification(config: Configuration) = {
+    val migration = new MigrationBuilder(config)
+
+    val spaceId = randomInt()
+    createSpace(migration, spaceId, "0", randomString())
+
+    migration.insert("space_limits").values(Map(
+      "space" -> spaceId,
+      "name" -> ChangeEventBatchSize.key,
+      "default_limit" -> "100",
+      "hard_limit" -> "500"
+    ))
+
+    migration
+  }
+}
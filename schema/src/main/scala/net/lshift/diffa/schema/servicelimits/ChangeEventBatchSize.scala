@@ -0,0 +1,24 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.servicelimits
+
+object ChangeEventBatchSize extends ServiceLimit {
+  def key = "rte.events-per-batch"
+  def description = "The maximum number of change events that may be submitted to a domain in a single batch"
+  def defaultLimit = 1000
+  def hardLimit = 10000
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.schema.jooq
+
+import org.junit.{After, Before, Test}
+import org.junit.Assert._
+import org.springframework.jdbc.datasource.DriverManagerDataSource
+import net.lshift.diffa.schema.environment.TestDatabaseEnvironments
+import org.jooq.impl.Factory
+import org.jooq.Record
+import scala.collection.mutable.ListBuffer
+import scala.collection.JavaConversions._
+
+class DatabaseFacadeTest {
+
+  val env = TestDatabaseEnvironments.uniqueEnvironment("target/databaseFacade")
+  Class.forName(env.driver)
+
+  val db = new DatabaseFacade(new DriverManagerDataSource(env.url, env.username, env.password), env.jooqDialect)
+
+  val selectName = "select name from facade_test where id = ?"
+
+  @Before
+  def createTable {
+    db.execute { t =>
+      t.execute("create table facade_test (id integer not null, name varchar(50), primary key (id))")
+      t.execute("insert into facade_test (id, name) values (1, 'one')")
+      t.execute("insert into facade_test (id, name) values (2, 'two')")
+    }
+    db.statistics.reset()
+  }
+
+  @After
+  def dropTable {
+    db.execute(t => t.execute("drop table facade_test"))
+  }
+
+  def nameOf(t:Factory, id:Int) = t.fetch(selectName, id:java.lang.Integer).getValueAsString(0, 0)
+
+  @Test
+  def shouldTimeEachExecutionOfAStatement {
+    db.execute(t => nameOf(t, 1))
+    db.read(t => nameOf(t, 2))
+
+    val timing = db.statistics.snapshot.find(_.sql == selectName).get
+    assertEquals(2, timing.executions)
+    assertTrue(timing.maxMillis <= timing.totalMillis)
+  }
+
+  @Test
+  def shouldAllowOtherQueriesWhilstACursorIsOpen {
+    db.execute { t =>
+      val cursor = t.fetchLazy(selectName, 1:java.lang.Integer)
+      val names = new ListBuffer[String]
+
+      db.processAsStream(cursor, (r:Record) => {
+        names.append(r.getValueAsString(0))
+        names.append(nameOf(t, 2))
+      })
+
+      assertEquals(Seq("one", "two"), names)
+    }
+  }
+
+  @Test
+  def nestedWorkShouldJoinTheEnclosingTransaction {
+    db.execute { outer =>
+      db.execute(inner => assertSame(outer, inner))
+      db.read(inner => assertSame(outer, inner))
+    }
+  }
+
+  @Test
+  def transactionalWorkShouldNotJoinReadOnlyWork {
+    db.read { outer =>
+      db.execute(inner => assertNotSame(outer, inner))
+      db.read(inner => assertSame(outer, inner))
+    }
+  }
+
+  @Test
+  def shouldExecuteAndTimeBatchesOfQueries {
+    db.execute { t =>
+      t.batch(
+        t.query("insert into facade_test (id, name) values (3, 'three')"),
+        t.query("insert into facade_test (id, name) values (4, 'four')")
+      ).execute()
+    }
+
+    assertEquals("four", db.read(t => nameOf(t, 4)))
+    assertTrue(db.statistics.snapshot.exists(_.sql.startsWith("insert into facade_test")))
+  }
+
+  @Test
+  def writesShouldBeRolledBackWhenTransactionFails {
+    try {
+      db.execute { t =>
+        t.execute("update facade_test set name = 'uno' where id = 1")
+        throw new IllegalStateException("abort")
+      }
+      fail("Should have propagated the exception")
+    } catch {
+      case e:IllegalStateException => // expected
+    }
+
+    assertEquals("one", db.read(t => nameOf(t, 1)))
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.lshift.diffa.snowflake;
+
+/**
+ * A range of contiguous identifiers reserved from an IdProvider, starting at first.
+ */
+public class IdBlock {
+  private final long first;
+  private final int size;
+
+  public IdBlock(long first, int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("An id block must contain at least one id");
+    }
+    this.first = first;
+    this.size = size;
+  }
+
+  public long getFirst() {
+    return first;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public long get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(String.format("Index %d is outside a block of %d ids", index, size));
+    }
+    return first + index;
+  }
+
+  /**
+   * Reserves exactly count identifiers from the given provider, taking as many blocks as are needed.
+   */
+  public static long[] reserve(IdProvider provider, int count) throws InvalidSystemClockException {
+    long[] ids = new long[count];
+    int filled = 0;
+
+    while (filled < count) {
+      IdBlock block = provider.reserveBlock(count - filled);
+      int taken = Math.min(block.getSize(), count - filled);
+      for (int i = 0; i < taken; i++) {
+        ids[filled++] = block.get(i);
+      }
+    }
+
+    return ids;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("IdBlock(%d, %d)", first, size);
+  }
+}
@@ -20,4 +20,10 @@ package net.lshift.diffa.snowflake;
  */
 public interface IdProvider {
   public long getId() throws InvalidSystemClockException, SequenceExhaustedException;
+
+  /**
+   * Reserves a block of contiguous identifiers. The block may contain fewer identifiers than were requested, but
+   * will always contain at least one; use IdBlock.reserve to obtain an exact number of identifiers.
+   */
+  public IdBlock reserveBlock(int size) throws InvalidSystemClockException;
 }
@@ -16,12 +16,18 @@
 
 package net.lshift.diffa.snowflake;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import static java.lang.Math.pow;
 import static java.lang.Math.round;
 
 /**
  * Provider of unique, k-ordered identifiers.  Uniqueness of identifiers across
  * nodes can be achieved by having each node provide a unique machine ID.
+ *
+ * Identifiers are allocated without locking: the timestamp and the last sequence
+ * number handed out for it are packed into a single value which is advanced by
+ * compare-and-set, so a block of identifiers costs the same as a single one.
  */
 public class SnowflakeIdProvider implements IdProvider {
   public static final int machineBits = 10;
@@ -34,11 +40,12 @@ public class SnowflakeIdProvider implements IdProvider {
   public static final int machineLShift = sequenceBits;
   public static final int sequenceLShift = 0;
 
+  private static final long noAllocations = -1L;
+
   private int machineId;
   private long pauseMs = 0L;
   private TimeFunction timeFn = SystemTimeFunction.getInstance();
-  private short sequenceNum = 0;
-  private long lastTimestamp = -1L;
+  private final AtomicLong lastAllocation = new AtomicLong(noAllocations);
   private final Object mutex = new Object();
 
   public SnowflakeIdProvider(int machineId) {
@@ -57,35 +64,79 @@ public class SnowflakeIdProvider implements IdProvider {
   }
 
   public long getId() throws InvalidSystemClockException, SequenceExhaustedException {
-    long now = timeFn.now();
-    long seq;
+    maybePause();
+
+    IdBlock block = allocate(1);
+    if (block == null) {
+      throw new SequenceExhaustedException(sequenceUpperBound);
+    }
+    return block.getFirst();
+  }
+
+  /**
+   * Reserves up to size identifiers from the current millisecond. Since the sequence number occupies the low bits
+   * of an identifier, a block never spans more than one millisecond, and so is limited to the sequence numbers that
+   * remain in it. Rather than failing when the sequence is exhausted, this waits for the clock to move on.
+   */
+  public IdBlock reserveBlock(int size) throws InvalidSystemClockException {
+    if (size < 1) {
+      throw new IllegalArgumentException("Block size must be positive");
+    }
+
+    maybePause();
 
-    synchronized(mutex) {
-      maybePause();
+    while (true) {
+      IdBlock block = allocate(size);
+      if (block != null) {
+        return block;
+      }
+      Thread.yield();
+    }
+  }
 
+  /**
+   * Allocates up to size sequence numbers in the current millisecond, returning null if none remain. The clock is
+   * read after the last allocation, so that losing a race to another thread is never mistaken for the clock running
+   * backwards.
+   */
+  private IdBlock allocate(int size) throws InvalidSystemClockException {
+    while (true) {
+      long last = lastAllocation.get();
+      long now = timeFn.now();
+      long lastTimestamp = (last == noAllocations) ? -1L : last >>> sequenceBits;
+
+      int start;
       if (now < lastTimestamp) {
         throw new InvalidSystemClockException();
       } else if (now > lastTimestamp) {
-        sequenceNum = 0;
+        start = 0;
       } else {
-        if (sequenceNum < SnowflakeIdProvider.sequenceUpperBound) {
-          sequenceNum++;
-        } else {
-          throw new SequenceExhaustedException(sequenceNum);
+        start = (int) (last & sequenceUpperBound) + 1;
+        if (start > sequenceUpperBound) {
+          return null;
         }
       }
-      seq = sequenceNum;
-      lastTimestamp = now;
-    }
 
-    return (now << timestampLShift) | (machineId << machineLShift) | (seq << sequenceLShift);
+      int granted = Math.min(size, sequenceUpperBound - start + 1);
+      long next = (now << sequenceBits) | (start + granted - 1);
+
+      if (lastAllocation.compareAndSet(last, next)) {
+        long first = (now << timestampLShift) | (machineId << machineLShift) | ((long) start << sequenceLShift);
+        return new IdBlock(first, granted);
+      }
+    }
   }
 
+  /**
+   * Pauses are serialised, so that tests can simulate a slow provider being called concurrently.
+   */
   private void maybePause() {
     if (pauseMs > 0) {
-      try {
-        Thread.sleep(pauseMs);
-      } catch (InterruptedException ie) {
+      synchronized(mutex) {
+        try {
+          Thread.sleep(pauseMs);
+        } catch (InterruptedException ie) {
+        }
       }
     }
   }
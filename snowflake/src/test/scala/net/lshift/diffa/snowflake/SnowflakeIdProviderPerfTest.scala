@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2010-2013 LShift Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.lshift.diffa.snowflake
+
+import org.junit.Assert._
+import org.junit.Assume._
+import org.hamcrest.CoreMatchers._
+import org.junit.{Before, Test}
+import java.util.concurrent.{TimeUnit, Executors, CountDownLatch}
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Measures the throughput of multi-threaded identifier allocation, one id at a time and in blocks. A single provider
+ * can never issue more than 4096 ids per millisecond, so throughput is reported against that ceiling, along with the
+ * number of single allocations that were rejected because the sequence for the current millisecond was exhausted.
+ */
+class SnowflakeIdProviderPerfTest {
+
+  val threads = Runtime.getRuntime.availableProcessors * 2
+  val idsPerThread = 2000000
+  val blockSize = 100
+  val ceiling = SnowflakeIdProvider.sequenceUpperBound + 1  // ids per millisecond
+
+  @Before
+  def checkPerformanceTestingEnabled {
+    assumeThat(System.getProperty("diffa.perftest"), is(equalTo("1")))
+  }
+
+  @Test
+  def blockAllocationShouldApproachTheSequenceCeiling {
+    // Warm up both paths before measuring either
+    measure(singly)
+    measure(inBlocks)
+
+    val (single, singleRejections) = measure(singly)
+    val (blocked, blockRejections) = measure(inBlocks)
+    val total = threads.toLong * idsPerThread
+
+    println("Mode,Threads,Ids,Millis,Ids per ms,Rejected allocations")
+    println("single,%s,%s,%s,%s,%s".format(threads, total, single, total / math.max(single, 1), singleRejections))
+    println("block,%s,%s,%s,%s,%s".format(threads, total, blocked, total / math.max(blocked, 1), blockRejections))
+
+    assertEquals(0, blockRejections)
+    assertTrue("Allocating in blocks reached %s ids/ms, less than 80%% of the ceiling of %s".format(total / math.max(blocked, 1), ceiling),
+      total / math.max(blocked, 1) >= ceiling * 0.8)
+  }
+
+  private def singly(provider:IdProvider, rejections:AtomicLong) {
+    var i = 0
+    while (i < idsPerThread) {
+      try {
+        provider.getId
+        i += 1
+      } catch {
+        case e:SequenceExhaustedException =>
+          rejections.incrementAndGet()
+          Thread.`yield`()
+      }
+    }
+  }
+
+  private def inBlocks(provider:IdProvider, rejections:AtomicLong) {
+    var i = 0
+    while (i < idsPerThread) {
+      i += provider.reserveBlock(math.min(blockSize, idsPerThread - i)).getSize
+    }
+  }
+
+  /**
+   * Runs the given allocation on every thread at once against a shared provider, returning the elapsed milliseconds
+   * and the number of rejected allocations.
+   */
+  private def measure(allocate:(IdProvider, AtomicLong) => Unit) = {
+    val provider = new SnowflakeIdProvider(1)
+    val rejections = new AtomicLong
+    val pool = Executors.newFixedThreadPool(threads)
+    val ready = new CountDownLatch(threads)
+    val go = new CountDownLatch(1)
+    val done = new CountDownLatch(threads)
+
+    (1 to threads).foreach(_ => pool.execute(new Runnable {
+      def run() {
+        ready.countDown()
+        go.await()
+        allocate(provider, rejections)
+        done.countDown()
+      }
+    }))
+
+    ready.await()
+    val start = System.currentTimeMillis()
+    go.countDown()
+    done.await()
+    val elapsed = System.currentTimeMillis() - start
+
+    pool.shutdown()
+    pool.awaitTermination(10, TimeUnit.SECONDS)
+
+    (elapsed, rejections.get)
+  }
+}
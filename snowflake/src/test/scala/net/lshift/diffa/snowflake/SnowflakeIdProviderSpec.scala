@@ -163,6 +163,67 @@ class SnowflakeIdProviderSpec extends SpecificationWithJUnit with ScalaCheck {
       def elapsedTime = System.currentTimeMillis() - startTime
     }
 
+    "reserve a block of contiguous identifiers" in {
+      val provider = new SnowflakeIdProvider(1)
+      provider.setTimeFn(new TimeFunction { def now = 1L })
+
+      val block = provider.reserveBlock(10)
+      block.getSize must_== 10
+      (0 until 10).map(block.get(_)) must_== (0 until 10).map(block.getFirst + _)
+      provider.getId() must_== block.getFirst + 10
+    }
+
+    "limit a block to the sequence numbers remaining in the current millisecond" in {
+      val provider = new SnowflakeIdProvider(1)
+      provider.setTimeFn(new TimeFunction { def now = 1L })
+
+      provider.reserveBlock(4000).getSize must_== 4000
+      provider.reserveBlock(200).getSize must_== (sequenceUpperBound + 1 - 4000)
+    }
+
+    "wait for the next millisecond rather than fail when reserving from an exhausted sequence" in {
+      val provider = new SnowflakeIdProvider(1)
+      var calls = 0
+      provider.setTimeFn(new TimeFunction { def now = { calls += 1; if (calls < 5) 1L else 2L } })
+
+      provider.reserveBlock(sequenceUpperBound + 1)
+      val block = provider.reserveBlock(1)
+      ((block.getFirst & timestampMask) >> (SnowflakeIdProvider.machineBits + SnowflakeIdProvider.sequenceBits)) must_== 2L
+      (block.getFirst & sequenceMask) must_== 0
+    }
+
+    "reserve exactly the requested number of identifiers across blocks" in {
+      val ids = IdBlock.reserve(new SnowflakeIdProvider(1), 10000)
+
+      ids.length must_== 10000
+      ids.toSeq must_== ids.toSeq.sorted
+      ids.toSet.size must_== 10000
+    }
+
+    "never hand out the same identifier twice to concurrent callers" in {
+      val provider = new SnowflakeIdProvider(1)
+      val results = (1 to 8).map(_ => new java.util.concurrent.ConcurrentLinkedQueue[Long])
+      val threads = results.zipWithIndex.map { case (ids, i) =>
+        new Thread(new Runnable() {
+          def run() {
+            (1 to 1000).foreach { _ =>
+              if (i % 2 == 0) {
+                ids.add(getWithRetry(provider))
+              } else {
+                val block = provider.reserveBlock(50)
+                (0 until block.getSize).foreach(j => ids.add(block.get(j)))
+              }
+            }
+          }
+        })
+      }
+      threads.foreach(_.start())
+      threads.foreach(_.join())
+
+      val all = results.flatMap(q => scala.collection.JavaConversions.collectionAsScalaIterable(q))
+      all.toSet.size must_== all.size
+    }
+
     "generate only unique identifiers, even when time runs backwards" in {
       val provider = new SnowflakeIdProvider(1)
       provider.setTimeFn(new TimeFunction { def now = 3L })